@@ -128,6 +128,7 @@ public class BuildManager implements ApplicationComponent{
   public static final String TEMP_DIR_NAME = "_temp_";
   private static final int MAKE_TRIGGER_DELAY = 300 /*300 ms*/;
   private static final int DOCUMENT_SAVE_TRIGGER_DELAY = 1500 /*1.5 sec*/;
+  private static final long DAEMON_CONNECT_TIMEOUT = 10000 /*10 sec*/;
   private final boolean IS_UNIT_TEST_MODE;
   private static final String IWS_EXTENSION = ".iws";
   private static final String IPR_EXTENSION = ".ipr";
@@ -156,6 +157,7 @@ public class BuildManager implements ApplicationComponent{
   private final Executor myPooledThreadExecutor = new PooledThreadExecutor();
   private final SequentialTaskExecutor myRequestsProcessor = new SequentialTaskExecutor(myPooledThreadExecutor);
   private final Map<String, ProjectData> myProjectDataMap = Collections.synchronizedMap(new HashMap<String, ProjectData>());
+  private final Map<String, DaemonProcess> myDaemons = Collections.synchronizedMap(new HashMap<String, DaemonProcess>());
 
   private final BuildManagerPeriodicTask myAutoMakeTask = new BuildManagerPeriodicTask() {
     @Override
@@ -592,6 +594,10 @@ public class BuildManager implements ApplicationComponent{
                     return;
                   }
                   myBuildsInProgress.put(projectPath, future);
+                  if (Registry.is("compiler.process.daemon")) {
+                    runInDaemon(project, projectPath, sessionId, future, handler);
+                    return;
+                  }
                   final OSProcessHandler processHandler = launchBuildProcess(project, myListenPort, sessionId);
                   final StringBuilder stdErrOutput = new StringBuilder();
                   processHandler.addProcessListener(new ProcessAdapter() {
@@ -682,7 +688,111 @@ public class BuildManager implements ApplicationComponent{
     return "com.intellij.compiler.server.BuildManager";
   }
 
+  /**
+   * Runs the session in the daemon build process of the project, which keeps the project loaded between sessions.
+   * The daemon is started if there is none yet or if it was started with different parameters.
+   * Returns when the session is terminated or the daemon has exited; abnormal termination of the daemon is reported to the handler.
+   */
+  private void runInDaemon(Project project, final String projectPath, UUID sessionId, RequestFuture future, BuilderMessageHandler handler)
+    throws Exception {
+    final GeneralCommandLine cmdLine = createBuildProcessCommandLine(project, myListenPort, sessionId);
+    final List<String> signature = new ArrayList<String>(cmdLine.getParametersList().getList());
+    signature.remove(sessionId.toString());
+    signature.add(cmdLine.getExePath());
+
+    DaemonProcess daemon = myDaemons.get(projectPath);
+    if (daemon != null) {
+      if (daemon.processHandler.isProcessTerminated() || !daemon.signature.equals(signature)) {
+        stopDaemon(projectPath);
+      }
+      else {
+        daemon.resetStdErr();
+        if (myMessageDispatcher.startSessionInDaemon(daemon.daemonId, sessionId, DAEMON_CONNECT_TIMEOUT)) {
+          waitForDaemonSession(daemon, sessionId, future, handler);
+          return;
+        }
+        LOG.info("Build daemon for " + projectPath + " did not get ready for the next session, starting a new one");
+        stopDaemon(projectPath);
+      }
+    }
+
+    // the first session of a daemon is started the usual way, the id of the session identifies the daemon afterwards
+    myMessageDispatcher.registerDaemon(sessionId);
+    final OSProcessHandler processHandler = createProcessHandler(cmdLine);
+    final DaemonProcess newDaemon = new DaemonProcess(sessionId, processHandler, signature);
+    myDaemons.put(projectPath, newDaemon);
+    processHandler.addProcessListener(new ProcessAdapter() {
+      @Override
+      public void onTextAvailable(ProcessEvent event, Key outputType) {
+        final String text = event.getText();
+        if (!StringUtil.isEmptyOrSpaces(text)) {
+          LOG.info("BUILDER_PROCESS [" + outputType.toString() + "]: " + text.trim());
+          if (ProcessOutputTypes.STDERR.equals(outputType)) {
+            newDaemon.appendStdErr(text);
+          }
+        }
+      }
+
+      @Override
+      public void processTerminated(ProcessEvent event) {
+        myMessageDispatcher.unregisterDaemon(newDaemon.daemonId);
+        synchronized (myDaemons) {
+          if (myDaemons.get(projectPath) == newDaemon) {
+            myDaemons.remove(projectPath);
+          }
+        }
+      }
+    });
+    processHandler.startNotify();
+    waitForDaemonSession(newDaemon, sessionId, future, handler);
+  }
+
+  private static void waitForDaemonSession(DaemonProcess daemon, UUID sessionId, RequestFuture future, BuilderMessageHandler handler) {
+    final OSProcessHandler processHandler = daemon.processHandler;
+    while (!future.waitFor(500, TimeUnit.MILLISECONDS)) {
+      if (processHandler.isProcessTerminated()) {
+        final int exitValue = processHandler.getProcess().exitValue();
+        if (exitValue != 0) {
+          final String stdErrOutput = daemon.getStdErr();
+          final StringBuilder msg = new StringBuilder();
+          msg.append("Abnormal build process termination: ");
+          if (stdErrOutput.length() > 0) {
+            msg.append("\n").append(stdErrOutput);
+          }
+          else {
+            msg.append("unknown error");
+          }
+          handler.handleFailure(sessionId, CmdlineProtoUtil.createFailure(msg.toString(), null));
+        }
+        break;
+      }
+    }
+  }
+
+  private void stopDaemon(String projectPath) {
+    final DaemonProcess daemon = myDaemons.remove(projectPath);
+    if (daemon != null) {
+      // closing the connection makes the daemon close its storages and exit
+      myMessageDispatcher.unregisterDaemon(daemon.daemonId);
+    }
+  }
+
   private OSProcessHandler launchBuildProcess(Project project, final int port, final UUID sessionId) throws ExecutionException {
+    return createProcessHandler(createBuildProcessCommandLine(project, port, sessionId));
+  }
+
+  private OSProcessHandler createProcessHandler(GeneralCommandLine cmdLine) throws ExecutionException {
+    final Process process = cmdLine.createProcess();
+
+    return new OSProcessHandler(process, null, mySystemCharset) {
+      @Override
+      protected boolean shouldDestroyProcessRecursively() {
+        return true;
+      }
+    };
+  }
+
+  private GeneralCommandLine createBuildProcessCommandLine(Project project, final int port, final UUID sessionId) throws ExecutionException {
     final String compilerPath;
     final String vmExecutablePath;
     JavaSdkVersion sdkVersion = null;
@@ -822,6 +932,12 @@ public class BuildManager implements ApplicationComponent{
     if (Registry.is("compiler.process.use.external.javac")) {
       cmdLine.addParameter("-D"+ GlobalOptions.USE_EXTERNAL_JAVAC_OPTION);
     }
+    if (Registry.is("compiler.process.daemon")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.BUILD_DAEMON_OPTION + "=true");
+    }
+    if (Registry.is("compiler.process.metrics")) {
+      cmdLine.addParameter("-D"+ GlobalOptions.BUILD_METRICS_OPTION + "=true");
+    }
 
     // javac's VM should use the same default locale that IDEA uses in order for javac to print messages in 'correct' language
     if (mySystemCharset != null) {
@@ -862,14 +978,7 @@ public class BuildManager implements ApplicationComponent{
 
     cmdLine.setWorkDirectory(workDirectory);
 
-    final Process process = cmdLine.createProcess();
-
-    return new OSProcessHandler(process, null, mySystemCharset) {
-      @Override
-      protected boolean shouldDestroyProcessRecursively() {
-        return true;
-      }
-    };
+    return cmdLine;
   }
 
   public File getBuildSystemDirectory() {
@@ -1094,6 +1203,7 @@ public class BuildManager implements ApplicationComponent{
     @Override
     public void projectClosed(Project project) {
       myProjectDataMap.remove(getProjectPath(project));
+      stopDaemon(getProjectPath(project));
       final MessageBusConnection conn = myConnections.remove(project);
       if (conn != null) {
         conn.disconnect();
@@ -1101,6 +1211,34 @@ public class BuildManager implements ApplicationComponent{
     }
   }
 
+  private static class DaemonProcess {
+    final UUID daemonId;
+    final OSProcessHandler processHandler;
+    final List<String> signature;
+    private final StringBuilder myStdErrOutput = new StringBuilder();
+
+    private DaemonProcess(UUID daemonId, OSProcessHandler processHandler, List<String> signature) {
+      this.daemonId = daemonId;
+      this.processHandler = processHandler;
+      this.signature = signature;
+    }
+
+    synchronized void appendStdErr(String text) {
+      if (myStdErrOutput.length() < 1024) {
+        myStdErrOutput.append(text);
+      }
+    }
+
+    // errors of the previous sessions have already been reported
+    synchronized void resetStdErr() {
+      myStdErrOutput.setLength(0);
+    }
+
+    synchronized String getStdErr() {
+      return myStdErrOutput.toString();
+    }
+  }
+
   private static class ProjectData {
     final SequentialTaskExecutor taskQueue;
     private final Set<String> myChanged = new THashSet<String>(FileUtil.PATH_HASHING_STRATEGY);
@@ -23,6 +23,7 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.api.CmdlineProtoUtil;
 import org.jetbrains.jps.api.CmdlineRemoteProto;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -36,6 +37,8 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.server.BuildMessageDispatcher");
   private final Map<UUID, SessionData> myMessageHandlers = new ConcurrentHashMap<UUID, SessionData>();
   private final Set<UUID> myCanceledSessions = new ConcurrentHashSet<UUID>();
+  private final Set<UUID> myDaemonIds = new ConcurrentHashSet<UUID>();
+  private final Map<UUID, Channel> myIdleDaemonChannels = new HashMap<UUID, Channel>();
 
   public void registerBuildMessageHandler(UUID sessionId,
                                           BuilderMessageHandler handler,
@@ -59,6 +62,49 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     }
   }
 
+  public void registerDaemon(UUID daemonId) {
+    myDaemonIds.add(daemonId);
+  }
+
+  public void unregisterDaemon(UUID daemonId) {
+    myDaemonIds.remove(daemonId);
+    final Channel channel;
+    synchronized (myIdleDaemonChannels) {
+      channel = myIdleDaemonChannels.remove(daemonId);
+    }
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  /**
+   * Waits until the daemon build process connects to accept the next session, then sends the parameters of the session to it.
+   * @return false if the daemon has not become idle in time; the session is not started then
+   */
+  public boolean startSessionInDaemon(UUID daemonId, UUID sessionId, long timeoutMs) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMs;
+    Channel channel;
+    synchronized (myIdleDaemonChannels) {
+      while ((channel = myIdleDaemonChannels.remove(daemonId)) == null) {
+        final long toWait = deadline - System.currentTimeMillis();
+        if (toWait <= 0 || !myDaemonIds.contains(daemonId)) {
+          return false;
+        }
+        myIdleDaemonChannels.wait(toWait);
+      }
+    }
+    final SessionData sessionData = myMessageHandlers.get(sessionId);
+    final ChannelHandlerContext ctx = channel.getPipeline().getContext(this);
+    if (sessionData == null || ctx == null || !channel.isConnected()) {
+      channel.close();
+      return false;
+    }
+    sessionData.channel = channel;
+    ctx.setAttachment(sessionData);
+    sendParams(channel, sessionData);
+    return true;
+  }
+
   @Nullable
   public Channel getConnectedChannel(final UUID sessionId) {
     final Channel channel = getAssociatedChannel(sessionId);
@@ -89,6 +135,14 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
         sessionData.channel = ctx.getChannel();
         ctx.setAttachment(sessionData);
       }
+      else if (myDaemonIds.contains(sessionId) && isParamRequest(message)) {
+        // daemon build process is ready for the next session
+        synchronized (myIdleDaemonChannels) {
+          myIdleDaemonChannels.put(sessionId, ctx.getChannel());
+          myIdleDaemonChannels.notifyAll();
+        }
+        return;
+      }
       if (myCanceledSessions.contains(sessionId)) {
         Channels.write(ctx.getChannel(), CmdlineProtoUtil.toMessage(sessionId, CmdlineProtoUtil.createCancelCommand()));
       }
@@ -101,6 +155,10 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     if (handler == null) {
       // todo
       LOG.info("No message handler registered for session " + sessionId);
+      if (isParamRequest(message)) {
+        // nothing to build, e.g. a daemon that is no longer needed has connected
+        ctx.getChannel().close();
+      }
       return;
     }
 
@@ -114,15 +172,7 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
         final CmdlineRemoteProto.Message.BuilderMessage builderMessage = message.getBuilderMessage();
         final CmdlineRemoteProto.Message.BuilderMessage.Type msgType = builderMessage.getType();
         if (msgType == CmdlineRemoteProto.Message.BuilderMessage.Type.PARAM_REQUEST) {
-          final CmdlineRemoteProto.Message.ControllerMessage params = sessionData.params;
-          if (params != null) {
-            handler.buildStarted(sessionId);
-            sessionData.params = null;
-            Channels.write(ctx.getChannel(), CmdlineProtoUtil.toMessage(sessionId, params));
-          }
-          else {
-            cancelSession(sessionId);
-          }
+          sendParams(ctx.getChannel(), sessionData);
         }
         else {
           handler.handleBuildMessage(ctx.getChannel(), sessionId, builderMessage);
@@ -135,12 +185,33 @@ class BuildMessageDispatcher extends SimpleChannelHandler {
     }
   }
 
+  private void sendParams(Channel channel, SessionData sessionData) {
+    final UUID sessionId = sessionData.sessionId;
+    final CmdlineRemoteProto.Message.ControllerMessage params = sessionData.params;
+    if (params != null) {
+      sessionData.handler.buildStarted(sessionId);
+      sessionData.params = null;
+      Channels.write(channel, CmdlineProtoUtil.toMessage(sessionId, params));
+    }
+    else {
+      cancelSession(sessionId);
+    }
+  }
+
+  private static boolean isParamRequest(CmdlineRemoteProto.Message message) {
+    return message.getType() == CmdlineRemoteProto.Message.Type.BUILDER_MESSAGE &&
+           message.getBuilderMessage().getType() == CmdlineRemoteProto.Message.BuilderMessage.Type.PARAM_REQUEST;
+  }
+
   @Override
   public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
     try {
       super.channelClosed(ctx, e);
     }
     finally {
+      synchronized (myIdleDaemonChannels) {
+        myIdleDaemonChannels.values().remove(e.getChannel());
+      }
       final SessionData sessionData = (SessionData)ctx.getAttachment();
       if (sessionData != null) {
         final BuilderMessageHandler handler = unregisterBuildMessageHandler(sessionData.sessionId);
@@ -17,6 +17,7 @@ package com.intellij.codeInsight.daemon.impl;
 
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.util.ProgressWrapper;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
@@ -274,7 +275,13 @@ public class RefCountHolder {
 
   public boolean analyze(@NotNull PsiFile file, TextRange dirtyScope, @NotNull Runnable analyze, @NotNull ProgressIndicator indicator) {
     ProgressIndicator old = myState.get();
-    if (old != VIRGIN && old != READY) return false;
+    if (old != VIRGIN && old != READY) {
+      if (ProgressWrapper.unwrap(indicator) != old) return false;
+      // part of the same highlighting pass run in parallel joins the analysis which is already under way
+      log("a: joined " + old);
+      analyze.run();
+      return true;
+    }
     if (!myState.compareAndSet(old, indicator)) {
       log("a: failed to change " + old + "->" + indicator);
       return false;
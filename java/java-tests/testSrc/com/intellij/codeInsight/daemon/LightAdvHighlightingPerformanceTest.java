@@ -15,6 +15,8 @@
  */
 package com.intellij.codeInsight.daemon;
 
+import com.intellij.codeInsight.daemon.impl.DaemonProgressIndicator;
+import com.intellij.codeInsight.daemon.impl.GeneralHighlightingPass;
 import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import com.intellij.codeInsight.intention.IntentionManager;
 import com.intellij.concurrency.JobSchedulerImpl;
@@ -25,6 +27,8 @@ import com.intellij.openapi.application.ex.PathManagerEx;
 import com.intellij.openapi.extensions.ExtensionPoint;
 import com.intellij.openapi.extensions.Extensions;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.util.registry.RegistryValue;
 import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.impl.source.tree.injected.JavaConcatenationInjectorManager;
 import com.intellij.testFramework.PlatformTestUtil;
@@ -32,6 +36,7 @@ import com.intellij.testFramework.fixtures.impl.CodeInsightTestFixtureImpl;
 import com.intellij.util.ThrowableRunnable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class LightAdvHighlightingPerformanceTest extends LightDaemonAnalyzerTestCase {
@@ -90,7 +95,10 @@ public class LightAdvHighlightingPerformanceTest extends LightDaemonAnalyzerTest
 
   private List<HighlightInfo> doTest(final int maxMillis) throws Exception {
     configureByFile(getFilePath(""));
+    return measureHighlighting(maxMillis);
+  }
 
+  private List<HighlightInfo> measureHighlighting(final int maxMillis) throws Exception {
     PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
     getFile().getText(); //to load text
     CodeInsightTestFixtureImpl.ensureIndexesUpToDate(getProject());
@@ -124,4 +132,48 @@ public class LightAdvHighlightingPerformanceTest extends LightDaemonAnalyzerTest
       fail("Actual: " + errors.size());
     }
   }
+
+  public void testGeneratedClassInParallel() throws Exception {
+    StringBuilder text = new StringBuilder("class Generated {\n");
+    for (int i = 0; i < 2000; i++) {
+      text.append("  int field").append(i).append(" = ").append(i).append(";\n");
+      text.append("  String method").append(i).append("(int p) {\n");
+      text.append("    int local = field").append(i).append(" + p;\n");
+      text.append("    return ").append(i % 10 == 0 ? "undefined" + i : "String.valueOf(local)").append(";\n");
+      text.append("  }\n");
+    }
+    text.append("}\n");
+    configureFromFileText("Generated.java", text.toString());
+    List<String> sequential = describe(highlightErrors());
+    assertEquals(200, sequential.size());
+
+    RegistryValue parallel = Registry.get("daemon.parallel.general.highlighting");
+    boolean old = parallel.asBoolean();
+    parallel.setValue(true);
+    try {
+      List<HighlightInfo> errors = measureHighlighting(Math.max(3000, 15000 - JobSchedulerImpl.CORES_COUNT * 1500));
+      assertEquals(sequential, describe(errors));
+      if (Runtime.getRuntime().availableProcessors() > 1) {
+        GeneralHighlightingPass pass =
+          new GeneralHighlightingPass(getProject(), getFile(), getEditor().getDocument(), 0, getFile().getTextLength(), true);
+        DaemonProgressIndicator progress = new DaemonProgressIndicator();
+        pass.collectInformation(progress);
+        // the infos are already applied, drop the ones this pass still transfers to EDT
+        progress.cancel();
+        assertTrue("subtrees were not highlighted in parallel", pass.getParallelGroupsAnalyzedCount() > 0);
+      }
+    }
+    finally {
+      parallel.setValue(old);
+    }
+  }
+
+  private static List<String> describe(List<HighlightInfo> infos) {
+    List<String> result = new ArrayList<String>();
+    for (HighlightInfo info : infos) {
+      result.add(info.getStartOffset() + ":" + info.getEndOffset() + ":" + info.description);
+    }
+    Collections.sort(result);
+    return result;
+  }
 }
@@ -45,6 +45,7 @@ import com.intellij.util.WaitFor;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -434,4 +435,69 @@ public class FindManagerTest extends DaemonAnalyzerTestCase {
   }
 
 
+  public void testRequiredRegExpLiterals() {
+    assertEquals(Arrays.asList("foo", "bar"), FindInProjectUtil.getRequiredRegExpLiterals("foo\\s+bar"));
+    assertEquals(Arrays.asList("a.b"), FindInProjectUtil.getRequiredRegExpLiterals("a\\.b.*"));
+    assertEquals(Arrays.asList("targ"), FindInProjectUtil.getRequiredRegExpLiterals("targe?t"));
+    assertEquals(Arrays.asList("abc", "def"), FindInProjectUtil.getRequiredRegExpLiterals("abc(xyz)?def[ghi]"));
+    assertEquals(Arrays.asList("word"), FindInProjectUtil.getRequiredRegExpLiterals("\\x41word\\u0041"));
+    assertEmpty(FindInProjectUtil.getRequiredRegExpLiterals("foo|bar"));
+    assertEmpty(FindInProjectUtil.getRequiredRegExpLiterals("(?x)foo bar"));
+    assertEmpty(FindInProjectUtil.getRequiredRegExpLiterals("a.b{2}c"));
+  }
+
+  public void testRegExpWithoutLiteralsFindsFilesWithoutItsWords() throws Throwable {
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      fixture.createFile("a.txt", "xabcx\n");
+      fixture.createFile("b.txt", "xyz\n");
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      FindModel findModel = new FindModel();
+      findModel.setStringToFind("a.c");
+      findModel.setRegularExpressions(true);
+      findModel.setFromCursor(false);
+      findModel.setGlobal(true);
+      findModel.setMultipleFiles(true);
+      assertSize(1, findUsages(findModel));
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
+
+  public void testRegExpSearchPerformance() throws Throwable {
+    final int fileCount = 3000;
+    TempDirTestFixture fixture = new LightTempDirTestFixtureImpl();
+    fixture.setUp();
+
+    try {
+      String sampleText = StringUtil.repeat("zoo TargetWord foo bar goo\n", 100);
+      for (int i = 0; i < fileCount; i++) {
+        fixture.createFile("a" + i + ".txt", sampleText);
+      }
+      fixture.createFile("target.txt", "zoo UniqueTarget42Word foo\n");
+      PsiTestUtil.addSourceContentToRoots(myModule, fixture.getFile(""));
+
+      final FindModel findModel = new FindModel();
+      findModel.setStringToFind("UniqueTarget\\d+Word");
+      findModel.setRegularExpressions(true);
+      findModel.setFromCursor(false);
+      findModel.setGlobal(true);
+      findModel.setMultipleFiles(true);
+
+      ThrowableRunnable test = new ThrowableRunnable() {
+        @Override
+        public void run() throws Throwable {
+          assertSize(1, findUsages(findModel));
+        }
+      };
+      PlatformTestUtil.startPerformanceTest("regexp search", 400, test).attempts(2).cpuBound().usesAllCPUCores().assertTiming();
+    }
+    finally {
+      fixture.tearDown();
+    }
+  }
 }
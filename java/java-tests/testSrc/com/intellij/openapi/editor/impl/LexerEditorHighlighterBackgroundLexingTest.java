@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.ex.util.LexerEditorHighlighter;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.fileTypes.StdFileTypes;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterFactory;
+import com.intellij.openapi.project.Project;
+import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.util.ui.UIUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that lexing a large document in background chunks gives the same tokens as lexing it sequentially, also when the document
+ * is changed while it is being lexed
+ */
+public class LexerEditorHighlighterBackgroundLexingTest extends LightPlatformTestCase {
+  private static final long TIMEOUT_MS = 60 * 1000;
+
+  public void testBackgroundLexingGivesSameTokensAsSequential() {
+    StringBuilder text = new StringBuilder();
+    int i = 0;
+    while (text.length() < 2 * 1024 * 1024) {
+      appendMember(text, i++);
+    }
+    doTest(text.toString());
+  }
+
+  public void testCommentsCrossingChunkBoundaries() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 4; i++) {
+      appendMember(text, i);
+      // a comment longer than a chunk, so that speculative lexing of the next chunk starts in its middle
+      text.append("/*\n");
+      for (int j = 0; j < 8000; j++) {
+        text.append(" * line ").append(j).append(" \"not a string\" class X {\n");
+      }
+      text.append(" */\n");
+      appendMember(text, i);
+    }
+    doTest(text.toString());
+  }
+
+  public void testDocumentChangedWhileLexingInBackground() {
+    StringBuilder text = new StringBuilder();
+    int i = 0;
+    while (text.length() < 2 * 1024 * 1024) {
+      appendMember(text, i++);
+    }
+    final Document document = EditorFactory.getInstance().createDocument(text);
+    LexerEditorHighlighter background = createHighlighter(document, true);
+    document.addDocumentListener(background);
+    assertTrue(background.isLexingInBackground());
+
+    // the lexing is restarted before any of its results are applied
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        document.insertString(document.getTextLength() / 2, "\n/* unclosed comment\n");
+        document.deleteString(10, 20);
+        document.insertString(document.getTextLength(), "String tail = \"tail");
+      }
+    });
+    waitForBackgroundLexing(background);
+    assertEquals(getTokens(createHighlighter(document, false)), getTokens(background));
+
+    // and after some of them may have been applied
+    background.setText(document.getCharsSequence());
+    assertTrue(background.isLexingInBackground());
+    UIUtil.dispatchAllInvocationEvents();
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        document.insertString(document.getTextLength() - 100, "/*");
+      }
+    });
+    waitForBackgroundLexing(background);
+    assertEquals(getTokens(createHighlighter(document, false)), getTokens(background));
+    document.removeDocumentListener(background);
+  }
+
+  private static void appendMember(StringBuilder text, int i) {
+    text.append("class C").append(i).append(" {\n")
+      .append("  /* a comment\n")
+      .append("     String s = \"not a string\";\n")
+      .append("   */\n")
+      .append("  String s").append(i).append(" = \"/* not a comment\";\n")
+      .append("  String t").append(i).append(" = \"unterminated\n")
+      .append("  char c").append(i).append(" = '\"';\n")
+      .append("  // */ class D {\n")
+      .append("}\n");
+  }
+
+  private static void doTest(String text) {
+    Document document = EditorFactory.getInstance().createDocument(text);
+    LexerEditorHighlighter sequential = createHighlighter(document, false);
+    LexerEditorHighlighter background = createHighlighter(document, true);
+    assertFalse(sequential.isLexingInBackground());
+    assertTrue(background.isLexingInBackground());
+
+    waitForBackgroundLexing(background);
+    assertEquals(getTokens(sequential), getTokens(background));
+  }
+
+  private static void waitForBackgroundLexing(LexerEditorHighlighter highlighter) {
+    long start = System.currentTimeMillis();
+    while (highlighter.isLexingInBackground()) {
+      assertTrue("Background lexing is not finished in time", System.currentTimeMillis() - start < TIMEOUT_MS);
+      UIUtil.dispatchAllInvocationEvents();
+    }
+  }
+
+  private static LexerEditorHighlighter createHighlighter(final Document document, final boolean inBackground) {
+    LexerEditorHighlighter highlighter =
+      new LexerEditorHighlighter(SyntaxHighlighterFactory.getSyntaxHighlighter(StdFileTypes.JAVA, getProject(), null),
+                                 EditorColorsManager.getInstance().getGlobalScheme()) {
+        @Override
+        protected boolean isBackgroundLexingEnabled(int textLength) {
+          return inBackground;
+        }
+      };
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return LightPlatformTestCase.getProject();
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    return highlighter;
+  }
+
+  private static List<String> getTokens(LexerEditorHighlighter highlighter) {
+    List<String> tokens = new ArrayList<String>();
+    for (HighlighterIterator iterator = highlighter.createIterator(0); !iterator.atEnd(); iterator.advance()) {
+      tokens.add(iterator.getStart() + "-" + iterator.getEnd() + ":" + iterator.getTokenType());
+    }
+    return tokens;
+  }
+}
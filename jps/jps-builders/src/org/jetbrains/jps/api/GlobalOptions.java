@@ -25,6 +25,13 @@ public interface GlobalOptions {
   String GENERATE_CLASSPATH_INDEX_OPTION = "generate.classpath.index";
   String COMPILE_PARALLEL_OPTION = "compile.parallel";
   String COMPILE_PARALLEL_MAX_THREADS_OPTION = "compile.parallel.max.threads";
+  String COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION = "compile.parallel.javac.partitions";
+  String COPY_PARALLEL_THREADS_OPTION = "copy.parallel.threads";
+  String EXTERNAL_JAVAC_WRITES_CLASSES_OPTION = "external.javac.writes.classes";
+  String BUILD_OUTPUT_CACHE_DIR_OPTION = "build.output.cache.dir";
+  String BUILD_DAEMON_OPTION = "build.daemon";
+  String BUILD_METRICS_OPTION = "build.metrics";
   String REBUILD_ON_DEPENDENCY_CHANGE_OPTION = "rebuild.on.dependency.change";
+  String SHARED_INSTRUMENTATION_PASS_OPTION = "shared.instrumentation.pass";
   String LOG_DIR_OPTION = "log.dir";
 }
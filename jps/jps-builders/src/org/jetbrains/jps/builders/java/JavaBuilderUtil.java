@@ -74,6 +74,7 @@ public class JavaBuilderUtil {
       final Set<String> removedPaths = getRemovedPaths(chunk, dirtyFilesHolder);
 
       final Mappings globalMappings = context.getProjectDescriptor().dataManager.getMappings();
+      final BuildMetrics metrics = BuildMetrics.getInstance(context);
 
       final boolean errorsDetected = Utils.errorsDetected(context);
       if (!isForcedRecompilationAllJavaModules(context)) {
@@ -93,10 +94,14 @@ public class JavaBuilderUtil {
           affectedBeforeDif.addAll(allAffectedFiles);
 
           final ModulesBasedFileFilter moduleBasedFilter = new ModulesBasedFileFilter(context, chunk);
+          final long differentiateStart = System.nanoTime();
           final boolean incremental = globalMappings.differentiateOnIncrementalMake(
             delta, removedPaths, filesToCompile, allCompiledFiles, allAffectedFiles, moduleBasedFilter,
             CONSTANT_SEARCH_SERVICE.get(context)
           );
+          if (metrics != null) {
+            metrics.phaseFinished(BuildMetrics.DEPENDENCY_ANALYSIS_PHASE, differentiateStart);
+          }
 
           if (LOG.isDebugEnabled()) {
             LOG.debug("Differentiate Results:");
@@ -154,13 +159,21 @@ public class JavaBuilderUtil {
         }
         else {
           if (!errorsDetected) { // makes sense only if we are going to integrate changes
+            final long differentiateStart = System.nanoTime();
             globalMappings.differentiateOnNonIncrementalMake(delta, removedPaths, filesToCompile);
+            if (metrics != null) {
+              metrics.phaseFinished(BuildMetrics.DEPENDENCY_ANALYSIS_PHASE, differentiateStart);
+            }
           }
         }
       }
       else {
         if (!errorsDetected) { // makes sense only if we are going to integrate changes
+          final long differentiateStart = System.nanoTime();
           globalMappings.differentiateOnRebuild(delta);
+          if (metrics != null) {
+            metrics.phaseFinished(BuildMetrics.DEPENDENCY_ANALYSIS_PHASE, differentiateStart);
+          }
         }
       }
 
@@ -174,7 +187,11 @@ public class JavaBuilderUtil {
 
       context.processMessage(new ProgressMessage("Updating dependency information... [" + chunk.getName() + "]"));
 
+      final long integrateStart = System.nanoTime();
       globalMappings.integrate(delta);
+      if (metrics != null) {
+        metrics.phaseFinished(BuildMetrics.DEPENDENCY_INTEGRATION_PHASE, integrateStart);
+      }
 
       return additionalPassRequired;
     }
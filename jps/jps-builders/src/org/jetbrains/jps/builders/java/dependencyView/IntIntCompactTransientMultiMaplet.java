@@ -0,0 +1,186 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+
+/**
+ * In-memory multimaplet keeping value sets packed by {@link IntSetCodec}, which takes a few bytes per value instead of
+ * a hash set per key. Sets being modified are kept unpacked until enough values are added, so a set filled one value
+ * at a time is not re-encoded on every addition.
+ * <p/>
+ * Unlike {@link IntIntTransientMultiMaplet}, {@link #get(int)} may return a copy: changes of the returned set must be
+ * stored back with {@link #replace(int, TIntHashSet)}, the same way they are for persistent maplets.
+ */
+class IntIntCompactTransientMultiMaplet extends IntIntMultiMaplet {
+  private static final int MAX_ADDED_VALUES = 4096;
+  private static final int MAX_UNPACKED_SETS = 1024;
+
+  private final TIntObjectHashMap<byte[]> myPacked = new TIntObjectHashMap<byte[]>();
+  private final TIntObjectHashMap<TIntHashSet> myUnpacked = new TIntObjectHashMap<TIntHashSet>();
+  private int myAddedValues; // since the sets were unpacked
+
+  @Override
+  public boolean containsKey(final int key) {
+    return myUnpacked.containsKey(key) || myPacked.containsKey(key);
+  }
+
+  @Override
+  public TIntHashSet get(final int key) {
+    final TIntHashSet unpacked = myUnpacked.get(key);
+    if (unpacked != null) {
+      return unpacked;
+    }
+    final byte[] packed = myPacked.get(key);
+    return packed != null ? IntSetCodec.unpack(packed) : null;
+  }
+
+  @Override
+  public void putAll(IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        put(key, values);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void put(final int key, final TIntHashSet value) {
+    getForUpdate(key).addAll(value.toArray());
+    myAddedValues += value.size();
+    packIfNeeded();
+  }
+
+  @Override
+  public void replace(int key, TIntHashSet value) {
+    remove(key);
+    if (value != null && !value.isEmpty()) {
+      myPacked.put(key, IntSetCodec.pack(value));
+    }
+  }
+
+  @Override
+  public void put(final int key, final int value) {
+    if (getForUpdate(key).add(value)) {
+      myAddedValues++;
+      packIfNeeded();
+    }
+  }
+
+  @Override
+  public void removeFrom(final int key, final int value) {
+    final TIntHashSet collection = getExisting(key);
+    if (collection != null && collection.remove(value) && collection.isEmpty()) {
+      remove(key);
+    }
+  }
+
+  @Override
+  public void removeAll(int key, TIntHashSet values) {
+    final TIntHashSet collection = getExisting(key);
+    if (collection != null) {
+      collection.removeAll(values.toArray());
+      if (collection.isEmpty()) {
+        remove(key);
+      }
+    }
+  }
+
+  @Override
+  public void remove(final int key) {
+    myUnpacked.remove(key);
+    myPacked.remove(key);
+  }
+
+  @Override
+  public void replaceAll(IntIntMultiMaplet m) {
+    m.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet value) {
+        replace(key, value);
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public void forEachEntry(final TIntObjectProcedure<TIntHashSet> procedure) {
+    packAll();
+    myPacked.forEachEntry(new TIntObjectProcedure<byte[]>() {
+      @Override
+      public boolean execute(int key, byte[] packed) {
+        return procedure.execute(key, IntSetCodec.unpack(packed));
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    myPacked.clear(); // free memory
+    myUnpacked.clear();
+    myAddedValues = 0;
+  }
+
+  public void flush(boolean memoryCachesOnly) {
+    packAll();
+  }
+
+  private TIntHashSet getForUpdate(final int key) {
+    TIntHashSet collection = getExisting(key);
+    if (collection == null) {
+      collection = new TIntHashSet();
+      myUnpacked.put(key, collection);
+    }
+    return collection;
+  }
+
+  private TIntHashSet getExisting(final int key) {
+    TIntHashSet collection = myUnpacked.get(key);
+    if (collection == null) {
+      final byte[] packed = myPacked.remove(key);
+      if (packed != null) {
+        collection = IntSetCodec.unpack(packed);
+        myUnpacked.put(key, collection);
+      }
+    }
+    return collection;
+  }
+
+  private void packIfNeeded() {
+    if (myAddedValues > MAX_ADDED_VALUES || myUnpacked.size() > MAX_UNPACKED_SETS) {
+      packAll();
+    }
+  }
+
+  private void packAll() {
+    if (myUnpacked.isEmpty()) return;
+    myUnpacked.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        if (!values.isEmpty()) {
+          myPacked.put(key, IntSetCodec.pack(values));
+        }
+        return true;
+      }
+    });
+    myUnpacked.clear();
+    myAddedValues = 0;
+  }
+}
@@ -15,7 +15,6 @@
  */
 package org.jetbrains.jps.builders.java.dependencyView;
 
-import com.intellij.openapi.util.Ref;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
@@ -23,7 +22,6 @@ import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentHashMap;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntObjectProcedure;
-import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -93,24 +91,7 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
       myCache.remove(key);
       myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
         public void append(final DataOutput out) throws IOException {
-          final Ref<IOException> exRef = new Ref<IOException>();
-          value.forEach(new TIntProcedure() {
-            @Override
-            public boolean execute(int value) {
-              try {
-                out.writeInt(value);
-              }
-              catch (IOException e) {
-                exRef.set(e);
-                return false;
-              }
-              return true;
-            }
-          });
-          final IOException exception = exRef.get();
-          if (exception != null) {
-            throw exception;
-          }
+          IntSetCodec.write(out, value);
         }
       });
     }
@@ -125,7 +106,7 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
       myCache.remove(key);
       myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
         public void append(final DataOutput out) throws IOException {
-          out.writeInt(value);
+          IntSetCodec.write(out, new int[]{value});
         }
       });
     }
@@ -252,27 +233,11 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
     }
   }
 
+  // the value is a sequence of packed sets, one per appended chunk
   private static class IntSetExternalizer implements DataExternalizer<TIntHashSet> {
     @Override
     public void save(final DataOutput out, final TIntHashSet value) throws IOException {
-      final Ref<IOException> exRef = new Ref<IOException>(null);
-      value.forEach(new TIntProcedure() {
-        @Override
-        public boolean execute(int elem) {
-          try {
-            out.writeInt(elem);
-          }
-          catch (IOException e) {
-            exRef.set(e);
-            return false;
-          }
-          return true;
-        }
-      });
-      final IOException exception = exRef.get();
-      if (exception != null) {
-        throw exception;
-      }
+      IntSetCodec.write(out, value);
     }
 
     @Override
@@ -280,7 +245,7 @@ class IntIntPersistentMultiMaplet extends IntIntMultiMaplet {
       final TIntHashSet result = new TIntHashSet();
       final DataInputStream stream = (DataInputStream)in;
       while (stream.available() > 0) {
-        result.add(in.readInt());
+        IntSetCodec.read(in, result);
       }
       return result;
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntHashSet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Int sets packed as a count followed by deltas between sorted values, every number written as
+ * {@link DataInputOutputUtil#writeINT(DataOutput, int)}. Name ids of a class graph are close to each other, so most deltas take a byte.
+ * Several packed sets may follow each other, reading them into one set gives their union.
+ */
+final class IntSetCodec {
+  private IntSetCodec() {
+  }
+
+  static void write(final DataOutput out, final TIntHashSet set) throws IOException {
+    write(out, set.toArray());
+  }
+
+  static void write(final DataOutput out, final int[] values) throws IOException {
+    Arrays.sort(values);
+    DataInputOutputUtil.writeINT(out, values.length);
+    int prev = 0;
+    for (int value : values) {
+      DataInputOutputUtil.writeINT(out, value - prev);
+      prev = value;
+    }
+  }
+
+  static void read(final DataInput in, final TIntHashSet result) throws IOException {
+    final int count = DataInputOutputUtil.readINT(in);
+    int prev = 0;
+    for (int i = 0; i < count; i++) {
+      prev += DataInputOutputUtil.readINT(in);
+      result.add(prev);
+    }
+  }
+
+  static byte[] pack(final TIntHashSet set) {
+    final int[] values = set.toArray();
+    Arrays.sort(values);
+    byte[] bytes = new byte[values.length + 5];
+    int offset = putINT(bytes, 0, values.length);
+    int prev = 0;
+    for (int value : values) {
+      if (offset + 5 > bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 3 / 2 + 5);
+      }
+      offset = putINT(bytes, offset, value - prev);
+      prev = value;
+    }
+    return Arrays.copyOf(bytes, offset);
+  }
+
+  static TIntHashSet unpack(final byte[] bytes) {
+    final int[] offset = new int[1];
+    final int count = getINT(bytes, offset);
+    final TIntHashSet result = new TIntHashSet(Math.max(count, 1));
+    int prev = 0;
+    for (int i = 0; i < count; i++) {
+      prev += getINT(bytes, offset);
+      result.add(prev);
+    }
+    return result;
+  }
+
+  // same encoding as DataInputOutputUtil.writeINT
+  private static int putINT(final byte[] bytes, int offset, int val) {
+    if (0 <= val && val < 192) {
+      bytes[offset++] = (byte)val;
+      return offset;
+    }
+    bytes[offset++] = (byte)(192 + (val & 0x3F));
+    val >>>= 6;
+    while (val >= 128) {
+      bytes[offset++] = (byte)((val & 0x7F) | 0x80);
+      val >>>= 7;
+    }
+    bytes[offset++] = (byte)val;
+    return offset;
+  }
+
+  private static int getINT(final byte[] bytes, final int[] offset) {
+    final int val = bytes[offset[0]++] & 0xFF;
+    if (val < 192) {
+      return val;
+    }
+    int res = val - 192;
+    for (int sh = 6; ; sh += 7) {
+      final int next = bytes[offset[0]++] & 0xFF;
+      res |= (next & 0x7F) << sh;
+      if ((next & 0x80) == 0) {
+        return res;
+      }
+    }
+  }
+}
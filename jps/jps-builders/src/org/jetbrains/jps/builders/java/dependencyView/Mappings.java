@@ -129,8 +129,8 @@ public class Mappings {
     myAddedSuperClasses = myIsDelta ? new IntIntTransientMultiMaplet() : null;
 
     if (myIsDelta && myDeltaIsTransient) {
-      myClassToSubclasses = new IntIntTransientMultiMaplet();
-      myClassToClassDependency = new IntIntTransientMultiMaplet();
+      myClassToSubclasses = new IntIntCompactTransientMultiMaplet();
+      myClassToClassDependency = new IntIntCompactTransientMultiMaplet();
       mySourceFileToClasses = new ObjectObjectTransientMultiMaplet<File, ClassRepr>(FileUtil.FILE_HASHING_STRATEGY, ourClassSetConstructor);
       myClassToSourceFile = new IntObjectTransientMaplet<File>();
     }
@@ -2213,6 +2213,92 @@ public class Mappings {
     }
   }
 
+  /**
+   * Splits the given sources into groups which do not use each other according to the class-to-class dependencies and the class
+   * hierarchy recorded so far. Sources unknown to the mappings, e.g. new files, are all put into one group.
+   */
+  @NotNull
+  public List<Set<File>> getIndependentSourceGroups(@NotNull final Collection<File> sources) {
+    final TObjectIntHashMap<File> fileIndices = new TObjectIntHashMap<File>(FileUtil.FILE_HASHING_STRATEGY);
+    final File[] files = sources.toArray(new File[sources.size()]);
+    for (int i = 0; i < files.length; i++) {
+      fileIndices.put(files[i], i);
+    }
+
+    final int[] parents = new int[files.length];
+    for (int i = 0; i < parents.length; i++) {
+      parents[i] = i;
+    }
+
+    synchronized (myLock) {
+      int unknownGroup = -1;
+      for (int i = 0; i < files.length; i++) {
+        final Collection<ClassRepr> classes = mySourceFileToClasses.get(files[i]);
+        if (classes == null || classes.isEmpty()) {
+          if (unknownGroup < 0) {
+            unknownGroup = i;
+          }
+          else {
+            union(parents, unknownGroup, i);
+          }
+          continue;
+        }
+
+        for (ClassRepr classRepr : classes) {
+          unionWithSourcesOf(myClassToClassDependency.get(classRepr.name), fileIndices, parents, i);
+          unionWithSourcesOf(myClassToSubclasses.get(classRepr.name), fileIndices, parents, i);
+        }
+      }
+    }
+
+    final TIntObjectHashMap<Set<File>> groups = new TIntObjectHashMap<Set<File>>();
+    final List<Set<File>> result = new ArrayList<Set<File>>();
+    for (int i = 0; i < files.length; i++) {
+      final int root = find(parents, i);
+      Set<File> group = groups.get(root);
+      if (group == null) {
+        group = new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY);
+        groups.put(root, group);
+        result.add(group);
+      }
+      group.add(files[i]);
+    }
+    return result;
+  }
+
+  private void unionWithSourcesOf(@Nullable TIntHashSet classes,
+                                  @NotNull final TObjectIntHashMap<File> fileIndices,
+                                  @NotNull final int[] parents,
+                                  final int fileIndex) {
+    if (classes == null) return;
+    classes.forEach(new TIntProcedure() {
+      @Override
+      public boolean execute(int className) {
+        final File source = myClassToSourceFile.get(className);
+        if (source != null && fileIndices.containsKey(source)) {
+          union(parents, fileIndex, fileIndices.get(source));
+        }
+        return true;
+      }
+    });
+  }
+
+  private static int find(@NotNull int[] parents, int i) {
+    while (parents[i] != i) {
+      parents[i] = parents[parents[i]];
+      i = parents[i];
+    }
+    return i;
+  }
+
+  private static void union(@NotNull int[] parents, int i, int j) {
+    final int rootI = find(parents, i);
+    final int rootJ = find(parents, j);
+    if (rootI != rootJ) {
+      parents[rootJ] = rootI;
+    }
+  }
+
   public void close() {
     synchronized (myLock) {
       myClassToSubclasses.close();
@@ -59,6 +59,8 @@ public class BuildMain {
   }
 
   private static NioClientSocketChannelFactory ourChannelFactory;
+  private static ClientBootstrap ourBootstrap;
+  private static InetSocketAddress ourAddress;
 
   public static void main(String[] args){
     System.out.println("Build process started. Classpath: " + System.getProperty("java.class.path"));
@@ -70,6 +72,8 @@ public class BuildMain {
 
     ourChannelFactory = new NioClientSocketChannelFactory(SharedThreadPool.getInstance(), SharedThreadPool.getInstance(), 1);
     final ClientBootstrap bootstrap = new ClientBootstrap(ourChannelFactory);
+    ourBootstrap = bootstrap;
+    ourAddress = new InetSocketAddress(host, port);
     bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
       public ChannelPipeline getPipeline() throws Exception {
         return Channels.pipeline(
@@ -84,7 +88,14 @@ public class BuildMain {
     bootstrap.setOption("tcpNoDelay", true);
     bootstrap.setOption("keepAlive", true);
 
-    final ChannelFuture future = bootstrap.connect(new InetSocketAddress(host, port));
+    if (!connect(sessionId)) {
+      System.err.println("Exiting.");
+      System.exit(-1);
+    }
+  }
+
+  private static boolean connect(UUID sessionId) {
+    final ChannelFuture future = ourBootstrap.connect(ourAddress);
     future.awaitUninterruptibly();
 
     final boolean success = future.isSuccess();
@@ -94,18 +105,18 @@ public class BuildMain {
     }
     else {
       final Throwable reason = future.getCause();
-      System.err.println("Error connecting to " + host + ":" + port + "; reason: " + (reason != null? reason.getMessage() : "unknown"));
+      System.err.println("Error connecting to " + ourAddress.getHostName() + ":" + ourAddress.getPort() + "; reason: " + (reason != null? reason.getMessage() : "unknown"));
       if (reason != null) {
         reason.printStackTrace(System.err);
       }
-      System.err.println("Exiting.");
-      System.exit(-1);
     }
+    return success;
   }
 
   private static class MyMessageHandler extends SimpleChannelHandler {
     private final UUID mySessionId;
     private volatile BuildSession mySession;
+    private volatile boolean myWaitingForNextSession;
 
     private MyMessageHandler(UUID sessionId) {
       mySessionId = sessionId;
@@ -124,7 +135,10 @@ public class BuildMain {
           case BUILD_PARAMETERS: {
             if (mySession == null) {
               final CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta = controllerMessage.hasFsEvent()? controllerMessage.getFsEvent() : null;
-              final BuildSession session = new BuildSession(mySessionId, channel, controllerMessage.getParamsMessage(), delta);
+              // a daemon process is given the id of each next session along with its parameters
+              final CmdlineRemoteProto.Message.UUID id = message.getSessionId();
+              final UUID sessionId = message.hasSessionId()? new UUID(id.getMostSigBits(), id.getLeastSigBits()) : mySessionId;
+              final BuildSession session = new BuildSession(sessionId, channel, controllerMessage.getParamsMessage(), delta);
               mySession = session;
               SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
                 public void run() {
@@ -132,8 +146,13 @@ public class BuildMain {
                     session.run();
                   }
                   finally {
-                    channel.close();
-                    System.exit(0);
+                    if (LoadedProjectCache.ENABLED) {
+                      waitForNextSession(channel);
+                    }
+                    else {
+                      channel.close();
+                      System.exit(0);
+                    }
                   }
                 }
               });
@@ -177,22 +196,35 @@ public class BuildMain {
       Channels.write(channel, CmdlineProtoUtil.toMessage(mySessionId, CmdlineProtoUtil.createFailure("Unsupported message type: " + type.name(), null)));
     }
 
+    // the end of a session is signalled by closing its channel, then the daemon connects again and waits for the next session
+    private void waitForNextSession(Channel channel) {
+      myWaitingForNextSession = true;
+      channel.close().awaitUninterruptibly();
+      if (!connect(mySessionId)) {
+        LoadedProjectCache.clear();
+        System.exit(0);
+      }
+    }
+
     @Override
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
       try {
         super.channelClosed(ctx, e);
       }
       finally {
-        new Thread("Shutdown thread") {
-          public void run() {
-            try {
-              ourChannelFactory.releaseExternalResources();
+        if (!myWaitingForNextSession) {
+          new Thread("Shutdown thread") {
+            public void run() {
+              try {
+                LoadedProjectCache.clear();
+                ourChannelFactory.releaseExternalResources();
+              }
+              finally {
+                System.exit(0);
+              }
             }
-            finally {
-              System.exit(0);
-            }
-          }
-        }.start();
+          }.start();
+        }
       }
     }
 
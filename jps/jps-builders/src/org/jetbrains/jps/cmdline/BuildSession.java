@@ -62,12 +62,14 @@ final class BuildSession implements Runnable, CanceledStatus {
   private final Channel myChannel;
   private volatile boolean myCanceled = false;
   private final String myProjectPath;
+  private final String myGlobalOptionsPath;
   @Nullable
   private CmdlineRemoteProto.Message.ControllerMessage.FSEvent myInitialFSDelta;
   // state
   private final EventsProcessor myEventsProcessor = new EventsProcessor();
   private volatile long myLastEventOrdinal;
   private volatile ProjectDescriptor myProjectDescriptor;
+  private volatile LoadedProjectCache.Entry myLoadedProject;
   private final Map<Pair<String, String>, ConstantSearchFuture> mySearchTasks = Collections.synchronizedMap(new HashMap<Pair<String, String>, ConstantSearchFuture>());
   private final ConstantSearch myConstantSearch = new ConstantSearch();
   private final BuildRunner myBuildRunner;
@@ -83,7 +85,7 @@ final class BuildSession implements Runnable, CanceledStatus {
 
     final CmdlineRemoteProto.Message.ControllerMessage.GlobalSettings globals = params.getGlobalSettings();
     myProjectPath = FileUtil.toCanonicalPath(params.getProjectId());
-    String globalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
+    myGlobalOptionsPath = FileUtil.toCanonicalPath(globals.getGlobalOptionsPath());
     myBuildType = convertCompileType(params.getBuildType());
     List<TargetTypeBuildScope> scopes = params.getScopeList();
     List<String> filePaths = params.getFilePathList();
@@ -92,7 +94,7 @@ final class BuildSession implements Runnable, CanceledStatus {
       builderParams.put(pair.getKey(), pair.getValue());
     }
     myInitialFSDelta = delta;
-    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, globalOptionsPath, null);
+    JpsModelLoaderImpl loader = new JpsModelLoaderImpl(myProjectPath, myGlobalOptionsPath, null);
     myForceModelLoading = Boolean.parseBoolean(builderParams.get(BuildMain.FORCE_MODEL_LOADING_PARAMETER.toString()));
     myBuildRunner = new BuildRunner(loader, scopes, filePaths, builderParams);
   }
@@ -173,6 +175,19 @@ final class BuildSession implements Runnable, CanceledStatus {
     if (!dataStorageRoot.exists()) {
       // invoked the very first time for this project
       myBuildRunner.setForceCleanCaches(true);
+      LoadedProjectCache.clear();
+    }
+
+    if (LoadedProjectCache.ENABLED) {
+      if (!myForceModelLoading) {
+        final LoadedProjectCache.Entry loaded = LoadedProjectCache.take(myProjectPath, myGlobalOptionsPath, myInitialFSDelta);
+        if (loaded != null) {
+          runBuild(loaded, dataStorageRoot, msgHandler, cs);
+          return;
+        }
+      }
+      // storages of a cached descriptor must be closed before the project is loaded again
+      LoadedProjectCache.clear();
     }
 
     final DataInputStream fsStateStream = createFSDataStream(dataStorageRoot);
@@ -188,7 +203,9 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
 
     final BuildFSState fsState = new BuildFSState(false);
+    boolean completed = false;
     try {
+      final long loadStart = System.currentTimeMillis();
       final ProjectDescriptor pd = myBuildRunner.load(msgHandler, dataStorageRoot, fsState);
       myProjectDescriptor = pd;
       if (fsStateStream != null) {
@@ -206,6 +223,10 @@ final class BuildSession implements Runnable, CanceledStatus {
           fsState.clearAll();
         }
       }
+      if (LoadedProjectCache.ENABLED) {
+        final long configStamp = LoadedProjectCache.computeConfigStamp(myProjectPath, myGlobalOptionsPath, pd);
+        myLoadedProject = new LoadedProjectCache.Entry(myProjectPath, myGlobalOptionsPath, pd, System.currentTimeMillis() - loadStart, configStamp);
+      }
       myLastEventOrdinal = myInitialFSDelta != null? myInitialFSDelta.getOrdinal() : 0L;
 
       // free memory
@@ -214,9 +235,32 @@ final class BuildSession implements Runnable, CanceledStatus {
       myEventsProcessor.startProcessing();
 
       myBuildRunner.runBuild(pd, cs, myConstantSearch, msgHandler, myBuildType);
+      completed = true;
     }
     finally {
-      saveData(fsState, dataStorageRoot);
+      saveData(fsState, dataStorageRoot, completed);
+    }
+  }
+
+  private void runBuild(LoadedProjectCache.Entry loaded, File dataStorageRoot, MessageHandler msgHandler, CanceledStatus cs) throws Throwable {
+    final ProjectDescriptor pd = loaded.descriptor;
+    myProjectDescriptor = pd;
+    myLoadedProject = loaded;
+    boolean completed = false;
+    try {
+      applyFSEvent(pd, myInitialFSDelta, false);
+      myLastEventOrdinal = myInitialFSDelta.getOrdinal();
+
+      // free memory
+      myInitialFSDelta = null;
+      // ensure events from controller are processed after FSState initialization
+      myEventsProcessor.startProcessing();
+
+      myBuildRunner.runBuild(pd, cs, myConstantSearch, msgHandler, myBuildType);
+      completed = true;
+    }
+    finally {
+      saveData(pd.fsState, dataStorageRoot, completed);
     }
   }
 
@@ -249,13 +293,19 @@ final class BuildSession implements Runnable, CanceledStatus {
     return false;
   }
 
-  private void saveData(final BuildFSState fsState, File dataStorageRoot) {
+  private void saveData(final BuildFSState fsState, File dataStorageRoot, boolean completed) {
     final boolean wasInterrupted = Thread.interrupted();
     try {
       saveFsState(dataStorageRoot, fsState);
       final ProjectDescriptor pd = myProjectDescriptor;
       if (pd != null) {
-        pd.release();
+        final LoadedProjectCache.Entry loaded = myLoadedProject;
+        if (loaded != null && completed) {
+          keepLoaded(loaded);
+        }
+        else {
+          pd.release();
+        }
       }
     }
     finally {
@@ -265,6 +315,17 @@ final class BuildSession implements Runnable, CanceledStatus {
     }
   }
 
+  private void keepLoaded(LoadedProjectCache.Entry loaded) {
+    try {
+      loaded.descriptor.flush();
+      LoadedProjectCache.put(loaded, myLastEventOrdinal);
+    }
+    catch (Throwable e) {
+      LOG.info(e);
+      loaded.descriptor.release();
+    }
+  }
+
   public void processFSEvent(final CmdlineRemoteProto.Message.ControllerMessage.FSEvent event) {
     myEventsProcessor.submit(new Runnable() {
       @Override
@@ -341,8 +402,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             if (fileStamp == -1L) {
               fileStamp = FileSystemUtil.lastModified(file); // lazy init
             }
-            final long stamp = timestamps.getStamp(file, descriptor.getTarget());
-            if (stamp != fileStamp) {
+            if (!timestamps.isUpToDate(file, descriptor.getTarget(), fileStamp)) {
               if (!cacheCleared) {
                 pd.getFSCache().clear();
                 cacheCleared = true;
@@ -351,7 +411,7 @@ final class BuildSession implements Runnable, CanceledStatus {
             }
             else {
               if (LOG.isDebugEnabled()) {
-                LOG.debug(descriptor.getTarget() + ": Path considered up-to-date: " + changed + "; timestamp= " + stamp);
+                LOG.debug(descriptor.getTarget() + ": Path considered up-to-date: " + changed + "; timestamp= " + fileStamp);
               }
             }
           }
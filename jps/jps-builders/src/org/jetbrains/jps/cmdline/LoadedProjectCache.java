@@ -0,0 +1,190 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.JpsModelSerializationDataService;
+import org.jetbrains.jps.model.serialization.JpsModelSerializerExtension;
+import org.jetbrains.jps.model.serialization.PathMacroUtil;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Keeps the project descriptor of the last build session open when the build process runs as a daemon
+ * (see {@link GlobalOptions#BUILD_DAEMON_OPTION}), so the next session for the same project neither reloads the model
+ * nor reopens timestamps, source-to-output mappings and class dependencies.
+ * <p/>
+ * The descriptor is reused only if none of the project configuration files has changed since it was loaded and
+ * the file system events of the next session directly follow the events it has already seen; otherwise it is released
+ * and the project is loaded from scratch.
+ */
+final class LoadedProjectCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.cmdline.LoadedProjectCache");
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(GlobalOptions.BUILD_DAEMON_OPTION, "false"));
+
+  // the global options which affect compilation; other.xml is changed by the IDE all the time and is not among them
+  private static final String[] GLOBAL_CONFIG_FILES = {
+    "jdk.table.xml", "applicationLibraries.xml", "path.macros.xml", "compiler.xml", "encoding.xml", "filetypes.xml"
+  };
+
+  private static Entry ourEntry;
+  private static int ourReuseCount;
+  private static long ourTotalTimeSaved;
+
+  private LoadedProjectCache() {
+  }
+
+  static final class Entry {
+    final String projectPath;
+    final ProjectDescriptor descriptor;
+    final long loadTime;
+    private final String myGlobalOptionsPath;
+    private final long myConfigStamp;
+    private long myLastEventOrdinal;
+
+    Entry(String projectPath, String globalOptionsPath, ProjectDescriptor descriptor, long loadTime, long configStamp) {
+      this.projectPath = projectPath;
+      this.descriptor = descriptor;
+      this.loadTime = loadTime;
+      myGlobalOptionsPath = globalOptionsPath;
+      myConfigStamp = configStamp;
+    }
+  }
+
+  /**
+   * @return the descriptor loaded by a previous session if it is still valid for the project; the caller owns it from now on
+   */
+  @Nullable
+  static synchronized Entry take(String projectPath, String globalOptionsPath,
+                                 @Nullable CmdlineRemoteProto.Message.ControllerMessage.FSEvent delta) {
+    final Entry entry = ourEntry;
+    if (entry == null) {
+      return null;
+    }
+    ourEntry = null;
+    final String reason;
+    if (!FileUtil.pathsEqual(entry.projectPath, projectPath) || !FileUtil.pathsEqual(entry.myGlobalOptionsPath, globalOptionsPath)) {
+      reason = "another project is being built";
+    }
+    else if (delta == null || entry.myLastEventOrdinal + 1L != delta.getOrdinal()) {
+      reason = "file system events were missed";
+    }
+    else if (entry.myConfigStamp != computeConfigStamp(entry.projectPath, entry.myGlobalOptionsPath, entry.descriptor)) {
+      reason = "project configuration has changed";
+    }
+    else {
+      ourReuseCount++;
+      ourTotalTimeSaved += entry.loadTime;
+      LOG.info("Reusing loaded project " + projectPath + ": saved " + entry.loadTime + " ms of loading; " +
+               ourTotalTimeSaved + " ms saved in " + ourReuseCount + " sessions so far");
+      return entry;
+    }
+    LOG.info("Loaded project " + entry.projectPath + " cannot be reused: " + reason);
+    entry.descriptor.release();
+    return null;
+  }
+
+  /**
+   * Keeps the descriptor open for the next session. All data must already be flushed to disk.
+   * @param lastEventOrdinal ordinal of the last file system event applied to the descriptor
+   */
+  static synchronized void put(Entry entry, long lastEventOrdinal) {
+    entry.myLastEventOrdinal = lastEventOrdinal;
+    final Entry previous = ourEntry;
+    ourEntry = entry;
+    if (previous != null && previous.descriptor != entry.descriptor) {
+      previous.descriptor.release();
+    }
+  }
+
+  static synchronized void clear() {
+    final Entry entry = ourEntry;
+    ourEntry = null;
+    if (entry != null) {
+      entry.descriptor.release();
+    }
+  }
+
+  /**
+   * Combines paths, timestamps and lengths of the files the project model is loaded from. Should be computed right after
+   * the model is loaded, so changes made while it is being built are not missed.
+   */
+  static long computeConfigStamp(String projectPath, String globalOptionsPath, @NotNull ProjectDescriptor pd) {
+    final boolean includeWorkspace = hasRunConfigurationSerializers();
+    long stamp = 0L;
+    final File projectFile = new File(projectPath);
+    if (projectFile.isFile()) {
+      stamp = addFileStamp(stamp, projectFile);
+      if (includeWorkspace) {
+        stamp = addFileStamp(stamp, new File(projectFile.getParentFile(), FileUtil.getNameWithoutExtension(projectFile) + ".iws"));
+      }
+    }
+    else {
+      final File dotIdea = projectFile.getName().equals(PathMacroUtil.DIRECTORY_STORE_NAME)
+                           ? projectFile : new File(projectFile, PathMacroUtil.DIRECTORY_STORE_NAME);
+      stamp = addDirectoryStamp(stamp, dotIdea, includeWorkspace);
+    }
+    for (String name : GLOBAL_CONFIG_FILES) {
+      stamp = addFileStamp(stamp, new File(globalOptionsPath, name));
+    }
+    for (JpsModule module : pd.getProject().getModules()) {
+      final File baseDirectory = JpsModelSerializationDataService.getBaseDirectory(module);
+      if (baseDirectory != null) {
+        stamp = addFileStamp(stamp, new File(baseDirectory, module.getName() + ".iml"));
+      }
+    }
+    return stamp;
+  }
+
+  private static long addDirectoryStamp(long stamp, File dir, boolean includeWorkspace) {
+    final File[] children = dir.listFiles();
+    if (children == null) {
+      return stamp;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        stamp = addDirectoryStamp(stamp, child, includeWorkspace);
+      }
+      else if (includeWorkspace || !"workspace.xml".equals(child.getName())) {
+        stamp = addFileStamp(stamp, child);
+      }
+    }
+    return stamp;
+  }
+
+  private static long addFileStamp(long stamp, File file) {
+    stamp = 31 * stamp + FileUtil.pathHashCode(file.getPath());
+    stamp = 31 * stamp + file.lastModified();
+    return 31 * stamp + file.length();
+  }
+
+  private static boolean hasRunConfigurationSerializers() {
+    for (JpsModelSerializerExtension extension : JpsModelSerializerExtension.getExtensions()) {
+      if (!extension.getRunConfigurationPropertiesSerializers().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
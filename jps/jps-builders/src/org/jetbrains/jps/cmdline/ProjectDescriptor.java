@@ -149,6 +149,15 @@ public final class ProjectDescriptor {
     }
   }
 
+  /**
+   * Writes all build data to disk but keeps the storages open, so the descriptor can be used by the next build session
+   */
+  public void flush() {
+    myTargetsState.save();
+    timestamps.getStorage().force();
+    dataManager.flush(false);
+  }
+
   public ModuleExcludeIndex getModuleExcludeIndex() {
     return myModuleExcludeIndex;
   }
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildTarget;
+import org.jetbrains.jps.builders.impl.BuildTargetChunk;
+import org.jetbrains.jps.incremental.messages.BuildMessage;
+import org.jetbrains.jps.incremental.messages.CompilerMessage;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+/**
+ * Collects timings of a build session when {@link GlobalOptions#BUILD_METRICS_OPTION} is set: wall and CPU time spent
+ * in each target and builder, the number of files they processed, time of particular phases (compilation, dependency
+ * analysis, storage flushes) and utilization of the threads building chunks in parallel.
+ * <p/>
+ * When the build finishes, the collected data is written as a tab-separated report to {@link #REPORT_FILE_NAME} under
+ * the data storage root and a short summary is reported as an informational message.
+ */
+public final class BuildMetrics {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.BuildMetrics");
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(GlobalOptions.BUILD_METRICS_OPTION, "false"));
+  public static final String REPORT_FILE_NAME = "build-metrics.tsv";
+
+  public static final String JAVAC_PHASE = "javac";
+  public static final String DEPENDENCY_ANALYSIS_PHASE = "dependency analysis";
+  public static final String DEPENDENCY_INTEGRATION_PHASE = "dependency integration";
+  public static final String STORAGE_PHASE = "storage";
+
+  private static final GlobalContextKey<BuildMetrics> KEY = GlobalContextKey.create("_build_metrics_");
+  private static final int SLOWEST_TARGETS_TO_REPORT = 3;
+
+  private final long myStartTime = System.nanoTime();
+  private final Map<String, Counter> myTargets = new HashMap<String, Counter>();
+  private final Map<String, Counter> myBuilders = new HashMap<String, Counter>();
+  private final Map<String, Counter> myPhases = new LinkedHashMap<String, Counter>();
+  private int myParallelThreads;
+  private long myParallelWallTime;
+  private long myParallelBusyTime;
+  private int myActiveTasks;
+  private int myMaxActiveTasks;
+
+  private BuildMetrics() {
+    for (String phase : new String[]{JAVAC_PHASE, DEPENDENCY_ANALYSIS_PHASE, DEPENDENCY_INTEGRATION_PHASE, STORAGE_PHASE}) {
+      myPhases.put(phase, new Counter());
+    }
+  }
+
+  static void install(CompileContext context) {
+    KEY.set(context, ENABLED ? new BuildMetrics() : null);
+  }
+
+  /**
+   * @return metrics of the current build or null if they are not collected
+   */
+  @Nullable
+  public static BuildMetrics getInstance(CompileContext context) {
+    return KEY.get(context);
+  }
+
+  /**
+   * @return CPU time of the current thread in nanoseconds or 0 if the VM does not measure it
+   */
+  public static long getCurrentThreadCpuTime() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : 0L;
+  }
+
+  public synchronized void phaseFinished(@NotNull String phase, long startTime) {
+    getCounter(myPhases, phase).add(System.nanoTime() - startTime, 0L, 0);
+  }
+
+  synchronized void chunkBuilt(@NotNull BuildTargetChunk chunk, long wallTime, long cpuTime, int files) {
+    getCounter(myTargets, getChunkName(chunk)).add(wallTime, cpuTime, files);
+  }
+
+  synchronized void builderFinished(@NotNull String builderName, long wallTime, long cpuTime, int files) {
+    getCounter(myBuilders, builderName).add(wallTime, cpuTime, files);
+  }
+
+  synchronized void parallelTaskStarted() {
+    myActiveTasks++;
+    myMaxActiveTasks = Math.max(myMaxActiveTasks, myActiveTasks);
+  }
+
+  synchronized void parallelTaskFinished(long busyTime) {
+    myActiveTasks--;
+    myParallelBusyTime += busyTime;
+  }
+
+  synchronized void parallelBuildFinished(int threads, long wallTime) {
+    myParallelThreads = threads;
+    myParallelWallTime += wallTime;
+  }
+
+  void report(CompileContext context) {
+    final File reportFile = new File(context.getProjectDescriptor().dataManager.getDataPaths().getDataStorageRoot(), REPORT_FILE_NAME);
+    final String summary;
+    synchronized (this) {
+      try {
+        writeReport(reportFile);
+      }
+      catch (IOException e) {
+        LOG.info("Cannot write build metrics to " + reportFile.getPath(), e);
+      }
+      summary = buildSummary(reportFile);
+    }
+    LOG.info(summary);
+    context.processMessage(new CompilerMessage("", BuildMessage.Kind.INFO, summary));
+  }
+
+  private void writeReport(File reportFile) throws IOException {
+    FileUtil.createParentDirs(reportFile);
+    final PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)));
+    try {
+      writer.println("#kind\tname\twall ms\tcpu ms\tfiles\tinvocations");
+      writer.println("total\t\t" + toMillis(System.nanoTime() - myStartTime) + "\t\t\t");
+      writeCounters(writer, "target", myTargets);
+      writeCounters(writer, "builder", myBuilders);
+      writeCounters(writer, "phase", myPhases);
+      if (myParallelThreads > 0) {
+        writer.println("parallel\tthreads\t\t\t\t" + myParallelThreads);
+        writer.println("parallel\tmax active\t\t\t\t" + myMaxActiveTasks);
+        writer.println("parallel\tbusy\t" + toMillis(myParallelBusyTime) + "\t\t\t");
+        writer.println("parallel\twall\t" + toMillis(myParallelWallTime) + "\t\t\t");
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  private static void writeCounters(PrintWriter writer, String kind, Map<String, Counter> counters) {
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      final Counter counter = entry.getValue();
+      writer.println(kind + "\t" + entry.getKey().replace('\t', ' ') + "\t" + toMillis(counter.wallTime) + "\t" +
+                     toMillis(counter.cpuTime) + "\t" + counter.files + "\t" + counter.invocations);
+    }
+  }
+
+  private String buildSummary(File reportFile) {
+    final StringBuilder summary = new StringBuilder();
+    summary.append("Build metrics: ").append(formatTime(System.nanoTime() - myStartTime)).append(" total");
+    for (Map.Entry<String, Counter> entry : myPhases.entrySet()) {
+      if (entry.getValue().invocations > 0) {
+        summary.append(", ").append(entry.getKey()).append(" ").append(formatTime(entry.getValue().wallTime));
+      }
+    }
+    final List<Map.Entry<String, Counter>> targets = new ArrayList<Map.Entry<String, Counter>>(myTargets.entrySet());
+    Collections.sort(targets, new Comparator<Map.Entry<String, Counter>>() {
+      @Override
+      public int compare(Map.Entry<String, Counter> o1, Map.Entry<String, Counter> o2) {
+        final long diff = o2.getValue().wallTime - o1.getValue().wallTime;
+        return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+      }
+    });
+    if (!targets.isEmpty()) {
+      summary.append("; slowest targets: ");
+      for (int i = 0; i < Math.min(SLOWEST_TARGETS_TO_REPORT, targets.size()); i++) {
+        if (i > 0) {
+          summary.append(", ");
+        }
+        final Map.Entry<String, Counter> entry = targets.get(i);
+        summary.append(entry.getKey()).append(" (").append(formatTime(entry.getValue().wallTime)).append(")");
+      }
+    }
+    if (myParallelThreads > 0 && myParallelWallTime > 0) {
+      final long utilization = 100L * myParallelBusyTime / (myParallelWallTime * myParallelThreads);
+      summary.append("; ").append(myParallelThreads).append(" build threads ").append(utilization).append("% utilized");
+    }
+    summary.append("; details in ").append(reportFile.getPath());
+    return summary.toString();
+  }
+
+  private static String getChunkName(BuildTargetChunk chunk) {
+    final Set<BuildTarget<?>> targets = chunk.getTargets();
+    return targets.size() == 1 ? targets.iterator().next().getPresentableName() : chunk.toString();
+  }
+
+  private static Counter getCounter(Map<String, Counter> counters, String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      counters.put(name, counter);
+    }
+    return counter;
+  }
+
+  private static long toMillis(long nanos) {
+    return nanos / 1000000L;
+  }
+
+  private static String formatTime(long nanos) {
+    final long millis = toMillis(nanos);
+    return millis < 1000L ? millis + " ms" : String.format("%.1f s", millis / 1000.0);
+  }
+
+  private static class Counter {
+    long wallTime;
+    long cpuTime;
+    int files;
+    int invocations;
+
+    void add(long wallTime, long cpuTime, int files) {
+      this.wallTime += wallTime;
+      this.cpuTime += cpuTime;
+      this.files += files;
+      invocations++;
+    }
+  }
+}
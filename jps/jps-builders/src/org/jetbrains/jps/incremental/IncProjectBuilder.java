@@ -211,6 +211,7 @@ public class IncProjectBuilder {
     }
     finally {
       memWatcher.stop();
+      myProjectDescriptor.timestamps.getStorage().logContentHashStatistics();
       flushContext(context);
       // wait for async tasks
       final CanceledStatus status = context == null? CanceledStatus.NULL : context.getCancelStatus();
@@ -222,6 +223,10 @@ public class IncProjectBuilder {
           waitForTask(status, task);
         }
       }
+      final BuildMetrics metrics = context != null? BuildMetrics.getInstance(context) : null;
+      if (metrics != null) {
+        metrics.report(context);
+      }
     }
   }
 
@@ -282,8 +287,13 @@ public class IncProjectBuilder {
   private static void flushContext(CompileContext context) {
     if (context != null) {
       final ProjectDescriptor pd = context.getProjectDescriptor();
+      final long start = System.nanoTime();
       pd.timestamps.getStorage().force();
       pd.dataManager.flush(false);
+      final BuildMetrics metrics = BuildMetrics.getInstance(context);
+      if (metrics != null) {
+        metrics.phaseFinished(BuildMetrics.STORAGE_PHASE, start);
+      }
     }
     final ExternalJavacDescriptor descriptor = ExternalJavacDescriptor.KEY.get(context);
     if (descriptor != null) {
@@ -380,6 +390,7 @@ public class IncProjectBuilder {
     // in make mode it is critical to traverse file system as fast as possible, so we choose speed over memory savings
     myProjectDescriptor.setFSCache(context.isProjectRebuild() ? FSCache.NO_CACHE : new FSCache());
     JavaBuilderUtil.CONSTANT_SEARCH_SERVICE.set(context, myConstantSearch);
+    BuildMetrics.install(context);
     return context;
   }
 
@@ -545,6 +556,16 @@ public class IncProjectBuilder {
     );
   }
 
+  private void closeChunkStorages(CompileContext context, BuildTargetChunk chunk) throws IOException {
+    final long start = System.nanoTime();
+    myProjectDescriptor.dataManager.closeSourceToOutputStorages(Collections.singletonList(chunk));
+    myProjectDescriptor.dataManager.flush(true);
+    final BuildMetrics metrics = BuildMetrics.getInstance(context);
+    if (metrics != null) {
+      metrics.phaseFinished(BuildMetrics.STORAGE_PHASE, start);
+    }
+  }
+
   private static void runTasks(CompileContext context, final List<BuildTask> tasks) throws ProjectBuildException {
     for (BuildTask task : tasks) {
       task.build(context);
@@ -568,8 +589,7 @@ public class IncProjectBuilder {
           }
           finally {
             context.updateCompilationStartStamp();
-            pd.dataManager.closeSourceToOutputStorages(Collections.singleton(chunk));
-            pd.dataManager.flush(true);
+            closeChunkStorages(context, chunk);
           }
         }
       }
@@ -617,9 +637,8 @@ public class IncProjectBuilder {
   }
 
   private class BuildParallelizer {
-    private final BoundedTaskExecutor myParallelBuildExecutor =
-      new BoundedTaskExecutor(SharedThreadPool.getInstance(),
-                              Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors())));
+    private final int myThreadCount = Math.min(MAX_BUILDER_THREADS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private final BoundedTaskExecutor myParallelBuildExecutor = new BoundedTaskExecutor(SharedThreadPool.getInstance(), myThreadCount);
     private final CompileContext myContext;
     private final AtomicReference<Throwable> myException = new AtomicReference<Throwable>();
     private final Object myQueueLock = new Object();
@@ -657,6 +676,7 @@ public class IncProjectBuilder {
     }
 
     public void buildInParallel() throws IOException, ProjectBuildException {
+      final long start = System.nanoTime();
       List<BuildChunkTask> initialTasks = new ArrayList<BuildChunkTask>();
       for (BuildChunkTask task : myTasks) {
         if (task.isReady()) {
@@ -671,6 +691,10 @@ public class IncProjectBuilder {
       catch (InterruptedException e) {
         LOG.info(e);
       }
+      final BuildMetrics metrics = BuildMetrics.getInstance(myContext);
+      if (metrics != null) {
+        metrics.parallelBuildFinished(myThreadCount, System.nanoTime() - start);
+      }
 
       final Throwable throwable = myException.get();
       if (throwable instanceof ProjectBuildException) {
@@ -709,6 +733,11 @@ public class IncProjectBuilder {
       myParallelBuildExecutor.execute(new Runnable() {
         @Override
         public void run() {
+          final BuildMetrics metrics = BuildMetrics.getInstance(myContext);
+          final long start = System.nanoTime();
+          if (metrics != null) {
+            metrics.parallelTaskStarted();
+          }
           try {
             try {
               if (myException.get() == null) {
@@ -717,8 +746,7 @@ public class IncProjectBuilder {
             }
             finally {
               myContext.updateCompilationStartStamp();
-              myProjectDescriptor.dataManager.closeSourceToOutputStorages(Collections.singletonList(task.getChunk()));
-              myProjectDescriptor.dataManager.flush(true);
+              closeChunkStorages(myContext, task.getChunk());
             }
           }
           catch (Throwable e) {
@@ -727,6 +755,9 @@ public class IncProjectBuilder {
           }
           finally {
             LOG.debug("Finished compilation of " + task.getChunk().toString());
+            if (metrics != null) {
+              metrics.parallelTaskFinished(System.nanoTime() - start);
+            }
             myTasksCountDown.countDown();
             List<BuildChunkTask> nextTasks;
             synchronized (myQueueLock) {
@@ -784,8 +815,14 @@ public class IncProjectBuilder {
     }
 
     final List<TargetBuilder<?, ?>> builders = BuilderRegistry.getInstance().getTargetBuilders();
+    final BuildMetrics metrics = BuildMetrics.getInstance(context);
     for (TargetBuilder<?, ?> builder : builders) {
+      final long start = System.nanoTime();
+      final long cpuStart = metrics != null? BuildMetrics.getCurrentThreadCpuTime() : 0L;
       BuildOperations.buildTarget(target, context, builder);
+      if (metrics != null) {
+        metrics.builderFinished(builder.getPresentableName(), System.nanoTime() - start, BuildMetrics.getCurrentThreadCpuTime() - cpuStart, 0);
+      }
       updateDoneFraction(context, 1.0f / builders.size());
     }
     return true;
@@ -798,6 +835,10 @@ public class IncProjectBuilder {
   }
 
   private void buildTargetsChunk(CompileContext context, final BuildTargetChunk chunk) throws ProjectBuildException {
+    final BuildMetrics metrics = BuildMetrics.getInstance(context);
+    final long start = System.nanoTime();
+    final long cpuStart = metrics != null? BuildMetrics.getCurrentThreadCpuTime() : 0L;
+    int filesToRecompile = 0;
     boolean doneSomething;
     try {
       Utils.ERRORS_DETECTED_KEY.set(context, Boolean.FALSE);
@@ -809,6 +850,9 @@ public class IncProjectBuilder {
       doneSomething = processDeletedPaths(context, chunk.getTargets());
 
       myProjectDescriptor.fsState.beforeChunkBuildStart(context, chunk);
+      if (metrics != null) {
+        filesToRecompile = countFilesToRecompile(context, chunk);
+      }
 
       doneSomething |= runBuildersForChunk(context, chunk);
 
@@ -830,6 +874,9 @@ public class IncProjectBuilder {
       throw new ProjectBuildException(e);
     }
     finally {
+      if (metrics != null) {
+        metrics.chunkBuilt(chunk, System.nanoTime() - start, BuildMetrics.getCurrentThreadCpuTime() - cpuStart, filesToRecompile);
+      }
       for (BuildRootDescriptor rd : context.getProjectDescriptor().getBuildRootIndex().clearTempRoots(context)) {
         context.getProjectDescriptor().fsState.clearRecompile(rd);
       }
@@ -989,6 +1036,7 @@ public class IncProjectBuilder {
       }
     }
 
+    final BuildMetrics metrics = BuildMetrics.getInstance(context);
     boolean doneSomething = false;
     boolean rebuildFromScratchRequested = false;
     float stageCount = myTotalModuleLevelBuilderCount;
@@ -1009,6 +1057,7 @@ public class IncProjectBuilder {
               FSOperations.processFilesToRecompile(context, chunk, processor);
             }
           };
+        final int filesToRecompile = metrics != null? countFilesToRecompile(dirtyFilesHolder) : 0;
         if (!JavaBuilderUtil.isForcedRecompilationAllJavaModules(context)) {
           final Map<ModuleBuildTarget, Set<File>> cleanedSources = BuildOperations
             .cleanOutputsCorrespondingToChangedFiles(context, dirtyFilesHolder);
@@ -1033,7 +1082,13 @@ public class IncProjectBuilder {
 
           for (ModuleLevelBuilder builder : builders) {
             processDeletedPaths(context, chunk.getTargets());
+            final long start = System.nanoTime();
+            final long cpuStart = metrics != null? BuildMetrics.getCurrentThreadCpuTime() : 0L;
             final ModuleLevelBuilder.ExitCode buildResult = builder.build(context, chunk, dirtyFilesHolder, outputConsumer);
+            if (metrics != null) {
+              metrics.builderFinished(builder.getPresentableName(), System.nanoTime() - start, BuildMetrics.getCurrentThreadCpuTime() - cpuStart,
+                                      buildResult == ModuleLevelBuilder.ExitCode.NOTHING_DONE ? 0 : filesToRecompile);
+            }
 
             doneSomething |= (buildResult != ModuleLevelBuilder.ExitCode.NOTHING_DONE);
 
@@ -1101,6 +1156,34 @@ public class IncProjectBuilder {
     return doneSomething;
   }
 
+  private static int countFilesToRecompile(DirtyFilesHolder<JavaSourceRootDescriptor, ModuleBuildTarget> dirtyFilesHolder) throws IOException {
+    final int[] count = {0};
+    dirtyFilesHolder.processDirtyFiles(new FileProcessor<JavaSourceRootDescriptor, ModuleBuildTarget>() {
+      @Override
+      public boolean apply(ModuleBuildTarget target, File file, JavaSourceRootDescriptor root) throws IOException {
+        count[0]++;
+        return true;
+      }
+    });
+    return count[0];
+  }
+
+  @SuppressWarnings("unchecked")
+  private static int countFilesToRecompile(CompileContext context, BuildTargetChunk chunk) throws IOException {
+    final int[] count = {0};
+    final FileProcessor processor = new FileProcessor() {
+      @Override
+      public boolean apply(BuildTarget target, File file, BuildRootDescriptor root) throws IOException {
+        count[0]++;
+        return true;
+      }
+    };
+    for (BuildTarget<?> target : chunk.getTargets()) {
+      context.getProjectDescriptor().fsState.processFilesToRecompile(context, target, processor);
+    }
+    return count[0];
+  }
+
   private static void onChunkBuildComplete(CompileContext context, @NotNull BuildTargetChunk chunk) throws IOException {
     final ProjectDescriptor pd = context.getProjectDescriptor();
     final BuildFSState fsState = pd.fsState;
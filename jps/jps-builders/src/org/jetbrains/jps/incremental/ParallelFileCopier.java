@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileSystemUtil;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import com.intellij.util.containers.ConcurrentHashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.service.SharedThreadPool;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies files with {@link FileChannel#transferTo}, creating each output directory only once. With
+ * {@link GlobalOptions#COPY_PARALLEL_THREADS_OPTION} greater than 1 the copying is done by several pooled threads and
+ * {@link #copy(File, File)} returns immediately; call {@link #waitForCompletion()} before using the copied files. Files which
+ * are not copied because the build is canceled are reported as failures.
+ * <p/>
+ * The copier is not thread-safe: it should be used by a single builder thread.
+ */
+public final class ParallelFileCopier {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.ParallelFileCopier");
+  private static final long REPORT_THRESHOLD_MS = 1000L;
+
+  private final CompileContext myContext;
+  private final String myPresentableName;
+  private final int myThreads;
+  private final BoundedTaskExecutor myExecutor;
+  private final List<Future<?>> myTasks = new ArrayList<Future<?>>();
+  private final Set<File> myCreatedDirectories = new ConcurrentHashSet<File>();
+  private final Map<File, IOException> myFailures = Collections.synchronizedMap(new LinkedHashMap<File, IOException>());
+  private final AtomicLong myBytesCopied = new AtomicLong();
+  private final long myStartTime = System.nanoTime();
+  private int myFileCount;
+
+  public ParallelFileCopier(@NotNull CompileContext context, @NotNull String presentableName) {
+    myContext = context;
+    myPresentableName = presentableName;
+    myThreads = Integer.parseInt(System.getProperty(GlobalOptions.COPY_PARALLEL_THREADS_OPTION, "1"));
+    myExecutor = myThreads > 1 ? new BoundedTaskExecutor(SharedThreadPool.getInstance(), myThreads) : null;
+  }
+
+  public void copy(@NotNull final File from, @NotNull final File to) {
+    myFileCount++;
+    if (myExecutor == null) {
+      doCopy(from, to);
+    }
+    else {
+      myTasks.add(myExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+          if (myContext.getCancelStatus().isCanceled()) {
+            myFailures.put(from, new IOException("Build canceled, " + from.getPath() + " is not copied"));
+          }
+          else {
+            doCopy(from, to);
+          }
+        }
+      }));
+    }
+  }
+
+  /**
+   * Waits until all files passed to {@link #copy(File, File)} are copied
+   * @return errors occurred while copying, keyed by source file
+   */
+  @NotNull
+  public Map<File, IOException> waitForCompletion() {
+    for (Future<?> task : myTasks) {
+      try {
+        task.get();
+      }
+      catch (InterruptedException e) {
+        LOG.info(e);
+      }
+      catch (ExecutionException e) {
+        LOG.info(e);
+      }
+    }
+    myTasks.clear();
+    reportThroughput();
+    synchronized (myFailures) {
+      final Map<File, IOException> failures = new LinkedHashMap<File, IOException>(myFailures);
+      myFailures.clear();
+      return failures;
+    }
+  }
+
+  /**
+   * Same as {@link #waitForCompletion()} but stops the build if it is canceled and otherwise rethrows the first error
+   */
+  public void waitForCompletionOrFail() throws IOException, ProjectBuildException {
+    final Map<File, IOException> failures = waitForCompletion();
+    myContext.checkCanceled();
+    if (!failures.isEmpty()) {
+      throw failures.values().iterator().next();
+    }
+  }
+
+  private void doCopy(File from, File to) {
+    try {
+      myBytesCopied.addAndGet(copyContent(from, to));
+    }
+    catch (IOException e) {
+      myFailures.put(from, e);
+    }
+  }
+
+  private long copyContent(File from, File to) throws IOException {
+    final File parent = to.getParentFile();
+    if (parent != null && myCreatedDirectories.add(parent)) {
+      FileUtil.createDirectory(parent);
+    }
+    final FileInputStream in = new FileInputStream(from);
+    long copied = 0L;
+    try {
+      final FileOutputStream out;
+      try {
+        out = new FileOutputStream(to);
+      }
+      catch (FileNotFoundException e) {
+        // the file may be locked or protected, let FileUtil apply its workarounds
+        FileUtil.copyContent(from, to);
+        return from.length();
+      }
+      try {
+        final FileChannel source = in.getChannel();
+        final FileChannel target = out.getChannel();
+        final long size = source.size();
+        while (copied < size) {
+          final long transferred = source.transferTo(copied, size - copied, target);
+          if (transferred <= 0) {
+            break;
+          }
+          copied += transferred;
+        }
+      }
+      finally {
+        out.close();
+      }
+    }
+    finally {
+      in.close();
+    }
+    if (SystemInfo.isUnix && from.canExecute()) {
+      final int oldPermissions = FileSystemUtil.getPermissions(from);
+      final int newPermissions = FileSystemUtil.getPermissions(to);
+      if (oldPermissions != -1 && newPermissions != -1) {
+        FileSystemUtil.setPermissions(to, oldPermissions | newPermissions);
+      }
+    }
+    return copied;
+  }
+
+  private void reportThroughput() {
+    if (myFileCount == 0) {
+      return;
+    }
+    final long elapsedMs = Math.max(1L, (System.nanoTime() - myStartTime) / 1000000L);
+    final long bytes = myBytesCopied.get();
+    final String message = myPresentableName + ": copied " + myFileCount + " files (" + bytes / 1024 + " KB) in " + elapsedMs + " ms, " +
+                           (bytes * 1000L / elapsedMs) / 1024 + " KB/s, " + Math.max(1, myThreads) + " thread(s)";
+    if (elapsedMs >= REPORT_THRESHOLD_MS) {
+      LOG.info(message);
+    }
+    else if (LOG.isDebugEnabled()) {
+      LOG.debug(message);
+    }
+  }
+}
@@ -129,6 +129,9 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
         }
       });
 
+      final Map<String, File> previousJars = JarsBuilder.UPDATE_JARS_IN_PLACE
+                                             ? moveChangedJarsAside(context, target, changedOutputPaths, filesToDelete.keySet())
+                                             : Collections.<String, File>emptyMap();
       BuildOperations.cleanOutputsCorrespondingToChangedFiles(context, holder);
       for (String outputPath : changedOutputPaths) {
         outSrcMapping.remove(outputPath);
@@ -142,6 +145,7 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
 
       context.processMessage(new ProgressMessage("Building artifact '" + artifact.getName() + "': copying files..."));
       final Set<JarInfo> changedJars = new THashSet<JarInfo>();
+      final ParallelFileCopier copier = new ParallelFileCopier(context, "Artifact '" + artifact.getName() + "'");
       for (ArtifactRootDescriptor descriptor : pd.getBuildRootIndex().getTargetRoots(target, context)) {
         context.checkCanceled();
         final Set<String> sourcePaths = filesToProcess.get(descriptor.getRootIndex());
@@ -157,7 +161,7 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
           DestinationInfo destination = descriptor.getDestinationInfo();
           if (destination instanceof ExplodedDestinationInfo) {
             descriptor.copyFromRoot(sourcePath, descriptor.getRootIndex(), destination.getOutputPath(), context,
-                                    outputConsumer, outSrcMapping);
+                                    outputConsumer, outSrcMapping, copier);
           }
           else {
             List<ArtifactOutputToSourceMapping.SourcePathAndRootIndex> sources = outSrcMapping.getState(destination.getOutputFilePath());
@@ -169,9 +173,10 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
           }
         }
       }
+      copier.waitForCompletionOrFail();
       context.checkCanceled();
 
-      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping);
+      JarsBuilder builder = new JarsBuilder(changedJars, context, outputConsumer, outSrcMapping, previousJars);
       builder.buildJars();
       runArtifactTasks(context, artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase.POST_PROCESSING);
     }
@@ -180,6 +185,37 @@ public class IncArtifactBuilder extends TargetBuilder<ArtifactRootDescriptor, Ar
     }
   }
 
+  /**
+   * Top-level jars which are going to be rebuilt are moved next to their output paths instead of being deleted, so
+   * {@link JarsBuilder} can update them in place
+   */
+  private static Map<String, File> moveChangedJarsAside(CompileContext context, ArtifactBuildTarget target,
+                                                        Set<String> changedOutputPaths, Set<String> outputPathsToDelete) {
+    final Map<String, File> previousJars = new HashMap<String, File>();
+    for (ArtifactRootDescriptor descriptor : context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context)) {
+      final DestinationInfo destination = descriptor.getDestinationInfo();
+      if (!(destination instanceof JarDestinationInfo)) continue;
+      final DestinationInfo jarDestination = ((JarDestinationInfo)destination).getJarInfo().getDestination();
+      if (!(jarDestination instanceof ExplodedDestinationInfo)) continue;
+
+      final String jarPath = jarDestination.getOutputFilePath();
+      if (previousJars.containsKey(jarPath) || !changedOutputPaths.contains(jarPath) && !outputPathsToDelete.contains(jarPath)) continue;
+      final File jarFile = new File(jarPath);
+      final File previousJarFile = new File(jarPath + ".tmp");
+      FileUtil.delete(previousJarFile);
+      if (jarFile.isFile() && jarFile.renameTo(previousJarFile)) {
+        previousJars.put(jarPath, previousJarFile);
+      }
+    }
+    if (!previousJars.isEmpty()) {
+      final ProjectBuilderLogger logger = context.getLoggingManager().getProjectBuilderLogger();
+      if (logger.isEnabled()) {
+        logger.logDeletedFiles(previousJars.keySet());
+      }
+    }
+    return previousJars;
+  }
+
   private static void runArtifactTasks(CompileContext context, JpsArtifact artifact, ArtifactBuildTaskProvider.ArtifactBuildPhase phase)
     throws ProjectBuildException {
     for (ArtifactBuildTaskProvider provider : JpsServiceManager.getInstance().getExtensions(ArtifactBuildTaskProvider.class)) {
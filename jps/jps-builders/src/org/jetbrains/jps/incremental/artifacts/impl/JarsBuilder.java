@@ -27,6 +27,10 @@ import com.intellij.util.graph.CachingSemiGraph;
 import com.intellij.util.graph.DFSTBuilder;
 import com.intellij.util.graph.GraphGenerator;
 import com.intellij.util.io.ZipUtil;
+import com.intellij.util.io.zip.DosTime;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -47,24 +51,38 @@ import java.util.*;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * @author nik
  */
 public class JarsBuilder {
   private static final Logger LOG = Logger.getInstance("#com.intellij.compiler.impl.packagingCompiler.JarsBuilder");
+  public static final boolean UPDATE_JARS_IN_PLACE = Boolean.parseBoolean(System.getProperty("jps.artifacts.update.jars.in.place", "true"));
+  private static final int MAX_GARBAGE_PERCENT = 50;
   private final Set<JarInfo> myJarsToBuild;
   private final CompileContext myContext;
   private Map<JarInfo, File> myBuiltJars;
   private final BuildOutputConsumer myOutputConsumer;
   private final ArtifactOutputToSourceMapping myOutSrcMapping;
+  private final Map<String, File> myPreviousJars;
 
   public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
                      ArtifactOutputToSourceMapping outSrcMapping) {
+    this(jarsToBuild, context, outputConsumer, outSrcMapping, Collections.<String, File>emptyMap());
+  }
+
+  /**
+   * @param previousJars previous versions of top-level jars moved away from their output paths, they are updated in place
+   *                     instead of being packed from scratch when possible
+   */
+  public JarsBuilder(Set<JarInfo> jarsToBuild, CompileContext context, BuildOutputConsumer outputConsumer,
+                     ArtifactOutputToSourceMapping outSrcMapping, Map<String, File> previousJars) {
     myOutputConsumer = outputConsumer;
     myOutSrcMapping = outSrcMapping;
+    myPreviousJars = new THashMap<String, File>(FileUtil.PATH_HASHING_STRATEGY);
+    myPreviousJars.putAll(previousJars);
     DependentJarsEvaluator evaluator = new DependentJarsEvaluator();
     for (JarInfo jarInfo : jarsToBuild) {
       evaluator.addJarWithDependencies(jarInfo);
@@ -78,6 +96,9 @@ public class JarsBuilder {
 
     final JarInfo[] sortedJars = sortJars();
     if (sortedJars == null) {
+      for (File file : myPreviousJars.values()) {
+        FileUtil.delete(file);
+      }
       return false;
     }
 
@@ -103,6 +124,9 @@ public class JarsBuilder {
     for (File file : myBuiltJars.values()) {
       FileUtil.delete(file);
     }
+    for (File file : myPreviousJars.values()) {
+      FileUtil.delete(file);
+    }
   }
 
   private void copyJars() throws IOException {
@@ -142,14 +166,32 @@ public class JarsBuilder {
     }
 
     myContext.processMessage(new ProgressMessage("Building " + jar.getPresentableDestination() + "..."));
+    final String targetJarPath = jar.getDestination().getOutputFilePath();
+    final File previousJar = myPreviousJars.remove(targetJarPath);
+    if (previousJar != null) {
+      if (canUpdateInPlace(jar)) {
+        myBuiltJars.put(jar, previousJar);
+        try {
+          if (updateJarInPlace(jar, previousJar)) {
+            return;
+          }
+        }
+        catch (IOException e) {
+          LOG.info("Cannot update " + targetJarPath + " in place, it will be packed from scratch", e);
+        }
+        myBuiltJars.remove(jar);
+      }
+      FileUtil.delete(previousJar);
+    }
+
     File jarFile = FileUtil.createTempFile("artifactCompiler", "tmp");
     myBuiltJars.put(jar, jarFile);
 
     FileUtil.createParentDirs(jarFile);
-    final String targetJarPath = jar.getDestination().getOutputFilePath();
     List<String> packedFilePaths = new ArrayList<String>();
     Manifest manifest = loadManifest(jar, packedFilePaths);
     final JarOutputStream jarOutputStream = createJarOutputStream(jarFile, manifest);
+    final StreamEntryWriter writer = new StreamEntryWriter(jarOutputStream);
 
     final THashSet<String> writtenPaths = new THashSet<String>();
     try {
@@ -163,21 +205,21 @@ public class JarsBuilder {
           final ArtifactRootDescriptor descriptor = (ArtifactRootDescriptor)pair.getSecond();
           final int rootIndex = descriptor.getRootIndex();
           if (descriptor instanceof FileBasedArtifactRootDescriptor) {
-            addFileToJar(jarOutputStream, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
+            addFileToJar(writer, jarFile, descriptor.getRootFile(), descriptor.getFilter(), relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, rootIndex);
           }
           else {
             final String filePath = FileUtil.toSystemIndependentName(descriptor.getRootFile().getAbsolutePath());
             packedFilePaths.add(filePath);
             myOutSrcMapping.appendData(targetJarPath, rootIndex, filePath);
-            extractFileAndAddToJar(jarOutputStream, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
+            extractFileAndAddToJar(writer, (JarBasedArtifactRootDescriptor)descriptor, relativePath, writtenPaths);
           }
         }
         else {
           JarInfo nestedJar = (JarInfo)pair.getSecond();
           File nestedJarFile = myBuiltJars.get(nestedJar);
           if (nestedJarFile != null) {
-            addFileToJar(jarOutputStream, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
+            addFileToJar(writer, jarFile, nestedJarFile, SourceFileFilter.ALL, relativePath, targetJarPath, writtenPaths,
                          packedFilePaths, -1);
           }
           else {
@@ -214,6 +256,84 @@ public class JarsBuilder {
     }
   }
 
+  private static boolean canUpdateInPlace(JarInfo jar) {
+    if (!(jar.getDestination() instanceof ExplodedDestinationInfo)) {
+      return false;
+    }
+    for (Pair<String, Object> pair : jar.getContent()) {
+      if (!(pair.getSecond() instanceof FileBasedArtifactRootDescriptor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Rewrites only entries whose files have changed and the central directory, replaced entries stay in the file as garbage
+   * @return false if the jar contains too much garbage or its manifest has changed and it must be packed from scratch
+   */
+  private boolean updateJarInPlace(JarInfo jar, File jarFile) throws IOException {
+    final long jarTimestamp = jarFile.lastModified();
+    final JBZipFile zipFile = new JBZipFile(jarFile);
+    try {
+      if (getGarbagePercent(zipFile, jarFile.length()) > MAX_GARBAGE_PERCENT) {
+        LOG.debug(jar.getPresentableDestination() + " will be compacted");
+        return false;
+      }
+
+      final String targetJarPath = jar.getDestination().getOutputFilePath();
+      final List<String> packedFilePaths = new ArrayList<String>();
+      final Manifest manifest = loadManifest(jar, packedFilePaths);
+      final ZipFileEntryWriter writer = new ZipFileEntryWriter(zipFile, jarTimestamp);
+      final THashSet<String> writtenPaths = new THashSet<String>();
+      if (manifest != null) {
+        writtenPaths.add(JarFile.MANIFEST_NAME);
+        final ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        manifest.write(manifestBytes);
+        // the manifest must stay the first entry of the jar, a replaced one would be appended at its end
+        if (!writer.hasSameContent(JarFile.MANIFEST_NAME, manifestBytes.toByteArray())) {
+          LOG.debug(jar.getPresentableDestination() + " manifest has changed, the jar will be packed from scratch");
+          return false;
+        }
+        writer.addEntry(JarFile.MANIFEST_NAME, manifestBytes.toByteArray(), -1);
+      }
+
+      for (Pair<String, Object> pair : jar.getContent()) {
+        final ArtifactRootDescriptor descriptor = (ArtifactRootDescriptor)pair.getSecond();
+        addFileToJar(writer, jarFile, descriptor.getRootFile(), descriptor.getFilter(), pair.getFirst(), targetJarPath, writtenPaths,
+                     packedFilePaths, descriptor.getRootIndex());
+      }
+      if (writtenPaths.isEmpty()) {
+        return false;
+      }
+      writer.eraseStaleEntries();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug(jar.getPresentableDestination() + " updated in place: " + writer.myRewrittenCount + " entries rewritten");
+      }
+
+      final ProjectBuilderLogger logger = myContext.getLoggingManager().getProjectBuilderLogger();
+      if (logger.isEnabled()) {
+        logger.logCompiledPaths(packedFilePaths, IncArtifactBuilder.BUILDER_NAME, "Packing files:");
+      }
+      myOutputConsumer.registerOutputFile(new File(targetJarPath), packedFilePaths);
+      return true;
+    }
+    finally {
+      zipFile.close();
+    }
+  }
+
+  private static long getGarbagePercent(JBZipFile zipFile, long length) {
+    if (length == 0) return 0;
+    long liveBytes = 0;
+    for (JBZipEntry entry : zipFile.getEntries()) {
+      // local header, name, extra and data followed by the central directory header with the same name
+      final byte[] extra = entry.getExtra();
+      liveBytes += 30 + 46 + 2 * entry.getName().length() + (extra != null ? extra.length : 0) + Math.max(0, entry.getCompressedSize());
+    }
+    return Math.max(0, length - liveBytes) * 100 / length;
+  }
+
   private static JarOutputStream createJarOutputStream(File jarFile, @Nullable Manifest manifest) throws IOException {
     final BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(jarFile));
     if (manifest != null) {
@@ -278,18 +398,19 @@ public class JarsBuilder {
     }
   }
 
-  private static void extractFileAndAddToJar(final JarOutputStream jarOutputStream, final JarBasedArtifactRootDescriptor root,
+  private static void extractFileAndAddToJar(final StreamEntryWriter writer, final JarBasedArtifactRootDescriptor root,
                                              final String relativeOutputPath, final Set<String> writtenPaths)
     throws IOException {
+    final JarOutputStream jarOutputStream = writer.myStream;
     final long timestamp = FileSystemUtil.lastModified(root.getRootFile());
     root.processEntries(new JarBasedArtifactRootDescriptor.EntryProcessor() {
       @Override
       public void process(@Nullable InputStream inputStream, @NotNull String relativePath, ZipEntry entry) throws IOException {
-        String pathInJar = addParentDirectories(jarOutputStream, writtenPaths, JpsArtifactPathUtil
+        String pathInJar = addParentDirectories(writer, writtenPaths, JpsArtifactPathUtil
           .appendToPath(relativeOutputPath, relativePath));
 
         if (inputStream == null) {
-          addDirectoryEntry(jarOutputStream, pathInJar + "/", writtenPaths);
+          addDirectoryEntry(writer, pathInJar + "/", writtenPaths);
         }
         else if (writtenPaths.add(pathInJar)) {
           ZipEntry newEntry = new ZipEntry(pathInJar);
@@ -308,18 +429,18 @@ public class JarsBuilder {
 
   }
 
-  private void addFileToJar(final @NotNull JarOutputStream jarOutputStream, final @NotNull File jarFile, @NotNull File file,
+  private void addFileToJar(final @NotNull EntryWriter writer, final @NotNull File jarFile, @NotNull File file,
                             SourceFileFilter filter, @NotNull String relativePath, String targetJarPath,
                             final @NotNull Set<String> writtenPaths, List<String> packedFilePaths, final int rootIndex) throws IOException {
     if (!file.exists() || FileUtil.isAncestor(file, jarFile, false)) {
       return;
     }
 
-    relativePath = addParentDirectories(jarOutputStream, writtenPaths, relativePath);
-    addFileOrDirRecursively(jarOutputStream, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
+    relativePath = addParentDirectories(writer, writtenPaths, relativePath);
+    addFileOrDirRecursively(writer, file, filter, relativePath, targetJarPath, writtenPaths, packedFilePaths, rootIndex);
   }
 
-  private void addFileOrDirRecursively(@NotNull ZipOutputStream jarOutputStream,
+  private void addFileOrDirRecursively(@NotNull EntryWriter writer,
                                        @NotNull File file,
                                        SourceFileFilter filter,
                                        @NotNull String relativePath,
@@ -335,19 +456,22 @@ public class JarsBuilder {
     if (file.isDirectory()) {
       final String directoryPath = relativePath.length() == 0 ? "" : relativePath + "/";
       if (!directoryPath.isEmpty()) {
-        addDirectoryEntry(jarOutputStream, directoryPath, writtenItemRelativePaths);
+        addDirectoryEntry(writer, directoryPath, writtenItemRelativePaths);
       }
       final File[] children = file.listFiles();
       if (children != null) {
         for (File child : children) {
-          addFileOrDirRecursively(jarOutputStream, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
+          addFileOrDirRecursively(writer, child, filter, directoryPath + child.getName(), targetJarPath, writtenItemRelativePaths,
                                   packedFilePaths, rootIndex);
         }
       }
       return;
     }
 
-    final boolean added = ZipUtil.addFileToZip(jarOutputStream, file, relativePath, writtenItemRelativePaths, null);
+    final boolean added = writtenItemRelativePaths.add(relativePath);
+    if (added) {
+      writer.addFile(file, relativePath);
+    }
     if (rootIndex != -1) {
       myOutSrcMapping.appendData(targetJarPath, rootIndex, filePath);
       if (added) {
@@ -357,7 +481,7 @@ public class JarsBuilder {
   }
 
 
-  private static String addParentDirectories(JarOutputStream jarOutputStream, Set<String> writtenPaths, String relativePath) throws IOException {
+  private static String addParentDirectories(EntryWriter writer, Set<String> writtenPaths, String relativePath) throws IOException {
     while (StringUtil.startsWithChar(relativePath, '/')) {
       relativePath = relativePath.substring(1);
     }
@@ -365,22 +489,114 @@ public class JarsBuilder {
     while (i != -1) {
       String prefix = relativePath.substring(0, i+1);
       if (prefix.length() > 1) {
-        addDirectoryEntry(jarOutputStream, prefix, writtenPaths);
+        addDirectoryEntry(writer, prefix, writtenPaths);
       }
       i = relativePath.indexOf('/', i + 1);
     }
     return relativePath;
   }
 
-  private static void addDirectoryEntry(final ZipOutputStream output, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
+  private static void addDirectoryEntry(final EntryWriter writer, @NonNls final String relativePath, Set<String> writtenPaths) throws IOException {
     if (!writtenPaths.add(relativePath)) return;
+    writer.addDirectory(relativePath);
+  }
+
+  private interface EntryWriter {
+    void addDirectory(@NotNull String relativePath) throws IOException;
+
+    void addFile(@NotNull File file, @NotNull String relativePath) throws IOException;
+  }
+
+  private static class StreamEntryWriter implements EntryWriter {
+    private final JarOutputStream myStream;
+
+    private StreamEntryWriter(JarOutputStream stream) {
+      myStream = stream;
+    }
+
+    @Override
+    public void addDirectory(@NotNull String relativePath) throws IOException {
+      ZipEntry e = new ZipEntry(relativePath);
+      e.setMethod(ZipEntry.STORED);
+      e.setSize(0);
+      e.setCrc(0);
+      myStream.putNextEntry(e);
+      myStream.closeEntry();
+    }
+
+    @Override
+    public void addFile(@NotNull File file, @NotNull String relativePath) throws IOException {
+      ZipUtil.addFileToZip(myStream, file, relativePath, null, null);
+    }
+  }
+
+  /**
+   * Writes only entries which differ from the existing ones, the rest of the jar is left untouched
+   */
+  private static class ZipFileEntryWriter implements EntryWriter {
+    private final JBZipFile myZipFile;
+    private final long myJarTimestamp;
+    private final Set<String> myLiveEntries = new THashSet<String>();
+    private int myRewrittenCount;
+
+    private ZipFileEntryWriter(JBZipFile zipFile, long jarTimestamp) {
+      myZipFile = zipFile;
+      myJarTimestamp = jarTimestamp;
+    }
+
+    @Override
+    public void addDirectory(@NotNull String relativePath) throws IOException {
+      myLiveEntries.add(relativePath);
+      if (myZipFile.getEntry(relativePath) == null) {
+        final JBZipEntry entry = myZipFile.getOrCreateEntry(relativePath);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setData(ArrayUtil.EMPTY_BYTE_ARRAY, System.currentTimeMillis());
+        myRewrittenCount++;
+      }
+    }
+
+    @Override
+    public void addFile(@NotNull File file, @NotNull String relativePath) throws IOException {
+      final long timestamp = file.lastModified();
+      final JBZipEntry entry = myZipFile.getEntry(relativePath);
+      // zip timestamps have 2 seconds precision, so files modified shortly before the jar was written are compared by content
+      if (entry != null && entry.getSize() == file.length() && timestamp + 2000 < myJarTimestamp &&
+          entry.getTime() == DosTime.dosToJavaTime(DosTime.javaToDosTime(timestamp))) {
+        myLiveEntries.add(relativePath);
+        return;
+      }
+      addEntry(relativePath, FileUtil.loadFileBytes(file), timestamp);
+    }
 
-    ZipEntry e = new ZipEntry(relativePath);
-    e.setMethod(ZipEntry.STORED);
-    e.setSize(0);
-    e.setCrc(0);
-    output.putNextEntry(e);
-    output.closeEntry();
+    private void addEntry(@NotNull String relativePath, @NotNull byte[] content, long timestamp) throws IOException {
+      myLiveEntries.add(relativePath);
+      if (hasSameContent(relativePath, content)) {
+        return;
+      }
+      final JBZipEntry entry = myZipFile.getOrCreateEntry(relativePath);
+      entry.setMethod(content.length == 0 ? ZipEntry.STORED : ZipEntry.DEFLATED);
+      entry.setData(content, timestamp != -1 ? timestamp : System.currentTimeMillis());
+      myRewrittenCount++;
+    }
+
+    private boolean hasSameContent(@NotNull String relativePath, @NotNull byte[] content) {
+      final JBZipEntry existing = myZipFile.getEntry(relativePath);
+      if (existing == null || existing.getSize() != content.length) {
+        return false;
+      }
+      final CRC32 crc = new CRC32();
+      crc.update(content);
+      return existing.getCrc() == crc.getValue();
+    }
+
+    private void eraseStaleEntries() throws IOException {
+      for (JBZipEntry entry : new ArrayList<JBZipEntry>(myZipFile.getEntries())) {
+        if (!myLiveEntries.contains(entry.getName())) {
+          myZipFile.eraseEntry(entry);
+          myRewrittenCount++;
+        }
+      }
+    }
   }
 
   private class JarsGraph implements GraphGenerator.SemiGraph<JarInfo> {
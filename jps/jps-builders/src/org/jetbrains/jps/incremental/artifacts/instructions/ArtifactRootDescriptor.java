@@ -19,6 +19,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.BuildRootDescriptor;
 import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ParallelFileCopier;
 import org.jetbrains.jps.incremental.ProjectBuildException;
 import org.jetbrains.jps.incremental.artifacts.ArtifactBuildTarget;
 import org.jetbrains.jps.incremental.artifacts.ArtifactOutputToSourceMapping;
@@ -87,10 +88,15 @@ public abstract class ArtifactRootDescriptor extends BuildRootDescriptor {
     return String.valueOf(myRootIndex);
   }
 
+  /**
+   * @param copier copier for plain files; files passed to it are copied by the time {@link ParallelFileCopier#waitForCompletionOrFail()}
+   *               returns
+   */
   public abstract void copyFromRoot(String filePath,
                                     int rootIndex, String outputPath,
                                     CompileContext context, BuildOutputConsumer outputConsumer,
-                                    ArtifactOutputToSourceMapping outSrcMapping) throws IOException, ProjectBuildException;
+                                    ArtifactOutputToSourceMapping outSrcMapping,
+                                    ParallelFileCopier copier) throws IOException, ProjectBuildException;
 
   public SourceFileFilter getFilter() {
     return myFilter;
@@ -21,6 +21,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
 import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ParallelFileCopier;
 import org.jetbrains.jps.incremental.ProjectBuildException;
 import org.jetbrains.jps.incremental.artifacts.ArtifactBuildTarget;
 import org.jetbrains.jps.incremental.artifacts.ArtifactOutputToSourceMapping;
@@ -52,7 +53,8 @@ public class FileBasedArtifactRootDescriptor extends ArtifactRootDescriptor {
   public void copyFromRoot(String filePath,
                            int rootIndex, String outputPath,
                            CompileContext context, BuildOutputConsumer outputConsumer,
-                           ArtifactOutputToSourceMapping outSrcMapping) throws IOException, ProjectBuildException {
+                           ArtifactOutputToSourceMapping outSrcMapping,
+                           ParallelFileCopier copier) throws IOException, ProjectBuildException {
     final File file = new File(filePath);
     if (!file.exists()) return;
     String targetPath;
@@ -78,7 +80,7 @@ public class FileBasedArtifactRootDescriptor extends ArtifactRootDescriptor {
       if (logger.isEnabled()) {
         logger.logCompiledFiles(Collections.singletonList(file), IncArtifactBuilder.BUILDER_NAME, "Copying file:");
       }
-      FileUtil.copyContent(file, targetFile);
+      copier.copy(file, targetFile);
       outputConsumer.registerOutputFile(targetFile, Collections.singletonList(filePath));
     }
     else if (LOG.isDebugEnabled()) {
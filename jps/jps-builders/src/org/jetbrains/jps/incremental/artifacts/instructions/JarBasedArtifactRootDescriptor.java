@@ -22,6 +22,7 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.logging.ProjectBuilderLogger;
 import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ParallelFileCopier;
 import org.jetbrains.jps.incremental.artifacts.ArtifactBuildTarget;
 import org.jetbrains.jps.incremental.artifacts.ArtifactOutputToSourceMapping;
 import org.jetbrains.jps.incremental.artifacts.IncArtifactBuilder;
@@ -82,7 +83,8 @@ public class JarBasedArtifactRootDescriptor extends ArtifactRootDescriptor {
   public void copyFromRoot(final String filePath,
                            final int rootIndex, final String outputPath,
                            CompileContext context, final BuildOutputConsumer outputConsumer,
-                           final ArtifactOutputToSourceMapping outSrcMapping) throws IOException {
+                           final ArtifactOutputToSourceMapping outSrcMapping,
+                           ParallelFileCopier copier) throws IOException {
     if (!myRoot.isFile()) return;
     ProjectBuilderLogger logger = context.getLoggingManager().getProjectBuilderLogger();
     if (logger.isEnabled()) {
@@ -19,17 +19,20 @@ import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
 import com.intellij.compiler.instrumentation.InstrumenterClassWriter;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Key;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassVisitor;
 import org.jetbrains.asm4.ClassWriter;
 import org.jetbrains.jps.ModuleChunk;
-import org.jetbrains.jps.incremental.BinaryContent;
-import org.jetbrains.jps.incremental.BuilderCategory;
-import org.jetbrains.jps.incremental.CompileContext;
-import org.jetbrains.jps.incremental.CompiledClass;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.incremental.*;
 import org.jetbrains.jps.incremental.messages.BuildMessage;
 import org.jetbrains.jps.incremental.messages.CompilerMessage;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Eugene Zhuravlev
  *         Date: 11/25/12
@@ -38,6 +41,8 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.instrumentation.BaseInstrumentingBuilder");
   // every instance of builder must have its own marker!
   private final Key<Boolean> IS_INSTRUMENTED_KEY = Key.create("_instrumentation_marker_" + getPresentableName());
+  // content checked by the builder in the shared pass and left unchanged by it
+  private final Key<BinaryContent> CHECKED_CONTENT_KEY = Key.create("_instrumentation_checked_content_" + getPresentableName());
 
   public BaseInstrumentingBuilder() {
     super(BuilderCategory.CLASS_INSTRUMENTER);
@@ -45,13 +50,16 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
 
   @Override
   protected final ExitCode performBuild(CompileContext context, ModuleChunk chunk, InstrumentationClassFinder finder, OutputConsumer outputConsumer) {
-    ExitCode exitCode = ExitCode.NOTHING_DONE;
+    ExitCode exitCode = runSharedPass(context, chunk, finder, outputConsumer);
     for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
       final BinaryContent originalContent = compiledClass.getContent();
+      if (isProcessed(compiledClass)) {
+        // do not instrument the same content twice
+        continue;
+      }
       final ClassReader reader = new ClassReader(originalContent.getBuffer(), originalContent.getOffset(), originalContent.getLength());
       final int version = getClassFileVersion(reader);
-      if (IS_INSTRUMENTED_KEY.get(compiledClass, Boolean.FALSE) || !canInstrument(compiledClass, version)) {
-        // do not instrument the same content twice
+      if (!canInstrument(compiledClass, version)) {
         continue;
       }
       final ClassWriter writer = new InstrumenterClassWriter(getAsmClassWriterFlags(version), finder);
@@ -78,6 +86,98 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
     return exitCode;
   }
 
+  private boolean isProcessed(CompiledClass compiledClass) {
+    return IS_INSTRUMENTED_KEY.get(compiledClass, Boolean.FALSE) || CHECKED_CONTENT_KEY.get(compiledClass) == compiledClass.getContent();
+  }
+
+  /**
+   * Instruments classes by all enabled builders supporting {@link #createInstrumentationStep} in a single pass over each class,
+   * so a class is parsed and written once instead of once per builder. Classes the pass fails on are left to the builders
+   * to process one by one, so errors are reported by the builder responsible for them.
+   * The pass can be switched off with {@link GlobalOptions#SHARED_INSTRUMENTATION_PASS_OPTION}.
+   */
+  private static ExitCode runSharedPass(CompileContext context, ModuleChunk chunk, InstrumentationClassFinder finder, OutputConsumer outputConsumer) {
+    if (!Boolean.parseBoolean(System.getProperty(GlobalOptions.SHARED_INSTRUMENTATION_PASS_OPTION, "true"))) {
+      return ExitCode.NOTHING_DONE;
+    }
+    final List<BaseInstrumentingBuilder> builders = new ArrayList<BaseInstrumentingBuilder>();
+    for (ModuleLevelBuilder builder : BuilderRegistry.getInstance().getBuilders(BuilderCategory.CLASS_INSTRUMENTER)) {
+      if (builder instanceof BaseInstrumentingBuilder && ((BaseInstrumentingBuilder)builder).isEnabled(context, chunk)) {
+        builders.add((BaseInstrumentingBuilder)builder);
+      }
+    }
+    if (builders.size() < 2) {
+      return ExitCode.NOTHING_DONE;
+    }
+
+    ExitCode exitCode = ExitCode.NOTHING_DONE;
+    final List<BaseInstrumentingBuilder> participants = new ArrayList<BaseInstrumentingBuilder>();
+    final List<InstrumentationStep> steps = new ArrayList<InstrumentationStep>();
+    for (CompiledClass compiledClass : outputConsumer.getCompiledClasses().values()) {
+      final BinaryContent originalContent = compiledClass.getContent();
+      final ClassReader reader = new ClassReader(originalContent.getBuffer(), originalContent.getOffset(), originalContent.getLength());
+      final int version = getClassFileVersion(reader);
+      int eligible = 0;
+      for (BaseInstrumentingBuilder builder : builders) {
+        if (!builder.isProcessed(compiledClass) && builder.canInstrument(compiledClass, version)) {
+          eligible++;
+        }
+      }
+      if (eligible < 2) {
+        continue; // nothing to share
+      }
+
+      final ClassWriter writer = new InstrumenterClassWriter(getAsmClassWriterFlags(version), finder);
+      participants.clear();
+      steps.clear();
+      ClassVisitor visitor = writer;
+      // the chain is built from the end, so the builders instrument the class in the same order they run in
+      for (int i = builders.size() - 1; i >= 0; i--) {
+        final BaseInstrumentingBuilder builder = builders.get(i);
+        if (builder.isProcessed(compiledClass) || !builder.canInstrument(compiledClass, version)) {
+          continue;
+        }
+        final InstrumentationStep step = builder.createInstrumentationStep(context, compiledClass, visitor, finder);
+        if (step != null) {
+          participants.add(builder);
+          steps.add(step);
+          visitor = step.getVisitor();
+        }
+      }
+      if (steps.size() < 2) {
+        continue;
+      }
+
+      try {
+        reader.accept(visitor, 0);
+      }
+      catch (Throwable e) {
+        LOG.info(e);
+        continue;
+      }
+
+      boolean modified = false;
+      for (InstrumentationStep step : steps) {
+        modified |= step.isModified();
+      }
+      if (modified) {
+        compiledClass.setContent(new BinaryContent(writer.toByteArray()));
+        finder.cleanCachedData(compiledClass.getClassName());
+        exitCode = ExitCode.OK;
+      }
+      for (int i = 0; i < participants.size(); i++) {
+        final BaseInstrumentingBuilder builder = participants.get(i);
+        if (steps.get(i).isModified()) {
+          builder.IS_INSTRUMENTED_KEY.set(compiledClass, Boolean.TRUE);
+        }
+        else {
+          builder.CHECKED_CONTENT_KEY.set(compiledClass, compiledClass.getContent());
+        }
+      }
+    }
+    return exitCode;
+  }
+
   protected abstract boolean canInstrument(CompiledClass compiledClass, int classFileVersion);
 
   @Nullable
@@ -87,4 +187,23 @@ public abstract class BaseInstrumentingBuilder extends ClassProcessingBuilder {
                                               ClassWriter writer,
                                               InstrumentationClassFinder finder);
 
+  /**
+   * Override to let the builder instrument classes in a single pass together with other instrumenting builders.
+   * The step must produce the same result as {@link #instrument}, passing the instrumented class to {@code next}.
+   * @return null if the class should be processed by {@link #instrument} only
+   */
+  @Nullable
+  protected InstrumentationStep createInstrumentationStep(CompileContext context,
+                                                          CompiledClass compiled,
+                                                          ClassVisitor next,
+                                                          InstrumentationClassFinder finder) {
+    return null;
+  }
+
+  protected interface InstrumentationStep {
+    @NotNull
+    ClassVisitor getVisitor();
+
+    boolean isModified();
+  }
 }
@@ -20,6 +20,7 @@ import com.intellij.compiler.notNullVerification.NotNullVerifyingInstrumenter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassVisitor;
 import org.jetbrains.asm4.ClassWriter;
 import org.jetbrains.asm4.Opcodes;
 import org.jetbrains.jps.ModuleChunk;
@@ -90,4 +91,24 @@ public class NotNullInstrumentingBuilder extends BaseInstrumentingBuilder{
     return null;
   }
 
+  @Nullable
+  @Override
+  protected InstrumentationStep createInstrumentationStep(CompileContext context,
+                                                          CompiledClass compiled,
+                                                          ClassVisitor next,
+                                                          InstrumentationClassFinder finder) {
+    final NotNullVerifyingInstrumenter instrumenter = new NotNullVerifyingInstrumenter(next);
+    return new InstrumentationStep() {
+      @NotNull
+      @Override
+      public ClassVisitor getVisitor() {
+        return instrumenter;
+      }
+
+      @Override
+      public boolean isModified() {
+        return instrumenter.isModification();
+      }
+    };
+  }
 }
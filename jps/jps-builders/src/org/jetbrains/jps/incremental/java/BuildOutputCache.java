@@ -0,0 +1,437 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.java;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import gnu.trove.THashMap;
+import gnu.trove.THashSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.jps.ModuleChunk;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildRootIndex;
+import org.jetbrains.jps.builders.java.JavaSourceRootDescriptor;
+import org.jetbrains.jps.incremental.BinaryContent;
+import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ModuleBuildTarget;
+import org.jetbrains.jps.incremental.Utils;
+import org.jetbrains.jps.incremental.storage.TimestampStorage;
+import org.jetbrains.jps.javac.OutputFileConsumer;
+import org.jetbrains.jps.javac.OutputFileObject;
+import org.jetbrains.jps.model.JpsProject;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.java.JpsJavaProjectExtension;
+import org.jetbrains.jps.model.java.LanguageLevel;
+import org.jetbrains.jps.model.java.compiler.JpsJavaCompilerConfiguration;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.model.serialization.JpsModelSerializationDataService;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import javax.tools.JavaFileObject;
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class files of a module target compiled from scratch, stored in the directory given by {@link GlobalOptions#BUILD_OUTPUT_CACHE_DIR_OPTION}
+ * under a fingerprint of everything the compilation depends on: the language level, bytecode target and encoding of the module,
+ * compiler options, contents of all java sources and contents of the compilation classpath. Paths are hashed relative to the project
+ * output and base directories, so several agents building the same sources in different directories may share one cache directory.
+ * <p/>
+ * On a hit the cached classes are passed to the output sink as if javac produced them, so source-to-output mappings and
+ * dependency mappings are updated exactly as after a compilation.
+ */
+class BuildOutputCache {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.java.BuildOutputCache");
+  private static final Key<BuildOutputCache> CACHE_KEY = Key.create("_build_output_cache_");
+  private static final int FORMAT_VERSION = 1;
+
+  private final File myCacheDir;
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+  private final Map<File, long[]> myClasspathHashes = new THashMap<File, long[]>(FileUtil.FILE_HASHING_STRATEGY);
+
+  private BuildOutputCache(@NotNull File cacheDir) {
+    myCacheDir = cacheDir;
+  }
+
+  static void init(@NotNull CompileContext context) {
+    final String dir = System.getProperty(GlobalOptions.BUILD_OUTPUT_CACHE_DIR_OPTION);
+    CACHE_KEY.set(context, dir != null ? new BuildOutputCache(new File(dir)) : null);
+  }
+
+  @Nullable
+  static BuildOutputCache getInstance(@NotNull CompileContext context) {
+    return CACHE_KEY.get(context);
+  }
+
+  void logStatistics() {
+    final int hits = myHits.get();
+    final int misses = myMisses.get();
+    if (hits + misses > 0) {
+      LOG.info("Build output cache " + myCacheDir.getPath() + ": " + hits + " hits, " + misses + " misses");
+    }
+  }
+
+  /**
+   * @return fingerprint of the compilation or null if outputs of the chunk cannot be cached: it is a cycle or
+   * only a part of its sources is going to be compiled
+   */
+  @Nullable
+  String computeFingerprint(@NotNull CompileContext context,
+                            @NotNull ModuleChunk chunk,
+                            @NotNull Collection<File> files,
+                            @NotNull Collection<String> options,
+                            @NotNull Collection<File> classpath,
+                            @NotNull Collection<File> platformCp) throws IOException {
+    if (chunk.getTargets().size() != 1) {
+      return null;
+    }
+    final ModuleBuildTarget target = chunk.representativeTarget();
+    final File outputDir = target.getOutputDir();
+    if (outputDir == null) {
+      return null;
+    }
+
+    final List<JavaSourceRootDescriptor> roots = context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context);
+    final List<File> sources = new ArrayList<File>();
+    final List<String> relativePaths = new ArrayList<String>();
+    for (int i = 0; i < roots.size(); i++) {
+      collectSources(context.getProjectDescriptor().getBuildRootIndex(), roots.get(i), roots.get(i).root, i + ":", sources, relativePaths);
+    }
+    if (sources.size() != files.size()) {
+      return null;
+    }
+    final Set<File> toCompile = new THashSet<File>(files, FileUtil.FILE_HASHING_STRATEGY);
+    for (File source : sources) {
+      if (!toCompile.contains(source)) {
+        return null;
+      }
+    }
+
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+    update(digest, String.valueOf(FORMAT_VERSION));
+    update(digest, System.getProperty("java.version"));
+    final JpsModule module = target.getModule();
+    final LanguageLevel level = JpsJavaExtensionService.getInstance().getLanguageLevel(module);
+    update(digest, level != null ? level.name() : "");
+    final JpsJavaCompilerConfiguration config = JpsJavaExtensionService.getInstance().getOrCreateCompilerConfiguration(module.getProject());
+    update(digest, StringUtil.notNullize(config.getByteCodeTargetLevel(module.getName())));
+    update(digest, StringUtil.notNullize(context.getProjectDescriptor().getEncodingConfiguration().getPreferredModuleEncoding(module)));
+    final List<String> pathRoots = getPathRoots(module.getProject());
+    for (String option : options) {
+      update(digest, toRootRelative(option, pathRoots));
+    }
+    for (int i = 0; i < sources.size(); i++) {
+      update(digest, relativePaths.get(i));
+      update(digest, TimestampStorage.computeContentHash(sources.get(i)));
+    }
+    for (File file : classpath) {
+      // the target's own output is on the classpath, but it is going to be replaced
+      if (!FileUtil.filesEqual(file, outputDir)) {
+        update(digest, toRootRelative(file, pathRoots));
+        update(digest, getClasspathHash(file));
+      }
+    }
+    for (File file : platformCp) {
+      update(digest, file.getName());
+      update(digest, file.length());
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @return system independent paths of the project output and base directories, longest first so that nested roots win
+   */
+  private static List<String> getPathRoots(@NotNull JpsProject project) {
+    final List<String> roots = new ArrayList<String>();
+    final JpsJavaProjectExtension extension = JpsJavaExtensionService.getInstance().getProjectExtension(project);
+    final String outputUrl = extension != null ? extension.getOutputUrl() : null;
+    if (outputUrl != null) {
+      roots.add(FileUtil.toSystemIndependentName(JpsPathUtil.urlToPath(outputUrl)));
+    }
+    final File baseDir = JpsModelSerializationDataService.getBaseDirectory(project);
+    if (baseDir != null) {
+      roots.add(FileUtil.toSystemIndependentName(baseDir.getAbsolutePath()));
+    }
+    Collections.sort(roots, new Comparator<String>() {
+      @Override
+      public int compare(String o1, String o2) {
+        return o2.length() - o1.length();
+      }
+    });
+    return roots;
+  }
+
+  // files outside of the roots, e.g. libraries of a local repository, are identified by their names and contents only
+  private static String toRootRelative(@NotNull File file, @NotNull List<String> roots) {
+    final String path = FileUtil.toSystemIndependentName(file.getAbsolutePath());
+    for (int i = 0; i < roots.size(); i++) {
+      if (FileUtil.isAncestor(roots.get(i), path, false)) {
+        return "$" + i + "$/" + FileUtil.getRelativePath(roots.get(i), path, '/');
+      }
+    }
+    return file.getName();
+  }
+
+  private static String toRootRelative(@NotNull String option, @NotNull List<String> roots) {
+    String result = FileUtil.toSystemIndependentName(option);
+    for (int i = 0; i < roots.size(); i++) {
+      result = StringUtil.replace(result, roots.get(i), "$" + i + "$");
+    }
+    return result;
+  }
+
+  private static void collectSources(BuildRootIndex index, JavaSourceRootDescriptor rd, File dir, String prefix,
+                                     List<File> sources, List<String> relativePaths) {
+    final File[] children = dir.listFiles();
+    if (children == null) return;
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        if (index.isDirectoryAccepted(child, rd)) {
+          collectSources(index, rd, child, prefix + child.getName() + "/", sources, relativePaths);
+        }
+      }
+      else if (JavaBuilder.JAVA_SOURCES_FILTER.accept(child) && index.isFileAccepted(child, rd)) {
+        sources.add(child);
+        relativePaths.add(prefix + child.getName());
+      }
+    }
+  }
+
+  // contents of a classpath entry are only re-read when names, sizes or timestamps of its files change
+  private long getClasspathHash(@NotNull File file) {
+    final long stat = computeStatHash(file, 0xcbf29ce484222325L);
+    synchronized (myClasspathHashes) {
+      final long[] cached = myClasspathHashes.get(file);
+      if (cached != null && cached[0] == stat) {
+        return cached[1];
+      }
+    }
+    final long hash = computeContentHash(file, 0xcbf29ce484222325L);
+    synchronized (myClasspathHashes) {
+      myClasspathHashes.put(file, new long[]{stat, hash});
+    }
+    return hash;
+  }
+
+  private static long computeStatHash(File file, long hash) {
+    final File[] children = file.listFiles();
+    if (children == null) {
+      return mix(mix(mix(hash, file.getName().hashCode()), file.length()), file.lastModified());
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      hash = computeStatHash(child, mix(hash, child.getName().hashCode()));
+    }
+    return hash;
+  }
+
+  private static long computeContentHash(File file, long hash) {
+    final File[] children = file.listFiles();
+    if (children == null) {
+      return mix(hash, TimestampStorage.computeContentHash(file));
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      hash = computeContentHash(child, mix(hash, child.getName().hashCode()));
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    return (hash ^ value) * 0x100000001b3L;
+  }
+
+  /**
+   * Passes cached classes of the fingerprint to the sink
+   * @return false if there is no such entry, the sink is not called then
+   */
+  boolean restore(@NotNull CompileContext context, @NotNull ModuleChunk chunk, @NotNull String fingerprint,
+                  @NotNull OutputFileConsumer sink) {
+    final File entry = new File(myCacheDir, fingerprint);
+    if (!entry.exists()) {
+      myMisses.incrementAndGet();
+      return false;
+    }
+
+    final ModuleBuildTarget target = chunk.representativeTarget();
+    final File outputDir = target.getOutputDir();
+    final List<JavaSourceRootDescriptor> roots = context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context);
+    final List<OutputFileObject> outputs = new ArrayList<OutputFileObject>();
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(entry))));
+      try {
+        if (in.readInt() != FORMAT_VERSION) {
+          throw new IOException("Unexpected format version");
+        }
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+          final String relativePath = in.readUTF();
+          final String className = in.readUTF();
+          final int rootIndex = in.readInt();
+          final String sourcePath = in.readUTF();
+          final byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          if (rootIndex >= roots.size()) {
+            throw new IOException("Unexpected source root index " + rootIndex);
+          }
+          final File source = new File(roots.get(rootIndex).root, sourcePath);
+          outputs.add(new OutputFileObject(null, outputDir, relativePath, new File(outputDir, relativePath), JavaFileObject.Kind.CLASS,
+                                           className, Utils.toURI(source.getPath()), new BinaryContent(bytes)));
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot read build output cache entry " + entry.getPath(), e);
+      myMisses.incrementAndGet();
+      return false;
+    }
+
+    myHits.incrementAndGet();
+    LOG.info("Restoring " + outputs.size() + " classes of " + chunk.getName() + " from build output cache");
+    for (OutputFileObject output : outputs) {
+      sink.save(output);
+    }
+    return true;
+  }
+
+  @NotNull
+  Recorder createRecorder(@NotNull OutputFileConsumer delegate) {
+    return new Recorder(delegate);
+  }
+
+  void store(@NotNull CompileContext context, @NotNull ModuleChunk chunk, @NotNull String fingerprint, @NotNull Recorder recorder) {
+    final ModuleBuildTarget target = chunk.representativeTarget();
+    final File outputDir = target.getOutputDir();
+    final List<JavaSourceRootDescriptor> roots = context.getProjectDescriptor().getBuildRootIndex().getTargetRoots(target, context);
+    final File entry = new File(myCacheDir, fingerprint);
+    final File temp = new File(myCacheDir, fingerprint + ".tmp" + System.nanoTime());
+    try {
+      FileUtil.createParentDirs(temp);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp))));
+      try {
+        final List<OutputFileObject> outputs = recorder.getOutputs();
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(outputs.size());
+        for (OutputFileObject output : outputs) {
+          final String relativePath = FileUtil.getRelativePath(outputDir, output.getFile());
+          final File source = output.getSourceFile();
+          final int rootIndex = findRoot(roots, source);
+          final BinaryContent content = output.getContent();
+          if (relativePath == null || rootIndex < 0 || content == null) {
+            // produced from a temp source or outside of the output directory, such outputs cannot be restored
+            return;
+          }
+          out.writeUTF(FileUtil.toSystemIndependentName(relativePath));
+          out.writeUTF(output.getClassName() != null ? output.getClassName() : "");
+          out.writeInt(rootIndex);
+          out.writeUTF(FileUtil.toSystemIndependentName(FileUtil.getRelativePath(roots.get(rootIndex).root, source)));
+          out.writeInt(content.getLength());
+          out.write(content.getBuffer(), content.getOffset(), content.getLength());
+        }
+      }
+      finally {
+        out.close();
+      }
+      if (!entry.exists() && !temp.renameTo(entry) && !entry.exists()) {
+        LOG.info("Cannot store build output cache entry " + entry.getPath());
+      }
+    }
+    catch (IOException e) {
+      LOG.info("Cannot store build output cache entry " + entry.getPath(), e);
+    }
+    finally {
+      FileUtil.delete(temp);
+    }
+  }
+
+  private static int findRoot(List<JavaSourceRootDescriptor> roots, @Nullable File source) {
+    if (source == null) return -1;
+    for (int i = 0; i < roots.size(); i++) {
+      if (FileUtil.isAncestor(roots.get(i).root, source, true)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static void update(MessageDigest digest, String value) {
+    try {
+      digest.update(value.getBytes("UTF-8"));
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+    digest.update((byte)0);
+  }
+
+  private static void update(MessageDigest digest, long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      digest.update((byte)(value >>> shift));
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    final StringBuilder builder = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      builder.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Remembers class files passing to the delegate sink, the class post processors have already been applied to them
+   */
+  static class Recorder implements OutputFileConsumer {
+    private final OutputFileConsumer myDelegate;
+    private final List<OutputFileObject> myOutputs = Collections.synchronizedList(new ArrayList<OutputFileObject>());
+
+    private Recorder(OutputFileConsumer delegate) {
+      myDelegate = delegate;
+    }
+
+    public void save(@NotNull OutputFileObject fileObject) {
+      if (fileObject.getKind() == JavaFileObject.Kind.CLASS) {
+        myOutputs.add(fileObject);
+      }
+      myDelegate.save(fileObject);
+    }
+
+    private List<OutputFileObject> getOutputs() {
+      synchronized (myOutputs) {
+        return new ArrayList<OutputFileObject>(myOutputs);
+      }
+    }
+  }
+}
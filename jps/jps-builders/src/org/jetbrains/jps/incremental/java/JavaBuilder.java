@@ -29,6 +29,7 @@ import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.asm4.ClassReader;
 import org.jetbrains.jps.ModuleChunk;
 import org.jetbrains.jps.ProjectPaths;
 import org.jetbrains.jps.api.GlobalOptions;
@@ -58,12 +59,15 @@ import org.jetbrains.jps.model.library.sdk.JpsSdk;
 import org.jetbrains.jps.model.module.JpsModule;
 import org.jetbrains.jps.model.module.JpsModuleType;
 import org.jetbrains.jps.service.JpsServiceManager;
+import org.jetbrains.jps.service.SharedThreadPool;
 
 import javax.tools.*;
 import java.io.*;
 import java.net.ServerSocket;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -74,9 +78,14 @@ import java.util.concurrent.atomic.AtomicReference;
 public class JavaBuilder extends ModuleLevelBuilder {
   private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.java.JavaBuilder");
   public static final String BUILDER_NAME = "java";
+  public static final String BUILD_OUTPUT_CACHE_NAME = "java output cache";
+  public static final String JAVAC_PARTITIONS_NAME = "java partitions";
+  private static final int CONSTANT_CLASS = 7;
   private static final String JAVA_EXTENSION = "java";
   private static final String DOT_JAVA_EXTENSION = "." + JAVA_EXTENSION;
   public static final boolean USE_EMBEDDED_JAVAC = System.getProperty(GlobalOptions.USE_EXTERNAL_JAVAC_OPTION) == null;
+  private static final boolean EXTERNAL_JAVAC_WRITES_CLASSES = Boolean.parseBoolean(System.getProperty(GlobalOptions.EXTERNAL_JAVAC_WRITES_CLASSES_OPTION, "false"));
+  private static final int MIN_FILES_PER_PARTITION = 100;
   private static final Key<Integer> JAVA_COMPILER_VERSION_KEY = Key.create("_java_compiler_version_");
   public static final Key<Boolean> IS_ENABLED = Key.create("_java_compiler_enabled_");
   private static final Key<AtomicReference<String>> COMPILER_VERSION_INFO = Key.create("_java_compiler_version_info_");
@@ -145,6 +154,15 @@ public class JavaBuilder extends ModuleLevelBuilder {
       messageText = "Using eclipse compiler to compile java sources";
     }
     COMPILER_VERSION_INFO.set(context, new AtomicReference<String>(messageText));
+    BuildOutputCache.init(context);
+  }
+
+  @Override
+  public void buildFinished(CompileContext context) {
+    final BuildOutputCache cache = BuildOutputCache.getInstance(context);
+    if (cache != null) {
+      cache.logStatistics();
+    }
   }
 
   @Override
@@ -273,7 +291,24 @@ public class JavaBuilder extends ModuleLevelBuilder {
               LOG.debug("  " + file.getAbsolutePath());
             }
           }
-          compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          final BuildOutputCache cache = BuildOutputCache.getInstance(context);
+          final String fingerprint = cache != null ? getOutputCacheFingerprint(cache, context, chunk, files, classpath, platformCp) : null;
+          if (fingerprint == null) {
+            compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, outputSink);
+          }
+          else if (cache.restore(context, chunk, fingerprint, outputSink)) {
+            final ProjectBuilderLogger logger = context.getLoggingManager().getProjectBuilderLogger();
+            if (logger.isEnabled()) {
+              logger.logCompiledFiles(files, BUILD_OUTPUT_CACHE_NAME, "Restoring outputs of files from build output cache:");
+            }
+          }
+          else {
+            final BuildOutputCache.Recorder recorder = cache.createRecorder(outputSink);
+            compiledOk = compileJava(context, chunk, files, classpath, platformCp, srcPath, diagnosticSink, recorder);
+            if (compiledOk && diagnosticSink.getErrorCount() == 0) {
+              cache.store(context, chunk, fingerprint, recorder);
+            }
+          }
         }
 
         context.checkCanceled();
@@ -357,13 +392,22 @@ public class JavaBuilder extends ModuleLevelBuilder {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Compiling chunk [" + chunk.getName() + "] with options: \"" + StringUtil.join(options, " ") + "\"");
     }
+    final long start = System.nanoTime();
     try {
       final boolean rc;
       if (USE_EMBEDDED_JAVAC) {
         final boolean useEclipse = useEclipseCompiler(context);
-        rc = JavacMain.compile(
-          options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer, context.getCancelStatus(), useEclipse
-        );
+        final List<Set<File>> partitions = useEclipse || profile != null && profile.isEnabled()
+                                           ? Collections.<Set<File>>emptyList() : partitionSources(context, files);
+        if (partitions.size() > 1) {
+          rc = compilePartitions(context, chunk, partitions, files, options, classpath, platformCp, sourcePath, outs, diagnosticSink,
+                                 classesConsumer);
+        }
+        else {
+          rc = JavacMain.compile(
+            options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer, context.getCancelStatus(), useEclipse
+          );
+        }
       }
       else {
         final JavacServerClient client = ensureJavacServerLaunched(context);
@@ -381,9 +425,247 @@ public class JavaBuilder extends ModuleLevelBuilder {
     }
     finally {
       counter.await();
+      final BuildMetrics metrics = BuildMetrics.getInstance(context);
+      if (metrics != null) {
+        metrics.phaseFinished(BuildMetrics.JAVAC_PHASE, start);
+      }
     }
   }
 
+  /**
+   * @return fingerprint under which outputs of the chunk are looked up in the build output cache, null if they are not cached:
+   * annotation processors may depend on more than sources and classpath
+   */
+  @Nullable
+  private static String getOutputCacheFingerprint(BuildOutputCache cache,
+                                                  CompileContext context,
+                                                  ModuleChunk chunk,
+                                                  Collection<File> files,
+                                                  Collection<File> classpath,
+                                                  Collection<File> platformCp) throws IOException {
+    if (chunk.getTargets().size() != 1) {
+      return null;
+    }
+    final JpsJavaCompilerConfiguration compilerConfig =
+      JpsJavaExtensionService.getInstance().getCompilerConfiguration(context.getProjectDescriptor().getProject());
+    assert compilerConfig != null;
+    final ProcessorConfigProfile profile = compilerConfig.getAnnotationProcessingProfile(chunk.representativeTarget().getModule());
+    if (profile.isEnabled()) {
+      return null;
+    }
+    final List<String> options = getCompilationOptions(context, chunk, profile);
+    options.add(useEclipseCompiler(context) ? JavaCompilers.ECLIPSE_ID : JavaCompilers.JAVAC_ID);
+    return cache.computeFingerprint(context, chunk, files, options, classpath, platformCp);
+  }
+
+  /**
+   * Groups sources that do not depend on each other (according to the dependencies recorded by the last build) into at most
+   * {@link #getJavacPartitions()} partitions of similar size, so that they can be compiled concurrently
+   * @return an empty list if the sources should be compiled at once
+   */
+  @NotNull
+  private static List<Set<File>> partitionSources(CompileContext context, Collection<File> files) {
+    final int maxPartitions = getJavacPartitions();
+    if (maxPartitions < 2 || files.size() < 2 * MIN_FILES_PER_PARTITION || context.isProjectRebuild()) {
+      return Collections.emptyList();
+    }
+    final List<Set<File>> groups = context.getProjectDescriptor().dataManager.getMappings().getIndependentSourceGroups(files);
+    if (groups.size() < 2) {
+      return Collections.emptyList();
+    }
+
+    Collections.sort(groups, new Comparator<Set<File>>() {
+      public int compare(Set<File> o1, Set<File> o2) {
+        return o2.size() - o1.size();
+      }
+    });
+    final int partitionCount = Math.min(Math.min(maxPartitions, groups.size()), files.size() / MIN_FILES_PER_PARTITION);
+    final List<Set<File>> partitions = new ArrayList<Set<File>>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      partitions.add(new THashSet<File>(FileUtil.FILE_HASHING_STRATEGY));
+    }
+    for (Set<File> group : groups) {
+      Set<File> smallest = partitions.get(0);
+      for (Set<File> partition : partitions) {
+        if (partition.size() < smallest.size()) {
+          smallest = partition;
+        }
+      }
+      smallest.addAll(group);
+    }
+    return partitions;
+  }
+
+  private static int getJavacPartitions() {
+    final String value = System.getProperty(GlobalOptions.COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION);
+    if (value == null) {
+      return 1;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e) {
+      LOG.info("Invalid number of javac partitions: " + value);
+      return 1;
+    }
+  }
+
+  /**
+   * Compiles the partitions concurrently with the embedded javac. Diagnostics and compiled classes of every partition are kept until
+   * all of them are done: if any partition fails, e.g. because it uses a class which is new in another partition, or refers to a class
+   * compiled in another partition and so may be compiled against its old bytecode, all files are compiled again at once and only
+   * the diagnostics and classes of that compilation are reported.
+   */
+  private static boolean compilePartitions(final CompileContext context,
+                                           ModuleChunk chunk,
+                                           List<Set<File>> partitions,
+                                           Collection<File> files,
+                                           final List<String> options,
+                                           final Collection<File> classpath,
+                                           final Collection<File> platformCp,
+                                           final Collection<File> sourcePath,
+                                           final Map<File, Set<File>> outs,
+                                           DiagnosticOutputConsumer diagnosticSink,
+                                           final OutputFileConsumer classesConsumer) throws Exception {
+    LOG.info("Compiling " + files.size() + " java files of " + chunk.getName() + " in " + partitions.size() + " parallel partitions");
+
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    final List<BufferingDiagnosticConsumer> diagnostics = new ArrayList<BufferingDiagnosticConsumer>();
+    final List<BufferingOutputFileConsumer> outputs = new ArrayList<BufferingOutputFileConsumer>();
+    final boolean[] results = new boolean[partitions.size()];
+    for (int i = 0; i < partitions.size(); i++) {
+      final Set<File> partition = partitions.get(i);
+      final BufferingDiagnosticConsumer partitionSink = new BufferingDiagnosticConsumer();
+      final BufferingOutputFileConsumer partitionOutputs = new BufferingOutputFileConsumer();
+      final int index = i;
+      diagnostics.add(partitionSink);
+      outputs.add(partitionOutputs);
+      futures.add(SharedThreadPool.getInstance().executeOnPooledThread(new Runnable() {
+        public void run() {
+          results[index] = JavacMain.compile(
+            options, partition, classpath, platformCp, sourcePath, outs, partitionSink, partitionOutputs, context.getCancelStatus(), false
+          );
+        }
+      }));
+    }
+
+    boolean succeeded = true;
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        futures.get(i).get();
+      }
+      catch (ExecutionException e) {
+        LOG.info(e);
+        results[i] = false;
+      }
+      succeeded &= results[i] && diagnostics.get(i).getErrorCount() == 0;
+    }
+
+    if (succeeded && !hasCrossPartitionReferences(partitions, outputs)) {
+      for (int i = 0; i < diagnostics.size(); i++) {
+        diagnostics.get(i).replayTo(diagnosticSink);
+        outputs.get(i).replayTo(classesConsumer);
+      }
+      final ProjectBuilderLogger logger = context.getLoggingManager().getProjectBuilderLogger();
+      if (logger.isEnabled()) {
+        logger.logCompiledFiles(files, JAVAC_PARTITIONS_NAME, "Compiled files in parallel partitions:");
+      }
+      return true;
+    }
+
+    context.checkCanceled();
+    LOG.info("Parallel compilation of " + chunk.getName() + " failed, compiling all files at once");
+    return JavacMain.compile(
+      options, files, classpath, platformCp, sourcePath, outs, diagnosticSink, classesConsumer, context.getCancelStatus(), false
+    );
+  }
+
+  /**
+   * Partitions are made of sources independent according to the last build, but the changed sources may refer to classes of other
+   * partitions now. Such a class was compiled against the old bytecode of the other partition, so e.g. an inlined constant or
+   * a chosen overload may be stale. Classes referenced from the compiled bytecode are checked, and since inlined constants leave
+   * no references, so are the identifiers in the sources.
+   */
+  private static boolean hasCrossPartitionReferences(List<Set<File>> partitions, List<BufferingOutputFileConsumer> outputs)
+    throws IOException {
+    final Map<String, Integer> classToPartition = new THashMap<String, Integer>();
+    final Map<String, Integer> nameToPartition = new THashMap<String, Integer>();
+    for (int i = 0; i < outputs.size(); i++) {
+      for (OutputFileObject output : outputs.get(i).getOutputs()) {
+        final String className = output.getClassName();
+        if (output.getKind() != JavaFileObject.Kind.CLASS || className == null) continue;
+        classToPartition.put(className, i);
+        for (String name : StringUtil.split(StringUtil.getShortName(className), "$")) {
+          if (!Character.isDigit(name.charAt(0)) && putPartition(nameToPartition, name, i)) {
+            return true;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < outputs.size(); i++) {
+      for (OutputFileObject output : outputs.get(i).getOutputs()) {
+        final BinaryContent content = output.getContent();
+        if (output.getKind() != JavaFileObject.Kind.CLASS || content == null) continue;
+        for (String referenced : getReferencedClasses(content)) {
+          final Integer partition = classToPartition.get(referenced);
+          if (partition != null && partition != i) {
+            LOG.info(output.getClassName() + " refers to " + referenced + " compiled in another partition");
+            return true;
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < partitions.size(); i++) {
+      for (File file : partitions.get(i)) {
+        final String text = FileUtil.loadFile(file);
+        int start = -1;
+        for (int offset = 0; offset <= text.length(); offset++) {
+          final boolean identifierPart = offset < text.length() && Character.isJavaIdentifierPart(text.charAt(offset));
+          if (identifierPart && start < 0) {
+            start = offset;
+          }
+          else if (!identifierPart && start >= 0) {
+            final Integer partition = nameToPartition.get(text.substring(start, offset));
+            if (partition != null && partition != i) {
+              LOG.info(file.getPath() + " may refer to " + text.substring(start, offset) + " compiled in another partition");
+              return true;
+            }
+            start = -1;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if the name belongs to a class of another partition
+   */
+  private static boolean putPartition(Map<String, Integer> nameToPartition, String name, int partition) {
+    final Integer existing = nameToPartition.put(name, partition);
+    return existing != null && existing != partition;
+  }
+
+  private static Set<String> getReferencedClasses(BinaryContent content) {
+    final ClassReader reader = new ClassReader(content.getBuffer(), content.getOffset(), content.getLength());
+    final char[] buf = new char[reader.getMaxStringLength()];
+    final Set<String> classes = new THashSet<String>();
+    for (int i = 1; i < reader.getItemCount(); i++) {
+      final int offset = reader.getItem(i);
+      if (offset > 0 && reader.b[offset - 1] == CONSTANT_CLASS) {
+        String name = reader.readClass(offset, buf);
+        if (name.startsWith("[")) {
+          name = StringUtil.trimStart(name.substring(name.lastIndexOf('[') + 1), "L");
+          name = StringUtil.trimEnd(name, ";");
+        }
+        classes.add(name.replace('/', '.'));
+      }
+    }
+    return classes;
+  }
+
   private static boolean useEclipseCompiler(CompileContext context) {
     JpsProject project = context.getProjectDescriptor().getProject();
     final JpsJavaCompilerConfiguration configuration = JpsJavaExtensionService.getInstance().getCompilerConfiguration(project);
@@ -425,7 +707,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
     final String javaHome = SystemProperties.getJavaHome();
 
     final BaseOSProcessHandler processHandler = JavacServerBootstrap.launchJavacServer(
-      javaHome, heapSize, port, Utils.getSystemRoot(), getCompilationVMOptions(context), useEclipseCompiler(context)
+      javaHome, heapSize, port, Utils.getSystemRoot(), getCompilationVMOptions(context), useEclipseCompiler(context), EXTERNAL_JAVAC_WRITES_CLASSES
     );
     final JavacServerClient client = new JavacServerClient();
     try {
@@ -774,7 +1056,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
       //});
     }
 
-    public void outputLineAvailable(String line) {
+    public synchronized void outputLineAvailable(String line) {
       if (!StringUtil.isEmpty(line)) {
         if (line.contains("java.lang.OutOfMemoryError")) {
           myContext.processMessage(new CompilerMessage(BUILDER_NAME, BuildMessage.Kind.ERROR, "OutOfMemoryError: insufficient memory"));
@@ -801,7 +1083,7 @@ public class JavaBuilder extends ModuleLevelBuilder {
       return BuildMessage.Kind.INFO;
     }
 
-    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+    public synchronized void report(Diagnostic<? extends JavaFileObject> diagnostic) {
       final CompilerMessage.Kind kind;
       switch (diagnostic.getKind()) {
         case ERROR:
@@ -847,6 +1129,76 @@ public class JavaBuilder extends ModuleLevelBuilder {
     }
   }
 
+  private static class BufferingDiagnosticConsumer implements DiagnosticOutputConsumer {
+    private final List<Object> myEvents = new ArrayList<Object>();
+    private int myErrorCount;
+
+    public synchronized void outputLineAvailable(String line) {
+      myEvents.add(line);
+    }
+
+    public synchronized void registerImports(String className, Collection<String> imports, Collection<String> staticImports) {
+      myEvents.add(new ImportsEvent(className, imports, staticImports));
+    }
+
+    public synchronized void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+      if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+        myErrorCount++;
+      }
+      myEvents.add(diagnostic);
+    }
+
+    public synchronized int getErrorCount() {
+      return myErrorCount;
+    }
+
+    public synchronized void replayTo(DiagnosticOutputConsumer consumer) {
+      for (Object event : myEvents) {
+        if (event instanceof String) {
+          consumer.outputLineAvailable((String)event);
+        }
+        else if (event instanceof ImportsEvent) {
+          final ImportsEvent imports = (ImportsEvent)event;
+          consumer.registerImports(imports.myClassName, imports.myImports, imports.myStaticImports);
+        }
+        else {
+          //noinspection unchecked
+          consumer.report((Diagnostic<? extends JavaFileObject>)event);
+        }
+      }
+    }
+  }
+
+  private static class ImportsEvent {
+    private final String myClassName;
+    private final Collection<String> myImports;
+    private final Collection<String> myStaticImports;
+
+    private ImportsEvent(String className, Collection<String> imports, Collection<String> staticImports) {
+      myClassName = className;
+      myImports = imports;
+      myStaticImports = staticImports;
+    }
+  }
+
+  private static class BufferingOutputFileConsumer implements OutputFileConsumer {
+    private final List<OutputFileObject> myOutputs = new ArrayList<OutputFileObject>();
+
+    public synchronized void save(@NotNull OutputFileObject fileObject) {
+      myOutputs.add(fileObject);
+    }
+
+    public synchronized List<OutputFileObject> getOutputs() {
+      return new ArrayList<OutputFileObject>(myOutputs);
+    }
+
+    public synchronized void replayTo(OutputFileConsumer consumer) {
+      for (OutputFileObject output : myOutputs) {
+        consumer.save(output);
+      }
+    }
+  }
+
   private class ClassProcessingConsumer implements OutputFileConsumer {
     private final CompileContext myContext;
     private final OutputFileConsumer myDelegateOutputFileSink;
@@ -125,7 +125,9 @@ class OutputFilesSink implements OutputFileConsumer {
       throw new IOException("Missing content for file " + file);
     }
 
-    content.saveToFile(file);
+    if (!fileObject.isContentSaved()) {
+      content.saveToFile(file);
+    }
 
     final File source = fileObject.getSourceFile();
     if (!isTemp && source != null) {
@@ -16,14 +16,17 @@
 package org.jetbrains.jps.incremental.resources;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.jps.builders.BuildOutputConsumer;
 import org.jetbrains.jps.builders.DirtyFilesHolder;
 import org.jetbrains.jps.builders.FileProcessor;
 import org.jetbrains.jps.builders.java.ResourceRootDescriptor;
 import org.jetbrains.jps.builders.java.ResourcesTargetType;
 import org.jetbrains.jps.incremental.CompileContext;
+import org.jetbrains.jps.incremental.ParallelFileCopier;
 import org.jetbrains.jps.incremental.ProjectBuildException;
 import org.jetbrains.jps.incremental.ResourcesTarget;
 import org.jetbrains.jps.incremental.TargetBuilder;
@@ -67,6 +70,8 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
       return;
     }
 
+    final ParallelFileCopier copier = new ParallelFileCopier(context, "Resources of " + target.getPresentableName());
+    final List<Pair<File, File>> copied = new ArrayList<Pair<File, File>>();
     try {
       holder.processDirtyFiles(new FileProcessor<ResourceRootDescriptor, ResourcesTarget>() {
         private final Map<ResourceRootDescriptor, Boolean> mySkippedRoots = new HashMap<ResourceRootDescriptor, Boolean>();
@@ -80,23 +85,41 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
           if (isSkipped.booleanValue()) {
             return true;
           }
-          try {
-            copyResource(context, sourceRoot, file, outputConsumer);
+          if (copied.isEmpty()) {
+            context.processMessage(new ProgressMessage("Copying resources... [" + target.getModule().getName() + "]"));
           }
-          catch (IOException e) {
-            LOG.info(e);
-            context.processMessage(
-              new CompilerMessage(
-                "resources", BuildMessage.Kind.ERROR, e.getMessage(), FileUtil.toSystemIndependentName(file.getPath())
-              )
-            );
-            return false;
+          final File targetFile = getTargetFile(sourceRoot, file);
+          if (targetFile != null) {
+            copier.copy(file, targetFile);
+            copied.add(Pair.create(file, targetFile));
           }
           return !context.getCancelStatus().isCanceled();
         }
       });
 
+      // outputs are registered after all files are copied, so failed copies are not recorded in source-to-output mapping
+      final Map<File, IOException> failures = copier.waitForCompletion();
+      // copies skipped because of cancellation are failures too, they are neither reported nor registered
       context.checkCanceled();
+      for (Pair<File, File> pair : copied) {
+        final File file = pair.first;
+        final IOException error = failures.get(file);
+        if (error != null) {
+          LOG.info(error);
+          context.processMessage(
+            new CompilerMessage(
+              "resources", BuildMessage.Kind.ERROR, error.getMessage(), FileUtil.toSystemIndependentName(file.getPath())
+            )
+          );
+          continue;
+        }
+        try {
+          outputConsumer.registerOutputFile(pair.second, Collections.singletonList(file.getPath()));
+        }
+        catch (Exception e) {
+          context.processMessage(new CompilerMessage(BUILDER_NAME, e));
+        }
+      }
 
       context.processMessage(new ProgressMessage(""));
     }
@@ -119,10 +142,11 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
     return true;
   }
 
-  private static void copyResource(CompileContext context, ResourceRootDescriptor rd, File file, BuildOutputConsumer outputConsumer) throws IOException {
+  @Nullable
+  private static File getTargetFile(ResourceRootDescriptor rd, File file) {
     final File outputRoot = rd.getTarget().getOutputDir();
     if (outputRoot == null) {
-      return;
+      return null;
     }
     final String sourceRootPath = FileUtil.toSystemIndependentName(rd.getRootFile().getAbsolutePath());
     final String relativePath = FileUtil.getRelativePath(sourceRootPath, FileUtil.toSystemIndependentName(file.getPath()), '/');
@@ -134,18 +158,7 @@ public class ResourcesBuilder extends TargetBuilder<ResourceRootDescriptor, Reso
       targetPath.append('/').append(prefix.replace('.', '/'));
     }
     targetPath.append('/').append(relativePath);
-
-    context.processMessage(new ProgressMessage("Copying resources... [" + rd.getTarget().getModule().getName() + "]"));
-
-    final String outputPath = targetPath.toString();
-    final File targetFile = new File(outputPath);
-    FileUtil.copyContent(file, targetFile);
-    try {
-      outputConsumer.registerOutputFile(targetFile, Collections.singletonList(file.getPath()));
-    }
-    catch (Exception e) {
-      context.processMessage(new CompilerMessage(BUILDER_NAME, e));
-    }
+    return new File(targetPath.toString());
   }
 
   @NotNull
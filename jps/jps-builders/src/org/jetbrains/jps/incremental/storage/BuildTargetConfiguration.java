@@ -115,7 +115,10 @@ public class BuildTargetConfiguration {
     return new File(myTargetsState.getDataPaths().getTargetDataRoot(myTarget), "nonexistent-outputs.dat");
   }
 
-  private String getCurrentState(CompileContext context) {
+  /**
+   * @return configuration of the target as it would be saved now, the same string is compared to detect configuration changes
+   */
+  public String getCurrentState(CompileContext context) {
     String state = myCurrentState;
     if (state == null) {
       myCurrentState = state = saveToString(context);
@@ -15,22 +15,27 @@
  */
 package org.jetbrains.jps.incremental.storage;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.io.DataExternalizer;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.builders.BuildTarget;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Eugene Zhuravlev
  *         Date: 10/7/11
  */
 public class TimestampStorage extends AbstractStateStorage<File, TimestampStorage.TimestampPerTarget[]> implements Timestamps {
+  private static final Logger LOG = Logger.getInstance("#org.jetbrains.jps.incremental.storage.TimestampStorage");
+  private static final boolean USE_CONTENT_HASHES = Boolean.parseBoolean(System.getProperty("jps.use.content.hashes", "true"));
+  private static final long NO_HASH = 0L;
+
   private final BuildTargetsState myTargetsState;
+  private final AtomicInteger myHashComparisons = new AtomicInteger();
+  private final AtomicInteger mySavedByHash = new AtomicInteger();
 
   public TimestampStorage(File storePath, BuildTargetsState targetsState) throws IOException {
     super(storePath, new FileKeyDescriptor(), new StateExternalizer());
@@ -49,27 +54,91 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
 
   @Override
   public long getStamp(File file, BuildTarget<?> target) throws IOException {
+    final TimestampPerTarget stamp = getStampPerTarget(file, target);
+    return stamp != null ? stamp.timestamp : -1L;
+  }
+
+  private TimestampPerTarget getStampPerTarget(File file, BuildTarget<?> target) throws IOException {
     final TimestampPerTarget[] state = getState(file);
     if (state != null) {
       int targetId = myTargetsState.getBuildTargetId(target);
       for (TimestampPerTarget timestampPerTarget : state) {
         if (timestampPerTarget.targetId == targetId) {
-          return timestampPerTarget.timestamp;
+          return timestampPerTarget;
         }
       }
     }
-    return -1L;
+    return null;
+  }
+
+  @Override
+  public boolean isUpToDate(File file, BuildTarget<?> target, long currentTimestamp) throws IOException {
+    final TimestampPerTarget stamp = getStampPerTarget(file, target);
+    if (stamp == null) {
+      return false;
+    }
+    if (stamp.timestamp == currentTimestamp) {
+      return true;
+    }
+    if (!USE_CONTENT_HASHES || stamp.contentHash == NO_HASH) {
+      return false;
+    }
+
+    // the file was touched, e.g. by a VCS checkout, but it may still have the content it was compiled with
+    myHashComparisons.incrementAndGet();
+    if (computeContentHash(file) != stamp.contentHash) {
+      return false;
+    }
+    mySavedByHash.incrementAndGet();
+    update(file, updateTimestamp(getState(file), stamp.targetId, currentTimestamp, stamp.contentHash));
+    return true;
   }
 
   @Override
   public void saveStamp(File file, BuildTarget<?> buildTarget, long timestamp) throws IOException {
     int targetId = myTargetsState.getBuildTargetId(buildTarget);
-    update(file, updateTimestamp(getState(file), targetId, timestamp));
+    final long hash = USE_CONTENT_HASHES ? computeContentHash(file) : NO_HASH;
+    update(file, updateTimestamp(getState(file), targetId, timestamp, hash));
+  }
+
+  public void logContentHashStatistics() {
+    final int compared = myHashComparisons.getAndSet(0);
+    final int saved = mySavedByHash.getAndSet(0);
+    if (compared > 0) {
+      LOG.info("Content hashes compared for " + compared + " files with changed timestamps, " + saved + " of them are up-to-date");
+    }
+  }
+
+  /**
+   * FNV-1a hash of the file bytes, {@link #NO_HASH} if the file cannot be read
+   */
+  public static long computeContentHash(File file) {
+    try {
+      final InputStream stream = new FileInputStream(file);
+      try {
+        final byte[] buffer = new byte[64 * 1024];
+        long hash = 0xcbf29ce484222325L;
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+          for (int i = 0; i < read; i++) {
+            hash ^= buffer[i] & 0xFF;
+            hash *= 0x100000001b3L;
+          }
+        }
+        return hash == NO_HASH ? 1L : hash;
+      }
+      finally {
+        stream.close();
+      }
+    }
+    catch (IOException e) {
+      return NO_HASH;
+    }
   }
 
   @NotNull
-  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp) {
-    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp);
+  private static TimestampPerTarget[] updateTimestamp(TimestampPerTarget[] oldState, final int targetId, long timestamp, long contentHash) {
+    final TimestampPerTarget newItem = new TimestampPerTarget(targetId, timestamp, contentHash);
     if (oldState == null) {
       return new TimestampPerTarget[]{newItem};
     }
@@ -105,10 +174,12 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
   public static class TimestampPerTarget {
     public final int targetId;
     public final long timestamp;
+    public final long contentHash;
 
-    public TimestampPerTarget(int targetId, long timestamp) {
+    public TimestampPerTarget(int targetId, long timestamp, long contentHash) {
       this.targetId = targetId;
       this.timestamp = timestamp;
+      this.contentHash = contentHash;
     }
   }
 
@@ -118,6 +189,7 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (TimestampPerTarget target : value) {
         out.writeInt(target.targetId);
         out.writeLong(target.timestamp);
+        out.writeLong(target.contentHash);
       }
     }
 
@@ -127,7 +199,8 @@ public class TimestampStorage extends AbstractStateStorage<File, TimestampStorag
       for (int i = 0; i < size; i++) {
         int id = in.readInt();
         long timestamp = in.readLong();
-        targets[i] = new TimestampPerTarget(id, timestamp);
+        long contentHash = in.readLong();
+        targets[i] = new TimestampPerTarget(id, timestamp, contentHash);
       }
       return targets;
     }
@@ -34,4 +34,9 @@ public interface Timestamps {
   void clean() throws IOException;
 
   long getStamp(File file, BuildTarget<?> target) throws IOException;
+
+  /**
+   * @return true if the file has the saved timestamp or, when the timestamp differs, the same content as at the time it was saved
+   */
+  boolean isUpToDate(File file, BuildTarget<?> target, long currentTimestamp) throws IOException;
 }
@@ -70,11 +70,15 @@ public class JavacProtoUtil {
 
 
   public static JavacRemoteProto.Message.Response createOutputObjectResponse(OutputFileObject fileObject) {
+    return createOutputObjectResponse(fileObject, true);
+  }
+
+  public static JavacRemoteProto.Message.Response createOutputObjectResponse(OutputFileObject fileObject, boolean includeContent) {
     final JavacRemoteProto.Message.Response.OutputObject.Builder msgBuilder = JavacRemoteProto.Message.Response.OutputObject.newBuilder();
 
     msgBuilder.setKind(convertKind(fileObject.getKind()));
     msgBuilder.setFilePath(FileUtil.toSystemIndependentName(fileObject.getFile().getPath()));
-    final BinaryContent content = fileObject.getContent();
+    final BinaryContent content = includeContent? fileObject.getContent() : null;
     if (content != null) {
       msgBuilder.setContent(ByteString.copyFrom(content.getBuffer(), content.getOffset(), content.getLength()));
     }
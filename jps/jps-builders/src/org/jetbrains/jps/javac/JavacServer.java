@@ -27,10 +27,12 @@ import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32FrameDecoder;
 import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.jps.api.CanceledStatus;
+import org.jetbrains.jps.incremental.BinaryContent;
 import org.jetbrains.jps.service.SharedThreadPool;
 
 import javax.tools.*;
 import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.*;
 
@@ -43,6 +45,7 @@ public class JavacServer {
   public static final String SERVER_SUCCESS_START_MESSAGE = "Javac server started successfully. Listening on port: ";
   public static final String SERVER_ERROR_START_MESSAGE = "Error starting Javac Server: ";
   public static final String USE_ECLIPSE_COMPILER_PROPERTY = "use.eclipse.compiler";
+  public static final String WRITE_CLASS_FILES_PROPERTY = "write.class.files";
 
   private final ChannelGroup myAllOpenChannels = new DefaultChannelGroup("javac-server");
   private final ChannelFactory myChannelFactory;
@@ -144,8 +147,12 @@ public class JavacServer {
     };
 
     final OutputFileConsumer outputSink = new OutputFileConsumer() {
+      private final boolean myWriteClassFiles = System.getProperty(WRITE_CLASS_FILES_PROPERTY) != null;
+
       public void save(@NotNull OutputFileObject fileObject) {
-        Channels.write(ctx.getChannel(), JavacProtoUtil.toMessage(sessionId, JavacProtoUtil.createOutputObjectResponse(fileObject)));
+        // class files written here are read back by the build process instead of being sent over the socket
+        final boolean includeContent = !myWriteClassFiles || fileObject.getKind() != JavaFileObject.Kind.CLASS || !writeToDisk(fileObject, diagnostic);
+        Channels.write(ctx.getChannel(), JavacProtoUtil.toMessage(sessionId, JavacProtoUtil.createOutputObjectResponse(fileObject, includeContent)));
       }
     };
 
@@ -159,6 +166,22 @@ public class JavacServer {
     }
   }
 
+  private static boolean writeToDisk(OutputFileObject fileObject, DiagnosticOutputConsumer diagnostic) {
+    final BinaryContent content = fileObject.getContent();
+    if (content == null) {
+      return false;
+    }
+    try {
+      content.saveToFile(fileObject.getFile());
+      return true;
+    }
+    catch (IOException e) {
+      // the content is sent to the build process instead, so the build is not affected
+      diagnostic.report(new PlainMessageDiagnostic(Diagnostic.Kind.WARNING, "Cannot write " + fileObject.getFile().getPath() + ": " + e.getMessage()));
+      return false;
+    }
+  }
+
   private final Set<CancelHandler> myCancelHandlers = Collections.synchronizedSet(new HashSet<CancelHandler>());
 
   public void cancelBuilds() {
@@ -44,7 +44,8 @@ public class JavacServerBootstrap {
                                                        int port,
                                                        File workingDir,
                                                        List<String> vmOptions,
-                                                       boolean useEclipseCompiler) throws Exception {
+                                                       boolean useEclipseCompiler,
+                                                       boolean writeClassFiles) throws Exception {
     final List<String> cmdLine = new ArrayList<String>();
     appendParam(cmdLine, getVMExecutablePath(sdkHomePath));
     appendParam(cmdLine, "-XX:MaxPermSize=150m");
@@ -86,6 +87,10 @@ public class JavacServerBootstrap {
       appendParam(cmdLine, "-D" + JavacServer.USE_ECLIPSE_COMPILER_PROPERTY);
     }
 
+    if (writeClassFiles) {
+      appendParam(cmdLine, "-D" + JavacServer.WRITE_CLASS_FILES_PROPERTY);
+    }
+
     for (String option : vmOptions) {
       appendParam(cmdLine, option);
     }
@@ -17,6 +17,7 @@ package org.jetbrains.jps.javac;
 
 import com.google.protobuf.ByteString;
 import com.google.protobuf.MessageLite;
+import com.intellij.openapi.util.io.FileUtil;
 import org.jetbrains.jps.client.ProtobufResponseHandler;
 import org.jetbrains.jps.incremental.BinaryContent;
 
@@ -73,14 +74,20 @@ public class JavacServerResponseHandler implements ProtobufResponseHandler{
         final String outputRoot = outputObject.hasOutputRoot()? outputObject.getOutputRoot() : null;
         final File outputRootFile = outputRoot != null? new File(outputRoot) : null;
 
-        final BinaryContent fileObjectContent;
+        final File file = new File(outputObject.getFilePath());
+        final JavaFileObject.Kind outKind = convertKind(kind);
+        BinaryContent fileObjectContent = null;
+        boolean contentSaved = false;
         final ByteString content = outputObject.hasContent()? outputObject.getContent() : null;
         if (content != null) {
           final byte[] bytes = content.toByteArray();
           fileObjectContent = new BinaryContent(bytes, 0, bytes.length);
         }
-        else {
-          fileObjectContent = null;
+        else if (outKind == JavaFileObject.Kind.CLASS && file.isFile()) {
+          // the class file has already been written by the javac process
+          final byte[] bytes = FileUtil.loadFileBytes(file);
+          fileObjectContent = new BinaryContent(bytes, 0, bytes.length);
+          contentSaved = true;
         }
 
         final String sourceUri = outputObject.hasSourceUri()? outputObject.getSourceUri() : null;
@@ -89,11 +96,12 @@ public class JavacServerResponseHandler implements ProtobufResponseHandler{
           null,
           outputRootFile,
           outputObject.hasRelativePath()? outputObject.getRelativePath() : null,
-          new File(outputObject.getFilePath()),
-          convertKind(kind),
+          file,
+          outKind,
           outputObject.hasClassName()? outputObject.getClassName() : null,
           srcUri,
-          fileObjectContent
+          fileObjectContent,
+          contentSaved
         );
 
         myOutputSink.save(fileObject);
@@ -39,6 +39,7 @@ public final class OutputFileObject extends SimpleJavaFileObject {
   private final String myClassName;
   @Nullable private final URI mySourceUri;
   private volatile BinaryContent myContent;
+  private volatile boolean myContentSaved;
   private final File mySourceFile;
 
   public OutputFileObject(@NotNull JavacFileManager.Context context, @Nullable File outputRoot, String relativePath, @NotNull File file, @NotNull Kind kind, @Nullable String className, @Nullable final URI sourceUri) {
@@ -46,10 +47,18 @@ public final class OutputFileObject extends SimpleJavaFileObject {
   }
 
   public OutputFileObject(@Nullable JavacFileManager.Context context, @Nullable File outputRoot, String relativePath, @NotNull File file, @NotNull Kind kind, @Nullable String className, @Nullable final URI srcUri, @Nullable BinaryContent content) {
+    this(context, outputRoot, relativePath, file, kind, className, srcUri, content, false);
+  }
+
+  /**
+   * @param contentSaved true if the content has already been written to the file, e.g. by the external javac process
+   */
+  public OutputFileObject(@Nullable JavacFileManager.Context context, @Nullable File outputRoot, String relativePath, @NotNull File file, @NotNull Kind kind, @Nullable String className, @Nullable final URI srcUri, @Nullable BinaryContent content, boolean contentSaved) {
     super(Utils.toURI(file.getPath()), kind);
     myContext = context;
     mySourceUri = srcUri;
     myContent = content;
+    myContentSaved = contentSaved;
     myOutputRoot = outputRoot;
     myRelativePath = relativePath;
     myFile = file;
@@ -127,8 +136,13 @@ public final class OutputFileObject extends SimpleJavaFileObject {
     return myContent;
   }
 
+  public boolean isContentSaved() {
+    return myContentSaved;
+  }
+
   public void updateContent(@NotNull byte[] updatedContent) {
     myContent = new BinaryContent(updatedContent, 0, updatedContent.length);
+    myContentSaved = false;
   }
 
   @Override
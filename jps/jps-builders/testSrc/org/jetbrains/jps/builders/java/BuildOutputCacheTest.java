@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import java.io.File;
+
+import static com.intellij.util.io.TestFileSystemBuilder.fs;
+
+public class BuildOutputCacheTest extends JpsBuildTestCase {
+  private File myCacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myCacheDir = FileUtil.createTempDirectory("build-output-cache", null);
+    System.setProperty(GlobalOptions.BUILD_OUTPUT_CACHE_DIR_OPTION, myCacheDir.getAbsolutePath());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.BUILD_OUTPUT_CACHE_DIR_OPTION);
+    FileUtil.delete(myCacheDir);
+    super.tearDown();
+  }
+
+  public void testRestoredOutputsAreTrackedIncrementally() {
+    String a = createFile("src/A.java", "class A{ static final int X = 1; }");
+    createFile("src/B.java", "class B{ int y = A.X; }");
+    JpsModule m = addModule("m", PathUtil.getParentPath(a));
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILD_OUTPUT_CACHE_NAME);
+    File[] entries = myCacheDir.listFiles();
+    assertNotNull(entries);
+    assertEquals(1, entries.length);
+
+    rebuildAll();
+    assertCompiled(JavaBuilder.BUILD_OUTPUT_CACHE_NAME, "src/A.java", "src/B.java");
+    assertEquals(1, myCacheDir.listFiles().length);
+    assertOutput(m, fs().file("A.class").file("B.class"));
+
+    change(a, "class A{ static final int X = 2; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, "src/A.java", "src/B.java");
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.BuildResult;
+import org.jetbrains.jps.builders.CompileScopeTestBuilder;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.TestProjectBuilderLogger;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.cmdline.ProjectDescriptor;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+public class ParallelJavacPartitionsTest extends JpsBuildTestCase {
+  private static final int FILES_COUNT = 200;
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION);
+    super.tearDown();
+  }
+
+  public void testIndependentSourceGroups() {
+    String a = createFile("src/A.java", "class A{}");
+    String b = createFile("src/B.java", "class B{ A a; }");
+    String c = createFile("src/C.java", "class C{}");
+    String d = createFile("src/D.java", "class D extends C{}");
+    String e = createFile("src/E.java", "class E{}");
+    addModule("m", PathUtil.getParentPath(a));
+
+    ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(new TestProjectBuilderLogger()));
+    try {
+      doBuild(descriptor, CompileScopeTestBuilder.rebuild().all()).assertSuccessful();
+      List<Set<File>> groups = descriptor.dataManager.getMappings().getIndependentSourceGroups(
+        Arrays.asList(new File(a), new File(b), new File(c), new File(d), new File(e)));
+
+      Set<Set<String>> actual = new HashSet<Set<String>>();
+      for (Set<File> group : groups) {
+        Set<String> names = new HashSet<String>();
+        for (File file : group) {
+          names.add(file.getName());
+        }
+        actual.add(names);
+      }
+      Set<Set<String>> expected = new HashSet<Set<String>>();
+      expected.add(new HashSet<String>(Arrays.asList("A.java", "B.java")));
+      expected.add(new HashSet<String>(Arrays.asList("C.java", "D.java")));
+      expected.add(Collections.singleton("E.java"));
+      assertEquals(expected, actual);
+    }
+    finally {
+      descriptor.release();
+    }
+  }
+
+  public void testPartitionedMake() {
+    String[] paths = createSources();
+    JpsModule m = addModule("m", PathUtil.getParentPath(getAbsolutePath(paths[0])));
+    rebuildAll();
+
+    System.setProperty(GlobalOptions.COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION, "2");
+    for (String path : paths) {
+      change(getAbsolutePath(path));
+    }
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, paths);
+    assertCompiled(JavaBuilder.JAVAC_PARTITIONS_NAME, paths);
+    assertTrue(new File(getOutputDir(m), "C" + (FILES_COUNT - 1) + ".class").exists());
+  }
+
+  public void testNewCrossPartitionReferenceIsNotCompiledAgainstStaleBytecode() throws IOException {
+    String[] paths = new String[FILES_COUNT];
+    for (int i = 0; i < FILES_COUNT; i++) {
+      paths[i] = "src/C" + i + ".java";
+      createFile(paths[i], "class C" + i + "{ static final int X = " + i + "; }");
+    }
+    JpsModule m = addModule("m", PathUtil.getParentPath(getAbsolutePath(paths[0])));
+    rebuildAll();
+
+    System.setProperty(GlobalOptions.COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION, "2");
+    // C0 starts using the changed constants of all other classes, which are spread over the partitions
+    StringBuilder sum = new StringBuilder("0");
+    int expected = 0;
+    for (int i = 1; i < FILES_COUNT; i++) {
+      change(getAbsolutePath(paths[i]), "class C" + i + "{ static final int X = " + (1000 + i) + "; }");
+      sum.append(" + C").append(i).append(".X");
+      expected += 1000 + i;
+    }
+    change(getAbsolutePath(paths[0]), "class C0{ static final int X = " + sum + "; }");
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.JAVAC_PARTITIONS_NAME);
+    assertTrue(containsIntConstant(FileUtil.loadFileBytes(new File(getOutputDir(m), "C0.class")), expected));
+  }
+
+  public void testFailedPartitionFallsBackToCompilingAllFiles() {
+    String[] paths = createSources();
+    JpsModule m = addModule("m", PathUtil.getParentPath(getAbsolutePath(paths[0])));
+    rebuildAll();
+
+    System.setProperty(GlobalOptions.COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION, "2");
+    for (String path : paths) {
+      change(getAbsolutePath(path));
+    }
+    // the new class is unknown to the mappings, so it may end up in another partition than its user
+    createFile("src/N.java", "class N{}");
+    change(getAbsolutePath(paths[0]), "class C0{ N n; }");
+    BuildResult result = makeAll();
+    result.assertSuccessful();
+    assertTrue(new File(getOutputDir(m), "C0.class").exists());
+    assertTrue(new File(getOutputDir(m), "N.class").exists());
+  }
+
+  public void testInvalidPartitionsCountIsIgnored() {
+    String[] paths = createSources();
+    addModule("m", PathUtil.getParentPath(getAbsolutePath(paths[0])));
+    rebuildAll();
+
+    System.setProperty(GlobalOptions.COMPILE_PARALLEL_JAVAC_PARTITIONS_OPTION, "two");
+    change(getAbsolutePath(paths[0]));
+    makeAll().assertSuccessful();
+    assertCompiled(JavaBuilder.BUILDER_NAME, paths[0]);
+  }
+
+  private String[] createSources() {
+    String[] paths = new String[FILES_COUNT];
+    for (int i = 0; i < FILES_COUNT; i++) {
+      paths[i] = "src/C" + i + ".java";
+      createFile(paths[i], "class C" + i + "{ int f() { return " + i + "; } }");
+    }
+    return paths;
+  }
+
+  private static boolean containsIntConstant(byte[] classBytes, int value) {
+    byte[] constant = {3, (byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+    for (int i = 0; i + constant.length <= classBytes.length; i++) {
+      if (Arrays.equals(constant, Arrays.copyOfRange(classBytes, i, i + constant.length))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static File getOutputDir(JpsModule module) {
+    String outputUrl = JpsJavaExtensionService.getInstance().getOutputUrl(module, false);
+    assertNotNull(outputUrl);
+    return new File(JpsPathUtil.urlToPath(outputUrl));
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.builders.java.dependencyView;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectProcedure;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Random;
+
+public class IntIntMultiMapletTest extends TestCase {
+  private static final int CLASSES = 100000;
+
+  public void testCompactTransientMapletBehavesAsTransient() {
+    final IntIntMultiMaplet expected = new IntIntTransientMultiMaplet();
+    final IntIntMultiMaplet compact = new IntIntCompactTransientMultiMaplet();
+    final Random random = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      final int key = random.nextInt(500);
+      final int value = random.nextInt(10000) - 100;
+      switch (random.nextInt(10)) {
+        case 0:
+          expected.removeFrom(key, value);
+          compact.removeFrom(key, value);
+          break;
+        case 1:
+          final TIntHashSet set = new TIntHashSet(new int[]{value, value + 1, value + 1000});
+          expected.replace(key, new TIntHashSet(set.toArray()));
+          compact.replace(key, set);
+          break;
+        case 2:
+          expected.remove(key);
+          compact.remove(key);
+          break;
+        default:
+          expected.put(key, value);
+          compact.put(key, value);
+      }
+    }
+    assertSameContent(expected, compact);
+  }
+
+  public void testPersistentMapletReadsAppendedChunks() throws Exception {
+    final File dir = FileUtil.createTempDirectory("maplet", null);
+    try {
+      final IntIntPersistentMultiMaplet maplet = new IntIntPersistentMultiMaplet(new File(dir, "map"), EnumeratorIntegerDescriptor.INSTANCE);
+      try {
+        maplet.put(1, new TIntHashSet(new int[]{5, 3, Integer.MAX_VALUE}));
+        maplet.put(1, -7);
+        maplet.put(2, 1000000);
+        maplet.flush(true);
+        assertEquals(new TIntHashSet(new int[]{-7, 3, 5, Integer.MAX_VALUE}), maplet.get(1));
+        maplet.removeFrom(1, 5);
+        assertEquals(new TIntHashSet(new int[]{-7, 3, Integer.MAX_VALUE}), maplet.get(1));
+        assertEquals(new TIntHashSet(new int[]{1000000}), maplet.get(2));
+      }
+      finally {
+        maplet.close();
+      }
+    }
+    finally {
+      FileUtil.delete(dir);
+    }
+  }
+
+  /**
+   * Dependencies of a synthetic class graph: classes mostly use classes with close ids, as classes of one package do
+   */
+  public void testSyntheticClassGraphPerformance() {
+    final long[] sums = new long[2];
+    PlatformTestUtil.startPerformanceTest("filling and reading hash set maplet", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        sums[0] = fillAndRead(new IntIntTransientMultiMaplet());
+      }
+    }).cpuBound().assertTiming();
+    PlatformTestUtil.startPerformanceTest("filling and reading compact maplet", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        sums[1] = fillAndRead(new IntIntCompactTransientMultiMaplet());
+      }
+    }).cpuBound().assertTiming();
+    assertEquals(sums[0], sums[1]);
+  }
+
+  public void testCompactMapletRetainsLessMemory() {
+    final long hashSetSize = getRetainedSize(new IntIntTransientMultiMaplet());
+    final long compactSize = getRetainedSize(new IntIntCompactTransientMultiMaplet());
+    assertTrue("compact maplet retains " + compactSize / 1024 + " KB, hash set maplet " + hashSetSize / 1024 + " KB",
+               compactSize * 2 < hashSetSize);
+  }
+
+  private static long getRetainedSize(IntIntMultiMaplet maplet) {
+    final long before = getUsedMemory();
+    fill(maplet);
+    final long after = getUsedMemory();
+    // the maplet must stay reachable until the memory is measured
+    maplet.close();
+    return after - before;
+  }
+
+  private static long getUsedMemory() {
+    final Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      final long current = runtime.totalMemory() - runtime.freeMemory();
+      if (current >= used) {
+        return current;
+      }
+      used = current;
+    }
+    return used;
+  }
+
+  private static void fill(IntIntMultiMaplet maplet) {
+    final Random random = new Random(42);
+    for (int usage = 0; usage < CLASSES * 10; usage++) {
+      final int user = random.nextInt(CLASSES);
+      final int used = random.nextInt(10) == 0 ? random.nextInt(CLASSES) : Math.max(0, user + random.nextInt(200) - 100);
+      maplet.put(used, user);
+    }
+    maplet.flush(true);
+  }
+
+  private static long fillAndRead(IntIntMultiMaplet maplet) {
+    fill(maplet);
+
+    long sum = 0;
+    for (int i = 0; i < CLASSES; i++) {
+      final TIntHashSet users = maplet.get(i);
+      if (users != null) {
+        sum += users.size();
+      }
+    }
+    maplet.close();
+    return sum;
+  }
+
+  private static void assertSameContent(IntIntMultiMaplet expected, IntIntMultiMaplet actual) {
+    final TIntObjectHashMap<TIntHashSet> expectedMap = toMap(expected);
+    final TIntObjectHashMap<TIntHashSet> actualMap = toMap(actual);
+    assertEquals(expectedMap.size(), actualMap.size());
+    for (int key : expectedMap.keys()) {
+      assertEquals(expectedMap.get(key), actualMap.get(key));
+      assertEquals(expectedMap.get(key), actual.get(key));
+      assertTrue(actual.containsKey(key));
+    }
+  }
+
+  private static TIntObjectHashMap<TIntHashSet> toMap(IntIntMultiMaplet maplet) {
+    final TIntObjectHashMap<TIntHashSet> result = new TIntObjectHashMap<TIntHashSet>();
+    maplet.forEachEntry(new TIntObjectProcedure<TIntHashSet>() {
+      @Override
+      public boolean execute(int key, TIntHashSet values) {
+        if (!values.isEmpty()) {
+          result.put(key, new TIntHashSet(values.toArray()));
+        }
+        return true;
+      }
+    });
+    return result;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.cmdline;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.CmdlineRemoteProto;
+import org.jetbrains.jps.builders.CompileScopeTestBuilder;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.builders.TestProjectBuilderLogger;
+import org.jetbrains.jps.builders.logging.BuildLoggingManager;
+import org.jetbrains.jps.incremental.java.JavaBuilder;
+
+import java.io.File;
+
+public class LoadedProjectCacheTest extends JpsBuildTestCase {
+  private File myOptionsDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myOptionsDir = FileUtil.createTempDirectory("options", null);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    LoadedProjectCache.clear();
+    FileUtil.delete(myOptionsDir);
+    super.tearDown();
+  }
+
+  public void testConsecutiveBuildsReuseLoadedProject() {
+    String a = createFile("src/A.java", "class A{}");
+    addModule("m", PathUtil.getParentPath(a));
+    String projectPath = getOrCreateProjectDir().getPath();
+
+    TestProjectBuilderLogger logger = new TestProjectBuilderLogger();
+    ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(logger));
+    doBuild(descriptor, CompileScopeTestBuilder.rebuild().all()).assertSuccessful();
+    put(projectPath, descriptor, 1);
+
+    LoadedProjectCache.Entry entry = LoadedProjectCache.take(projectPath, myOptionsDir.getPath(), createEvent(2));
+    assertNotNull(entry);
+    assertSame(descriptor, entry.descriptor);
+
+    logger.clear();
+    change(a, "class A{ int x; }");
+    doBuild(descriptor, CompileScopeTestBuilder.make().all()).assertSuccessful();
+    logger.assertCompiled(JavaBuilder.BUILDER_NAME, new File[]{getOrCreateProjectDir()}, "src/A.java");
+    put(projectPath, descriptor, 2);
+
+    // the next session has missed an event, so the project is loaded again
+    assertNull(LoadedProjectCache.take(projectPath, myOptionsDir.getPath(), createEvent(4)));
+  }
+
+  public void testChangedConfigurationIsNotReused() throws Exception {
+    String a = createFile("src/A.java", "class A{}");
+    addModule("m", PathUtil.getParentPath(a));
+    String projectPath = getOrCreateProjectDir().getPath();
+
+    ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(new TestProjectBuilderLogger()));
+    put(projectPath, descriptor, 1);
+    FileUtil.writeToFile(new File(myOptionsDir, "jdk.table.xml"), "<application/>");
+    assertNull(LoadedProjectCache.take(projectPath, myOptionsDir.getPath(), createEvent(2)));
+  }
+
+  public void testChangedUnrelatedGlobalOptionsAreReused() throws Exception {
+    String a = createFile("src/A.java", "class A{}");
+    addModule("m", PathUtil.getParentPath(a));
+    String projectPath = getOrCreateProjectDir().getPath();
+
+    ProjectDescriptor descriptor = createProjectDescriptor(new BuildLoggingManager(new TestProjectBuilderLogger()));
+    put(projectPath, descriptor, 1);
+    FileUtil.writeToFile(new File(myOptionsDir, "other.xml"), "<application/>");
+    LoadedProjectCache.Entry entry = LoadedProjectCache.take(projectPath, myOptionsDir.getPath(), createEvent(2));
+    assertNotNull(entry);
+    assertSame(descriptor, entry.descriptor);
+    LoadedProjectCache.put(entry, 2);
+  }
+
+  private void put(String projectPath, ProjectDescriptor descriptor, long lastEventOrdinal) {
+    long stamp = LoadedProjectCache.computeConfigStamp(projectPath, myOptionsDir.getPath(), descriptor);
+    LoadedProjectCache.put(new LoadedProjectCache.Entry(projectPath, myOptionsDir.getPath(), descriptor, 0, stamp), lastEventOrdinal);
+  }
+
+  private static CmdlineRemoteProto.Message.ControllerMessage.FSEvent createEvent(long ordinal) {
+    return CmdlineRemoteProto.Message.ControllerMessage.FSEvent.newBuilder().setOrdinal(ordinal).build();
+  }
+}
@@ -17,6 +17,8 @@ package org.jetbrains.jps.incremental.artifacts;
 
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.PathUtil;
+import com.intellij.util.io.zip.JBZipEntry;
+import com.intellij.util.io.zip.JBZipFile;
 import org.jetbrains.jps.builders.CompileScopeTestBuilder;
 import org.jetbrains.jps.model.artifact.JpsArtifact;
 import org.jetbrains.jps.model.artifact.elements.JpsPackagingElementFactory;
@@ -78,6 +80,46 @@ public class IncrementalArtifactBuildingTest extends ArtifactBuilderTestCase {
     buildAllAndAssertUpToDate();
   }
 
+  public void testUpdateArchiveInPlace() throws IOException {
+    String file1 = createFile("dir/a.txt", "aaa");
+    createFile("dir/b.txt", "bbb");
+    createFile("dir/c.txt", "ccc");
+    final JpsArtifact a = addArtifact(archive("a.jar").parentDirCopy(file1));
+    buildAll();
+    final long offset = getEntryOffset(a, "b.txt");
+
+    change(file1, "xxx");
+    delete(getAbsolutePath("dir/c.txt"));
+    buildAll();
+    assertOutput(a, fs().archive("a.jar").file("a.txt", "xxx").file("b.txt", "bbb"));
+    assertEquals(offset, getEntryOffset(a, "b.txt"));
+    buildAllAndAssertUpToDate();
+  }
+
+  public void testChangedManifestStaysFirstArchiveEntry() throws IOException {
+    final String manifest = createFile("dir/META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMain-Class: A\r\n\r\n");
+    createFile("dir/a.txt", "aaa");
+    final JpsArtifact a = addArtifact(archive("a.jar").dirCopy(PathUtil.getParentPath(PathUtil.getParentPath(manifest))));
+    buildAll();
+
+    change(manifest, "Manifest-Version: 1.0\r\nMain-Class: B\r\n\r\n");
+    buildAll();
+    assertTrue(getEntryOffset(a, "META-INF/MANIFEST.MF") < getEntryOffset(a, "a.txt"));
+    buildAllAndAssertUpToDate();
+  }
+
+  private static long getEntryOffset(JpsArtifact a, String entryName) throws IOException {
+    final JBZipFile zipFile = new JBZipFile(new File(a.getOutputPath(), "a.jar"));
+    try {
+      final JBZipEntry entry = zipFile.getEntry(entryName);
+      assertNotNull(entry);
+      return entry.getHeaderOffset();
+    }
+    finally {
+      zipFile.close();
+    }
+  }
+
   public void testRemoveDeletedFileFromArchive() {
     String file1 = createFile("dir/a.txt");
     createFile("dir/b.txt");
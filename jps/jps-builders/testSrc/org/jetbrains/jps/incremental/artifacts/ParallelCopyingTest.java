@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.incremental.artifacts;
+
+import com.intellij.util.io.TestFileSystemBuilder;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.model.artifact.JpsArtifact;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+
+import static com.intellij.util.io.TestFileSystemItem.fs;
+import static org.jetbrains.jps.incremental.artifacts.LayoutElementTestUtil.root;
+
+/**
+ * Builds resources and an exploded artifact with files copied by several threads
+ */
+public class ParallelCopyingTest extends ArtifactBuilderTestCase {
+  private static final int FILE_COUNT = 50;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    System.setProperty(GlobalOptions.COPY_PARALLEL_THREADS_OPTION, "4");
+    JpsJavaExtensionService.getInstance().getOrCreateCompilerConfiguration(myProject).addResourcePattern("*.xml");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.COPY_PARALLEL_THREADS_OPTION);
+    super.tearDown();
+  }
+
+  public void testCopyResourcesAndExplodedArtifact() {
+    String resource = null;
+    String file = null;
+    for (int i = 0; i < FILE_COUNT; i++) {
+      resource = createFile("src/p" + i % 5 + "/r" + i + ".xml", "resource " + i);
+      file = createFile("dir/d" + i % 5 + "/f" + i + ".txt", "file " + i);
+    }
+    JpsModule m = addModule("m", getAbsolutePath("src"));
+    JpsArtifact a = addArtifact(root().dirCopy(getAbsolutePath("dir")).dir("classes").module(m));
+    buildAll();
+    assertOutput(m, createExpectedResources(null));
+    assertOutput(a, createExpectedArtifact(null, null));
+
+    change(resource, "changed resource");
+    change(file, "changed file");
+    buildAll();
+    assertOutput(m, createExpectedResources("changed resource"));
+    assertOutput(a, createExpectedArtifact("changed resource", "changed file"));
+    buildAllAndAssertUpToDate();
+  }
+
+  private static TestFileSystemBuilder createExpectedResources(String lastContent) {
+    TestFileSystemBuilder builder = fs();
+    addFiles(builder, "p", "r", ".xml", "resource ", lastContent);
+    return builder;
+  }
+
+  private static TestFileSystemBuilder createExpectedArtifact(String lastResourceContent, String lastFileContent) {
+    TestFileSystemBuilder builder = fs();
+    addFiles(builder, "d", "f", ".txt", "file ", lastFileContent);
+    addFiles(builder.dir("classes"), "p", "r", ".xml", "resource ", lastResourceContent);
+    return builder;
+  }
+
+  private static void addFiles(TestFileSystemBuilder builder, String dirPrefix, String filePrefix, String extension,
+                               String contentPrefix, String lastContent) {
+    for (int d = 0; d < 5; d++) {
+      TestFileSystemBuilder dir = builder.dir(dirPrefix + d);
+      for (int i = d; i < FILE_COUNT; i += 5) {
+        String content = i == FILE_COUNT - 1 && lastContent != null ? lastContent : contentPrefix + i;
+        dir.file(filePrefix + i + extension, content);
+      }
+      dir.end();
+    }
+  }
+}
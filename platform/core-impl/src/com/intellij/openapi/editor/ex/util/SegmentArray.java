@@ -23,12 +23,19 @@ import org.jetbrains.annotations.NotNull;
  * {@code 'index <-> (start; end)'} and provides convenient way for working with them, e.g. find index by particular offset that
  * belongs to target <code>(start; end)</code> segment etc.
  * <p/>
+ * Shifting the segments which follow an edited one is done lazily: the offsets of the segments starting from some index are
+ * stored without a pending shift, which is applied only when that index has to move. So a series of edits in the same area
+ * of a big text costs time proportional to the distance between the edits, not to the number of segments after them.
+ * <p/>
  * Not thread-safe.
  */
 public class SegmentArray {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.SegmentArray");
   private int[] myStarts;
   private int[] myEnds;
+  // offsets of the segments starting from myShiftIndex are stored without myShift
+  private int myShiftIndex;
+  private int myShift;
 
   protected int mySegmentCount = 0;
   protected static final int INITIAL_SIZE = 64;
@@ -50,16 +57,19 @@ public class SegmentArray {
       mySegmentCount = i + 1;
     }
 
+    final int shift = i >= myShiftIndex ? myShift : 0;
     myStarts = reallocateArray(myStarts, i);
-    myStarts[i] = startOffset;
+    myStarts[i] = startOffset - shift;
 
     myEnds = reallocateArray(myEnds, i);
-    myEnds[i] = endOffset;
+    myEnds[i] = endOffset - shift;
   }
 
   protected void replace(int startOffset, @NotNull SegmentArray data, int len) {
+    data.flushShift();
     System.arraycopy(data.myStarts, 0, myStarts, startOffset, len);
     System.arraycopy(data.myEnds, 0, myEnds, startOffset, len);
+    addToStored(Math.max(startOffset, myShiftIndex), startOffset + len, -myShift);
   }
 
   static int calcCapacity(int currentArraySize, int index) {
@@ -104,10 +114,10 @@ public class SegmentArray {
 
     while (start < end) {
       int i = (start + end) / 2;
-      if (offset < myStarts[i]) {
+      if (offset < start(i)) {
         end = i - 1;
       }
-      else if (offset >= myEnds[i]) {
+      else if (offset >= end(i)) {
         start = i + 1;
       }
       else {
@@ -116,13 +126,13 @@ public class SegmentArray {
     }
 
     // This means that there is a gap at given offset
-    assert myStarts[start] <= offset && offset < myEnds[start] : start;
+    assert start(start) <= offset && offset < end(start) : start;
 
     return start;
   }
 
   public int getLastValidOffset() {
-    return mySegmentCount == 0 ? 0 : myEnds[mySegmentCount - 1];
+    return mySegmentCount == 0 ? 0 : end(mySegmentCount - 1);
   }
 
   public final void changeSegmentLength(int startIndex, int change) {
@@ -133,23 +143,73 @@ public class SegmentArray {
   }
 
   public final void shiftSegments(int startIndex, int shift) {
-    for (int i = startIndex; i < mySegmentCount; i++) {
-      myStarts[i] += shift;
-      myEnds[i] += shift;
-      if (myStarts[i] < 0 || myEnds[i] < 0) {
-        LOG.error("Error shifting segments: myStarts[" + i + "] = " + myStarts[i] + ", myEnds[" + i + "] = " + myEnds[i]);
-      }
+    if (startIndex >= mySegmentCount || shift == 0) {
+      return;
+    }
+    startIndex = Math.max(startIndex, 0);
+    moveShiftIndex(startIndex);
+    myShift += shift;
+    // segments are ordered, so it's enough to check the first shifted one
+    if (start(startIndex) < 0 || end(startIndex) < 0) {
+      LOG.error("Error shifting segments: myStarts[" + startIndex + "] = " + start(startIndex) +
+                ", myEnds[" + startIndex + "] = " + end(startIndex));
+    }
+  }
+
+  private void moveShiftIndex(int index) {
+    if (index > myShiftIndex) {
+      addToStored(myShiftIndex, index, myShift);
     }
+    else {
+      addToStored(index, myShiftIndex, -myShift);
+    }
+    myShiftIndex = index;
+  }
+
+  /**
+   * Applies the pending shift to all segments, so the stored offsets are the actual ones
+   */
+  private void flushShift() {
+    moveShiftIndex(mySegmentCount);
+    myShiftIndex = 0;
+    myShift = 0;
+  }
+
+  private void addToStored(int startIndex, int endIndex, int delta) {
+    if (delta == 0) {
+      return;
+    }
+    endIndex = Math.min(endIndex, mySegmentCount);
+    for (int i = startIndex; i < endIndex; i++) {
+      myStarts[i] += delta;
+      myEnds[i] += delta;
+    }
+  }
+
+  private int start(int index) {
+    return index >= myShiftIndex ? myStarts[index] + myShift : myStarts[index];
+  }
+
+  private int end(int index) {
+    return index >= myShiftIndex ? myEnds[index] + myShift : myEnds[index];
   }
 
   public void removeAll() {
     mySegmentCount = 0;
+    myShiftIndex = 0;
+    myShift = 0;
   }
 
   public void remove(int startIndex, int endIndex) {
     myStarts = remove(myStarts, startIndex, endIndex);
     myEnds = remove(myEnds, startIndex, endIndex);
     mySegmentCount -= endIndex - startIndex;
+    if (myShiftIndex >= endIndex) {
+      myShiftIndex -= endIndex - startIndex;
+    }
+    else if (myShiftIndex > startIndex) {
+      myShiftIndex = startIndex;
+    }
   }
 
   @NotNull
@@ -161,9 +221,17 @@ public class SegmentArray {
   }
 
   protected void insert(@NotNull SegmentArray segmentArray, int startIndex) {
-    myStarts = insert(myStarts, segmentArray.myStarts, startIndex, segmentArray.getSegmentCount());
-    myEnds = insert(myEnds, segmentArray.myEnds, startIndex, segmentArray.getSegmentCount());
-    mySegmentCount += segmentArray.getSegmentCount();
+    segmentArray.flushShift();
+    final int insertLength = segmentArray.getSegmentCount();
+    myStarts = insert(myStarts, segmentArray.myStarts, startIndex, insertLength);
+    myEnds = insert(myEnds, segmentArray.myEnds, startIndex, insertLength);
+    mySegmentCount += insertLength;
+    if (myShiftIndex > startIndex) {
+      myShiftIndex += insertLength;
+    }
+    else {
+      addToStored(startIndex, startIndex + insertLength, -myShift);
+    }
   }
 
   @NotNull
@@ -180,14 +248,14 @@ public class SegmentArray {
     if (index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong line: " + index + ". Available lines count: " + mySegmentCount);
     }
-    return myStarts[index];
+    return start(index);
   }
 
   public int getSegmentEnd(int index) {
     if (index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong line: " + index + ". Available lines count: " + mySegmentCount);
     }
-    return myEnds[index];
+    return end(index);
   }
 
 
@@ -55,6 +55,13 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
    */
   private static final int MAX_DEFERRED_CHANGES_NUMBER = 10000;
 
+  /**
+   * Texts of at least this many chars are kept in a {@link TextRope} instead of a flat array, so that typing in a huge document
+   * doesn't shift its whole tail and replacing its text doesn't reallocate it. Zero or negative value disables the rope.
+   */
+  @SuppressWarnings("UseOfArchaicSystemPropertyAccessors")
+  private static final int ROPE_THRESHOLD = Integer.getInteger("idea.document.rope.threshold", 8 * 1024 * 1024);
+
   private final TextChangesStorage myDeferredChangesStorage;
 
   private volatile int myStart; // start offset in myArray (used as an optimization when call substring())
@@ -81,6 +88,10 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     return DEBUG_DEFERRED_PROCESSING || DocumentImpl.CHECK_DOCUMENT_CONSISTENCY;
   }
 
+  int getRopeThreshold() {
+    return ROPE_THRESHOLD;
+  }
+
   /**
    * Duplicate instance of the current char array that is used during debug processing as follows - apply every text change
    * from the bulk changes group to this instance immediately in order to be able to check if the current 'deferred change-aware'
@@ -102,7 +113,12 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   CharArray(final int bufferSize, @NotNull char[] data, int length) {
     myBufferSize = bufferSize;
     myDeferredChangesStorage = new TextChangesStorage();
-    myArray = Arrays.copyOf(data, length);
+    if (useRope(length)) {
+      myOriginalSequence = TextRope.valueOf(data, length);
+    }
+    else {
+      myArray = Arrays.copyOf(data, length);
+    }
     myCount = length;
 
     if (myDebug) {
@@ -167,7 +183,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private void setText(@NotNull CharSequence chars) {
     assertConsistency();
-    myOriginalSequence = chars.toString();
+    myOriginalSequence = useRope(chars.length()) ? TextRope.valueOf(chars) : chars.toString();
     myArray = null;
     myStringRef = null;
     myCount = chars.length();
@@ -263,6 +279,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
         myDebugArray.doReplace(startOffset, endOffset, newString);
       }
     }
+    else if (isRope()) {
+      setRope(((TextRope)myOriginalSequence).replace(startOffset, endOffset, newString));
+    }
     else {
       int newLength = newString.length();
       int oldLength = endOffset - startOffset;
@@ -300,6 +319,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
         myDebugArray.doRemove(startIndex, endIndex);
       }
     }
+    else if (isRope()) {
+      setRope(((TextRope)myOriginalSequence).delete(startIndex, endIndex));
+    }
     else {
       if (endIndex < myCount) {
         System.arraycopy(myArray, endIndex, myArray, startIndex, myCount - endIndex);
@@ -328,6 +350,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
         myDebugArray.doInsert(s, startIndex);
       }
     }
+    else if (isRope()) {
+      setRope(((TextRope)myOriginalSequence).insert(startIndex, s));
+    }
     else {
       int insertLength = s.length();
       myArray = resizeArray(myArray, myCount + insertLength);
@@ -338,9 +363,28 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       CharArrayUtil.getChars(s, myArray, startIndex);
       myCount += insertLength;
       myStringRef = null;
+      if (useRope(myCount)) {
+        setRope(TextRope.valueOf(myArray, myCount));
+      }
     }
   }
 
+  private boolean isRope() {
+    return myOriginalSequence instanceof TextRope;
+  }
+
+  private boolean useRope(int length) {
+    int threshold = getRopeThreshold();
+    return threshold > 0 && length >= threshold;
+  }
+
+  private void setRope(@NotNull TextRope rope) {
+    myOriginalSequence = rope;
+    myArray = null;
+    myCount = rope.length();
+    myStringRef = null;
+  }
+
   /**
    * Stores given change at collection of deferred changes (merging it with others if necessary) and updates current object
    * state ({@link #length() length} etc).
@@ -367,7 +411,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   }
 
   private void prepareForModification() {
-    if (myOriginalSequence != null) {
+    if (isRope()) {
+      // the rope is modified instead of the array, so the array materialized by getChars() becomes stale
+      myArray = null;
+    }
+    else if (myOriginalSequence != null) {
       myArray = new char[myOriginalSequence.length()];
       CharArrayUtil.getChars(myOriginalSequence, myArray, 0);
       myCount = myArray.length;
@@ -383,6 +431,8 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public CharSequence getCharArray() {
     assertConsistency();
     CharSequence originalSequence = myOriginalSequence;
+    // a rope is immutable, so it's returned as is: wrapping it into this array would make clients treat it as backed by an array
+    // and materialize the whole text by getChars() after every change
     return originalSequence == null ? this : originalSequence;
   }
 
@@ -468,7 +518,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       try {
         flushDeferredChanged();
         if (myOriginalSequence != null && myArray == null) {
-          myArray = array = ArrayUtil.realloc(CharArrayUtil.fromSequence(myOriginalSequence), myOriginalSequence.length());
+          myArray = array = myOriginalSequence instanceof TextRope
+                            ? ((TextRope)myOriginalSequence).toCharArray()
+                            : ArrayUtil.realloc(CharArrayUtil.fromSequence(myOriginalSequence), myOriginalSequence.length());
           myStringRef = null;
         }
       }
@@ -488,6 +540,9 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     if (myOriginalSequence == null) {
       System.arraycopy(myArray, myStart, dst, dstOffset, length());
     }
+    else if (isRope()) {
+      ((TextRope)myOriginalSequence).getChars(0, myCount, dst, dstOffset);
+    }
     else {
       CharArrayUtil.getChars(myOriginalSequence, dst, dstOffset);
     }
@@ -603,12 +658,15 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
   public void setDeferredChangeMode(boolean deferredChangeMode) {
     if (!DISABLE_DEFERRED_PROCESSING) {
       if (deferredChangeMode) {
-        if (myDebug) {
-          myDebugArray.setText(myDebugTextOnBatchUpdateStart = toString());
-          myDebugDeferredChanges.clear();
+        // rope changes don't move the text around, so there is nothing to gain from deferring them
+        if (!isRope()) {
+          if (myDebug) {
+            myDebugArray.setText(myDebugTextOnBatchUpdateStart = toString());
+            myDebugDeferredChanges.clear();
+          }
+          prepareForModification();
+          myDeferredChangeMode = deferredChangeMode;
         }
-        prepareForModification();
-        myDeferredChangeMode = deferredChangeMode;
       }
       else {
         myDeferredChangeMode = deferredChangeMode;
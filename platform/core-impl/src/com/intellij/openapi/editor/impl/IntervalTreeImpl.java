@@ -28,21 +28,25 @@ import gnu.trove.TLongHashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
+import java.awt.*;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * User: cdr
+ * <p/>
+ * Intervals are added and removed on EDT. Readers on other threads run their processors under the read lock until EDT waits
+ * for the write lock, then collect the rest of the keys and process them after the lock is released, see {@link ReaderProcessor}.
  */
 public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBlackTree<T> implements IntervalTree<T> {
   private int keySize; // number of all intervals, counting all duplicates, some of them maybe gced
-  protected final ReadWriteLock l = new ReentrantReadWriteLock();
+  protected final ReentrantReadWriteLock l = new ReentrantReadWriteLock();
 
   protected abstract int compareEqualStartIntervals(@NotNull IntervalNode<T> i1, @NotNull IntervalNode<T> i2);
   private final ReferenceQueue<T> myReferenceQueue = new ReferenceQueue<T>();
@@ -400,14 +404,54 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean process(@NotNull Processor<? super T> processor) {
+    final ReaderProcessor reader = new ReaderProcessor(processor);
     try {
       l.readLock().lock();
       checkMax(true);
-      return process(getRoot(), processor, modCount);
+      if (!process(getRoot(), reader, modCount)) return false;
     }
     finally {
       l.readLock().unlock();
     }
+    return reader.processPostponed();
+  }
+
+  /**
+   * Runs the processor of a reader under the read lock, so that it can stop the traversal early, until another thread waits
+   * for the lock. The rest of the keys are then collected and processed after the lock is released, so a slow background
+   * processor doesn't make EDT wait for the write lock. Readers on EDT, the only thread changing the tree, never postpone.
+   */
+  private class ReaderProcessor implements Processor<T> {
+    private final Processor<? super T> myProcessor;
+    private final boolean myMayPostpone = !EventQueue.isDispatchThread();
+    private List<T> myPostponed;
+
+    private ReaderProcessor(@NotNull Processor<? super T> processor) {
+      myProcessor = processor;
+    }
+
+    @Override
+    public boolean process(T key) {
+      if (myPostponed == null && myMayPostpone && l.hasQueuedThreads()) {
+        myPostponed = new ArrayList<T>();
+      }
+      if (myPostponed != null) {
+        myPostponed.add(key);
+        return true;
+      }
+      return myProcessor.process(key);
+    }
+
+    // called after the read lock is released
+    private boolean processPostponed() {
+      if (myPostponed == null) return true;
+      for (T key : myPostponed) {
+        // the key could be removed after the read lock was released
+        if (!key.isValid()) continue;
+        if (!myProcessor.process(key)) return false;
+      }
+      return true;
+    }
   }
 
   private boolean process(final IntervalNode<T> root, final Processor<? super T> processor, final int modCountBefore) {
@@ -426,14 +470,16 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processOverlappingWith(int start, int end, @NotNull Processor<? super T> processor) {
+    final ReaderProcessor reader = new ReaderProcessor(processor);
     try {
       l.readLock().lock();
       checkMax(true);
-      return processOverlappingWith(getRoot(), start, end, processor, modCount, 0);
+      if (!processOverlappingWith(getRoot(), start, end, reader, modCount, 0)) return false;
     }
     finally {
       l.readLock().unlock();
     }
+    return reader.processPostponed();
   }
 
   private boolean processOverlappingWith(IntervalNode<T> root,
@@ -469,14 +515,16 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
   }
 
   public boolean processOverlappingWithOutside(int start, int end, @NotNull Processor<? super T> processor) {
+    final ReaderProcessor reader = new ReaderProcessor(processor);
     try {
       l.readLock().lock();
       checkMax(true);
-      return processOverlappingWithOutside(getRoot(), start, end, processor, modCount, 0);
+      if (!processOverlappingWithOutside(getRoot(), start, end, reader, modCount, 0)) return false;
     }
     finally {
       l.readLock().unlock();
     }
+    return reader.processPostponed();
   }
   private boolean processOverlappingWithOutside(IntervalNode<T> root,
                                                 int start,
@@ -510,14 +558,16 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
   @Override
   public boolean processContaining(int offset, @NotNull Processor<? super T> processor) {
+    final ReaderProcessor reader = new ReaderProcessor(processor);
     try {
       l.readLock().lock();
       checkMax(true);
-      return processContaining(getRoot(), offset, processor, modCount, 0);
+      if (!processContaining(getRoot(), offset, reader, modCount, 0)) return false;
     }
     finally {
       l.readLock().unlock();
     }
+    return reader.processPostponed();
   }
   private boolean processContaining(IntervalNode<T> root,
                                     int offset,
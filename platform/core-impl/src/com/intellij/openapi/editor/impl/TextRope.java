@@ -0,0 +1,304 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable text kept in a balanced tree of small char chunks. Inserting, removing and taking a subsequence cost
+ * O(log n) and share all untouched chunks with the original rope, so changing a huge text does not copy it.
+ * <p/>
+ * Sequential {@link #charAt(int)} calls are served from the last visited chunk without descending the tree.
+ */
+final class TextRope implements CharSequence {
+  static final int LEAF_SIZE = 512;
+  static final TextRope EMPTY = new TextRope(new Leaf(new char[0]));
+
+  private final Node myRoot;
+  private volatile LeafPosition myLastLeaf;
+
+  private TextRope(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  static TextRope valueOf(@NotNull CharSequence text) {
+    if (text instanceof TextRope) {
+      return (TextRope)text;
+    }
+    final char[] chars = new char[text.length()];
+    CharArrayUtil.getChars(text, chars, 0);
+    return new TextRope(build(chars, 0, chars.length));
+  }
+
+  @NotNull
+  static TextRope valueOf(@NotNull char[] data, int length) {
+    return new TextRope(build(data, 0, length));
+  }
+
+  @NotNull
+  TextRope insert(int offset, @NotNull CharSequence text) {
+    return replace(offset, offset, text);
+  }
+
+  @NotNull
+  TextRope delete(int start, int end) {
+    return replace(start, end, "");
+  }
+
+  @NotNull
+  TextRope replace(int start, int end, @NotNull CharSequence text) {
+    checkRange(start, end);
+    if (start == end && text.length() == 0) {
+      return this;
+    }
+    final Node left = split(myRoot, start)[0];
+    final Node right = split(myRoot, end)[1];
+    Node inserted = null;
+    if (text.length() > 0) {
+      final char[] chars = new char[text.length()];
+      CharArrayUtil.getChars(text, chars, 0);
+      inserted = build(chars, 0, chars.length);
+    }
+    return new TextRope(join(inserted == null ? left : join(left, inserted), right));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= myRoot.length) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + myRoot.length);
+    }
+    LeafPosition position = myLastLeaf;
+    if (position == null || index < position.start || index >= position.start + position.leaf.length) {
+      Node node = myRoot;
+      int leafStart = 0;
+      while (node instanceof Concat) {
+        final Concat concat = (Concat)node;
+        if (index - leafStart < concat.left.length) {
+          node = concat.left;
+        }
+        else {
+          leafStart += concat.left.length;
+          node = concat.right;
+        }
+      }
+      myLastLeaf = position = new LeafPosition((Leaf)node, leafStart);
+    }
+    return position.leaf.chars[index - position.start];
+  }
+
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    checkRange(start, end);
+    if (start == 0 && end == myRoot.length) {
+      return this;
+    }
+    if (end - start <= LEAF_SIZE) {
+      final char[] chars = new char[end - start];
+      getChars(start, end, chars, 0);
+      return new String(chars);
+    }
+    return new TextRope(split(split(myRoot, end)[0], start)[1]);
+  }
+
+  void getChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+    checkRange(start, end);
+    copyChars(myRoot, start, end, dst, dstOffset);
+  }
+
+  @NotNull
+  char[] toCharArray() {
+    final char[] chars = new char[myRoot.length];
+    copyChars(myRoot, 0, myRoot.length, chars, 0);
+    return chars;
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    return new String(toCharArray());
+  }
+
+  int getDepth() {
+    return myRoot.depth;
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || end > myRoot.length || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + myRoot.length);
+    }
+  }
+
+  private static void copyChars(Node node, int start, int end, char[] dst, int dstOffset) {
+    while (start < end) {
+      if (node instanceof Leaf) {
+        System.arraycopy(((Leaf)node).chars, start, dst, dstOffset, end - start);
+        return;
+      }
+      final Concat concat = (Concat)node;
+      final int leftLength = concat.left.length;
+      if (start < leftLength) {
+        final int leftEnd = Math.min(end, leftLength);
+        copyChars(concat.left, start, leftEnd, dst, dstOffset);
+        dstOffset += leftEnd - start;
+        start = leftEnd;
+      }
+      else {
+        node = concat.right;
+        start -= leftLength;
+        end -= leftLength;
+      }
+    }
+  }
+
+  private static Node build(char[] data, int start, int end) {
+    if (end - start <= LEAF_SIZE) {
+      final char[] chars = new char[end - start];
+      System.arraycopy(data, start, chars, 0, chars.length);
+      return new Leaf(chars);
+    }
+    // split at a chunk boundary, so all leaves but the last one are full
+    final int leaves = (end - start + LEAF_SIZE - 1) / LEAF_SIZE;
+    final int middle = start + (leaves / 2) * LEAF_SIZE;
+    return new Concat(build(data, start, middle), build(data, middle, end));
+  }
+
+  /**
+   * @return nodes holding text before and after the offset
+   */
+  private static Node[] split(Node node, int offset) {
+    if (offset == 0) {
+      return new Node[]{EMPTY.myRoot, node};
+    }
+    if (offset == node.length) {
+      return new Node[]{node, EMPTY.myRoot};
+    }
+    if (node instanceof Leaf) {
+      final char[] chars = ((Leaf)node).chars;
+      final char[] left = new char[offset];
+      final char[] right = new char[chars.length - offset];
+      System.arraycopy(chars, 0, left, 0, left.length);
+      System.arraycopy(chars, offset, right, 0, right.length);
+      return new Node[]{new Leaf(left), new Leaf(right)};
+    }
+    final Concat concat = (Concat)node;
+    final int leftLength = concat.left.length;
+    if (offset < leftLength) {
+      final Node[] parts = split(concat.left, offset);
+      return new Node[]{parts[0], join(parts[1], concat.right)};
+    }
+    if (offset == leftLength) {
+      return new Node[]{concat.left, concat.right};
+    }
+    final Node[] parts = split(concat.right, offset - leftLength);
+    return new Node[]{join(concat.left, parts[0]), parts[1]};
+  }
+
+  /**
+   * Concatenates two balanced trees keeping the result balanced (AVL join); adjacent short leaves are merged
+   */
+  private static Node join(Node left, Node right) {
+    if (left.length == 0) return right;
+    if (right.length == 0) return left;
+    if (left instanceof Leaf && right instanceof Leaf && left.length + right.length <= LEAF_SIZE) {
+      final char[] chars = new char[left.length + right.length];
+      System.arraycopy(((Leaf)left).chars, 0, chars, 0, left.length);
+      System.arraycopy(((Leaf)right).chars, 0, chars, left.length, right.length);
+      return new Leaf(chars);
+    }
+    if (left.depth > right.depth + 1) {
+      return joinRight((Concat)left, right);
+    }
+    if (right.depth > left.depth + 1) {
+      return joinLeft(left, (Concat)right);
+    }
+    return new Concat(left, right);
+  }
+
+  private static Node joinRight(Concat left, Node right) {
+    final Node inner = left.right.depth <= right.depth + 1 ? join(left.right, right) : joinRight((Concat)left.right, right);
+    if (inner.depth <= left.left.depth + 1) {
+      return new Concat(left.left, inner);
+    }
+    // inner is two levels deeper than its sibling
+    final Concat deep = (Concat)inner;
+    if (deep.left.depth > deep.right.depth) {
+      final Concat middle = (Concat)deep.left;
+      return new Concat(new Concat(left.left, middle.left), new Concat(middle.right, deep.right));
+    }
+    return new Concat(new Concat(left.left, deep.left), deep.right);
+  }
+
+  private static Node joinLeft(Node left, Concat right) {
+    final Node inner = right.left.depth <= left.depth + 1 ? join(left, right.left) : joinLeft(left, (Concat)right.left);
+    if (inner.depth <= right.right.depth + 1) {
+      return new Concat(inner, right.right);
+    }
+    final Concat deep = (Concat)inner;
+    if (deep.right.depth > deep.left.depth) {
+      final Concat middle = (Concat)deep.right;
+      return new Concat(new Concat(deep.left, middle.left), new Concat(middle.right, right.right));
+    }
+    return new Concat(deep.left, new Concat(deep.right, right.right));
+  }
+
+  private static final class LeafPosition {
+    final Leaf leaf;
+    final int start;
+
+    LeafPosition(Leaf leaf, int start) {
+      this.leaf = leaf;
+      this.start = start;
+    }
+  }
+
+  private abstract static class Node {
+    final int length;
+    final int depth;
+
+    Node(int length, int depth) {
+      this.length = length;
+      this.depth = depth;
+    }
+  }
+
+  private static final class Leaf extends Node {
+    final char[] chars;
+
+    Leaf(char[] chars) {
+      super(chars.length, 0);
+      this.chars = chars;
+    }
+  }
+
+  private static final class Concat extends Node {
+    final Node left;
+    final Node right;
+
+    Concat(Node left, Node right) {
+      super(left.length + right.length, Math.max(left.depth, right.depth) + 1);
+      this.left = left;
+      this.right = right;
+    }
+  }
+}
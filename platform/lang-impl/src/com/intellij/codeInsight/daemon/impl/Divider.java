@@ -28,7 +28,9 @@ import com.intellij.psi.util.PsiUtilCore;
 import com.intellij.util.containers.Stack;
 import gnu.trove.TIntStack;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -134,4 +136,77 @@ public class Divider {
       }
     }
   }
+
+  /**
+   * Splits elements listed in post-order (as {@link #divideInsideAndOutside} produces them) into independent subtrees:
+   * the children of the outermost element covering most of the file, e.g. members of the top-level class.
+   * Whole subtrees are packed in document order into at most {@code groupCount} groups of about the same size.
+   * The elements not belonging to any of these subtrees (the container itself, its parents and the other children of the file)
+   * are added to {@code outRest} in their original order, so that they can be processed after the groups.
+   */
+  public static void divideIntoSubtrees(@NotNull PsiFile file,
+                                        @NotNull List<PsiElement> elements,
+                                        int groupCount,
+                                        @NotNull List<List<PsiElement>> outGroups,
+                                        @NotNull List<PsiElement> outRest) {
+    PsiElement container = findSubtreesContainer(file);
+    List<List<PsiElement>> subtrees = new ArrayList<List<PsiElement>>();
+    PsiElement currentRoot = null;
+    for (PsiElement element : elements) {
+      PsiElement root = element == container ? null : findSubtreeRoot(element, container);
+      if (root == null) {
+        outRest.add(element);
+        continue;
+      }
+      if (root != currentRoot) {
+        subtrees.add(new ArrayList<PsiElement>());
+        currentRoot = root;
+      }
+      subtrees.get(subtrees.size() - 1).add(element);
+    }
+    if (subtrees.size() < 2) {
+      // nothing to run in parallel
+      outRest.clear();
+      outRest.addAll(elements);
+      return;
+    }
+
+    int groupSize = (elements.size() - outRest.size()) / groupCount + 1;
+    List<PsiElement> group = null;
+    for (List<PsiElement> subtree : subtrees) {
+      if (group == null || group.size() >= groupSize) {
+        group = new ArrayList<PsiElement>(groupSize);
+        outGroups.add(group);
+      }
+      group.addAll(subtree);
+    }
+  }
+
+  @NotNull
+  private static PsiElement findSubtreesContainer(@NotNull PsiFile file) {
+    PsiElement container = file;
+    while (true) {
+      PsiElement big = null;
+      for (PsiElement child = container.getFirstChild(); child != null; child = child.getNextSibling()) {
+        if (child.getFirstChild() != null && child.getTextLength() * 2 > container.getTextLength()) {
+          big = child;
+          break;
+        }
+      }
+      if (big == null) return container;
+      container = big;
+    }
+  }
+
+  @Nullable
+  private static PsiElement findSubtreeRoot(@NotNull PsiElement element, @NotNull PsiElement container) {
+    PsiElement root = element;
+    while (!(root instanceof PsiFile)) {
+      PsiElement parent = root.getParent();
+      if (parent == container) return root;
+      if (parent == null) break;
+      root = parent;
+    }
+    return null;
+  }
 }
@@ -55,6 +55,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.IndexNotReadyException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.problems.Problem;
 import com.intellij.problems.WolfTheProblemSolver;
@@ -64,6 +65,7 @@ import com.intellij.psi.impl.source.tree.injected.Place;
 import com.intellij.psi.search.PsiTodoSearchHelper;
 import com.intellij.psi.search.TodoItem;
 import com.intellij.psi.tree.IElementType;
+import com.intellij.util.Consumer;
 import com.intellij.util.Processor;
 import com.intellij.util.SmartList;
 import com.intellij.util.containers.Stack;
@@ -73,11 +75,13 @@ import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import javax.swing.*;
 import java.awt.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingPass implements DumbAware {
@@ -85,12 +89,14 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
   static final String PRESENTABLE_NAME = DaemonBundle.message("pass.syntax");
   private static final Key<Boolean> HAS_ERROR_ELEMENT = Key.create("HAS_ERROR_ELEMENT");
   private static final JobLauncher JobUtil = JobLauncher.getInstance();
+  private static final int PARALLEL_HIGHLIGHTING_MIN_ELEMENTS = 5000;
 
   private final int myStartOffset;
   private final int myEndOffset;
   private final boolean myUpdateAll;
   private final ProperTextRange myPriorityRange;
   private final Editor myEditor;
+  private int myParallelGroupsAnalyzed;
 
   private final List<HighlightInfo> myHighlights = new ArrayList<HighlightInfo>();
 
@@ -615,106 +621,247 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
     }, 200);
 
 
+    final Consumer<HighlightInfo> toEDT = new Consumer<HighlightInfo>() {
+      @Override
+      public void consume(HighlightInfo info) {
+        myTransferToEDTQueue.offer(info);
+      }
+    };
+
+    final AtomicBoolean failed = new AtomicBoolean();
     final Runnable action = new Runnable() {
       @Override
       public void run() {
-        Stack<Pair<TextRange, List<HighlightInfo>>> nested = new Stack<Pair<TextRange, List<HighlightInfo>>>();
-        boolean failed = false;
-        //noinspection unchecked
-        for (List<PsiElement> elements : new List[]{elements1, elements2}) {
-          nested.clear();
-          int nextLimit = chunkSize;
-          for (int i = 0; i < elements.size(); i++) {
-            PsiElement element = elements.get(i);
-            progress.checkCanceled();
-
-            PsiElement parent = element.getParent();
-            if (element != myFile && !skipParentsSet.isEmpty() && element.getFirstChild() != null && skipParentsSet.contains(element)) {
-              skipParentsSet.add(parent);
-              continue;
-            }
+        List<PsiElement> rest = elements1;
+        if (shouldHighlightInParallel(elements1)) {
+          rest = highlightSubtreesInParallel(elements1, progress, gotHighlights, skipParentsSet, myTransferToEDTQueue, failed,
+                                             forceHighlightParents, chunkSize);
+        }
+        highlightElements(rest, progress, visitors, holder, gotHighlights, skipParentsSet, toEDT, failed,
+                          forceHighlightParents, chunkSize);
+        after1.run();
+        highlightElements(elements2, progress, visitors, holder, gotHighlights, skipParentsSet, toEDT, failed,
+                          forceHighlightParents, chunkSize);
+      }
+    };
 
-            if (element instanceof PsiErrorElement) {
-              myHasErrorElement = true;
-            }
-            holder.clear();
+    if (!analyzeByVisitors(visitors, holder, 0, action)) {
+      cancelAndRestartDaemonLater(progress, myProject, this);
+    }
+  }
 
-            for (final HighlightVisitor visitor : visitors) {
-              try {
-                visitor.visit(element);
-              }
-              catch (ProcessCanceledException e) {
-                throw e;
-              }
-              catch (IndexNotReadyException e) {
-                throw e;
-              }
-              catch (WolfTheProblemSolverImpl.HaveGotErrorException e) {
-                throw e;
-              }
-              catch (Exception e) {
-                if (!failed) {
-                  LOG.error(e);
-                }
-                failed = true;
-              }
-            }
+  private void highlightElements(@NotNull List<PsiElement> elements,
+                                 @NotNull ProgressIndicator progress,
+                                 @NotNull HighlightVisitor[] visitors,
+                                 @NotNull HighlightInfoHolder holder,
+                                 @NotNull Set<HighlightInfo> gotHighlights,
+                                 @NotNull Set<PsiElement> skipParentsSet,
+                                 @NotNull Consumer<HighlightInfo> infoConsumer,
+                                 @NotNull AtomicBoolean failed,
+                                 boolean forceHighlightParents,
+                                 int chunkSize) {
+    Stack<Pair<TextRange, List<HighlightInfo>>> nested = new Stack<Pair<TextRange, List<HighlightInfo>>>();
+    int nextLimit = chunkSize;
+    for (int i = 0; i < elements.size(); i++) {
+      PsiElement element = elements.get(i);
+      progress.checkCanceled();
 
-            if (i == nextLimit) {
-              advanceProgress(chunkSize);
-              nextLimit = i + chunkSize;
-            }
+      PsiElement parent = element.getParent();
+      if (element != myFile && !skipParentsSet.isEmpty() && element.getFirstChild() != null && skipParentsSet.contains(element)) {
+        skipParentsSet.add(parent);
+        continue;
+      }
 
-            TextRange elementRange = element.getTextRange();
-            List<HighlightInfo> infosForThisRange = holder.size() == 0 ? null : new ArrayList<HighlightInfo>(holder.size());
-            for (int j = 0; j < holder.size(); j++) {
-              final HighlightInfo info = holder.get(j);
-              assert info != null;
-              // have to filter out already obtained highlights
-              if (!gotHighlights.add(info)) continue;
-              boolean isError = info.getSeverity() == HighlightSeverity.ERROR;
-              if (isError) {
-                if (!forceHighlightParents) {
-                  skipParentsSet.add(parent);
-                }
-                myErrorFound = true;
-              }
-              // if this highlight info range is exactly the same as the element range we are visiting
-              // that means we can clear this highlight as soon as visitors won't produce any highlights during visiting the same range next time.
-              info.bijective = elementRange.equalsToRange(info.startOffset, info.endOffset);
+      if (element instanceof PsiErrorElement) {
+        myHasErrorElement = true;
+      }
+      holder.clear();
 
-              myTransferToEDTQueue.offer(info);
-              infosForThisRange.add(info);
-            }
-            // include infos which we got while visiting nested elements with the same range
-            while (true) {
-              if (!nested.isEmpty() && elementRange.contains(nested.peek().first)) {
-                Pair<TextRange, List<HighlightInfo>> old = nested.pop();
-                if (elementRange.equals(old.first)) {
-                  if (infosForThisRange == null) {
-                    infosForThisRange = old.second;
-                  }
-                  else if (old.second != null){
-                    infosForThisRange.addAll(old.second);
-                  }
-                }
-              }
-              else {
-                break;
-              }
+      for (final HighlightVisitor visitor : visitors) {
+        try {
+          visitor.visit(element);
+        }
+        catch (ProcessCanceledException e) {
+          throw e;
+        }
+        catch (IndexNotReadyException e) {
+          throw e;
+        }
+        catch (WolfTheProblemSolverImpl.HaveGotErrorException e) {
+          throw e;
+        }
+        catch (Exception e) {
+          if (failed.compareAndSet(false, true)) {
+            LOG.error(e);
+          }
+        }
+      }
+
+      if (i == nextLimit) {
+        advanceProgress(chunkSize);
+        nextLimit = i + chunkSize;
+      }
+
+      TextRange elementRange = element.getTextRange();
+      List<HighlightInfo> infosForThisRange = holder.size() == 0 ? null : new ArrayList<HighlightInfo>(holder.size());
+      for (int j = 0; j < holder.size(); j++) {
+        final HighlightInfo info = holder.get(j);
+        assert info != null;
+        // have to filter out already obtained highlights
+        if (!gotHighlights.add(info)) continue;
+        boolean isError = info.getSeverity() == HighlightSeverity.ERROR;
+        if (isError) {
+          if (!forceHighlightParents) {
+            skipParentsSet.add(parent);
+          }
+          myErrorFound = true;
+        }
+        // if this highlight info range is exactly the same as the element range we are visiting
+        // that means we can clear this highlight as soon as visitors won't produce any highlights during visiting the same range next time.
+        info.bijective = elementRange.equalsToRange(info.startOffset, info.endOffset);
+
+        infoConsumer.consume(info);
+        infosForThisRange.add(info);
+      }
+      // include infos which we got while visiting nested elements with the same range
+      while (true) {
+        if (!nested.isEmpty() && elementRange.contains(nested.peek().first)) {
+          Pair<TextRange, List<HighlightInfo>> old = nested.pop();
+          if (elementRange.equals(old.first)) {
+            if (infosForThisRange == null) {
+              infosForThisRange = old.second;
             }
-            nested.push(Pair.create(elementRange, infosForThisRange));
-            if (parent == null || !Comparing.equal(elementRange, parent.getTextRange())) {
-              killAbandonedHighlightsUnder(elementRange, infosForThisRange, progress);
+            else if (old.second != null){
+              infosForThisRange.addAll(old.second);
             }
           }
-          advanceProgress(elements.size() - (nextLimit-chunkSize));
-          if (elements == elements1) after1.run();
+        }
+        else {
+          break;
         }
       }
-    };
+      nested.push(Pair.create(elementRange, infosForThisRange));
+      if (parent == null || !Comparing.equal(elementRange, parent.getTextRange())) {
+        killAbandonedHighlightsUnder(elementRange, infosForThisRange, progress);
+      }
+    }
+    advanceProgress(elements.size() - (nextLimit-chunkSize));
+  }
+
+  private static boolean shouldHighlightInParallel(@NotNull List<PsiElement> elements) {
+    return elements.size() >= PARALLEL_HIGHLIGHTING_MIN_ELEMENTS &&
+           Runtime.getRuntime().availableProcessors() > 1 &&
+           Registry.is("daemon.parallel.general.highlighting");
+  }
+
+  /**
+   * Highlights independent subtrees of the file (see {@link Divider#divideIntoSubtrees}) on several threads, each with its own
+   * visitor clones and info holder. The infos of every subtree are buffered and passed to EDT in document order of the subtrees
+   * as soon as all preceding subtrees are highlighted, so the results do not depend on thread timing.
+   * Must be called inside {@link #analyzeByVisitors} of the pass, which the visitors of the subtrees join.
+   * @return elements which must be highlighted afterwards by the visitors of the pass
+   */
+  @NotNull
+  private List<PsiElement> highlightSubtreesInParallel(@NotNull List<PsiElement> elements,
+                                                       @NotNull final ProgressIndicator progress,
+                                                       @NotNull Set<HighlightInfo> gotHighlights,
+                                                       @NotNull Set<PsiElement> skipParentsSet,
+                                                       @NotNull final TransferToEDTQueue<HighlightInfo> transferToEDTQueue,
+                                                       @NotNull final AtomicBoolean failed,
+                                                       final boolean forceHighlightParents,
+                                                       final int chunkSize) {
+    List<List<PsiElement>> groups = new ArrayList<List<PsiElement>>();
+    List<PsiElement> rest = new ArrayList<PsiElement>();
+    Divider.divideIntoSubtrees(myFile, elements, Runtime.getRuntime().availableProcessors(), groups, rest);
+    if (groups.isEmpty()) return rest;
+
+    final List<SubtreeGroup> subtreeGroups = new ArrayList<SubtreeGroup>(groups.size());
+    for (List<PsiElement> group : groups) {
+      // already collected infos (e.g. todos) are copied to filter out duplicates in every group
+      subtreeGroups.add(new SubtreeGroup(group, new THashSet<HighlightInfo>(gotHighlights)));
+    }
+    final int[] nextToTransfer = {0};
+    boolean completed = JobUtil.invokeConcurrentlyUnderProgress(subtreeGroups, progress, isFailFastOnAcquireReadAction(),
+      new Processor<SubtreeGroup>() {
+        @Override
+        public boolean process(final SubtreeGroup group) {
+          HighlightVisitor[] visitors = getHighlightVisitors(); // clones, since the pass itself already uses visitors
+          try {
+            final HighlightVisitor[] filtered = filterVisitors(visitors, myFile);
+            final HighlightInfoHolder holder = createInfoHolder(myFile);
+            group.analyzed = analyzeByVisitors(filtered, holder, 0, new Runnable() {
+              @Override
+              public void run() {
+                highlightElements(group.elements, progress, filtered, holder, group.infos, group.skipParents,
+                                  new Consumer<HighlightInfo>() {
+                                    @Override
+                                    public void consume(HighlightInfo info) {
+                                      group.offered.add(info);
+                                    }
+                                  }, failed, forceHighlightParents, chunkSize);
+              }
+            });
+          }
+          finally {
+            incVisitorUsageCount(-1);
+          }
+          group.finished = true;
+          transferFinishedGroups(subtreeGroups, nextToTransfer, transferToEDTQueue);
+          return true;
+        }
+      });
+    if (!completed) throw new ProcessCanceledException();
+
+    List<PsiElement> result = new ArrayList<PsiElement>();
+    for (SubtreeGroup group : subtreeGroups) {
+      if (group.analyzed) {
+        myParallelGroupsAnalyzed++;
+        gotHighlights.addAll(group.infos);
+        skipParentsSet.addAll(group.skipParents);
+      }
+      else {
+        // some visitor refused to analyze concurrently; highlight these elements the usual way
+        result.addAll(group.elements);
+      }
+    }
+    result.addAll(rest);
+    return result;
+  }
+
+  // passes infos of the leading finished groups to EDT; groups refusing to be analyzed concurrently are highlighted later anyway
+  private static void transferFinishedGroups(@NotNull List<SubtreeGroup> groups,
+                                             @NotNull int[] nextToTransfer,
+                                             @NotNull TransferToEDTQueue<HighlightInfo> transferToEDTQueue) {
+    synchronized (nextToTransfer) {
+      while (nextToTransfer[0] < groups.size() && groups.get(nextToTransfer[0]).finished) {
+        SubtreeGroup group = groups.get(nextToTransfer[0]++);
+        if (group.analyzed) {
+          for (HighlightInfo info : group.offered) {
+            transferToEDTQueue.offer(info);
+          }
+        }
+      }
+    }
+  }
 
-    analyzeByVisitors(progress, visitors, holder, 0, action);
+  @TestOnly
+  public int getParallelGroupsAnalyzedCount() {
+    return myParallelGroupsAnalyzed;
+  }
+
+  private static class SubtreeGroup {
+    private final List<PsiElement> elements;
+    private final Set<HighlightInfo> infos;
+    private final Set<PsiElement> skipParents = new THashSet<PsiElement>();
+    // infos to pass to EDT, in the order they were found
+    private final List<HighlightInfo> offered = new ArrayList<HighlightInfo>();
+    private volatile boolean analyzed;
+    private volatile boolean finished;
+
+    private SubtreeGroup(@NotNull List<PsiElement> elements, @NotNull Set<HighlightInfo> infos) {
+      this.elements = elements;
+      this.infos = infos;
+    }
   }
 
   protected void killAbandonedHighlightsUnder(@NotNull final TextRange range,
@@ -748,24 +895,25 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
     });
   }
 
-  private void analyzeByVisitors(@NotNull final ProgressIndicator progress,
-                                 @NotNull final HighlightVisitor[] visitors,
-                                 @NotNull final HighlightInfoHolder holder,
-                                 final int i,
-                                 @NotNull final Runnable action) {
+  // returns false if some visitor refused to analyze the file
+  private boolean analyzeByVisitors(@NotNull final HighlightVisitor[] visitors,
+                                    @NotNull final HighlightInfoHolder holder,
+                                    final int i,
+                                    @NotNull final Runnable action) {
     if (i == visitors.length) {
       action.run();
+      return true;
     }
-    else {
-      if (!visitors[i].analyze(myFile, myUpdateAll, holder, new Runnable() {
-        @Override
-        public void run() {
-          analyzeByVisitors(progress, visitors, holder, i+1, action);
-        }
-      })) {
-        cancelAndRestartDaemonLater(progress, myProject, this);
+    final boolean[] success = {true};
+    if (!visitors[i].analyze(myFile, myUpdateAll, holder, new Runnable() {
+      @Override
+      public void run() {
+        success[0] = analyzeByVisitors(visitors, holder, i+1, action);
       }
+    })) {
+      return false;
     }
+    return success[0];
   }
 
   @NotNull
@@ -506,11 +506,16 @@ public class FindInProjectUtil {
     boolean fast = false;
 
     String stringToFind = findModel.getStringToFind();
+    final boolean regExp = findModel.isRegularExpressions();
     if (TrigramIndex.ENABLED) {
-      TIntHashSet trigrams = TrigramBuilder.buildTrigram(stringToFind);
-      TIntIterator it = trigrams.iterator();
-      while (it.hasNext()) {
-        keys.add(it.next());
+      // trigrams are case insensitive, so files containing all trigrams of the string are candidates for any search options
+      final List<String> requiredStrings = regExp ? getRequiredRegExpLiterals(stringToFind) : Collections.singletonList(stringToFind);
+      for (String requiredString : requiredStrings) {
+        TIntHashSet trigrams = TrigramBuilder.buildTrigram(requiredString);
+        TIntIterator it = trigrams.iterator();
+        while (it.hasNext()) {
+          keys.add(it.next());
+        }
       }
 
       if (!keys.isEmpty()) {
@@ -519,14 +524,20 @@ public class FindInProjectUtil {
         FileBasedIndex.getInstance().getFilesWithKey(TrigramIndex.INDEX_ID, keys, new CommonProcessors.CollectProcessor<VirtualFile>(hits), scope);
 
         for (VirtualFile hit : hits) {
-          resultFiles.add(pm.findFile(hit));
+          ContainerUtil.addIfNotNull(resultFiles, pm.findFile(hit));
         }
 
         filterMaskedFiles(resultFiles, fileMaskRegExp);
-        if (resultFiles.isEmpty()) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
+        if (resultFiles.isEmpty() || regExp) return new Pair<Boolean, Collection<PsiFile>>(true, resultFiles);
       }
     }
 
+    // words of a regular expression source are not necessarily present in the files it matches, so without required literals
+    // nothing can be narrowed and all files are scanned
+    if (regExp) {
+      return new Pair<Boolean, Collection<PsiFile>>(false, Collections.<PsiFile>emptyList());
+    }
+
 
     // $ is used to separate words when indexing plain-text files but not when indexing
     // Java identifiers, so we can't consistently break a string containing $ characters into words
@@ -583,6 +594,108 @@ public class FindInProjectUtil {
     return new Pair<Boolean, Collection<PsiFile>>(fast, resultFiles);
   }
 
+  private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-zA-Z-]*x");
+
+  /**
+   * Collects literal strings of at least three characters which any match of the regular expression contains.
+   * Alternations, groups and character classes are not analyzed, so an expression with alternatives requires nothing.
+   */
+  @NotNull
+  public static List<String> getRequiredRegExpLiterals(@NotNull String regExp) {
+    if (regExp.indexOf('|') >= 0 || regExp.contains("\\Q") || COMMENTS_FLAG.matcher(regExp).find()) return Collections.emptyList();
+
+    final List<String> result = new ArrayList<String>();
+    final StringBuilder literal = new StringBuilder();
+    for (int i = 0; i < regExp.length(); i++) {
+      final char c = regExp.charAt(i);
+      switch (c) {
+        case '\\':
+          if (i + 1 < regExp.length() && !Character.isLetterOrDigit(regExp.charAt(i + 1))) {
+            literal.append(regExp.charAt(++i)); // escaped special character
+          }
+          else {
+            i = skipEscapeArguments(regExp, i + 1); // character class, back reference, boundary or character code
+            addRequiredLiteral(literal, result);
+          }
+          break;
+        case '[':
+          i = skipClosing(regExp, i, '[', ']');
+          addRequiredLiteral(literal, result);
+          break;
+        case '(':
+          i = skipClosing(regExp, i, '(', ')'); // group may be optional or a negative lookaround
+          addRequiredLiteral(literal, result);
+          break;
+        case '{':
+          i = skipClosing(regExp, i, '{', '}');
+          // fall through, the previous character may be repeated zero times
+        case '*':
+        case '?':
+          if (literal.length() > 0) literal.setLength(literal.length() - 1);
+          addRequiredLiteral(literal, result);
+          break;
+        case '+':
+        case '.':
+        case '^':
+        case '$':
+          addRequiredLiteral(literal, result);
+          break;
+        default:
+          literal.append(c);
+      }
+    }
+    addRequiredLiteral(literal, result);
+    return result;
+  }
+
+  private static void addRequiredLiteral(@NotNull StringBuilder literal, @NotNull List<String> result) {
+    if (literal.length() >= 3) {
+      result.add(literal.toString());
+    }
+    literal.setLength(0);
+  }
+
+  // returns the index of the last character of the escape sequence whose letter or digit is at the given index
+  private static int skipEscapeArguments(@NotNull String regExp, int index) {
+    if (index >= regExp.length()) return index;
+    final char c = regExp.charAt(index);
+    int end = index + 1;
+    if (c == 'x' || c == 'p' || c == 'P' || c == 'k') {
+      if (end < regExp.length() && (regExp.charAt(end) == '{' || regExp.charAt(end) == '<')) {
+        final int closing = regExp.indexOf(regExp.charAt(end) == '{' ? '}' : '>', end);
+        return closing < 0 ? regExp.length() : closing;
+      }
+      end += c == 'x' ? 2 : 1;
+    }
+    else if (c == 'u') {
+      end += 4;
+    }
+    else if (c == 'c') {
+      end += 1;
+    }
+    else if (Character.isDigit(c)) {
+      while (end < regExp.length() && Character.isDigit(regExp.charAt(end))) end++;
+    }
+    return Math.min(end, regExp.length()) - 1;
+  }
+
+  private static int skipClosing(@NotNull String regExp, int start, char open, char close) {
+    int depth = 0;
+    for (int i = start; i < regExp.length(); i++) {
+      final char c = regExp.charAt(i);
+      if (c == '\\') {
+        i++;
+      }
+      else if (c == open) {
+        depth++;
+      }
+      else if (c == close && !(open == '[' && i == start + 1)) {
+        if (--depth == 0) return i;
+      }
+    }
+    return regExp.length();
+  }
+
   private static void filterMaskedFiles(@NotNull final Set<PsiFile> resultFiles, @Nullable final Pattern fileMaskRegExp) {
     if (fileMaskRegExp != null) {
       for (Iterator<PsiFile> iterator = resultFiles.iterator(); iterator.hasNext();) {
@@ -595,7 +708,8 @@ public class FindInProjectUtil {
   }
 
   private static boolean canOptimizeForFastWordSearch(@NotNull final FindModel findModel) {
-    return !findModel.isRegularExpressions()
+    // for regular expressions the fast search is exact only when narrowed by required literals
+    return (!findModel.isRegularExpressions() || TrigramIndex.ENABLED)
            && (findModel.getCustomScope() == null || findModel.getCustomScope() instanceof GlobalSearchScope);
   }
 
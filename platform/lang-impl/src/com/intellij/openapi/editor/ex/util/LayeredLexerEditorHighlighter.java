@@ -153,6 +153,12 @@ public class LayeredLexerEditorHighlighter extends LexerEditorHighlighter {
     };
   }
 
+  @Override
+  protected boolean canLexInBackground() {
+    // tokens are mapped to the layer documents while they are added
+    return false;
+  }
+
   protected boolean updateLayers() { return false; }
 
   @Override
@@ -32,7 +32,7 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
   // there is no volatile as we modify under write lock and read under read lock
   private ValueContainerImpl<Value> myAdded;
   private TIntHashSet myInvalidated;
-  private volatile ValueContainerImpl<Value> myMerged;
+  private volatile ValueContainer<Value> myMerged; // either ValueContainerImpl or read-only PackedValueContainer
   private final Initializer<Value> myInitializer;
 
   public interface Initializer<T> extends Computable<ValueContainer<T>> {
@@ -45,9 +45,12 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
 
   @Override
   public void addValue(int inputId, Value value) {
-    ValueContainerImpl<Value> merged = myMerged;
-    if (merged != null) {
-      merged.addValue(inputId, value);
+    ValueContainer<Value> merged = myMerged;
+    if (merged instanceof ValueContainerImpl) {
+      ((ValueContainerImpl<Value>)merged).addValue(inputId, value);
+    }
+    else if (merged != null) {
+      myMerged = null; // read-only, will be merged with the change on next access
     }
 
     if (myAdded == null) myAdded = new ValueContainerImpl<Value>();
@@ -56,9 +59,12 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
 
   @Override
   public void removeAssociatedValue(int inputId) {
-    ValueContainerImpl<Value> merged = myMerged;
-    if (merged != null) {
-      merged.removeAssociatedValue(inputId);
+    ValueContainer<Value> merged = myMerged;
+    if (merged instanceof ValueContainerImpl) {
+      ((ValueContainerImpl<Value>)merged).removeAssociatedValue(inputId);
+    }
+    else if (merged != null) {
+      myMerged = null;
     }
 
     if (myAdded != null) myAdded.removeAssociatedValue(inputId);
@@ -103,8 +109,8 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
 
   // need 'synchronized' to ensure atomic initialization of merged data
   // because several threads that acquired read lock may simultaneously execute the method
-  private ValueContainerImpl<Value> getMergedData() {
-    ValueContainerImpl<Value> merged = myMerged;
+  private ValueContainer<Value> getMergedData() {
+    ValueContainer<Value> merged = myMerged;
     if (merged != null) {
       return merged;
     }
@@ -115,12 +121,20 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
       }
 
       final ValueContainer<Value> fromDisk = myInitializer.compute();
-      final ValueContainerImpl<Value> newMerged;
+      if (fromDisk instanceof PackedValueContainer && myInvalidated == null && myAdded == null) {
+        // nothing to merge, packed data is never modified in place
+        setNeedsCompacting(fromDisk.needsCompacting());
+        myMerged = fromDisk;
+        return fromDisk;
+      }
 
+      final ValueContainerImpl<Value> newMerged;
       if (fromDisk instanceof ValueContainerImpl) {
         newMerged = ((ValueContainerImpl<Value>)fromDisk).copy();
+      } else if (fromDisk instanceof ChangeTrackingValueContainer) {
+        newMerged = copyOf(((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData());
       } else {
-        newMerged = ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData().copy();
+        newMerged = copyOf(fromDisk);
       }
 
       if (myInvalidated != null) {
@@ -150,6 +164,21 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
     }
   }
 
+  private static <Value> ValueContainerImpl<Value> copyOf(ValueContainer<Value> container) {
+    if (container instanceof ValueContainerImpl) {
+      return ((ValueContainerImpl<Value>)container).copy();
+    }
+    final ValueContainerImpl<Value> copy = new ValueContainerImpl<Value>();
+    container.forEach(new ContainerAction<Value>() {
+      @Override
+      public boolean perform(int id, Value value) {
+        copy.addValue(id, value);
+        return true;
+      }
+    });
+    return copy;
+  }
+
   public boolean isDirty() {
     return (myAdded != null && myAdded.size() > 0) ||
            (myInvalidated != null && !myInvalidated.isEmpty()) ||
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.io.*;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.io.DataOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexer wrapper reusing input data computed earlier for the same content. Data is stored in persistent maps keyed by
+ * the SHA-1 of the file bytes, the file type name, the charset and the index version, so the cache does not depend on file paths or ids
+ * and a cache directory filled on one machine can be copied to another one (see {@link #CACHE_DIR_PROPERTY}).
+ * <p/>
+ * Only indices listed in {@link #INDICES_PROPERTY} are cached: their data must be a function of the file content alone.
+ * The data is split into {@link #STRIPE_COUNT} maps by the first byte of the hash, each guarded by its own lock so that
+ * indexing threads rarely wait for each other. A map is dropped as a whole once its data files grow over its share of
+ * {@link #MAX_SIZE_PROPERTY} megabytes.
+ */
+class ContentHashIndexCache<Key, Value> implements DataIndexer<Key, Value, FileContent> {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.ContentHashIndexCache");
+
+  static final String INDICES_PROPERTY = "idea.indices.content.hash.cache";
+  static final String CACHE_DIR_PROPERTY = "idea.indices.content.hash.cache.dir";
+  static final String MAX_SIZE_PROPERTY = "idea.indices.content.hash.cache.max.mb";
+
+  private static final int FORMAT_VERSION = 2;
+  private static final int CHECK_SIZE_EVERY_PUTS = 1000;
+  private static final int STRIPE_COUNT = 8;
+
+  private final ID<Key, Value> myIndexId;
+  private final DataIndexer<Key, Value, FileContent> myIndexer;
+  private final int myIndexVersion;
+  private final long myMaxStripeSize;
+  private final DataExternalizer<Map<Key, Value>> myDataExternalizer;
+  private final List<Stripe> myStripes = new ArrayList<Stripe>(STRIPE_COUNT);
+  private final AtomicInteger myHits = new AtomicInteger();
+  private final AtomicInteger myMisses = new AtomicInteger();
+
+  ContentHashIndexCache(@NotNull ID<Key, Value> indexId,
+                        @NotNull DataIndexer<Key, Value, FileContent> indexer,
+                        int indexVersion,
+                        @NotNull KeyDescriptor<Key> keyDescriptor,
+                        @NotNull DataExternalizer<Value> valueExternalizer,
+                        @NotNull File cacheDir,
+                        long maxSize) throws IOException {
+    myIndexId = indexId;
+    myIndexer = indexer;
+    myIndexVersion = indexVersion;
+    myMaxStripeSize = maxSize / STRIPE_COUNT;
+    myDataExternalizer = new InputDataExternalizer<Key, Value>(keyDescriptor, valueExternalizer);
+
+    final File indexDir = new File(cacheDir, indexId.toString().toLowerCase(Locale.US));
+    checkFormatVersion(new File(indexDir, "format.ver"));
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      myStripes.add(new Stripe(new File(indexDir, "data" + i)));
+    }
+  }
+
+  /**
+   * @return caching wrapper for the indexer of the given extension, or the indexer itself when the index is not configured to be cached
+   */
+  @NotNull
+  static <K, V> DataIndexer<K, V, FileContent> wrap(@NotNull ID<K, V> indexId, @NotNull FileBasedIndexExtension<K, V> extension) {
+    final DataIndexer<K, V, FileContent> indexer = extension.getIndexer();
+    if (!extension.dependsOnFileContent() || !isCacheEnabledFor(indexId)) {
+      return indexer;
+    }
+
+    final String dir = System.getProperty(CACHE_DIR_PROPERTY);
+    final File cacheDir = dir != null ? new File(dir) : new File(PathManager.getSystemPath(), "content_hash_index_cache");
+    final long maxSize = (long)Integer.getInteger(MAX_SIZE_PROPERTY, 512) * 1024 * 1024;
+    try {
+      return new ContentHashIndexCache<K, V>(indexId, indexer, extension.getVersion(), extension.getKeyDescriptor(),
+                                             extension.getValueExternalizer(), cacheDir, maxSize);
+    }
+    catch (IOException e) {
+      LOG.info("Content hash cache is not available for " + indexId, e);
+      return indexer;
+    }
+  }
+
+  private static boolean isCacheEnabledFor(@NotNull ID<?, ?> indexId) {
+    final String indices = System.getProperty(INDICES_PROPERTY);
+    return indices != null && StringUtil.split(indices, ",").contains(indexId.toString());
+  }
+
+  @NotNull
+  @Override
+  public Map<Key, Value> map(FileContent inputData) {
+    final byte[] hash = computeHash(inputData);
+    if (hash != null) {
+      final Map<Key, Value> cached = getStripe(hash).read(hash);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    final Map<Key, Value> data = myIndexer.map(inputData);
+    if (hash != null) {
+      getStripe(hash).write(hash, data);
+    }
+    return data;
+  }
+
+  @Nullable
+  private byte[] computeHash(@NotNull FileContent content) {
+    final byte[] bytes = content.getContent();
+    if (bytes == null) return null;
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(content.getFileType().getName().getBytes("UTF-8"));
+      digest.update((byte)0);
+      final Charset charset = getCharset(content);
+      if (charset != null) {
+        digest.update(charset.name().getBytes("UTF-8"));
+      }
+      digest.update((byte)0);
+      digest.update(new byte[]{(byte)(myIndexVersion >>> 24), (byte)(myIndexVersion >>> 16), (byte)(myIndexVersion >>> 8), (byte)myIndexVersion});
+      digest.update(bytes);
+      return digest.digest();
+    }
+    catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+    catch (UnsupportedEncodingException e) {
+      return null;
+    }
+  }
+
+  // the indexer may see the text decoded with a charset other than the one of the file bytes, e.g. after an encoding change
+  @Nullable
+  private static Charset getCharset(@NotNull FileContent content) {
+    return content instanceof FileContentImpl ? ((FileContentImpl)content).getCharset() : content.getFile().getCharset();
+  }
+
+  @NotNull
+  private Stripe getStripe(@NotNull byte[] hash) {
+    return myStripes.get((hash[0] & 0xFF) % STRIPE_COUNT);
+  }
+
+  int getHits() {
+    return myHits.get();
+  }
+
+  int getMisses() {
+    return myMisses.get();
+  }
+
+  void flush() {
+    for (Stripe stripe : myStripes) {
+      stripe.flush();
+    }
+  }
+
+  void close() throws IOException {
+    LOG.info("Content hash cache of " + myIndexId + ": " + myHits + " hits, " + myMisses + " misses");
+    for (Stripe stripe : myStripes) {
+      stripe.close();
+    }
+  }
+
+  private class Stripe {
+    private final File myStorageFile;
+    private PersistentHashMap<byte[], Map<Key, Value>> myMap;
+    private int myPutsSinceSizeCheck;
+
+    private Stripe(@NotNull File storageFile) throws IOException {
+      myStorageFile = storageFile;
+      myMap = createMap();
+    }
+
+    @Nullable
+    private synchronized Map<Key, Value> read(@NotNull byte[] hash) {
+      try {
+        final Map<Key, Value> data = myMap.get(hash);
+        if (data != null) {
+          myHits.incrementAndGet();
+        }
+        else {
+          myMisses.incrementAndGet();
+        }
+        return data;
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        reset();
+        return null;
+      }
+    }
+
+    private synchronized void write(@NotNull byte[] hash, @NotNull Map<Key, Value> data) {
+      try {
+        myMap.put(hash, data);
+        if (++myPutsSinceSizeCheck >= CHECK_SIZE_EVERY_PUTS) {
+          myPutsSinceSizeCheck = 0;
+          if (getDataSize() > myMaxStripeSize) {
+            LOG.info("Content hash cache " + myStorageFile + " of " + myIndexId + " exceeded " + myMaxStripeSize + " bytes and is dropped");
+            reset();
+          }
+        }
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        reset();
+      }
+    }
+
+    private long getDataSize() {
+      return new File(myStorageFile.getPath() + PersistentHashMap.DATA_FILE_EXTENSION).length() + myStorageFile.length();
+    }
+
+    private synchronized void flush() {
+      myMap.force();
+    }
+
+    private synchronized void close() throws IOException {
+      myMap.close();
+    }
+
+    private void reset() {
+      try {
+        myMap.close();
+      }
+      catch (IOException ignored) {
+      }
+      PersistentHashMap.deleteFilesStartingWith(myStorageFile);
+      try {
+        myMap = createMap();
+      }
+      catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @NotNull
+    private PersistentHashMap<byte[], Map<Key, Value>> createMap() throws IOException {
+      try {
+        return new PersistentHashMap<byte[], Map<Key, Value>>(myStorageFile, HashDescriptor.INSTANCE, myDataExternalizer);
+      }
+      catch (IOException e) {
+        PersistentHashMap.deleteFilesStartingWith(myStorageFile);
+        return new PersistentHashMap<byte[], Map<Key, Value>>(myStorageFile, HashDescriptor.INSTANCE, myDataExternalizer);
+      }
+    }
+  }
+
+  // the cache is only valid for the same storage format and index version, other caches are wiped
+  private void checkFormatVersion(@NotNull File versionFile) throws IOException {
+    if (versionFile.exists()) {
+      final DataInputStream in = new DataInputStream(new FileInputStream(versionFile));
+      try {
+        if (in.readInt() == FORMAT_VERSION && in.readInt() == myIndexVersion) {
+          return;
+        }
+      }
+      catch (IOException ignored) {
+      }
+      finally {
+        in.close();
+      }
+    }
+
+    FileUtil.delete(versionFile.getParentFile());
+    FileUtil.createParentDirs(versionFile);
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(versionFile));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(myIndexVersion);
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private static class HashDescriptor implements KeyDescriptor<byte[]> {
+    private static final HashDescriptor INSTANCE = new HashDescriptor();
+
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.length);
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] value = new byte[DataInputOutputUtil.readINT(in)];
+      in.readFully(value);
+      return value;
+    }
+
+    @Override
+    public int getHashCode(byte[] value) {
+      return Arrays.hashCode(value);
+    }
+
+    @Override
+    public boolean isEqual(byte[] val1, byte[] val2) {
+      return Arrays.equals(val1, val2);
+    }
+  }
+
+  private static class InputDataExternalizer<Key, Value> implements DataExternalizer<Map<Key, Value>> {
+    private final KeyDescriptor<Key> myKeyDescriptor;
+    private final DataExternalizer<Value> myValueExternalizer;
+
+    private InputDataExternalizer(@NotNull KeyDescriptor<Key> keyDescriptor, @NotNull DataExternalizer<Value> valueExternalizer) {
+      myKeyDescriptor = keyDescriptor;
+      myValueExternalizer = valueExternalizer;
+    }
+
+    @Override
+    public void save(DataOutput out, Map<Key, Value> data) throws IOException {
+      DataInputOutputUtil.writeINT(out, data.size());
+      for (Map.Entry<Key, Value> entry : data.entrySet()) {
+        myKeyDescriptor.save(out, entry.getKey());
+        final Value value = entry.getValue();
+        out.writeBoolean(value != null);
+        if (value != null) {
+          myValueExternalizer.save(out, value);
+        }
+      }
+    }
+
+    @Override
+    public Map<Key, Value> read(DataInput in) throws IOException {
+      final int size = DataInputOutputUtil.readINT(in);
+      final THashMap<Key, Value> data = new THashMap<Key, Value>(size);
+      for (int i = 0; i < size; i++) {
+        final Key key = myKeyDescriptor.read(in);
+        data.put(key, in.readBoolean() ? myValueExternalizer.read(in) : null);
+      }
+      return data;
+    }
+  }
+}
@@ -93,6 +93,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.FileBasedIndexImpl");
   @NonNls
   private static final String CORRUPTION_MARKER_NAME = "corruption.marker";
+  private final List<ContentHashIndexCache<?, ?>> myContentHashCaches = ContainerUtil.createLockFreeCopyOnWriteList();
   private final Map<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>> myIndices =
     new THashMap<ID<?, ?>, Pair<UpdatableIndex<?, ?, FileContent>, InputFilter>>();
   private final Map<ID<?, ?>, Semaphore> myUnsavedDataIndexingSemaphores = new THashMap<ID<?, ?>, Semaphore>();
@@ -128,6 +129,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private volatile int myFilesModCount;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
   private final ConcurrentHashSet<Project> myProjectsBeingUpdated = new ConcurrentHashSet<Project>();
+  private final List<IndexUpdatePipeline> myActiveUpdatePipelines = ContainerUtil.createLockFreeCopyOnWriteList();
 
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"}) private volatile boolean myInitialized;
   // need this variable for memory barrier
@@ -487,7 +489,11 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       index = (MapReduceIndex<K, V, FileContent>)custom;
     }
     else {
-      index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage);
+      final DataIndexer<K, V, FileContent> indexer = ContentHashIndexCache.wrap(indexId, extension);
+      if (indexer instanceof ContentHashIndexCache) {
+        myContentHashCaches.add((ContentHashIndexCache<?, ?>)indexer);
+      }
+      index = new MapReduceIndex<K, V, FileContent>(indexId, indexer, storage);
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
@@ -637,6 +643,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           checkRebuild(indexId, true); // if the index was scheduled for rebuild, only clean it
           index.dispose();
         }
+        for (ContentHashIndexCache<?, ?> cache : myContentHashCaches) {
+          cache.close();
+        }
 
         myVfManager.removeVirtualFileListener(myChangedFilesCollector);
 
@@ -672,6 +681,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
     if (!HeavyProcessLatch.INSTANCE.isRunning() && modCount == myLocalModCount) { // do not interfere with 'main' jobs
       SerializationManagerEx.getInstanceEx().flushNameStorage();
+      for (ContentHashIndexCache<?, ?> cache : myContentHashCaches) {
+        cache.flush();
+      }
     }
   }
 
@@ -1166,34 +1178,21 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
       try {
         index.getReadLock().lock();
-        final List<TIntHashSet> locals = new ArrayList<TIntHashSet>();
+        final List<ValueContainer<V>> containers = new ArrayList<ValueContainer<V>>(dataKeys.size());
         for (K dataKey : dataKeys) {
-          TIntHashSet local = new TIntHashSet();
-          locals.add(local);
           final ValueContainer<V> container = index.getData(dataKey);
-
-          for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
-            final V value = valueIt.next();
-            for (final ValueContainer.IntIterator inputIdsIterator = container.getInputIdsIterator(value); inputIdsIterator.hasNext(); ) {
-              final int id = inputIdsIterator.next();
-              local.add(id);
-            }
+          if (container.size() == 0) {
+            return true; // no file has all the keys
           }
+          containers.add(container);
         }
 
-        if (locals.isEmpty()) {
+        if (containers.isEmpty()) {
           return true;
         }
 
-        Collections.sort(locals, new Comparator<TIntHashSet>() {
-          @Override
-          public int compare(TIntHashSet o1, TIntHashSet o2) {
-            return o1.size() - o2.size();
-          }
-        });
-
         final PersistentFS fs = (PersistentFS)ManagingFS.getInstance();
-        TIntIterator ids = join(locals).iterator();
+        TIntIterator ids = join(containers).iterator();
         ProjectIndexableFilesFilter projectIndexableFilesFilter = projectIndexableFiles(project);
         while (ids.hasNext()) {
           int id = ids.next();
@@ -1226,25 +1225,60 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     return true;
   }
 
+  /**
+   * Intersects input ids of the containers: ids of the smallest one are collected and checked against association predicates
+   * of the rest, so only one id set is materialized
+   */
   @NotNull
-  private static TIntHashSet join(@NotNull List<TIntHashSet> locals) {
-    TIntHashSet result = locals.get(0);
-    if (locals.size() > 1) {
-      TIntIterator it = result.iterator();
-
-      while (it.hasNext()) {
-        int id = it.next();
-        for (int i = 1; i < locals.size(); i++) {
-          if (!locals.get(i).contains(id)) {
-            it.remove();
+  private static <V> TIntHashSet join(@NotNull List<ValueContainer<V>> containers) {
+    ValueContainer<V> smallest = null;
+    int smallestSize = Integer.MAX_VALUE;
+    for (ValueContainer<V> container : containers) {
+      final int size = countInputIds(container);
+      if (size < smallestSize) {
+        smallest = container;
+        smallestSize = size;
+      }
+    }
+    assert smallest != null;
+
+    final TIntHashSet result = new TIntHashSet(smallestSize);
+    for (final Iterator<V> valueIt = smallest.getValueIterator(); valueIt.hasNext(); ) {
+      for (final ValueContainer.IntIterator inputIdsIterator = smallest.getInputIdsIterator(valueIt.next()); inputIdsIterator.hasNext(); ) {
+        result.add(inputIdsIterator.next());
+      }
+    }
+
+    for (ValueContainer<V> container : containers) {
+      if (container == smallest || result.isEmpty()) continue;
+      final List<ValueContainer.IntPredicate> predicates = new ArrayList<ValueContainer.IntPredicate>(container.size());
+      for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+        predicates.add(container.getValueAssociationPredicate(valueIt.next()));
+      }
+
+      for (TIntIterator it = result.iterator(); it.hasNext(); ) {
+        final int id = it.next();
+        boolean associated = false;
+        for (ValueContainer.IntPredicate predicate : predicates) {
+          if (predicate.contains(id)) {
+            associated = true;
             break;
           }
         }
+        if (!associated) it.remove();
       }
     }
     return result;
   }
 
+  private static <V> int countInputIds(@NotNull ValueContainer<V> container) {
+    int count = 0;
+    for (final Iterator<V> valueIt = container.getValueIterator(); valueIt.hasNext(); ) {
+      count += container.getInputIdsIterator(valueIt.next()).size();
+    }
+    return count;
+  }
+
   @Override
   public <K> void scheduleRebuild(@NotNull final ID<K, ?> indexId, @NotNull final Throwable e) {
     requestRebuild(indexId, new Throwable(e));
@@ -1631,6 +1665,32 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   }
 
   public void indexFileContent(@Nullable Project project, @NotNull com.intellij.ide.caches.FileContent content) {
+    indexFileContent(project, content, null);
+  }
+
+  /**
+   * @return pipeline for bulk indexing with deferred storage writes, or null if the pipelined mode is disabled
+   */
+  @Nullable
+  IndexUpdatePipeline startUpdatePipeline() {
+    if (!Registry.is("indexing.pipelined.writes")) return null;
+    final IndexUpdatePipeline pipeline = new IndexUpdatePipeline(this);
+    myActiveUpdatePipelines.add(pipeline);
+    return pipeline;
+  }
+
+  void finishUpdatePipeline(@NotNull IndexUpdatePipeline pipeline) {
+    try {
+      pipeline.waitForAll();
+    }
+    finally {
+      myActiveUpdatePipelines.remove(pipeline);
+    }
+  }
+
+  void indexFileContent(@Nullable Project project,
+                        @NotNull com.intellij.ide.caches.FileContent content,
+                        @Nullable IndexUpdatePipeline pipeline) {
     myChangedFilesCollector.ensureAllInvalidateTasksCompleted();
     final VirtualFile file = content.getVirtualFile();
 
@@ -1663,7 +1723,12 @@ public class FileBasedIndexImpl extends FileBasedIndex {
 
           try {
             ProgressManager.checkCanceled();
-            updateSingleIndex(indexId, file, fc);
+            if (pipeline != null) {
+              updateSingleIndexPipelined(indexId, file, fc, pipeline);
+            }
+            else {
+              updateSingleIndex(indexId, file, fc);
+            }
           }
           catch (ProcessCanceledException e) {
             myChangedFilesCollector.scheduleForUpdate(file);
@@ -1692,6 +1757,10 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     }
     myLocalModCount++;
 
+    for (IndexUpdatePipeline pipeline : myActiveUpdatePipelines) {
+      pipeline.waitFor(indexId); // writes queued by bulk indexing must not overwrite this one
+    }
+
     final int inputId = Math.abs(getFileId(file));
     final UpdatableIndex<?, ?, FileContent> index = getIndex(indexId);
     assert index != null;
@@ -1736,6 +1805,52 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     });
   }
 
+  private void updateSingleIndexPipelined(final ID<?, ?> indexId,
+                                          @NotNull final VirtualFile file,
+                                          @NotNull final FileContent currentFC,
+                                          @NotNull IndexUpdatePipeline pipeline) throws StorageException {
+    final UpdatableIndex<?, ?, FileContent> updatableIndex = getIndex(indexId);
+    assert updatableIndex != null;
+    if (!(updatableIndex instanceof MapReduceIndex)) {
+      // only map-reduce indices can prepare their updates in advance
+      updateSingleIndex(indexId, file, currentFC);
+      return;
+    }
+    if (ourRebuildStatus.get(indexId).get() == REQUIRES_REBUILD) {
+      return; // the index is scheduled for rebuild, no need to update
+    }
+    myLocalModCount++;
+
+    final int inputId = Math.abs(getFileId(file));
+    final MapReduceIndex<?, ?, FileContent> index = (MapReduceIndex<?, ?, FileContent>)updatableIndex;
+    final ThrowableRunnable<StorageException> storageUpdate = index.prepareUpdate(inputId, currentFC);
+    // the file may be changed and invalidated while its write is queued, then the write is stale and the file is to be reindexed
+    final long modificationStamp = file.getModificationStamp();
+
+    pipeline.submit(indexId, file, new ThrowableRunnable<StorageException>() {
+      @Override
+      public void run() throws StorageException {
+        if (file.getModificationStamp() != modificationStamp) {
+          return;
+        }
+        final StorageGuard.Holder lock = setDataBufferingEnabled(false);
+        try {
+          storageUpdate.run();
+        }
+        finally {
+          lock.leave();
+        }
+      }
+    }, new Runnable() {
+      @Override
+      public void run() {
+        if (file.isValid() && file.getModificationStamp() == modificationStamp) {
+          IndexingStamp.update(file, indexId, IndexInfrastructure.getIndexCreationStamp(indexId));
+        }
+      }
+    });
+  }
+
   private boolean needsFileContentLoading(ID<?, ?> indexId) {
     return !myNotRequiringContentIndices.contains(indexId);
   }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
+import com.intellij.util.containers.ConcurrentHashMap;
+import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ide.PooledThreadExecutor;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples index storage writes from content loading and mapping during bulk indexing.
+ * Indexing threads compute input data for every index of a file and hand the storage update over to a bounded per-index
+ * queue served by one pooled thread, so a thread done with fast indices never waits for the write lock of a slow one.
+ * Indexing stamps of a file are updated after its data is written and flushed once all its writes are done.
+ */
+class IndexUpdatePipeline {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexUpdatePipeline");
+  private static final int MAX_PENDING_WRITES_PER_INDEX = 64;
+
+  private final FileBasedIndexImpl myIndex;
+  private final ConcurrentHashMap<ID<?, ?>, IndexWriter> myWriters = new ConcurrentHashMap<ID<?, ?>, IndexWriter>();
+  private final TObjectIntHashMap<VirtualFile> myPendingWritesPerFile = new TObjectIntHashMap<VirtualFile>();
+
+  private final AtomicInteger myWritesCount = new AtomicInteger();
+  private final AtomicLong myStalledNanos = new AtomicLong();
+
+  IndexUpdatePipeline(@NotNull FileBasedIndexImpl index) {
+    myIndex = index;
+  }
+
+  private static class IndexWriter {
+    private final BoundedTaskExecutor myExecutor = new BoundedTaskExecutor(new PooledThreadExecutor(), 1);
+    private final Semaphore mySlots = new Semaphore(MAX_PENDING_WRITES_PER_INDEX);
+    // guarded by this
+    private Future<?> myLastTask;
+    private long mySubmittedWrites;
+    private long myAppliedWrites;
+  }
+
+  @NotNull
+  private IndexWriter getWriter(@NotNull ID<?, ?> indexId) {
+    IndexWriter writer = myWriters.get(indexId);
+    if (writer == null) {
+      writer = new IndexWriter();
+      IndexWriter existing = myWriters.putIfAbsent(indexId, writer);
+      if (existing != null) writer = existing;
+    }
+    return writer;
+  }
+
+  /**
+   * Queues the storage update of the given index, blocking (cancellably) while too many writes for it are pending.
+   * {@code afterWrite} runs in a read action once the storage update succeeds.
+   */
+  void submit(@NotNull final ID<?, ?> indexId,
+              @NotNull final VirtualFile file,
+              @NotNull final ThrowableRunnable<StorageException> write,
+              @NotNull final Runnable afterWrite) {
+    final IndexWriter writer = getWriter(indexId);
+    acquireSlot(writer);
+
+    synchronized (myPendingWritesPerFile) {
+      myPendingWritesPerFile.put(file, myPendingWritesPerFile.get(file) + 1);
+    }
+
+    final Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          boolean written = false;
+          try {
+            write.run();
+            written = true;
+            myWritesCount.incrementAndGet();
+          }
+          catch (StorageException e) {
+            myIndex.requestRebuild(indexId, e);
+          }
+          finally {
+            writeApplied(writer);
+          }
+          if (written) {
+            // not before the write is counted as applied: waitFor() may be called under a write action
+            ApplicationManager.getApplication().runReadAction(afterWrite);
+          }
+        }
+        catch (Throwable e) {
+          LOG.error(e);
+        }
+        finally {
+          writer.mySlots.release();
+          fileWriteFinished(file);
+        }
+      }
+    };
+    // tasks must be counted in the order of submission, otherwise waitFor() can miss a write queued by another thread
+    synchronized (writer) {
+      writer.myLastTask = writer.myExecutor.submit(task);
+      writer.mySubmittedWrites++;
+    }
+  }
+
+  private static void writeApplied(@NotNull IndexWriter writer) {
+    synchronized (writer) {
+      writer.myAppliedWrites++;
+      writer.notifyAll();
+    }
+  }
+
+  private void acquireSlot(@NotNull IndexWriter writer) {
+    if (writer.mySlots.tryAcquire()) return;
+
+    final long started = System.nanoTime();
+    try {
+      while (!writer.mySlots.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+        ProgressManager.checkCanceled();
+      }
+    }
+    catch (InterruptedException e) {
+      throw new ProcessCanceledException();
+    }
+    finally {
+      myStalledNanos.addAndGet(System.nanoTime() - started);
+    }
+  }
+
+  private void fileWriteFinished(@NotNull final VirtualFile file) {
+    final boolean lastWrite;
+    synchronized (myPendingWritesPerFile) {
+      final int pending = myPendingWritesPerFile.get(file) - 1;
+      lastWrite = pending <= 0;
+      if (lastWrite) {
+        myPendingWritesPerFile.remove(file);
+      }
+      else {
+        myPendingWritesPerFile.put(file, pending);
+      }
+    }
+    if (lastWrite) {
+      ApplicationManager.getApplication().runReadAction(new Runnable() {
+        @Override
+        public void run() {
+          IndexingStamp.flushCache(file);
+        }
+      });
+    }
+  }
+
+  /**
+   * Waits until all storage updates queued so far for the given index are applied
+   */
+  void waitFor(@NotNull ID<?, ?> indexId) {
+    final IndexWriter writer = myWriters.get(indexId);
+    if (writer == null) return;
+    synchronized (writer) {
+      final long submitted = writer.mySubmittedWrites;
+      while (writer.myAppliedWrites < submitted) {
+        try {
+          writer.wait();
+        }
+        catch (InterruptedException e) {
+          LOG.info(e);
+          return;
+        }
+      }
+    }
+  }
+
+  void waitForAll() {
+    for (IndexWriter writer : myWriters.values()) {
+      final Future<?> lastTask;
+      synchronized (writer) {
+        lastTask = writer.myLastTask;
+      }
+      if (lastTask == null) continue;
+      try {
+        lastTask.get();
+      }
+      catch (InterruptedException e) {
+        LOG.info(e);
+      }
+      catch (ExecutionException e) {
+        LOG.error(e);
+      }
+    }
+    IndexingStamp.flushCache(null);
+    LOG.info("Pipelined index writes: " + myWritesCount.get() + " updates, indexing threads stalled on full queues for " +
+             TimeUnit.NANOSECONDS.toMillis(myStalledNanos.get()) + " ms");
+  }
+}
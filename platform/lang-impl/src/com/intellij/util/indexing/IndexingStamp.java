@@ -20,10 +20,13 @@ import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.openapi.vfs.newvfs.FileAttribute;
 import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.io.DataInputOutputUtil;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TObjectLongHashMap;
 import gnu.trove.TObjectLongProcedure;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.DataInputStream;
@@ -36,6 +39,8 @@ import java.util.concurrent.ArrayBlockingQueue;
  *         Date: Dec 25, 2007
  */
 public class IndexingStamp {
+  private static final boolean ourMappedStorage = SystemProperties.getBooleanProperty("idea.indexing.stamps.mapped", false);
+
   private IndexingStamp() {
   }
 
@@ -47,18 +52,16 @@ public class IndexingStamp {
     private TObjectLongHashMap<ID<?, ?>> myIndexStamps;
     private boolean myIsDirty = false;
 
+    private Timestamps() {
+    }
+
     private Timestamps(@Nullable DataInputStream stream) throws IOException {
       if (stream != null) {
         try {
 
           long dominatingIndexStamp = DataInputOutputUtil.readTIME(stream);
           while(stream.available() > 0) {
-            ID<?, ?> id = ID.findById(DataInputOutputUtil.readINT(stream));
-            if (id != null) {
-              long stamp = IndexInfrastructure.getIndexCreationStamp(id);
-              if (myIndexStamps == null) myIndexStamps = new TObjectLongHashMap<ID<?, ?>>(5, 0.98f);
-              if (stamp <= dominatingIndexStamp) myIndexStamps.put(id, stamp);
-            }
+            load(DataInputOutputUtil.readINT(stream), dominatingIndexStamp);
           }
         }
         finally {
@@ -67,6 +70,43 @@ public class IndexingStamp {
       }
     }
 
+    private void load(int uniqueId, long dominatingIndexStamp) {
+      ID<?, ?> id = ID.findById(uniqueId);
+      if (id != null) {
+        long stamp = IndexInfrastructure.getIndexCreationStamp(id);
+        if (myIndexStamps == null) myIndexStamps = new TObjectLongHashMap<ID<?, ?>>(5, 0.98f);
+        if (stamp <= dominatingIndexStamp) myIndexStamps.put(id, stamp);
+      }
+    }
+
+    @Nullable
+    private static Timestamps readFromStorage(@NotNull IndexingStampStorage storage, int fileId) {
+      final Timestamps timestamps = new Timestamps();
+      final int state = storage.read(fileId, new IndexingStampStorage.StampConsumer() {
+        @Override
+        public void consume(int indexId, long dominatingStamp) {
+          timestamps.load(indexId, dominatingStamp);
+        }
+      });
+      return state == IndexingStampStorage.NO_RECORD ? null : timestamps;
+    }
+
+    private void writeToStorage(@NotNull IndexingStampStorage storage, int fileId) {
+      final long[] dominatingIndexStamp = new long[1];
+      final TIntArrayList ids = new TIntArrayList();
+      if (myIndexStamps != null) {
+        myIndexStamps.forEachEntry(new TObjectLongProcedure<ID<?, ?>>() {
+          @Override
+          public boolean execute(ID<?, ?> id, long stamp) {
+            dominatingIndexStamp[0] = Math.max(dominatingIndexStamp[0], stamp);
+            ids.add(id.getUniqueId());
+            return true;
+          }
+        });
+      }
+      storage.write(fileId, dominatingIndexStamp[0], ids.toNativeArray());
+    }
+
     private void writeToStream(final DataOutputStream stream) throws IOException {
       if (myIndexStamps != null && !myIndexStamps.isEmpty()) {
         final long[] dominatingIndexStamp = new long[1];
@@ -142,12 +182,24 @@ public class IndexingStamp {
 
   public static long getIndexStamp(VirtualFile file, ID<?, ?> indexName) {
     synchronized (myTimestampsCache) {
-      Timestamps stamp = createOrGetTimeStamp(file);
+      Timestamps stamp = ourMappedStorage ? myTimestampsCache.get(file) : null;
+      if (stamp == null && ourMappedStorage) {
+        // checks during the unindexed files scan read the mapped record without keeping it in the cache
+        stamp = readFromStorage(file);
+      }
+      if (stamp == null) stamp = createOrGetTimeStamp(file);
       if (stamp != null) return stamp.get(indexName);
       return 0;
     }
   }
 
+  @Nullable
+  private static Timestamps readFromStorage(VirtualFile file) {
+    if (!(file instanceof NewVirtualFile) || !file.isValid()) return null;
+    final IndexingStampStorage storage = IndexingStampStorage.getInstance();
+    return storage != null ? Timestamps.readFromStorage(storage, ((NewVirtualFile)file).getId()) : null;
+  }
+
   private static Timestamps createOrGetTimeStamp(VirtualFile file) {
     if (file instanceof NewVirtualFile && file.isValid()) {
       Timestamps timestamps = myTimestampsCache.get(file);
@@ -155,12 +207,17 @@ public class IndexingStamp {
         synchronized (myTimestampsCache) { // avoid synchroneous reads TODO:
           timestamps = myTimestampsCache.get(file);
           if (timestamps == null) {
-            final DataInputStream stream = Timestamps.PERSISTENCE.readAttribute(file);
-            try {
-              timestamps = new Timestamps(stream);
+            if (ourMappedStorage) {
+              timestamps = readFromStorage(file);
             }
-            catch (IOException e) {
-              throw new RuntimeException(e);
+            if (timestamps == null) {
+              final DataInputStream stream = Timestamps.PERSISTENCE.readAttribute(file);
+              try {
+                timestamps = new Timestamps(stream);
+              }
+              catch (IOException e) {
+                throw new RuntimeException(e);
+              }
             }
             myTimestampsCache.put(file, timestamps);
           }
@@ -201,9 +258,15 @@ public class IndexingStamp {
             synchronized (myTimestampsCache) {
               try {
                 if (timestamp.isDirty() && file.isValid()) {
-                  final DataOutputStream sink = Timestamps.PERSISTENCE.writeAttribute(file);
-                  timestamp.writeToStream(sink);
-                  sink.close();
+                  final IndexingStampStorage storage = ourMappedStorage ? IndexingStampStorage.getInstance() : null;
+                  if (storage != null) {
+                    timestamp.writeToStorage(storage, ((NewVirtualFile)file).getId());
+                  }
+                  else {
+                    final DataOutputStream sink = Timestamps.PERSISTENCE.writeAttribute(file);
+                    timestamp.writeToStream(sink);
+                    sink.close();
+                  }
                 }
               }
               catch (IOException e) {
@@ -214,6 +277,10 @@ public class IndexingStamp {
         }
       }
       if (finishedFile != null) myFinishedFiles.offer(finishedFile);
+      else if (ourMappedStorage) {
+        final IndexingStampStorage storage = IndexingStampStorage.getInstance();
+        if (storage != null) storage.force();
+      }
     }
   }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.newvfs.persistent.FSRecords;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Indexing stamps of all files in one memory-mapped file with a fixed-width record per file id: the mod count of the file
+ * record at the time of writing, the dominating index creation stamp and a bit per index unique id. Checking whether a file
+ * is indexed is then a single mapped read instead of an attribute stream lookup.
+ * <p/>
+ * A record is only trusted while the mod count of the file record is the same, so stamps of a deleted file are never
+ * applied to another file reusing its record. Files whose record was never written fall back to the stamps attribute.
+ */
+class IndexingStampStorage {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexingStampStorage");
+
+  private static final int VERSION = 1;
+  private static final int VERSION_OFFSET = 0;
+  private static final int WIDTH_OFFSET = 4;
+  private static final int VFS_TIMESTAMP_OFFSET = 8;
+  private static final int HEADER_SIZE = 16;
+
+  private static final int MOD_COUNT_OFFSET = 0;
+  private static final int DOMINATING_STAMP_OFFSET = 4;
+  private static final int BITS_OFFSET = 12;
+  private static final int INITIAL_WIDTH = 32;
+
+  static final int NO_RECORD = 0;
+  static final int STALE_RECORD = 1;
+  static final int VALID_RECORD = 2;
+
+  private static IndexingStampStorage ourInstance;
+
+  private final File myFile;
+  private ResizeableMappedFile myStorage;
+  private int myWidth;
+
+  IndexingStampStorage(@NotNull File file) throws IOException {
+    myFile = file;
+    myStorage = open(file);
+    final long vfsTimestamp = FSRecords.getCreationTimestamp();
+    if (myStorage.length() < HEADER_SIZE ||
+        myStorage.getInt(VERSION_OFFSET) != VERSION ||
+        myStorage.getLong(VFS_TIMESTAMP_OFFSET) != vfsTimestamp) {
+      myStorage.close();
+      deleteFiles(file);
+      myStorage = open(file);
+      myStorage.putInt(VERSION_OFFSET, VERSION);
+      myStorage.putInt(WIDTH_OFFSET, INITIAL_WIDTH);
+      myStorage.putLong(VFS_TIMESTAMP_OFFSET, vfsTimestamp);
+    }
+    myWidth = myStorage.getInt(WIDTH_OFFSET);
+  }
+
+  @Nullable
+  static synchronized IndexingStampStorage getInstance() {
+    if (ourInstance == null) {
+      try {
+        ourInstance = new IndexingStampStorage(new File(PathManager.getIndexRoot(), "indexing.stamps"));
+      }
+      catch (IOException e) {
+        LOG.info(e);
+        return null;
+      }
+    }
+    return ourInstance;
+  }
+
+  @NotNull
+  private static ResizeableMappedFile open(@NotNull File file) throws IOException {
+    return new ResizeableMappedFile(file, 64 * 1024, new PagedFileStorage.StorageLockContext(false), -1, false);
+  }
+
+  private static void deleteFiles(@NotNull File file) {
+    FileUtil.delete(file);
+    FileUtil.delete(new File(file.getPath() + ".len"));
+  }
+
+  private static int recordSize(int width) {
+    return BITS_OFFSET + width;
+  }
+
+  private static long recordOffset(int fileId, int width) {
+    return HEADER_SIZE + (long)fileId * recordSize(width);
+  }
+
+  /**
+   * Reads stamps of the given file into the consumer
+   * @return {@link #NO_RECORD} if stamps of the file were never written here, {@link #STALE_RECORD} if the file has changed since
+   */
+  synchronized int read(int fileId, @NotNull StampConsumer consumer) {
+    final long offset = recordOffset(fileId, myWidth);
+    if (offset + recordSize(myWidth) > myStorage.length()) return NO_RECORD;
+
+    final int storedModCount = myStorage.getInt((int)offset + MOD_COUNT_OFFSET);
+    if (storedModCount == 0) return NO_RECORD;
+    if (storedModCount != FSRecords.getModCount(fileId)) return STALE_RECORD;
+
+    final long dominatingStamp = myStorage.getLong((int)offset + DOMINATING_STAMP_OFFSET);
+    final byte[] bits = new byte[myWidth];
+    myStorage.get((int)offset + BITS_OFFSET, bits, 0, myWidth);
+    for (int i = 0; i < bits.length; i++) {
+      int b = bits[i] & 0xFF;
+      while (b != 0) {
+        final int bit = Integer.numberOfTrailingZeros(b);
+        consumer.consume(i * 8 + bit, dominatingStamp);
+        b &= b - 1;
+      }
+    }
+    return VALID_RECORD;
+  }
+
+  /**
+   * Writes stamps of the given file: the dominating creation stamp and unique ids of indices the file is indexed by
+   */
+  synchronized void write(int fileId, long dominatingStamp, @NotNull int[] indexIds) {
+    int maxId = 0;
+    for (int id : indexIds) {
+      maxId = Math.max(maxId, id);
+    }
+    if (maxId >= myWidth * 8) {
+      widen(Math.max(myWidth * 2, (maxId / 8 + 8) & ~7));
+    }
+
+    final byte[] record = new byte[recordSize(myWidth)];
+    final int modCount = Math.max(1, FSRecords.getModCount(fileId));
+    putInt(record, MOD_COUNT_OFFSET, modCount);
+    putLong(record, DOMINATING_STAMP_OFFSET, dominatingStamp);
+    for (int id : indexIds) {
+      record[BITS_OFFSET + id / 8] |= 1 << (id % 8);
+    }
+    myStorage.put((int)recordOffset(fileId, myWidth), record, 0, record.length);
+  }
+
+  synchronized void force() {
+    myStorage.force();
+  }
+
+  synchronized void close() {
+    myStorage.close();
+  }
+
+  // rewrites all records with the new bitset width, ids stay the same
+  private void widen(int newWidth) {
+    final File newFile = new File(myFile.getPath() + ".new");
+    try {
+      deleteFiles(newFile);
+      final ResizeableMappedFile target = open(newFile);
+      try {
+        target.putInt(VERSION_OFFSET, VERSION);
+        target.putInt(WIDTH_OFFSET, newWidth);
+        target.putLong(VFS_TIMESTAMP_OFFSET, myStorage.getLong(VFS_TIMESTAMP_OFFSET));
+
+        final int oldSize = recordSize(myWidth);
+        final byte[] record = new byte[oldSize];
+        final long recordCount = (myStorage.length() - HEADER_SIZE) / oldSize;
+        for (int fileId = 0; fileId < recordCount; fileId++) {
+          myStorage.get((int)recordOffset(fileId, myWidth), record, 0, oldSize);
+          if (getInt(record, MOD_COUNT_OFFSET) == 0) continue;
+          target.put((int)recordOffset(fileId, newWidth), record, 0, oldSize);
+        }
+      }
+      finally {
+        target.close();
+      }
+
+      myStorage.close();
+      deleteFiles(myFile);
+      FileUtil.rename(newFile, myFile);
+      FileUtil.rename(new File(newFile.getPath() + ".len"), new File(myFile.getPath() + ".len"));
+      myStorage = open(myFile);
+      myWidth = newWidth;
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static void putInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte)(value >>> 24);
+    bytes[offset + 1] = (byte)(value >>> 16);
+    bytes[offset + 2] = (byte)(value >>> 8);
+    bytes[offset + 3] = (byte)value;
+  }
+
+  private static int getInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+  }
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    putInt(bytes, offset, (int)(value >>> 32));
+    putInt(bytes, offset + 4, (int)value);
+  }
+
+  interface StampConsumer {
+    void consume(int indexId, long dominatingStamp);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TObjectIntHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Read-only value container keeping input ids of every value as a sorted, delta and varint encoded byte array.
+ * Input ids are decoded while being iterated, so no per-id or per-set objects are retained in the index cache.
+ */
+class PackedValueContainer<Value> extends ValueContainer<Value> {
+  private static final int MAX_VALUES_TO_SCAN = 8;
+
+  private final Object[] myValues;
+  private final byte[][] myPackedIds;
+  private final int[] myIdCounts;
+  private final TObjectIntHashMap<Object> myValueIndices; // non-null values to their index + 1, only for containers with many values
+  private final int myNullValueIndex;
+
+  private PackedValueContainer(@NotNull Object[] values, @NotNull byte[][] packedIds, @NotNull int[] idCounts) {
+    myValues = values;
+    myPackedIds = packedIds;
+    myIdCounts = idCounts;
+
+    int nullValueIndex = -1;
+    TObjectIntHashMap<Object> valueIndices = null;
+    if (values.length > MAX_VALUES_TO_SCAN) {
+      valueIndices = new TObjectIntHashMap<Object>(values.length);
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] == null) {
+          nullValueIndex = i;
+        }
+        else {
+          valueIndices.put(values[i], i + 1);
+        }
+      }
+    }
+    myValueIndices = valueIndices;
+    myNullValueIndex = nullValueIndex;
+  }
+
+  @NotNull
+  static <Value> PackedValueContainer<Value> pack(@NotNull Map<Value, TIntArrayList> mapping) {
+    int size = 0;
+    for (TIntArrayList ids : mapping.values()) {
+      if (!ids.isEmpty()) size++;
+    }
+
+    final Object[] values = new Object[size];
+    final byte[][] packedIds = new byte[size][];
+    final int[] idCounts = new int[size];
+    int i = 0;
+    for (Map.Entry<Value, TIntArrayList> entry : mapping.entrySet()) {
+      final TIntArrayList ids = entry.getValue();
+      if (ids.isEmpty()) continue;
+      ids.sort();
+      values[i] = entry.getKey();
+      idCounts[i] = packSorted(ids, packedIds, i);
+      i++;
+    }
+    return new PackedValueContainer<Value>(values, packedIds, idCounts);
+  }
+
+  // writes distinct ids of the sorted list into packedIds[index] and returns their count
+  private static int packSorted(@NotNull TIntArrayList ids, @NotNull byte[][] packedIds, int index) {
+    byte[] buffer = new byte[ids.size() * 2];
+    int length = 0;
+    int count = 0;
+    int previous = 0;
+    for (int i = 0; i < ids.size(); i++) {
+      final int id = ids.getQuick(i);
+      if (count > 0 && id == previous) continue;
+
+      if (buffer.length - length < 5) buffer = Arrays.copyOf(buffer, buffer.length * 2 + 5);
+      int delta = id - previous;
+      while ((delta & ~0x7F) != 0) {
+        buffer[length++] = (byte)((delta & 0x7F) | 0x80);
+        delta >>>= 7;
+      }
+      buffer[length++] = (byte)delta;
+      previous = id;
+      count++;
+    }
+    packedIds[index] = length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    return count;
+  }
+
+  private int indexOf(Value value) {
+    if (myValueIndices != null) {
+      return value == null ? myNullValueIndex : myValueIndices.get(value) - 1;
+    }
+    for (int i = 0; i < myValues.length; i++) {
+      final Object candidate = myValues[i];
+      if (candidate == value || candidate != null && candidate.equals(value)) return i;
+    }
+    return -1;
+  }
+
+  @Override
+  public IntIterator getInputIdsIterator(Value value) {
+    final int index = indexOf(value);
+    return index >= 0 ? new PackedIdsIterator(myPackedIds[index], myIdCounts[index]) : ValueContainerImpl.EMPTY_ITERATOR;
+  }
+
+  @Override
+  public boolean isAssociated(Value value, int inputId) {
+    final int index = indexOf(value);
+    if (index < 0) return false;
+    for (PackedIdsIterator ids = new PackedIdsIterator(myPackedIds[index], myIdCounts[index]); ids.hasNext(); ) {
+      final int id = ids.next();
+      if (id >= inputId) return id == inputId;
+    }
+    return false;
+  }
+
+  @Override
+  public IntPredicate getValueAssociationPredicate(Value value) {
+    final int index = indexOf(value);
+    final int[] ids = new int[index >= 0 ? myIdCounts[index] : 0];
+    if (index >= 0) {
+      final PackedIdsIterator iterator = new PackedIdsIterator(myPackedIds[index], myIdCounts[index]);
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = iterator.next();
+      }
+    }
+    return new IntPredicate() {
+      @Override
+      boolean contains(int id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+      }
+    };
+  }
+
+  @Override
+  public Iterator<Value> getValueIterator() {
+    return toValueList().iterator();
+  }
+
+  @Override
+  public List<Value> toValueList() {
+    //noinspection unchecked
+    return Collections.unmodifiableList(Arrays.asList((Value[])myValues));
+  }
+
+  @Override
+  public int size() {
+    return myValues.length;
+  }
+
+  private static class PackedIdsIterator implements IntIterator {
+    private final byte[] myBytes;
+    private final int mySize;
+    private int myOffset;
+    private int myPrevious;
+
+    private PackedIdsIterator(@NotNull byte[] bytes, int size) {
+      myBytes = bytes;
+      mySize = size;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return myOffset < myBytes.length;
+    }
+
+    @Override
+    public int next() {
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = myBytes[myOffset++];
+        delta |= (b & 0x7F) << shift;
+        shift += 7;
+      }
+      while (b < 0);
+      myPrevious += delta;
+      return myPrevious;
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+  }
+}
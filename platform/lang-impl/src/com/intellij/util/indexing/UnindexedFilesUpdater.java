@@ -38,6 +38,7 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   private final Project myProject;
   private final AtomicBoolean myFinishedUpdate = new AtomicBoolean();
   private long myStarted;
+  private volatile IndexUpdatePipeline myPipeline;
 
   public UnindexedFilesUpdater(final Project project, FileBasedIndexImpl index) {
     myIndex = index;
@@ -60,18 +61,20 @@ public class UnindexedFilesUpdater implements CacheUpdater {
     LOG.info("Unindexed files update started: " + files.size() + " files to update");
     myFinishedUpdate.set(false);
     myStarted = System.currentTimeMillis();
+    myPipeline = myIndex.startUpdatePipeline();
     return VfsUtilCore.toVirtualFileArray(files);
   }
 
   @Override
   public void processFile(final FileContent fileContent) {
-    myIndex.indexFileContent(myProject, fileContent);
+    myIndex.indexFileContent(myProject, fileContent, myPipeline);
     IndexingStamp.flushCache(fileContent.getVirtualFile());
   }
 
   @Override
   public void updatingDone() {
     if (myFinishedUpdate.compareAndSet(false, true)) {
+      finishPipeline();
       myIndex.filesUpdateFinished(myProject);
       LOG.info("Unindexed files update done in " + (System.currentTimeMillis() - myStarted) + " ms");
     }
@@ -80,8 +83,17 @@ public class UnindexedFilesUpdater implements CacheUpdater {
   @Override
   public void canceled() {
     if (myFinishedUpdate.compareAndSet(false, true)) {
+      finishPipeline();
       myIndex.filesUpdateFinished(myProject);
       LOG.info("Unindexed files update canceled");
     }
   }
+
+  private void finishPipeline() {
+    final IndexUpdatePipeline pipeline = myPipeline;
+    if (pipeline != null) {
+      myPipeline = null;
+      myIndex.finishUpdatePipeline(pipeline);
+    }
+  }
 }
@@ -1,19 +1,27 @@
 package com.intellij.util.indexing;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * @author Dmitry Avdeev
  *         Date: 8/10/11
  */
 class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContainer<Value>> {
+  // read value containers keep input ids packed instead of materializing hash sets for them
+  private static final boolean ourPackedContainers = SystemProperties.getBooleanProperty("idea.indices.packed.value.containers", false);
+
   @NotNull private final ValueContainerExternalizer<Value> myValueContainerExternalizer;
 
   ValueContainerMap(@NotNull final File file,
@@ -101,7 +109,12 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
 
     @NotNull
     @Override
-    public ValueContainerImpl<T> read(final DataInput in) throws IOException {
+    public ValueContainer<T> read(final DataInput in) throws IOException {
+      return ourPackedContainers ? readPacked(in) : readImpl(in);
+    }
+
+    @NotNull
+    private ValueContainerImpl<T> readImpl(final DataInput in) throws IOException {
       DataInputStream stream = (DataInputStream)in;
       final ValueContainerImpl<T> valueContainer = new ValueContainerImpl<T>();
 
@@ -124,6 +137,53 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
       }
       return valueContainer;
     }
+
+    @NotNull
+    private PackedValueContainer<T> readPacked(final DataInput in) throws IOException {
+      DataInputStream stream = (DataInputStream)in;
+      // ids of every value interleaved with the number of invalidations read before them
+      final Map<T, TIntArrayList> addedIds = new HashMap<T, TIntArrayList>(); // values may be null
+      final TIntIntHashMap lastInvalidations = new TIntIntHashMap();
+      int invalidations = 0;
+
+      while (stream.available() > 0) {
+        final int valueCount = DataInputOutputUtil.readSINT(in);
+        if (valueCount < 0) {
+          lastInvalidations.put(-valueCount, ++invalidations);
+        }
+        else {
+          for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
+            final T value = myExternalizer.read(in);
+            final int idCount = DataInputOutputUtil.readSINT(in);
+            TIntArrayList ids = addedIds.get(value);
+            if (ids == null) {
+              ids = new TIntArrayList(idCount * 2);
+              addedIds.put(value, ids);
+            }
+            for (int i = 0; i < idCount; i++) {
+              ids.add(DataInputOutputUtil.readSINT(in));
+              ids.add(invalidations);
+            }
+          }
+        }
+      }
+
+      // an id stays associated with a value only if it was added after the last invalidation of the id
+      final Map<T, TIntArrayList> mapping = new HashMap<T, TIntArrayList>(addedIds.size());
+      for (Map.Entry<T, TIntArrayList> entry : addedIds.entrySet()) {
+        final TIntArrayList added = entry.getValue();
+        final TIntArrayList ids = new TIntArrayList(added.size() / 2);
+        for (int i = 0; i < added.size(); i += 2) {
+          final int id = added.getQuick(i);
+          if (added.getQuick(i + 1) >= lastInvalidations.get(id)) ids.add(id);
+        }
+        mapping.put(entry.getKey(), ids);
+      }
+
+      final PackedValueContainer<T> valueContainer = PackedValueContainer.pack(mapping);
+      valueContainer.setNeedsCompacting(invalidations > 0);
+      return valueContainer;
+    }
   }
 
 }
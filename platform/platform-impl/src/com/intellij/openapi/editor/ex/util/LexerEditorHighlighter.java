@@ -15,8 +15,11 @@
  */
 package com.intellij.openapi.editor.ex.util;
 
+import com.intellij.lang.Language;
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.HighlighterColors;
@@ -32,19 +35,36 @@ import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.concurrency.BoundedTaskExecutor;
 import com.intellij.util.ui.UIUtil;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
+import org.jetbrains.ide.PooledThreadExecutor;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
+  // covers the text which is still being lexed in background
+  private static final IElementType NOT_LEXED = new IElementType("NOT_LEXED", Language.ANY);
+  private static final int BACKGROUND_CHUNK_SIZE = 256 * 1024;
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<IElementType, TextAttributes>();
@@ -52,6 +72,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private final SyntaxHighlighter myHighlighter;
   private EditorColorsScheme myScheme;
   private final int myInitialState;
+  private BackgroundLexing myBackgroundLexing;
 
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
@@ -142,6 +163,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     final Document document = e.getDocument();
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
+      cancelBackgroundLexing();
       mySegments.removeAll();
       return;
     }
@@ -151,6 +173,11 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       return;
     }
 
+    if (myBackgroundLexing != null) {
+      restartBackgroundLexing(e);
+      return;
+    }
+
     CharSequence text = document.getCharsSequence();
     int oldStartOffset = e.getOffset();
 
@@ -303,6 +330,13 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    cancelBackgroundLexing();
+    if (shouldLexInBackground(text)) {
+      mySegments.removeAll();
+      lexInBackground(0, text.length());
+      return;
+    }
+
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
@@ -332,6 +366,79 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     return new TokenProcessor();
   }
 
+  /**
+   * @return false if the text of this highlighter must be lexed synchronously, e.g. because its {@link TokenProcessor}
+   * does more than storing the tokens
+   */
+  protected boolean canLexInBackground() {
+    return true;
+  }
+
+  private boolean shouldLexInBackground(@NotNull CharSequence text) {
+    final Document document = getDocument();
+    return document != null && document.getTextLength() == text.length() && canLexInBackground() &&
+           isBackgroundLexingEnabled(text.length());
+  }
+
+  /**
+   * @return true if the document text of the given length is to be lexed in background. Disabled in tests and in headless
+   * environment, where the callers expect the tokens to be ready right after {@link #setText(CharSequence)}
+   */
+  protected boolean isBackgroundLexingEnabled(int textLength) {
+    final Application application = ApplicationManager.getApplication();
+    if (application.isUnitTestMode() || application.isHeadlessEnvironment()) {
+      return false;
+    }
+    final int threshold = Registry.intValue("editor.lexer.background.threshold");
+    return threshold > 0 && textLength >= threshold;
+  }
+
+  @TestOnly
+  public synchronized boolean isLexingInBackground() {
+    return myBackgroundLexing != null;
+  }
+
+  /**
+   * Covers the text from <code>startOffset</code>, where the existing segments end, with a placeholder token and starts lexing it
+   * in background
+   */
+  private void lexInBackground(int startOffset, int textLength) {
+    if (startOffset >= textLength) {
+      return;
+    }
+    mySegments.setElementAt(mySegments.getSegmentCount(), startOffset, textLength, packData(NOT_LEXED, myInitialState));
+    myBackgroundLexing = new BackgroundLexing(startOffset);
+    ApplicationManager.getApplication().executeOnPooledThread(myBackgroundLexing);
+  }
+
+  private void cancelBackgroundLexing() {
+    if (myBackgroundLexing != null) {
+      myBackgroundLexing.myIndicator.cancel();
+      myBackgroundLexing = null;
+    }
+  }
+
+  /**
+   * The document is changed while its text is being lexed in background: tokens are dropped from the last one started
+   * in the initial state before the change, and the rest of the text is lexed anew
+   */
+  private void restartBackgroundLexing(@NotNull DocumentEvent e) {
+    final int notLexedIndex = mySegments.getSegmentCount() - 1;
+    int startIndex = notLexedIndex;
+    if (e.getOffset() < mySegments.getSegmentStart(notLexedIndex)) {
+      startIndex = Math.max(0, mySegments.findSegmentIndex(e.getOffset()) - 2);
+      while (startIndex > 0 && !isInitialState(mySegments.getSegmentData(startIndex))) {
+        startIndex--;
+      }
+    }
+    final int startOffset = mySegments.getSegmentStart(startIndex);
+    final int textLength = e.getDocument().getTextLength();
+    cancelBackgroundLexing();
+    mySegments.remove(startIndex, mySegments.getSegmentCount());
+    lexInBackground(startOffset, textLength);
+    myEditor.repaint(startOffset, textLength);
+  }
+
   private TextAttributes getAttributes(IElementType tokenType) {
     TextAttributes attrs = myAttributesMap.get(tokenType);
     if (attrs == null) {
@@ -408,4 +515,202 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   public SegmentArrayWithData getSegments() {
     return mySegments;
   }
+
+  /**
+   * Lexes the text after the given offset on pooled threads. The text is split into chunks at line starts, and every chunk is
+   * lexed speculatively from the initial lexer state. Then the chunks are joined in order: the text before a chunk boundary is
+   * relexed from the last token started in the initial state until a token coincides with a speculative token of the next chunk,
+   * so the result is the same as of sequential lexing. Joined tokens are published to the highlighter as soon as they are ready.
+   */
+  private class BackgroundLexing implements Runnable {
+    private final int myStartOffset;
+    private final ProgressIndicator myIndicator = new ProgressIndicatorBase();
+    private long myStamp;
+
+    private BackgroundLexing(int startOffset) {
+      myStartOffset = startOffset;
+    }
+
+    @Override
+    public void run() {
+      try {
+        final String text = ApplicationManager.getApplication().runReadAction(new Computable<String>() {
+          @Override
+          public String compute() {
+            synchronized (LexerEditorHighlighter.this) {
+              final Document document = getDocument();
+              if (myBackgroundLexing != BackgroundLexing.this || document == null) {
+                return null;
+              }
+              myStamp = document.getModificationStamp();
+              return document.getText();
+            }
+          }
+        });
+        if (text != null) {
+          lex(text);
+        }
+      }
+      catch (ProcessCanceledException ignored) {
+      }
+    }
+
+    private void lex(@NotNull final String text) {
+      final TIntArrayList bounds = new TIntArrayList();
+      bounds.add(myStartOffset);
+      int offset = myStartOffset + BACKGROUND_CHUNK_SIZE;
+      while (offset < text.length()) {
+        final int lineEnd = text.indexOf('\n', offset);
+        if (lineEnd < 0 || lineEnd + 1 >= text.length()) break;
+        bounds.add(lineEnd + 1);
+        offset = lineEnd + 1 + BACKGROUND_CHUNK_SIZE;
+      }
+      bounds.add(text.length());
+
+      final BoundedTaskExecutor executor = new BoundedTaskExecutor(new PooledThreadExecutor(), Runtime.getRuntime().availableProcessors());
+      final List<Future<SegmentArrayWithData>> chunks = new ArrayList<Future<SegmentArrayWithData>>();
+      for (int i = 0; i + 1 < bounds.size(); i++) {
+        final int start = bounds.get(i);
+        final int end = bounds.get(i + 1);
+        chunks.add(executor.submit(new Callable<SegmentArrayWithData>() {
+          @Override
+          public SegmentArrayWithData call() {
+            return lexChunk(text, start, end);
+          }
+        }));
+      }
+
+      // the first token of the lexed tokens not published yet is always started in the initial state
+      final SegmentArrayWithData lexed = getChunk(chunks.get(0));
+      for (int i = 1; i < chunks.size(); i++) {
+        publish(lexed, false);
+        join(text, lexed, getChunk(chunks.get(i)), bounds.get(i), bounds.get(i + 1));
+      }
+      publish(lexed, true);
+    }
+
+    @NotNull
+    private SegmentArrayWithData lexChunk(@NotNull CharSequence text, int start, int end) {
+      final Lexer lexer = myHighlighter.getHighlightingLexer();
+      final SegmentArrayWithData tokens = new SegmentArrayWithData();
+      lexer.start(text, start, text.length(), myInitialState);
+      int count = 0;
+      while (lexer.getTokenType() != null && lexer.getTokenStart() < end) {
+        if ((count & 0x3ff) == 0) {
+          myIndicator.checkCanceled();
+        }
+        tokens.setElementAt(count++, lexer.getTokenStart(), lexer.getTokenEnd(), packData(lexer.getTokenType(), lexer.getState()));
+        lexer.advance();
+      }
+      return tokens;
+    }
+
+    @NotNull
+    private SegmentArrayWithData getChunk(@NotNull Future<SegmentArrayWithData> chunk) {
+      try {
+        return chunk.get();
+      }
+      catch (InterruptedException e) {
+        throw new ProcessCanceledException();
+      }
+      catch (ExecutionException e) {
+        if (e.getCause() instanceof ProcessCanceledException) {
+          throw (ProcessCanceledException)e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    /**
+     * Relexes the text from the first of the <code>lexed</code> tokens till a token coinciding with one of the <code>next</code>
+     * chunk tokens, then appends the rest of the chunk to <code>lexed</code>
+     */
+    private void join(@NotNull CharSequence text, @NotNull SegmentArrayWithData lexed, @NotNull SegmentArrayWithData next,
+                      int nextStart, int nextEnd) {
+      final Lexer lexer = myHighlighter.getHighlightingLexer();
+      lexer.start(text, lexed.getSegmentCount() > 0 ? lexed.getSegmentStart(0) : nextStart, text.length(), myInitialState);
+      lexed.removeAll();
+      int count = 0;
+      while (lexer.getTokenType() != null) {
+        final int tokenStart = lexer.getTokenStart();
+        if (tokenStart >= nextEnd) {
+          return;
+        }
+        final int data = packData(lexer.getTokenType(), lexer.getState());
+        if (tokenStart >= nextStart && isInitialState(data) && tokenStart < next.getLastValidOffset()) {
+          final int index = next.findSegmentIndex(tokenStart);
+          if (next.getSegmentStart(index) == tokenStart && next.getSegmentData(index) == data) {
+            // the lexer is in the same state at the same offset as the speculative one, so the rest of the chunk is right
+            for (int i = index; i < next.getSegmentCount(); i++) {
+              lexed.setElementAt(count++, next.getSegmentStart(i), next.getSegmentEnd(i), next.getSegmentData(i));
+            }
+            return;
+          }
+        }
+        if ((count & 0x3ff) == 0) {
+          myIndicator.checkCanceled();
+        }
+        lexed.setElementAt(count++, tokenStart, lexer.getTokenEnd(), data);
+        lexer.advance();
+      }
+    }
+
+    /**
+     * Moves the tokens preceding the last one started in the initial state (all the tokens if <code>last</code>) from
+     * <code>lexed</code> to the highlighter
+     */
+    private void publish(@NotNull SegmentArrayWithData lexed, final boolean last) {
+      int ready = lexed.getSegmentCount();
+      if (!last) {
+        do {
+          ready--;
+        }
+        while (ready > 0 && !isInitialState(lexed.getSegmentData(ready)));
+        if (ready <= 0) return;
+      }
+      final SegmentArrayWithData tokens = new SegmentArrayWithData();
+      for (int i = 0; i < ready; i++) {
+        tokens.setElementAt(i, lexed.getSegmentStart(i), lexed.getSegmentEnd(i), lexed.getSegmentData(i));
+      }
+      lexed.remove(0, ready);
+
+      myIndicator.checkCanceled();
+      ApplicationManager.getApplication().invokeLater(new Runnable() {
+        @Override
+        public void run() {
+          // iterators read the segments without the highlighter lock under a read action
+          ApplicationManager.getApplication().runWriteAction(new Runnable() {
+            @Override
+            public void run() {
+              apply(tokens, last);
+            }
+          });
+        }
+      }, ModalityState.any());
+    }
+
+    private void apply(@NotNull SegmentArrayWithData tokens, boolean last) {
+      final int startOffset;
+      final int endOffset;
+      synchronized (LexerEditorHighlighter.this) {
+        final Document document = getDocument();
+        if (myBackgroundLexing != this || document == null || document.getModificationStamp() != myStamp) {
+          return;
+        }
+        final int notLexedIndex = mySegments.getSegmentCount() - 1;
+        startOffset = mySegments.getSegmentStart(notLexedIndex);
+        mySegments.remove(notLexedIndex, notLexedIndex + 1);
+        mySegments.insert(tokens, notLexedIndex);
+        endOffset = mySegments.getLastValidOffset();
+        final int textLength = document.getTextLength();
+        if (last || endOffset >= textLength) {
+          myBackgroundLexing = null;
+        }
+        else {
+          mySegments.setElementAt(mySegments.getSegmentCount(), endOffset, textLength, packData(NOT_LEXED, myInitialState));
+        }
+      }
+      myEditor.repaint(startOffset, endOffset);
+    }
+  }
 }
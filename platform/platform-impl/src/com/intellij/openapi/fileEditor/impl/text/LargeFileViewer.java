@@ -0,0 +1,244 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.colors.EditorColorsManager;
+import com.intellij.openapi.editor.colors.EditorFontType;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.util.ProgressIndicatorBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.ScrollPaneFactory;
+import com.intellij.ui.SearchTextField;
+import com.intellij.ui.components.JBList;
+import com.intellij.util.text.StringSearcher;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import javax.swing.event.ListSelectionEvent;
+import javax.swing.event.ListSelectionListener;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+
+/**
+ * Read-only view of a file too large to be loaded into a document. Lines of the {@link MappedFileText} are shown as soon as
+ * they are indexed in background, and search goes over the text page by page, so the file is never held in memory as a whole.
+ */
+final class LargeFileViewer extends JPanel implements Disposable {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.LargeFileViewer");
+  private static final int MAX_DISPLAYED_LINE_LENGTH = 500;
+  private static final int UPDATE_DELAY_MS = 300;
+
+  private final Project myProject;
+  private final VirtualFile myFile;
+  private final MappedFileText myText;
+  private final ProgressIndicator myIndexingIndicator = new ProgressIndicatorBase();
+  private final LineListModel myModel = new LineListModel();
+  private final JBList myList = new JBList(myModel);
+  private final SearchTextField mySearchField = new SearchTextField(false);
+  private final JCheckBox myMatchCase = new JCheckBox("Match case");
+  private final JLabel myStatus = new JLabel();
+  private final Timer myUpdateTimer;
+  private String myFoundText;
+  private int mySearchOffset;
+  private boolean myNavigating;
+  private boolean myDisposed;
+
+  LargeFileViewer(@NotNull Project project, @NotNull VirtualFile file, @NotNull MappedFileText text) {
+    super(new BorderLayout());
+    myProject = project;
+    myFile = file;
+    myText = text;
+
+    final Font font = EditorColorsManager.getInstance().getGlobalScheme().getFont(EditorFontType.PLAIN);
+    final FontMetrics metrics = getFontMetrics(font);
+    myList.setFont(font);
+    // the list must not measure its rows: there may be millions of them
+    myList.setFixedCellHeight(metrics.getHeight());
+    myList.setFixedCellWidth(metrics.charWidth('m') * MAX_DISPLAYED_LINE_LENGTH);
+    myList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    myList.setCellRenderer(new LineRenderer());
+    myList.addListSelectionListener(new ListSelectionListener() {
+      @Override
+      public void valueChanged(ListSelectionEvent e) {
+        final int line = myList.getSelectedIndex();
+        if (!myNavigating && line >= 0) {
+          mySearchOffset = myText.getLineStartOffset(line);
+        }
+      }
+    });
+
+    mySearchField.addKeyboardListener(new KeyAdapter() {
+      @Override
+      public void keyPressed(KeyEvent e) {
+        if (e.getKeyCode() == KeyEvent.VK_ENTER) {
+          findNext();
+        }
+      }
+    });
+    final JPanel searchPanel = new JPanel(new BorderLayout(5, 0));
+    searchPanel.add(mySearchField, BorderLayout.CENTER);
+    searchPanel.add(myMatchCase, BorderLayout.EAST);
+    final JPanel header = new JPanel(new BorderLayout(10, 0));
+    header.setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
+    header.add(searchPanel, BorderLayout.CENTER);
+    header.add(myStatus, BorderLayout.EAST);
+    add(header, BorderLayout.NORTH);
+    add(ScrollPaneFactory.createScrollPane(myList), BorderLayout.CENTER);
+
+    myUpdateTimer = new Timer(UPDATE_DELAY_MS, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        updateIndexingState();
+      }
+    });
+    myUpdateTimer.start();
+    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          myText.index(myIndexingIndicator);
+        }
+        catch (ProcessCanceledException ignored) {
+        }
+        catch (IOException e) {
+          if (!myIndexingIndicator.isCanceled()) {
+            LOG.info("Cannot index " + myFile.getPath(), e);
+          }
+        }
+      }
+    });
+  }
+
+  JComponent getPreferredFocusedComponent() {
+    return myList;
+  }
+
+  private void updateIndexingState() {
+    myModel.update();
+    final String lines = myText.getLineCount() + " lines";
+    if (myText.isIndexed()) {
+      myUpdateTimer.stop();
+      myStatus.setText(myText.isTruncated() ? lines + " (the rest of the file is too long to show)" : lines);
+    }
+    else {
+      myStatus.setText("Indexing " + (int)(myText.getIndexedFraction() * 100) + "%, " + lines);
+    }
+  }
+
+  private void findNext() {
+    final String pattern = mySearchField.getText();
+    if (StringUtil.isEmpty(pattern)) {
+      return;
+    }
+    final StringSearcher searcher = new StringSearcher(pattern, myMatchCase.isSelected(), true);
+    final int selectedLine = myList.getSelectedIndex();
+    // repeated search continues after the last occurrence, a new one starts from the selected line
+    final int fromOffset = pattern.equals(myFoundText) ? mySearchOffset : selectedLine >= 0 ? myText.getLineStartOffset(selectedLine) : 0;
+    ProgressManager.getInstance().run(new Task.Backgroundable(myProject, "Searching in " + myFile.getName(), true) {
+      private int myOffset = -1;
+      private int myLine;
+
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        myOffset = myText.find(searcher, fromOffset, indicator);
+        if (myOffset >= 0) {
+          myLine = myText.getLineNumber(myOffset);
+        }
+      }
+
+      @Override
+      public void onSuccess() {
+        if (myDisposed) {
+          return;
+        }
+        if (myOffset < 0) {
+          myFoundText = pattern;
+          mySearchOffset = 0;
+          myStatus.setText("'" + pattern + "' not found" + (myText.isIndexed() ? "" : " in the indexed part") +
+                           (fromOffset > 0 ? ", next search starts from the top" : ""));
+          return;
+        }
+        myFoundText = pattern;
+        mySearchOffset = myOffset + 1;
+        updateIndexingState();
+        myNavigating = true;
+        try {
+          myList.setSelectedIndex(myLine);
+          myList.ensureIndexIsVisible(myLine);
+        }
+        finally {
+          myNavigating = false;
+        }
+      }
+    });
+  }
+
+  @Override
+  public void dispose() {
+    myDisposed = true;
+    myUpdateTimer.stop();
+    myIndexingIndicator.cancel();
+    myText.close();
+  }
+
+  private class LineListModel extends AbstractListModel {
+    private int mySize;
+
+    @Override
+    public int getSize() {
+      return mySize;
+    }
+
+    @Override
+    public Object getElementAt(int index) {
+      return index;
+    }
+
+    void update() {
+      final int size = myText.getLineCount();
+      if (size > mySize) {
+        final int oldSize = mySize;
+        mySize = size;
+        fireIntervalAdded(this, oldSize, size - 1);
+      }
+    }
+  }
+
+  private class LineRenderer extends DefaultListCellRenderer {
+    private LineRenderer() {
+      // lines are plain text even if they look like html
+      putClientProperty("html.disable", Boolean.TRUE);
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+      final String text = myText.getLineText((Integer)value, MAX_DISPLAYED_LINE_LENGTH).toString();
+      return super.getListCellRendererComponent(list, text.replace('\t', ' '), index, isSelected, cellHasFocus);
+    }
+  }
+}
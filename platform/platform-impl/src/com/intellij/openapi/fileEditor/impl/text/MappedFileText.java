@@ -0,0 +1,418 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.text.CharArrayCharSequence;
+import com.intellij.util.text.StringSearcher;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only text of a file which may be much larger than the heap. The file is memory-mapped and decoded lazily:
+ * {@link #index} decodes it once on a background thread, remembering where each page of decoded chars starts in the file
+ * and where every {@link #LINE_STEP}-th line starts; after that a char is obtained by decoding just its page again.
+ * <p/>
+ * The text grows while it is being indexed: {@link #length()} and {@link #getLineCount()} reflect the part indexed so far.
+ * Only stateless charsets are supported, and text beyond {@link Integer#MAX_VALUE} chars is not shown.
+ */
+final class MappedFileText implements CharSequence {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.fileEditor.impl.text.MappedFileText");
+  static final int LINE_STEP = 16;
+  private static final int PAGE_SIZE = 64 * 1024;
+  private static final int WINDOW_SIZE = 32 * 1024 * 1024;
+  private static final int CACHED_PAGES = 16;
+
+  private final Charset myCharset;
+  private final long myStartOffset;
+  private final int myPageSize;
+  private final int myWindowSize;
+  private final RandomAccessFile myFile;
+  private final FileChannel myChannel;
+  private final long myFileLength;
+
+  // all the fields below are guarded by 'this'
+  private final TIntArrayList myPageCharStarts = new TIntArrayList();
+  private final TLongArrayList myPageByteStarts = new TLongArrayList();
+  private final TIntArrayList myLineStarts = new TIntArrayList();
+  private long myIndexedBytes;
+  private int myLength;
+  private int myLineCount = 1;
+  private boolean myIndexed;
+  private boolean myTruncated;
+  private final Map<Integer, char[]> myPageCache = new LinkedHashMap<Integer, char[]>(CACHED_PAGES, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest) {
+      return size() > CACHED_PAGES;
+    }
+  };
+  private int myLastPage = -1;
+  private char[] myLastPageChars;
+  private ByteBuffer myWindow;
+  private long myWindowStart;
+
+  /**
+   * Opens the file in the charset specified by its BOM or in the given charset if there is no BOM
+   */
+  @NotNull
+  static MappedFileText open(@NotNull File file, @NotNull Charset defaultCharset) throws IOException {
+    final byte[] head = new byte[CharsetToolkit.UTF32BE_BOM.length];
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      raf.read(head);
+    }
+    finally {
+      raf.close();
+    }
+    final Charset bomCharset = CharsetToolkit.guessFromBOM(head);
+    if (bomCharset == null) {
+      return new MappedFileText(file, defaultCharset, 0, PAGE_SIZE, WINDOW_SIZE);
+    }
+    final int bomLength = bomCharset == CharsetToolkit.UTF8_CHARSET ? CharsetToolkit.UTF8_BOM.length :
+                          bomCharset == CharsetToolkit.UTF_16LE_CHARSET || bomCharset == CharsetToolkit.UTF_16BE_CHARSET
+                          ? CharsetToolkit.UTF16LE_BOM.length : CharsetToolkit.UTF32LE_BOM.length;
+    return new MappedFileText(file, bomCharset, bomLength, PAGE_SIZE, WINDOW_SIZE);
+  }
+
+  MappedFileText(@NotNull File file, @NotNull Charset charset, int bomLength, int pageSize, int windowSize) throws IOException {
+    myCharset = charset;
+    myStartOffset = bomLength;
+    myPageSize = pageSize;
+    myWindowSize = windowSize;
+    myFile = new RandomAccessFile(file, "r");
+    myChannel = myFile.getChannel();
+    myFileLength = Math.max(myChannel.size(), bomLength);
+    myIndexedBytes = bomLength;
+    myLineStarts.add(0);
+  }
+
+  /**
+   * Decodes the whole file making its text available page by page. Should be called once, on a background thread.
+   */
+  void index(@NotNull ProgressIndicator indicator) throws IOException {
+    final CharsetDecoder decoder = createDecoder();
+    final CharBuffer page = CharBuffer.allocate(myPageSize);
+    final TIntArrayList lineStarts = new TIntArrayList();
+    long windowStart = myStartOffset;
+    ByteBuffer window = map(windowStart, Math.min(myWindowSize, myFileLength - windowStart));
+    boolean endOfInput = windowStart + window.limit() == myFileLength;
+    boolean pendingCR = false;
+    int length = 0;
+    int lineCount = 1;
+    while (true) {
+      indicator.checkCanceled();
+      final long pageByteStart = windowStart + window.position();
+      page.clear();
+      CoderResult result = decoder.decode(window, page, endOfInput);
+      while (result.isUnderflow() && !endOfInput) {
+        // the rest of the window, if any, is an incomplete char: continue from it in the next window
+        windowStart += window.position();
+        window = map(windowStart, Math.min(myWindowSize, myFileLength - windowStart));
+        endOfInput = windowStart + window.limit() == myFileLength;
+        result = decoder.decode(window, page, endOfInput);
+      }
+      final boolean lastPage = result.isUnderflow();
+      if (lastPage) {
+        decoder.flush(page);
+      }
+      page.flip();
+
+      final int pageLength = page.remaining();
+      if ((long)length + pageLength > Integer.MAX_VALUE) {
+        synchronized (this) {
+          myTruncated = true;
+        }
+        break;
+      }
+      for (int i = 0; i < pageLength; i++) {
+        final char c = page.get(i);
+        final int offset = length + i;
+        if (pendingCR) {
+          pendingCR = false;
+          if (c == '\n') {
+            lineCount = addLineStart(lineStarts, lineCount, offset + 1);
+            continue;
+          }
+          lineCount = addLineStart(lineStarts, lineCount, offset);
+        }
+        if (c == '\r') {
+          pendingCR = true;
+        }
+        else if (c == '\n') {
+          lineCount = addLineStart(lineStarts, lineCount, offset + 1);
+        }
+      }
+      length += pageLength;
+      if (lastPage && pendingCR) {
+        lineCount = addLineStart(lineStarts, lineCount, length);
+      }
+
+      synchronized (this) {
+        if (pageLength > 0) {
+          myPageCharStarts.add(length - pageLength);
+          myPageByteStarts.add(pageByteStart);
+        }
+        myLineStarts.add(lineStarts.toNativeArray());
+        myIndexedBytes = windowStart + window.position();
+        myLength = length;
+        myLineCount = lineCount;
+      }
+      lineStarts.clear();
+      indicator.setFraction(getIndexedFraction());
+      if (lastPage) {
+        break;
+      }
+    }
+    synchronized (this) {
+      myIndexed = true;
+    }
+  }
+
+  private static int addLineStart(TIntArrayList lineStarts, int lineCount, int offset) {
+    if (lineCount % LINE_STEP == 0) {
+      lineStarts.add(offset);
+    }
+    return lineCount + 1;
+  }
+
+  synchronized boolean isIndexed() {
+    return myIndexed;
+  }
+
+  synchronized boolean isTruncated() {
+    return myTruncated;
+  }
+
+  synchronized double getIndexedFraction() {
+    return myFileLength == myStartOffset ? 1.0 : (double)(myIndexedBytes - myStartOffset) / (myFileLength - myStartOffset);
+  }
+
+  @Override
+  public synchronized int length() {
+    return myLength;
+  }
+
+  @Override
+  public synchronized char charAt(int index) {
+    if (index < 0 || index >= myLength) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; length: " + myLength);
+    }
+    final int page = findPage(index);
+    return getPageChars(page)[index - myPageCharStarts.get(page)];
+  }
+
+  @NotNull
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    final char[] chars = new char[end - start];
+    getChars(start, end, chars, 0);
+    return new CharArrayCharSequence(chars);
+  }
+
+  synchronized void getChars(int start, int end, @NotNull char[] dst, int dstOffset) {
+    if (start < 0 || end > myLength || start > end) {
+      throw new IndexOutOfBoundsException("Wrong range: [" + start + ", " + end + "); length: " + myLength);
+    }
+    while (start < end) {
+      final int page = findPage(start);
+      final int pageStart = myPageCharStarts.get(page);
+      final char[] chars = getPageChars(page);
+      final int count = Math.min(end - start, pageStart + chars.length - start);
+      System.arraycopy(chars, start - pageStart, dst, dstOffset, count);
+      start += count;
+      dstOffset += count;
+    }
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    // the whole text may not fit into the heap
+    return "MappedFileText: " + length() + " chars";
+  }
+
+  synchronized int getLineCount() {
+    return myLineCount;
+  }
+
+  synchronized int getLineStartOffset(int line) {
+    int offset = myLineStarts.get(line / LINE_STEP);
+    for (int i = line % LINE_STEP; i > 0; i--) {
+      offset = getNextLineStart(offset);
+    }
+    return offset;
+  }
+
+  /**
+   * @return text of the line without the line separator, cut to at most <code>maxLength</code> chars
+   */
+  @NotNull
+  synchronized CharSequence getLineText(int line, int maxLength) {
+    final int start = getLineStartOffset(line);
+    final int limit = (int)Math.min(myLength, (long)start + maxLength);
+    int end = start;
+    while (end < limit) {
+      final char c = charAt(end);
+      if (c == '\n' || c == '\r') {
+        break;
+      }
+      end++;
+    }
+    return subSequence(start, end);
+  }
+
+  synchronized int getLineNumber(int offset) {
+    final int index = myLineStarts.binarySearch(offset);
+    final int block = index >= 0 ? index : -index - 2;
+    int line = block * LINE_STEP;
+    int lineStart = myLineStarts.get(block);
+    while (line + 1 < myLineCount) {
+      lineStart = getNextLineStart(lineStart);
+      if (lineStart > offset) {
+        break;
+      }
+      line++;
+    }
+    return line;
+  }
+
+  private int getNextLineStart(int offset) {
+    for (; offset < myLength; offset++) {
+      final char c = charAt(offset);
+      if (c == '\n') {
+        return offset + 1;
+      }
+      if (c == '\r') {
+        return offset + 1 < myLength && charAt(offset + 1) == '\n' ? offset + 2 : offset + 1;
+      }
+    }
+    return myLength;
+  }
+
+  /**
+   * Looks for the searcher's pattern page by page, so the text is never decoded as a whole
+   * @return offset of the first occurrence at or after <code>fromOffset</code> or -1 if there is none in the indexed text
+   */
+  int find(@NotNull StringSearcher searcher, int fromOffset, @NotNull ProgressIndicator indicator) {
+    final int overlap = searcher.getPatternLength() - 1;
+    final char[] buffer = new char[myPageSize + overlap];
+    final CharArrayCharSequence sequence = new CharArrayCharSequence(buffer);
+    for (int start = fromOffset; ; start += myPageSize) {
+      indicator.checkCanceled();
+      final int length = length();
+      if (start + overlap >= length) {
+        return -1;
+      }
+      final int count = Math.min(buffer.length, length - start);
+      getChars(start, start + count, buffer, 0);
+      final int found = searcher.scan(sequence, buffer, 0, count);
+      if (found >= 0) {
+        return start + found;
+      }
+      indicator.setFraction((double)start / length);
+    }
+  }
+
+  void close() {
+    try {
+      myFile.close();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+    }
+  }
+
+  private int findPage(int offset) {
+    if (myLastPage >= 0) {
+      final int lastPageStart = myPageCharStarts.get(myLastPage);
+      if (offset >= lastPageStart && offset < lastPageStart + myLastPageChars.length) {
+        return myLastPage;
+      }
+    }
+    final int index = myPageCharStarts.binarySearch(offset);
+    return index >= 0 ? index : -index - 2;
+  }
+
+  private char[] getPageChars(int page) {
+    if (page == myLastPage) {
+      return myLastPageChars;
+    }
+    char[] chars = myPageCache.get(page);
+    if (chars == null) {
+      final int pageCount = myPageCharStarts.size();
+      final int charStart = myPageCharStarts.get(page);
+      final int charEnd = page + 1 < pageCount ? myPageCharStarts.get(page + 1) : myLength;
+      final long byteStart = myPageByteStarts.get(page);
+      final long byteEnd = page + 1 < pageCount ? myPageByteStarts.get(page + 1) : myIndexedBytes;
+      chars = new char[charEnd - charStart];
+      try {
+        final CharsetDecoder decoder = createDecoder();
+        final CharBuffer buffer = CharBuffer.wrap(chars);
+        decoder.decode(getBytes(byteStart, byteEnd), buffer, true);
+        decoder.flush(buffer);
+      }
+      catch (IOException e) {
+        // the file has been changed or deleted
+        LOG.info(e);
+        Arrays.fill(chars, ' ');
+      }
+      myPageCache.put(page, chars);
+    }
+    myLastPage = page;
+    myLastPageChars = chars;
+    return chars;
+  }
+
+  /**
+   * Pages are decoded from a window mapped around them, so that sequential reads don't create a mapping per page:
+   * a mapping is released only when its buffer is garbage collected
+   */
+  private ByteBuffer getBytes(long start, long end) throws IOException {
+    if (myWindow == null || start < myWindowStart || end > myWindowStart + myWindow.capacity()) {
+      myWindowStart = start;
+      myWindow = map(start, Math.max(end - start, Math.min(myWindowSize, myFileLength - start)));
+    }
+    final ByteBuffer bytes = myWindow.duplicate();
+    bytes.position((int)(start - myWindowStart));
+    bytes.limit((int)(end - myWindowStart));
+    return bytes;
+  }
+
+  private ByteBuffer map(long position, long size) throws IOException {
+    return myChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  private CharsetDecoder createDecoder() {
+    return myCharset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+}
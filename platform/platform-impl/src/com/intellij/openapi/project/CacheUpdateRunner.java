@@ -99,6 +99,8 @@ class CacheUpdateRunner {
         }
       }
 
+      LOG.info("Content loading for " + (int)total + " files: " + queue.getLoadingStatistics());
+
       if (myProject.isDisposed()) {
         indicator.cancel();
         indicator.checkCanceled();
@@ -23,15 +23,16 @@ import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.SystemProperties;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Collection;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -39,48 +40,123 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings({"SynchronizeOnThis"})
 public class FileContentQueue {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.startup.FileContentQueue");
-  private static final long SIZE_THRESHOLD = 1024*1024;
+  private static final long MIN_SIZE_THRESHOLD = 1024*1024;
+  private static final long MAX_SIZE_THRESHOLD = 8*1024*1024;
   private static final long TAKEN_FILES_THRESHOLD = 1024*1024*3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = TAKEN_FILES_THRESHOLD - 1024 * 300; // 300k for other threads
+  private static final int LOADER_COUNT =
+    SystemProperties.getIntProperty("idea.indexing.content.loaders", Math.min(2, Runtime.getRuntime().availableProcessors()));
 
   private long myTotalSize;
   private long myTakenSize;
   private boolean myLargeSizeRequested;
+  // loaded but not yet taken bytes allowed in the queue, grows while consumers starve and shrinks while loaders wait
+  private long mySizeThreshold = MIN_SIZE_THRESHOLD;
 
   private final ArrayBlockingQueue<FileContent> myQueue = new ArrayBlockingQueue<FileContent>(256);
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  private final AtomicLong myLoadedBytes = new AtomicLong();
+  private final AtomicLong myLoaderStallNanos = new AtomicLong();
+  private final AtomicLong myConsumerStallNanos = new AtomicLong();
+  private volatile long myLoadingStarted;
+  private volatile long myLoadingFinished;
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
+    final List<VirtualFile> ordered = orderForLoading(files);
+    final AtomicInteger nextFile = new AtomicInteger();
+    final int loaderCount = Math.max(1, Math.min(LOADER_COUNT, ordered.size() / 16 + 1));
+    final AtomicInteger runningLoaders = new AtomicInteger(loaderCount);
+    myLoadingStarted = System.nanoTime();
+
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
+        boolean canceled = false;
         try {
-          for (VirtualFile file : files) {
+          for (int i = nextFile.getAndIncrement(); i < ordered.size(); i = nextFile.getAndIncrement()) {
             indicator.checkCanceled();
-            addLast(file, indicator);
-          }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
+            addLast(ordered.get(i), indicator);
           }
         }
         catch (ProcessCanceledException e) {
           // Do nothing, exit the thread.
+          canceled = true;
         }
         catch (InterruptedException e) {
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (runningLoaders.decrementAndGet() == 0) {
+            myLoadingFinished = System.nanoTime();
+            // put end-of-queue marker only if not canceled
+            if (!canceled && !indicator.isCanceled()) {
+              try {
+                myQueue.put(new FileContent(null));
+              }
+              catch (InterruptedException e) {
+                LOG.error(e);
+              }
+            }
+            myContentLoadingThreadTerminated = true;
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    for (int i = 0; i < loaderCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
+  }
+
+  /**
+   * Groups files by their parent directory, in the order directories are first met, and puts smaller files of a directory first,
+   * so that concurrent loaders read neighbouring files and consumers get going without waiting for large ones
+   */
+  @NotNull
+  private static List<VirtualFile> orderForLoading(@NotNull Collection<VirtualFile> files) {
+    final Map<VirtualFile, List<VirtualFile>> byParent = new LinkedHashMap<VirtualFile, List<VirtualFile>>();
+    final List<VirtualFile> noParent = new ArrayList<VirtualFile>();
+    for (VirtualFile file : files) {
+      final VirtualFile parent = file.isValid() ? file.getParent() : null;
+      if (parent == null) {
+        noParent.add(file);
+        continue;
+      }
+      List<VirtualFile> children = byParent.get(parent);
+      if (children == null) {
+        children = new ArrayList<VirtualFile>();
+        byParent.put(parent, children);
+      }
+      children.add(file);
+    }
+
+    final List<VirtualFile> result = new ArrayList<VirtualFile>(files.size());
+    final Comparator<VirtualFile> bySize = new Comparator<VirtualFile>() {
+      @Override
+      public int compare(VirtualFile o1, VirtualFile o2) {
+        final long l1 = getLengthForOrdering(o1);
+        final long l2 = getLengthForOrdering(o2);
+        return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+      }
+    };
+    for (List<VirtualFile> children : byParent.values()) {
+      if (children.size() > 1) {
+        Collections.sort(children, bySize);
+      }
+      result.addAll(children);
+    }
+    result.addAll(noParent);
+    return result;
+  }
+
+  private static long getLengthForOrdering(@NotNull VirtualFile file) {
+    try {
+      return file.isValid() && !file.isDirectory() ? file.getLength() : 0;
+    }
+    catch (InvalidVirtualFileAccessException e) {
+      return 0;
+    }
   }
 
   private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
@@ -105,15 +181,22 @@ public class FileContentQueue {
     boolean counterUpdated = false;
     try {
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
-          indicator.checkCanceled();
-          wait(300L);
+        if (myTotalSize > mySizeThreshold) {
+          final long started = System.nanoTime();
+          while (myTotalSize > mySizeThreshold) {
+            indicator.checkCanceled();
+            wait(300L);
+          }
+          myLoaderStallNanos.addAndGet(System.nanoTime() - started);
+          // consumers are the bottleneck, there is no point in keeping more content in memory
+          mySizeThreshold = Math.max(MIN_SIZE_THRESHOLD, mySizeThreshold - mySizeThreshold / 8);
         }
         myTotalSize += contentLength;
         counterUpdated = true;
       }
 
       content.getBytes(); // Reads the content bytes and caches them.
+      myLoadedBytes.addAndGet(contentLength);
 
       return true;
     }
@@ -193,16 +276,30 @@ public class FileContentQueue {
       }
     }
 
-    try {
-      while (result == null) {
-        result = myQueue.poll(300L, TimeUnit.MILLISECONDS);
-        if (result == null && myContentLoadingThreadTerminated) {
-          return null;
+    result = myQueue.poll();
+    if (result == null) {
+      final long started = System.nanoTime();
+      try {
+        while (result == null) {
+          result = myQueue.poll(300L, TimeUnit.MILLISECONDS);
+          if (result == null && myContentLoadingThreadTerminated) {
+            return null;
+          }
+        }
+      }
+      catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      finally {
+        myConsumerStallNanos.addAndGet(System.nanoTime() - started);
+      }
+      if (result.getVirtualFile() != null) {
+        synchronized (this) {
+          // loaders do not keep up, let them read further ahead
+          mySizeThreshold = Math.min(MAX_SIZE_THRESHOLD, mySizeThreshold * 2);
+          notifyAll();
         }
       }
-    }
-    catch (InterruptedException e) {
-      throw new RuntimeException(e);
     }
 
     final VirtualFile file = result.getVirtualFile();
@@ -235,4 +332,29 @@ public class FileContentQueue {
   public synchronized void pushback(@NotNull FileContent content) {
     myPushbackBuffer.add(content);
   }
+
+  /**
+   * @return content loading throughput in megabytes per second since the files were queued
+   */
+  public double getLoadingSpeed() {
+    final long started = myLoadingStarted;
+    if (started == 0) return 0;
+    final long finished = myLoadingFinished;
+    final long elapsed = (finished != 0 ? finished : System.nanoTime()) - started;
+    return elapsed <= 0 ? 0 : myLoadedBytes.get() * (double)TimeUnit.SECONDS.toNanos(1) / elapsed / (1024 * 1024);
+  }
+
+  public long getLoaderStallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myLoaderStallNanos.get());
+  }
+
+  public long getConsumerStallMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(myConsumerStallNanos.get());
+  }
+
+  @NotNull
+  public String getLoadingStatistics() {
+    return String.format("%.1f MB/s, loaders waited for consumers %d ms, consumers waited for content %d ms",
+                         getLoadingSpeed(), getLoaderStallMillis(), getConsumerStallMillis());
+  }
 }
@@ -29,18 +29,21 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ConcurrentHashMap;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
 import com.intellij.util.io.storage.*;
 import gnu.trove.TIntArrayList;
+import gnu.trove.TIntIntHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -89,6 +92,16 @@ public class FSRecords implements Forceable {
   private static final ReentrantReadWriteLock.ReadLock r;
   private static final ReentrantReadWriteLock.WriteLock w;
 
+  // In concurrent field update mode updates of fixed-width record fields (flags, timestamp, length) hold only the read lock,
+  // so they don't stall readers; the global write lock is left for structural changes: record creation/deletion, roots and
+  // children lists. Since several threads may then access the records file at once, the page of a field is looked up under
+  // the storage lock, which the paged storage needs for its cache of last mapped pages, and the field itself is accessed under
+  // the lock of its record stripe only.
+  private static final boolean ourConcurrentFieldUpdates = SystemProperties.getBooleanProperty("idea.vfs.concurrent.field.updates", false);
+  private static final int RECORD_STRIPE_COUNT = 64;
+  private static final Object[] ourRecordStripeLocks = new Object[RECORD_STRIPE_COUNT];
+  private static final Object ourModCountLock = new Object();
+
   private static volatile int ourLocalModificationCount = 0;
   private static volatile boolean ourIsDisposed;
 
@@ -102,6 +115,14 @@ public class FSRecords implements Forceable {
     ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     r = lock.readLock();
     w = lock.writeLock();
+
+    for (int i = 0; i < RECORD_STRIPE_COUNT; i++) {
+      ourRecordStripeLocks[i] = new Object();
+    }
+  }
+
+  static boolean isConcurrentFieldUpdates() {
+    return ourConcurrentFieldUpdates;
   }
 
   static class DbConnection {
@@ -788,22 +809,60 @@ public class FSRecords implements Forceable {
     }
   }
 
+  /**
+   * Persisted children of a directory with their record fields, read in one pass under the read lock.
+   * Fields of the i-th child are at index i of every array.
+   */
+  public static class ChildrenSnapshot {
+    public static final ChildrenSnapshot EMPTY = new ChildrenSnapshot(0);
+
+    public final int[] ids;
+    public final int[] nameIds;
+    public final int[] flags;
+    public final long[] lengths;
+    public final long[] timestamps;
+    private TIntIntHashMap myIndex;
+
+    private ChildrenSnapshot(int count) {
+      ids = new int[count];
+      nameIds = new int[count];
+      flags = new int[count];
+      lengths = new long[count];
+      timestamps = new long[count];
+    }
+
+    public int size() {
+      return ids.length;
+    }
+
+    /**
+     * @return index of the child with the given id, or -1 if the directory had no such child
+     */
+    public int indexOf(int id) {
+      if (myIndex == null) {
+        final TIntIntHashMap index = new TIntIntHashMap(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+          index.put(ids[i], i);
+        }
+        myIndex = index;
+      }
+      return myIndex.containsKey(id) ? myIndex.get(id) : -1;
+    }
+  }
+
   @NotNull
   public static NameId[] listAll(int parentId) {
     try {
       r.lock();
       try {
-        final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
-        if (input == null) return NameId.EMPTY_ARRAY;
+        final int[] ids = readChildrenIds(parentId);
+        if (ids.length == 0) return NameId.EMPTY_ARRAY;
 
-        int count = DataInputOutputUtil.readINT(input);
-        NameId[] result = count == 0 ? NameId.EMPTY_ARRAY : new NameId[count];
-        for (int i = 0; i < count; i++) {
-          int id = DataInputOutputUtil.readINT(input);
-          id = id >= 0 ? id + parentId : -id;
-          result[i] = new NameId(id, getName(id));
+        NameId[] result = new NameId[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+          final int nameId = getRecordInt(ids[i], NAME_OFFSET);
+          result[i] = new NameId(ids[i], nameId != 0 ? getNames().valueOf(nameId) : "");
         }
-        input.close();
         return result;
       }
       finally {
@@ -815,6 +874,54 @@ public class FSRecords implements Forceable {
     }
   }
 
+  @NotNull
+  public static ChildrenSnapshot listAllWithAttributes(int parentId) {
+    try {
+      r.lock();
+      try {
+        final int[] ids = readChildrenIds(parentId);
+        if (ids.length == 0) return ChildrenSnapshot.EMPTY;
+
+        final ChildrenSnapshot result = new ChildrenSnapshot(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+          final int id = ids[i];
+          result.ids[i] = id;
+          result.nameIds[i] = getRecordInt(id, NAME_OFFSET);
+          result.flags[i] = getRecordInt(id, FLAGS_OFFSET);
+          result.lengths[i] = getRecordLong(id, LENGTH_OFFSET);
+          result.timestamps[i] = getRecordLong(id, TIMESTAMP_OFFSET);
+        }
+        return result;
+      }
+      finally {
+        r.unlock();
+      }
+    }
+    catch (Throwable e) {
+      throw DbConnection.handleError(e);
+    }
+  }
+
+  // must be called under the read lock
+  @NotNull
+  private static int[] readChildrenIds(int parentId) throws IOException {
+    final DataInputStream input = readAttribute(parentId, CHILDREN_ATT);
+    if (input == null) return ArrayUtil.EMPTY_INT_ARRAY;
+
+    try {
+      final int count = DataInputOutputUtil.readINT(input);
+      final int[] result = count == 0 ? ArrayUtil.EMPTY_INT_ARRAY : new int[count];
+      for (int i = 0; i < count; i++) {
+        int id = DataInputOutputUtil.readINT(input);
+        result[i] = id >= 0 ? id + parentId : -id;
+      }
+      return result;
+    }
+    finally {
+      input.close();
+    }
+  }
+
   public static boolean wereChildrenAccessed(int id) {
     try {
       r.lock();
@@ -855,19 +962,22 @@ public class FSRecords implements Forceable {
   }
 
   private static void incModCount(int id) {
-    DbConnection.markDirty();
-    ourLocalModificationCount++;
-    final int count = getModCount() + 1;
-    getRecords().putInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
-
-    int parent = id;
-    int depth = 10000;
-    while (parent != 0) {
-      setModCount(parent, count);
-      parent = getParent(parent);
-      if (depth -- == 0) {
-        LOG.error("Cyclic parent child relation? file: " + getName(id));
-        return;
+    // field updates may run concurrently, the global counter and parent chain are bumped one at a time
+    synchronized (ourModCountLock) {
+      DbConnection.markDirty();
+      ourLocalModificationCount++;
+      final int count = getModCount() + 1;
+      putRecordsInt(HEADER_GLOBAL_MOD_COUNT_OFFSET, count);
+
+      int parent = id;
+      int depth = 10000;
+      while (parent != 0) {
+        setModCount(parent, count);
+        parent = getParent(parent);
+        if (depth -- == 0) {
+          LOG.error("Cyclic parent child relation? file: " + getName(id));
+          return;
+        }
       }
     }
   }
@@ -879,7 +989,7 @@ public class FSRecords implements Forceable {
   public static int getModCount() {
     try {
       r.lock();
-      return getRecords().getInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
+      return getRecordsInt(HEADER_GLOBAL_MOD_COUNT_OFFSET);
     }
     finally {
       r.unlock();
@@ -888,19 +998,13 @@ public class FSRecords implements Forceable {
 
   public static int getParent(int id) {
     try {
-      r.lock();
-      try {
-        final int parentId = getRecordInt(id, PARENT_OFFSET);
-        if (parentId == id) {
-          LOG.error("Cyclic parent child relations in the database. id = " + id);
-          return 0;
-        }
-
-        return parentId;
-      }
-      finally {
-        r.unlock();
+      final int parentId = readRecordInt(id, PARENT_OFFSET);
+      if (parentId == id) {
+        LOG.error("Cyclic parent child relations in the database. id = " + id);
+        return 0;
       }
+
+      return parentId;
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -928,13 +1032,7 @@ public class FSRecords implements Forceable {
 
   public static int getNameId(int id) {
     try {
-      r.lock();
-      try {
-        return getRecordInt(id, NAME_OFFSET);
-      }
-      finally {
-        r.unlock();
-      }
+      return readRecordInt(id, NAME_OFFSET);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1002,18 +1100,12 @@ public class FSRecords implements Forceable {
   }
 
   public static int getFlags(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, FLAGS_OFFSET);
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordInt(id, FLAGS_OFFSET);
   }
 
   public static void setFlags(int id, int flags, final boolean markAsChange) {
     try {
-      w.lock();
+      lockForFieldUpdate();
       if (markAsChange) {
         incModCount(id);
       }
@@ -1023,66 +1115,66 @@ public class FSRecords implements Forceable {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockForFieldUpdate();
     }
   }
 
   public static long getLength(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, LENGTH_OFFSET);
   }
 
   public static void setLength(int id, long len) {
     try {
-      w.lock();
+      lockForFieldUpdate();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockForFieldUpdate();
     }
   }
 
   public static long getTimestamp(int id) {
-    try {
-      r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
-    }
-    finally {
-      r.unlock();
-    }
+    return readRecordLong(id, TIMESTAMP_OFFSET);
   }
 
   public static void setTimestamp(int id, long value) {
     try {
-      w.lock();
+      lockForFieldUpdate();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
     }
     finally {
-      w.unlock();
+      unlockForFieldUpdate();
     }
   }
 
   public static int getModCount(int id) {
-    try {
-      r.lock();
-      return getRecordInt(id, MOD_COUNT_OFFSET);
+    return readRecordInt(id, MOD_COUNT_OFFSET);
+  }
+
+  private static void lockForFieldUpdate() {
+    if (ourConcurrentFieldUpdates) {
+      r.lock(); // only keeps structural changes out
     }
-    finally {
+    else {
+      w.lock();
+    }
+  }
+
+  private static void unlockForFieldUpdate() {
+    if (ourConcurrentFieldUpdates) {
       r.unlock();
     }
+    else {
+      w.unlock();
+    }
   }
 
   private static void setModCount(int id, int value) {
@@ -1106,11 +1198,92 @@ public class FSRecords implements Forceable {
   }
 
   private static int getRecordInt(int id, int offset) {
-    return getRecords().getInt(getOffset(id, offset));
+    return getRecordsInt(getOffset(id, offset));
+  }
+
+  private static long getRecordLong(int id, int offset) {
+    final int address = getOffset(id, offset);
+    if (!ourConcurrentFieldUpdates) return getRecords().getLong(address);
+    final PagedFileStorage storage = getRecords().getPagedFileStorage();
+    final ByteBuffer page = getRecordsPage(storage, address, false);
+    synchronized (getRecordStripeLock(address)) {
+      return page.getLong(storage.getOffsetInPage(address));
+    }
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    putRecordsInt(getOffset(id, offset), value);
+  }
+
+  private static void putRecordLong(int id, int offset, long value) {
+    final int address = getOffset(id, offset);
+    if (!ourConcurrentFieldUpdates) {
+      getRecords().putLong(address, value);
+      return;
+    }
+    final PagedFileStorage storage = getRecords().getPagedFileStorage();
+    final ByteBuffer page = getRecordsPage(storage, address, true);
+    synchronized (getRecordStripeLock(address)) {
+      page.putLong(storage.getOffsetInPage(address), value);
+    }
+  }
+
+  private static int getRecordsInt(int address) {
+    if (!ourConcurrentFieldUpdates) return getRecords().getInt(address);
+    final PagedFileStorage storage = getRecords().getPagedFileStorage();
+    final ByteBuffer page = getRecordsPage(storage, address, false);
+    synchronized (getRecordStripeLock(address)) {
+      return page.getInt(storage.getOffsetInPage(address));
+    }
+  }
+
+  private static void putRecordsInt(int address, int value) {
+    if (!ourConcurrentFieldUpdates) {
+      getRecords().putInt(address, value);
+      return;
+    }
+    final PagedFileStorage storage = getRecords().getPagedFileStorage();
+    final ByteBuffer page = getRecordsPage(storage, address, true);
+    synchronized (getRecordStripeLock(address)) {
+      page.putInt(storage.getOffsetInPage(address), value);
+    }
+  }
+
+  // the records file is allocated by records and its pages are record aligned, so a field never crosses a page boundary
+  @NotNull
+  private static ByteBuffer getRecordsPage(@NotNull PagedFileStorage storage, int address, boolean modify) {
+    storage.lock();
+    try {
+      return storage.getByteBuffer(address, modify);
+    }
+    finally {
+      storage.unlock();
+    }
+  }
+
+  @NotNull
+  private static Object getRecordStripeLock(int address) {
+    return ourRecordStripeLocks[(address / RECORD_SIZE) % RECORD_STRIPE_COUNT];
+  }
+
+  private static int readRecordInt(int id, int offset) {
+    try {
+      r.lock();
+      return getRecordInt(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
+  }
+
+  private static long readRecordLong(int id, int offset) {
+    try {
+      r.lock();
+      return getRecordLong(id, offset);
+    }
+    finally {
+      r.unlock();
+    }
   }
 
   private static int getOffset(int id, int offset) {
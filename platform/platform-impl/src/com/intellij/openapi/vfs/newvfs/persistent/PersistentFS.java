@@ -59,6 +59,13 @@ public abstract class PersistentFS extends ManagingFS {
   @NotNull
   public abstract FSRecords.NameId[] listAll(@NotNull VirtualFile parent);
 
+  /**
+   * @return persisted children of the directory along with their stored attributes; unlike {@link #listAll(VirtualFile)}
+   *         the children are not loaded from the underlying file system if they were never listed
+   */
+  @NotNull
+  public abstract FSRecords.ChildrenSnapshot listPersistedWithAttributes(@NotNull VirtualFile parent);
+
   public abstract int getId(@NotNull VirtualFile parent, @NotNull String childName, @NotNull NewVirtualFileSystem delegate);
 
   public abstract String getName(int id);
@@ -229,6 +229,12 @@ public class PersistentFSImpl extends PersistentFS implements ApplicationCompone
     return nameIds;
   }
 
+  @Override
+  @NotNull
+  public FSRecords.ChildrenSnapshot listPersistedWithAttributes(@NotNull VirtualFile parent) {
+    return FSRecords.listAllWithAttributes(getFileId(parent));
+  }
+
   private static boolean areChildrenLoaded(final int parentId) {
     return (FSRecords.getFlags(parentId) & CHILDREN_CACHED_FLAG) != 0;
   }
@@ -28,6 +28,7 @@ import com.intellij.openapi.vfs.newvfs.events.*;
 import com.intellij.openapi.vfs.newvfs.impl.FakeVirtualFile;
 import com.intellij.openapi.vfs.newvfs.impl.VirtualDirectoryImpl;
 import com.intellij.util.containers.Queue;
+import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -50,6 +51,18 @@ public class RefreshWorker {
   private final List<VFileEvent> myEvents = new ArrayList<VFileEvent>();
   private volatile boolean myCancelled = false;
 
+  // persisted attributes of children of scanned directories, kept while some of the children are queued
+  private final TIntObjectHashMap<DirectorySnapshot> mySnapshots = new TIntObjectHashMap<DirectorySnapshot>();
+
+  private static class DirectorySnapshot {
+    private final FSRecords.ChildrenSnapshot myChildren;
+    private int myQueuedChildren;
+
+    private DirectorySnapshot(@NotNull FSRecords.ChildrenSnapshot children) {
+      myChildren = children;
+    }
+  }
+
   public RefreshWorker(@NotNull NewVirtualFile refreshRoot, boolean isRecursive) {
     myIsRecursive = isRecursive;
     myRefreshQueue.addLast(Pair.create(refreshRoot, (FileAttributes)null));
@@ -87,6 +100,19 @@ public class RefreshWorker {
     while (!myRefreshQueue.isEmpty() && !myCancelled) {
       Pair<NewVirtualFile, FileAttributes> pair = myRefreshQueue.pullFirst();
       NewVirtualFile file = pair.first;
+      NewVirtualFile parent = file.getParent();
+
+      FSRecords.ChildrenSnapshot siblings = null;
+      int snapshotIndex = -1;
+      DirectorySnapshot parentSnapshot = parent != null ? mySnapshots.get(parent.getId()) : null;
+      if (parentSnapshot != null) {
+        siblings = parentSnapshot.myChildren;
+        snapshotIndex = siblings.indexOf(file.getId());
+        if (--parentSnapshot.myQueuedChildren <= 0) {
+          mySnapshots.remove(parent.getId());
+        }
+      }
+
       boolean fileDirty = file.isDirty();
       debug(LOG, "file=%s dirty=%b", file, fileDirty);
       if (!fileDirty) continue;
@@ -98,7 +124,6 @@ public class RefreshWorker {
       }
 
       boolean checkFurther = true;
-      NewVirtualFile parent = file.getParent();
       if (parent != null &&
           (checkAndScheduleAttributesChange(parent, file, attributes) ||
            checkAndScheduleSymLinkTargetChange(parent, file, attributes, fs))) {
@@ -108,6 +133,7 @@ public class RefreshWorker {
       else if (file.isDirectory()) {
         VirtualDirectoryImpl dir = (VirtualDirectoryImpl)file;
         boolean fullSync = dir.allChildrenLoaded();
+        DirectorySnapshot snapshot = null;
         if (fullSync) {
           Set<String> currentNames = newHashSet(persistence.list(file));
           Set<String> upToDateNames = newHashSet(VfsUtil.filterNames(fs.list(file)));
@@ -116,6 +142,7 @@ public class RefreshWorker {
           Set<String> deletedNames = newHashSet(currentNames);
           deletedNames.removeAll(upToDateNames);
           debug(LOG, "current=%s +%s -%s", currentNames, newNames, deletedNames);
+          snapshot = takeSnapshot(file, persistence);
 
           for (String name : deletedNames) {
             scheduleDeletion(file.findChild(name));
@@ -149,6 +176,7 @@ public class RefreshWorker {
         else {
           Collection<VirtualFile> cachedChildren = file.getCachedChildren();
           debug(LOG, "cached=%s", cachedChildren);
+          if (!cachedChildren.isEmpty()) snapshot = takeSnapshot(file, persistence);
           for (VirtualFile child : cachedChildren) {
             if (myCancelled) break main;
             FileAttributes childAttributes = fs.getAttributes(child);
@@ -173,11 +201,24 @@ public class RefreshWorker {
             }
           }
         }
+
+        if (snapshot != null && snapshot.myQueuedChildren == 0) {
+          mySnapshots.remove(file.getId());
+        }
       }
       else {
-        long currentTimestamp = persistence.getTimeStamp(file);
+        long currentTimestamp;
+        long currentLength;
+        int flags = snapshotIndex >= 0 ? siblings.flags[snapshotIndex] : 0;
+        if (snapshotIndex >= 0 && (flags & PersistentFS.MUST_RELOAD_CONTENT) == 0 && siblings.lengths[snapshotIndex] != -1) {
+          currentTimestamp = siblings.timestamps[snapshotIndex];
+          currentLength = siblings.lengths[snapshotIndex];
+        }
+        else {
+          currentTimestamp = persistence.getTimeStamp(file);
+          currentLength = persistence.getLength(file);
+        }
         long upToDateTimestamp = attributes.lastModified;
-        long currentLength = persistence.getLength(file);
         long upToDateLength = attributes.length;
 
         if (currentTimestamp != upToDateTimestamp || currentLength != upToDateLength) {
@@ -186,7 +227,8 @@ public class RefreshWorker {
       }
 
       if (checkFurther) {
-        boolean currentWritable = persistence.isWritable(file);
+        boolean currentWritable = snapshotIndex >= 0 ? (siblings.flags[snapshotIndex] & PersistentFS.IS_READ_ONLY) == 0
+                                                     : persistence.isWritable(file);
         boolean upToDateWritable = attributes.isWritable();
 
         if (currentWritable != upToDateWritable) {
@@ -198,6 +240,14 @@ public class RefreshWorker {
     }
   }
 
+  // reads persisted attributes of all children at once instead of one locked lookup per attribute of every child
+  @NotNull
+  private DirectorySnapshot takeSnapshot(@NotNull NewVirtualFile dir, @NotNull PersistentFS persistence) {
+    DirectorySnapshot snapshot = new DirectorySnapshot(persistence.listPersistedWithAttributes(dir));
+    mySnapshots.put(dir.getId(), snapshot);
+    return snapshot;
+  }
+
   private void checkAndScheduleChildRefresh(@NotNull VirtualFile parent,
                                             @NotNull VirtualFile child,
                                             @NotNull FileAttributes childAttributes) {
@@ -205,6 +255,8 @@ public class RefreshWorker {
       boolean upToDateIsDirectory = childAttributes.isDirectory();
       if (myIsRecursive || !upToDateIsDirectory) {
         myRefreshQueue.addLast(Pair.create((NewVirtualFile)child, childAttributes));
+        DirectorySnapshot snapshot = mySnapshots.get(((NewVirtualFile)parent).getId());
+        if (snapshot != null) snapshot.myQueuedChildren++;
       }
     }
   }
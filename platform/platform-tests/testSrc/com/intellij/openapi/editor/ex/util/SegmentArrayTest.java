@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import junit.framework.TestCase;
+
+public class SegmentArrayTest extends TestCase {
+  public void testShiftsInDifferentPlaces() {
+    SegmentArrayWithData segments = create(0, 2, 4, 6, 8, 10);
+    segments.changeSegmentLength(3, 3);
+    assertSegments(segments, "0-2 2-4 4-6 6-11 11-13");
+    segments.changeSegmentLength(1, -1);
+    assertSegments(segments, "0-2 2-3 3-5 5-10 10-12");
+    segments.changeSegmentLength(3, 2);
+    assertSegments(segments, "0-2 2-3 3-5 5-12 12-14");
+    assertEquals(3, segments.findSegmentIndex(11));
+    assertEquals(4, segments.findSegmentIndex(12));
+    assertEquals(14, segments.getLastValidOffset());
+  }
+
+  public void testReplaceAndRemoveWithPendingShift() {
+    SegmentArrayWithData segments = create(0, 2, 4, 6, 8);
+    segments.changeSegmentLength(1, 5);
+    segments.replace(2, 3, create(9, 10, 11));
+    assertSegments(segments, "0-2 2-9 9-10 10-11 11-13");
+    segments.changeSegmentLength(2, 1);
+    segments.remove(1, 3);
+    assertSegments(segments, "0-2 11-12 12-14");
+    segments.insert(create(2, 5, 11), 1);
+    assertSegments(segments, "0-2 2-5 5-11 11-12 12-14");
+    assertEquals(14, segments.getLastValidOffset());
+  }
+
+  public void testAppendAfterShift() {
+    SegmentArrayWithData segments = create(0, 2, 4);
+    segments.shiftSegments(1, 3);
+    segments.setElementAt(2, 7, 9, 0);
+    assertSegments(segments, "0-2 5-7 7-9");
+    segments.shiftSegments(0, 1);
+    assertSegments(segments, "1-3 6-8 8-10");
+  }
+
+  private static SegmentArrayWithData create(int... bounds) {
+    SegmentArrayWithData segments = new SegmentArrayWithData();
+    for (int i = 0; i < bounds.length - 1; i++) {
+      segments.setElementAt(i, bounds[i], bounds[i + 1], i);
+    }
+    return segments;
+  }
+
+  private static void assertSegments(SegmentArrayWithData segments, String expected) {
+    StringBuilder actual = new StringBuilder();
+    for (int i = 0; i < segments.getSegmentCount(); i++) {
+      if (i > 0) actual.append(' ');
+      actual.append(segments.getSegmentStart(i)).append('-').append(segments.getSegmentEnd(i));
+    }
+    assertEquals(expected, actual.toString());
+  }
+}
@@ -18,7 +18,9 @@ package com.intellij.openapi.editor.impl;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
 import com.intellij.openapi.util.Pair;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.LocalTimeCounter;
+import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.Stack;
 import com.intellij.util.text.CharSequenceBackedByArray;
 import org.jetbrains.annotations.NonNls;
@@ -80,7 +82,7 @@ public class CharArrayTest {
       });
     }});
     
-    init(10);
+    init(10, myConfig == null ? 0 : myConfig.ropeThreshold(), true);
     if (myConfig != null) {
       myArray.insert(myConfig.text(), 0);
       myArray.setDeferredChangeMode(myConfig.deferred());
@@ -141,7 +143,127 @@ public class CharArrayTest {
     assertArrayEquals("1".toCharArray(), subsSequence.getChars());
   }
   
-  private void init(int size) {
+  @Config(text = "1234", ropeThreshold = 4)
+  @Test
+  public void ropeReplace() {
+    replace(1, 3, "abc");
+    checkText("1abc4");
+
+    replace(0, 5, "");
+    checkText("");
+
+    myArray.insert("xy", 0);
+    replace(1, 2, "Z");
+    checkText("xZ");
+  }
+
+  @Config(text = "12", ropeThreshold = 4)
+  @Test
+  public void switchToRopeOnGrowth() {
+    myArray.insert("345", 2);
+    checkText("12345");
+
+    myArray.remove(0, 4, "1234");
+    checkText("5");
+  }
+
+  @Config(text = "1234", ropeThreshold = 4)
+  @Test
+  public void ropeIgnoresDeferredMode() {
+    myArray.setDeferredChangeMode(true);
+    assertFalse(myArray.isDeferredChangeMode());
+    replace(0, 1, "ab");
+    assertFalse(myArray.hasDeferredChanges());
+    checkText("ab234");
+  }
+
+  @Config(text = "01234567", ropeThreshold = 4)
+  @Test
+  public void ropeGetCharsReflectsChanges() {
+    assertArrayEquals("01234567".toCharArray(), myArray.getChars());
+    replace(2, 4, "x");
+    assertEquals("01x4567", new String(myArray.getChars(), 0, myArray.length()));
+
+    char[] dst = new char[9];
+    myArray.getChars(dst, 2);
+    assertEquals("01x4567", new String(dst, 2, 7));
+  }
+
+  @Config(text = "01234567", ropeThreshold = 4)
+  @Test
+  public void ropeCharSequenceIsNotBackedByArray() {
+    CharSequence before = myArray.getCharArray();
+    assertFalse(before instanceof CharSequenceBackedByArray);
+    replace(2, 4, "x");
+    CharSequence after = myArray.getCharArray();
+    assertFalse(after instanceof CharSequenceBackedByArray);
+    assertEquals("01234567", before.toString());
+    assertEquals("01x4567", after.toString());
+  }
+
+  @Test
+  public void typingPerformance() {
+    doPerformanceTest("typing in a 10M chars document", 300, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        int offset = myArray.length() / 2;
+        for (int i = 0; i < 2000; i++) {
+          myArray.insert("a", offset++);
+        }
+        for (int i = 0; i < 2000; i++) {
+          myArray.remove(--offset, offset + 1, "a");
+        }
+      }
+    });
+  }
+
+  @Test
+  public void bulkReplacePerformance() {
+    doPerformanceTest("replacing across a 10M chars document", 300, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        int step = myArray.length() / 1000;
+        for (int offset = 0; offset + 10 <= myArray.length(); offset += step) {
+          replace(offset, offset + 10, "replacement");
+        }
+      }
+    });
+  }
+
+  @Test
+  public void sequenceAccessPerformance() {
+    doPerformanceTest("reading a 10M chars document", 1000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        CharSequence sequence = myArray.getCharArray();
+        int lines = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+          if (sequence.charAt(i) == '\n') lines++;
+        }
+        assertEquals(sequence.length() / 80, lines);
+        for (int i = 0; i + 1000 < sequence.length(); i += 100000) {
+          assertEquals(1000, sequence.subSequence(i, i + 1000).toString().length());
+        }
+      }
+    });
+  }
+
+  private void doPerformanceTest(@NonNls @NotNull String message, int expectedMs, @NotNull ThrowableRunnable test) {
+    PlatformTestUtil.startPerformanceTest(message, expectedMs, test).setup(new ThrowableRunnable() {
+      @Override
+      public void run() {
+        // consistency checks would copy the whole text on every change
+        init(0, 1024 * 1024, false);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10 * 1024 * 1024 / 80; i++) {
+          text.append("0123456789012345678901234567890123456789012345678901234567890123456789012345678\n");
+        }
+        myArray.insert(text, 0);
+      }
+    }).cpuBound().assertTiming();
+  }
+
+  private void init(int size, final int ropeThreshold, final boolean debug) {
     myArray = new CharArray(size, new char[0], 0) {
       @NotNull
       @Override
@@ -161,6 +283,16 @@ public class CharArrayTest {
       @Override
       protected void assertReadAccess() {
       }
+
+      @Override
+      int getRopeThreshold() {
+        return ropeThreshold;
+      }
+
+      @Override
+      boolean isDebug() {
+        return debug && super.isDebug();
+      }
     };
   }
 
@@ -239,5 +371,6 @@ public class CharArrayTest {
   private @interface Config {
     String text() default "";
     boolean deferred() default false;
+    int ropeThreshold() default 0;
   }
 }
@@ -10,9 +10,12 @@ import com.intellij.openapi.editor.*;
 import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
 import com.intellij.openapi.editor.ex.RangeMarkerEx;
 import com.intellij.openapi.editor.markup.HighlighterTargetArea;
 import com.intellij.openapi.editor.markup.MarkupModel;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.util.Trinity;
@@ -22,7 +25,10 @@ import com.intellij.psi.impl.PsiDocumentManagerImpl;
 import com.intellij.psi.impl.PsiToDocumentSynchronizer;
 import com.intellij.testFramework.LeakHunter;
 import com.intellij.testFramework.LightPlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.Timings;
+import com.intellij.util.Processor;
+import com.intellij.util.ThrowableRunnable;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
@@ -30,6 +36,11 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @author mike
@@ -1043,4 +1054,153 @@ public class RangeMarkerTest extends LightPlatformTestCase {
     assertValidMarker(marker1, 2, 2);
     assertValidMarker(marker2, 2, 4);
   }
+
+  public void testHighlightersAddedOnEdtAreSeenByBackgroundReader() throws Exception {
+    Document document = EditorFactory.getInstance().createDocument(StringUtil.repeat("x", 100));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    for (int i = 0; i < 50; i++) {
+      markupModel.addRangeHighlighter(i, i + 10, 0, null, HighlighterTargetArea.EXACT_RANGE);
+    }
+
+    Future<Integer> overlapping = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        final int[] count = {0};
+        markupModel.processRangeHighlightersOverlappingWith(20, 30, new Processor<RangeHighlighterEx>() {
+          @Override
+          public boolean process(RangeHighlighterEx highlighter) {
+            count[0]++;
+            return true;
+          }
+        });
+        return count[0];
+      }
+    });
+    assertEquals(21, overlapping.get().intValue());
+    markupModel.removeAllHighlighters();
+  }
+
+  public void testSlowBackgroundReaderDoesNotBlockAddingHighlighters() throws Exception {
+    Document document = EditorFactory.getInstance().createDocument(StringUtil.repeat("x", 100));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    markupModel.addRangeHighlighter(10, 20, 0, null, HighlighterTargetArea.EXACT_RANGE);
+    markupModel.addRangeHighlighter(50, 60, 0, null, HighlighterTargetArea.EXACT_RANGE);
+    final RangeHighlighter removed = markupModel.addRangeHighlighter(70, 80, 0, null, HighlighterTargetArea.EXACT_RANGE);
+
+    final Thread edt = Thread.currentThread();
+    final CountDownLatch processing = new CountDownLatch(1);
+    final CountDownLatch added = new CountDownLatch(1);
+    Future<?> reader = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        final boolean[] first = {true};
+        markupModel.processRangeHighlightersOverlappingWith(0, 100, new Processor<RangeHighlighterEx>() {
+          @Override
+          public boolean process(RangeHighlighterEx highlighter) {
+            try {
+              if (first[0]) {
+                first[0] = false;
+                // the reader holds the lock until EDT waits for it
+                processing.countDown();
+                long start = System.currentTimeMillis();
+                while (edt.getState() != Thread.State.WAITING && System.currentTimeMillis() - start < 10000) {
+                  Thread.sleep(1);
+                }
+              }
+              else if (!added.await(10, TimeUnit.SECONDS)) {
+                throw new AssertionError("Adding a highlighter waited for the reader");
+              }
+              else if (!highlighter.isValid()) {
+                throw new AssertionError("A highlighter removed while the reader was postponed is processed");
+              }
+            }
+            catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            return true;
+          }
+        });
+      }
+    });
+    assertTrue(processing.await(10, TimeUnit.SECONDS));
+    // the reader releases the lock after the current highlighter and processes the rest of them afterwards
+    markupModel.addRangeHighlighter(30, 40, 0, null, HighlighterTargetArea.EXACT_RANGE);
+    removed.dispose();
+    added.countDown();
+    reader.get();
+    assertEquals(3, markupModel.getAllHighlighters().length);
+    markupModel.removeAllHighlighters();
+  }
+
+  public void testReaderStoppingEarlyIsCalledOnce() throws Exception {
+    Document document = EditorFactory.getInstance().createDocument(StringUtil.repeat("x", 100));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    for (int i = 0; i < 50; i++) {
+      markupModel.addRangeHighlighter(i, i + 10, 0, null, HighlighterTargetArea.EXACT_RANGE);
+    }
+
+    Future<Integer> calls = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        final int[] count = {0};
+        assertFalse(markupModel.processRangeHighlightersOverlappingWith(0, 100, new Processor<RangeHighlighterEx>() {
+          @Override
+          public boolean process(RangeHighlighterEx highlighter) {
+            count[0]++;
+            return false;
+          }
+        }));
+        return count[0];
+      }
+    });
+    assertEquals(1, calls.get().intValue());
+    markupModel.removeAllHighlighters();
+  }
+
+  public void testAddingHighlightersUnderConcurrentReadsPerformance_NoVerify() throws Exception {
+    final Document document = EditorFactory.getInstance().createDocument(StringUtil.repeat("xxxxxxxxx\n", 10000));
+    final MarkupModelEx markupModel = (MarkupModelEx)DocumentMarkupModel.forDocument(document, ourProject, true);
+    final int length = document.getTextLength();
+    final AtomicBoolean stop = new AtomicBoolean();
+    List<Future<?>> readers = new ArrayList<Future<?>>();
+    for (int i = 0; i < 4; i++) {
+      readers.add(ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+        @Override
+        public void run() {
+          final int[] sum = {0};
+          while (!stop.get()) {
+            markupModel.processRangeHighlightersOverlappingWith(0, length, new Processor<RangeHighlighterEx>() {
+              @Override
+              public boolean process(RangeHighlighterEx highlighter) {
+                sum[0] += highlighter.getStartOffset();
+                return true;
+              }
+            });
+          }
+        }
+      }));
+    }
+
+    try {
+      PlatformTestUtil.startPerformanceTest("adding highlighters while they are read in background", 5000, new ThrowableRunnable() {
+        @Override
+        public void run() {
+          // like the highlighters of a highlighting pass: a batch of ranges sorted by offset for every pass
+          for (int batch = 0; batch < 10; batch++) {
+            for (int i = 0; i < 2000; i++) {
+              int start = i * (length - 10) / 2000;
+              markupModel.addRangeHighlighter(start, start + 10, 0, null, HighlighterTargetArea.EXACT_RANGE);
+            }
+          }
+          markupModel.removeAllHighlighters();
+        }
+      }).cpuBound().assertTiming();
+    }
+    finally {
+      stop.set(true);
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+    }
+  }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.fileEditor.impl.text;
+
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.util.ArrayUtil;
+import com.intellij.util.text.StringSearcher;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+public class MappedFileTextTest extends TestCase {
+  private File myFile;
+  private MappedFileText myText;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFile = FileUtil.createTempFile("mapped", ".txt");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      if (myText != null) {
+        myText.close();
+      }
+      FileUtil.delete(myFile);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testLines() throws IOException {
+    String text = "first\nsecond\r\nthird\rfourth\n\nжж 漢字\n\r\nlast";
+    load(text, CharsetToolkit.UTF8_CHARSET, 3, 5);
+
+    assertEquals(text.length(), myText.length());
+    for (int i = 0; i < text.length(); i++) {
+      assertEquals(text.charAt(i), myText.charAt(i));
+    }
+    String[] lines = {"first", "second", "third", "fourth", "", "жж 漢字", "", "last"};
+    assertEquals(lines.length, myText.getLineCount());
+    for (int i = 0; i < lines.length; i++) {
+      assertEquals(lines[i], myText.getLineText(i, 100).toString());
+      int start = myText.getLineStartOffset(i);
+      assertEquals(i, myText.getLineNumber(start));
+      assertEquals(i, myText.getLineNumber(start + lines[i].length()));
+    }
+    assertEquals("sec", myText.getLineText(1, 3).toString());
+  }
+
+  public void testManyLines() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < MappedFileText.LINE_STEP * 10; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    load(text.toString(), CharsetToolkit.UTF_16LE_CHARSET, 16, 64);
+
+    assertEquals(MappedFileText.LINE_STEP * 10 + 1, myText.getLineCount());
+    for (int i = 0; i < MappedFileText.LINE_STEP * 10; i++) {
+      assertEquals("line " + i, myText.getLineText(i, 100).toString());
+      assertEquals(i, myText.getLineNumber(text.indexOf("line " + i + "\n")));
+    }
+  }
+
+  public void testBom() throws IOException {
+    FileUtil.writeToFile(myFile, ArrayUtil.mergeArrays(CharsetToolkit.UTF8_BOM, "text".getBytes(CharsetToolkit.UTF8_CHARSET)));
+    myText = MappedFileText.open(myFile, CharsetToolkit.getDefaultSystemCharset());
+    myText.index(new EmptyProgressIndicator());
+    assertEquals("text", myText.getLineText(0, 100).toString());
+  }
+
+  public void testFindAcrossPages() throws IOException {
+    load("0123456789abcdefghij0123456789ABCDEFGHIJ", CharsetToolkit.UTF8_CHARSET, 7, 11);
+
+    assertEquals(8, myText.find(new StringSearcher("89ab", true, true), 0, new EmptyProgressIndicator()));
+    assertEquals(18, myText.find(new StringSearcher("ij01", true, true), 5, new EmptyProgressIndicator()));
+    assertEquals(38, myText.find(new StringSearcher("ij", false, true), 20, new EmptyProgressIndicator()));
+    assertEquals(-1, myText.find(new StringSearcher("ij", true, true), 20, new EmptyProgressIndicator()));
+  }
+
+  private void load(String text, Charset charset, int pageSize, int windowSize) throws IOException {
+    FileUtil.writeToFile(myFile, text.getBytes(charset));
+    myText = new MappedFileText(myFile, charset, 0, pageSize, windowSize);
+    myText.index(new EmptyProgressIndicator());
+    assertTrue(myText.isIndexed());
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+import com.intellij.testFramework.PlatformTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Readers of fixed-width record fields racing with bursts of timestamp/length updates from several threads, as during a refresh.
+ * Run with -Didea.vfs.concurrent.field.updates=true to measure the concurrent field update mode.
+ */
+public class FSRecordsContentionTest extends PlatformTestCase {
+  private static final int FILE_COUNT = 200;
+  private static final int READER_COUNT = 4;
+  private static final int WRITER_COUNT = 2;
+  private static final int READS_PER_READER = 2000000;
+
+  @Override
+  public void setUp() throws Exception {
+    initPlatformLangPrefix();
+    super.setUp();
+  }
+
+  public void testChildrenSnapshotMatchesRecordFields() throws Exception {
+    File dir = createTempDirectory();
+    for (int i = 0; i < FILE_COUNT; i++) {
+      assertTrue(new File(dir, "f" + i + ".txt").createNewFile());
+    }
+    VirtualFile vDir = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(dir);
+    assertNotNull(vDir);
+    assertEquals(FILE_COUNT, vDir.getChildren().length);
+
+    FSRecords.ChildrenSnapshot snapshot = PersistentFS.getInstance().listPersistedWithAttributes(vDir);
+    assertEquals(FILE_COUNT, snapshot.size());
+    for (int i = 0; i < snapshot.size(); i++) {
+      int id = snapshot.ids[i];
+      assertEquals(i, snapshot.indexOf(id));
+      assertEquals(FSRecords.getNameId(id), snapshot.nameIds[i]);
+      assertEquals(FSRecords.getFlags(id), snapshot.flags[i]);
+      assertEquals(FSRecords.getLength(id), snapshot.lengths[i]);
+      assertEquals(FSRecords.getTimestamp(id), snapshot.timestamps[i]);
+    }
+    assertEquals(-1, snapshot.indexOf(((VirtualFileWithId)vDir).getId()));
+  }
+
+  public void testFieldReadsDuringUpdates() throws Exception {
+    File dir = createTempDirectory();
+    final int[] ids = new int[FILE_COUNT];
+    for (int i = 0; i < FILE_COUNT; i++) {
+      File file = new File(dir, "f" + i + ".txt");
+      assertTrue(file.createNewFile());
+      VirtualFile vFile = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(file);
+      assertNotNull(vFile);
+      ids[i] = ((VirtualFileWithId)vFile).getId();
+    }
+
+    final long[] timestamps = new long[FILE_COUNT];
+    final long[] lengths = new long[FILE_COUNT];
+    for (int i = 0; i < FILE_COUNT; i++) {
+      timestamps[i] = FSRecords.getTimestamp(ids[i]);
+      lengths[i] = FSRecords.getLength(ids[i]);
+      FSRecords.setTimestamp(ids[i], stamp(0));
+      FSRecords.setLength(ids[i], stamp(0));
+    }
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> writers = new ArrayList<Thread>();
+    for (int w = 0; w < WRITER_COUNT; w++) {
+      final int firstFile = w;
+      Thread writer = new Thread("FSRecords writer " + w) {
+        @Override
+        public void run() {
+          try {
+            for (int iteration = 1; !stop.get(); iteration++) {
+              for (int i = firstFile; i < FILE_COUNT; i += WRITER_COUNT) {
+                FSRecords.setTimestamp(ids[i], stamp(iteration));
+                FSRecords.setLength(ids[i], stamp(iteration));
+              }
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      writers.add(writer);
+      writer.start();
+    }
+
+    try {
+      String mode = FSRecords.isConcurrentFieldUpdates() ? "concurrent field updates" : "global lock";
+      PlatformTestUtil.startPerformanceTest("FSRecords field reads under updates (" + mode + ")", 20000, new ThrowableRunnable() {
+        @Override
+        public void run() throws Throwable {
+          List<Thread> readers = new ArrayList<Thread>();
+          for (int t = 0; t < READER_COUNT; t++) {
+            Thread reader = new Thread("FSRecords reader " + t) {
+              @Override
+              public void run() {
+                try {
+                  // every file is updated by one writer with growing iterations, so values seen by a reader never go back
+                  int[] lastIterations = new int[FILE_COUNT];
+                  for (int i = 0; i < READS_PER_READER; i++) {
+                    int index = i % FILE_COUNT;
+                    int id = ids[index];
+                    int iteration = checkStamp(FSRecords.getTimestamp(id));
+                    assertTrue(iteration >= lastIterations[index]);
+                    lastIterations[index] = iteration;
+                    checkStamp(FSRecords.getLength(id));
+                  }
+                }
+                catch (Throwable e) {
+                  failure.set(e);
+                }
+              }
+            };
+            readers.add(reader);
+            reader.start();
+          }
+          for (Thread reader : readers) {
+            reader.join();
+          }
+        }
+      }).cpuBound().usesAllCPUCores().assertTiming();
+    }
+    finally {
+      stop.set(true);
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      for (int i = 0; i < FILE_COUNT; i++) {
+        FSRecords.setTimestamp(ids[i], timestamps[i]);
+        FSRecords.setLength(ids[i], lengths[i]);
+      }
+    }
+
+    Throwable e = failure.get();
+    if (e != null) throw new RuntimeException(e);
+  }
+
+  // both halves of a value hold the iteration, so a torn or garbage read is detected
+  private static long stamp(int iteration) {
+    return ((long)iteration << 32) | iteration;
+  }
+
+  private static int checkStamp(long value) {
+    int iteration = (int)(value >>> 32);
+    assertEquals("torn value: " + Long.toHexString(value), iteration, (int)value);
+    return iteration;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.testFramework.PlatformLangTestCase;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ContentHashIndexCacheTest extends PlatformLangTestCase {
+  private static final ID<String, Integer> INDEX_ID = ID.create("ContentHashIndexCacheTest.words");
+
+  private final int[] myMapCalls = new int[1];
+  private final DataIndexer<String, Integer, FileContent> myIndexer = new DataIndexer<String, Integer, FileContent>() {
+    @NotNull
+    @Override
+    public Map<String, Integer> map(FileContent inputData) {
+      myMapCalls[0]++;
+      final Map<String, Integer> result = new HashMap<String, Integer>();
+      for (String word : inputData.getContentAsText().toString().split(" ")) {
+        final Integer count = result.get(word);
+        result.put(word, count == null ? 1 : count + 1);
+      }
+      result.put("", null);
+      return result;
+    }
+  };
+
+  public void testSameContentIsMappedOnce() throws Exception {
+    final File dir = createTempDirectory();
+    final ContentHashIndexCache<String, Integer> cache = createCache(dir, 1);
+    try {
+      final Map<String, Integer> first = cache.map(content("a.txt", "foo bar foo"));
+      final Map<String, Integer> second = cache.map(content("b.txt", "foo bar foo"));
+      assertEquals(first, second);
+      assertEquals(1, myMapCalls[0]);
+      assertEquals(1, cache.getHits());
+
+      cache.map(content("a.txt", "foo bar"));
+      assertEquals(2, myMapCalls[0]);
+    }
+    finally {
+      cache.close();
+    }
+  }
+
+  public void testSameBytesInAnotherCharsetAreMappedAgain() throws Exception {
+    final File dir = createTempDirectory();
+    final ContentHashIndexCache<String, Integer> cache = createCache(dir, 1);
+    try {
+      cache.map(new FileContentImpl(new LightVirtualFile("a.txt", "foo bar"), "foo bar", CharsetToolkit.UTF8_CHARSET));
+      cache.map(new FileContentImpl(new LightVirtualFile("b.txt", "foo bar"), "foo bar", Charset.forName("ISO-8859-1")));
+      assertEquals(2, myMapCalls[0]);
+      assertEquals(0, cache.getHits());
+    }
+    finally {
+      cache.close();
+    }
+  }
+
+  public void testCacheCopiedToAnotherDirectoryIsReused() throws Exception {
+    final File dir = createTempDirectory();
+    ContentHashIndexCache<String, Integer> cache = createCache(dir, 1);
+    final Map<String, Integer> expected = cache.map(content("a.txt", "foo bar foo"));
+    cache.close();
+
+    final File copy = createTempDirectory();
+    FileUtil.copyDir(dir, copy);
+    cache = createCache(copy, 1);
+    try {
+      assertEquals(expected, cache.map(content("c.txt", "foo bar foo")));
+      assertEquals(1, myMapCalls[0]);
+    }
+    finally {
+      cache.close();
+    }
+  }
+
+  public void testIndexVersionChangeDropsCache() throws Exception {
+    final File dir = createTempDirectory();
+    ContentHashIndexCache<String, Integer> cache = createCache(dir, 1);
+    cache.map(content("a.txt", "foo"));
+    cache.close();
+
+    cache = createCache(dir, 2);
+    try {
+      cache.map(content("a.txt", "foo"));
+      assertEquals(2, myMapCalls[0]);
+      assertEquals(0, cache.getHits());
+    }
+    finally {
+      cache.close();
+    }
+  }
+
+  @NotNull
+  private ContentHashIndexCache<String, Integer> createCache(@NotNull File dir, int version) throws Exception {
+    return new ContentHashIndexCache<String, Integer>(INDEX_ID, myIndexer, version, new EnumeratorStringDescriptor(),
+                                                      EnumeratorIntegerDescriptor.INSTANCE, dir, Long.MAX_VALUE);
+  }
+
+  @NotNull
+  private static FileContent content(@NotNull String name, @NotNull String text) throws Exception {
+    return new FileContentImpl(new LightVirtualFile(name, text), text.getBytes("UTF-8"));
+  }
+}
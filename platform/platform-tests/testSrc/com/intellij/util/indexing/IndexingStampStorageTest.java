@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.newvfs.NewVirtualFile;
+import com.intellij.testFramework.PlatformLangTestCase;
+import gnu.trove.TIntLongHashMap;
+
+import java.io.File;
+
+public class IndexingStampStorageTest extends PlatformLangTestCase {
+  public void testStampsAreReadBackUntilFileChanges() throws Exception {
+    final File dir = createTempDirectory();
+    final File ioFile = new File(dir, "a.txt");
+    assertTrue(ioFile.createNewFile());
+    final VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByIoFile(ioFile);
+    assertNotNull(file);
+    final int fileId = ((NewVirtualFile)file).getId();
+
+    final IndexingStampStorage storage = new IndexingStampStorage(new File(dir, "stamps"));
+    try {
+      assertEquals(IndexingStampStorage.NO_RECORD, storage.read(fileId, new TIntLongHashMapConsumer()));
+
+      storage.write(fileId, 42, new int[]{1, 7, 200});
+      final TIntLongHashMapConsumer consumer = new TIntLongHashMapConsumer();
+      assertEquals(IndexingStampStorage.VALID_RECORD, storage.read(fileId, consumer));
+      assertEquals(3, consumer.stamps.size());
+      assertEquals(42, consumer.stamps.get(200));
+
+      storage.write(fileId, 43, new int[]{1000}); // wider than the initial record
+      final TIntLongHashMapConsumer widened = new TIntLongHashMapConsumer();
+      assertEquals(IndexingStampStorage.VALID_RECORD, storage.read(fileId, widened));
+      assertEquals(1, widened.stamps.size());
+      assertEquals(43, widened.stamps.get(1000));
+
+      FileUtil.writeToFile(ioFile, "changed");
+      file.refresh(false, false);
+      assertEquals(IndexingStampStorage.STALE_RECORD, storage.read(fileId, new TIntLongHashMapConsumer()));
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  private static class TIntLongHashMapConsumer implements IndexingStampStorage.StampConsumer {
+    private final TIntLongHashMap stamps = new TIntLongHashMap();
+
+    @Override
+    public void consume(int indexId, long dominatingStamp) {
+      stamps.put(indexId, dominatingStamp);
+    }
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+public class PackedValueContainerTest extends TestCase {
+  public void testSameContentAsValueContainerImpl() {
+    final Map<String, TIntArrayList> mapping = new HashMap<String, TIntArrayList>();
+    final ValueContainerImpl<String> expected = new ValueContainerImpl<String>();
+    final Random random = new Random(42);
+    for (int id = 1; id < 10000; id++) {
+      final String value = random.nextInt(10) == 0 ? null : "value" + random.nextInt(20);
+      addValue(mapping, expected, id * (1 + random.nextInt(300)), value);
+    }
+    addValue(mapping, expected, Integer.MAX_VALUE, "value1");
+    addValue(mapping, expected, 5, "value1"); // duplicate ids are stored once
+    addValue(mapping, expected, 5, "value1");
+
+    final PackedValueContainer<String> packed = PackedValueContainer.pack(mapping);
+    assertEquals(expected.size(), packed.size());
+    assertEquals(new HashSet<String>(expected.toValueList()), new HashSet<String>(packed.toValueList()));
+
+    for (String value : expected.toValueList()) {
+      final TIntHashSet expectedIds = collectIds(expected.getInputIdsIterator(value));
+      final ValueContainer.IntIterator iterator = packed.getInputIdsIterator(value);
+      assertEquals(expectedIds.size(), iterator.size());
+      assertEquals(expectedIds, collectIds(iterator));
+
+      final ValueContainer.IntPredicate predicate = packed.getValueAssociationPredicate(value);
+      for (int id : expectedIds.toArray()) {
+        assertTrue(packed.isAssociated(value, id));
+        assertTrue(predicate.contains(id));
+        assertEquals(expectedIds.contains(id + 1), packed.isAssociated(value, id + 1));
+      }
+    }
+    assertFalse(packed.getInputIdsIterator("unknown").hasNext());
+  }
+
+  public void testIterationPerformance() {
+    final Map<Integer, TIntArrayList> mapping = new HashMap<Integer, TIntArrayList>();
+    final ValueContainerImpl<Integer> container = new ValueContainerImpl<Integer>();
+    for (int id = 1; id < 1000000; id += 3) {
+      addValue(mapping, container, id, id % 50);
+    }
+    final PackedValueContainer<Integer> packed = PackedValueContainer.pack(mapping);
+
+    final int[] sums = new int[2];
+    PlatformTestUtil.startPerformanceTest("iterating packed value container", 2000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int i = 0; i < 50; i++) {
+          sums[0] += sumIds(packed);
+        }
+      }
+    }).cpuBound().assertTiming();
+    PlatformTestUtil.startPerformanceTest("iterating value container", 4000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int i = 0; i < 50; i++) {
+          sums[1] += sumIds(container);
+        }
+      }
+    }).cpuBound().assertTiming();
+    assertEquals(sums[1], sums[0]);
+  }
+
+  private static <T> void addValue(Map<T, TIntArrayList> mapping, ValueContainerImpl<T> container, int id, T value) {
+    TIntArrayList ids = mapping.get(value);
+    if (ids == null) {
+      ids = new TIntArrayList();
+      mapping.put(value, ids);
+    }
+    ids.add(id);
+    container.addValue(id, value);
+  }
+
+  private static TIntHashSet collectIds(ValueContainer.IntIterator iterator) {
+    final TIntHashSet result = new TIntHashSet();
+    while (iterator.hasNext()) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+
+  private static <T> int sumIds(ValueContainer<T> container) {
+    int sum = 0;
+    for (Iterator<T> values = container.getValueIterator(); values.hasNext(); ) {
+      for (ValueContainer.IntIterator ids = container.getInputIdsIterator(values.next()); ids.hasNext(); ) {
+        sum += ids.next();
+      }
+    }
+    return sum;
+  }
+}
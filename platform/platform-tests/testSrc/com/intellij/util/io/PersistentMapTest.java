@@ -210,6 +210,95 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testIncrementalCompaction() throws IOException {
+    final int stringsCount = 100;
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = createRandomString();
+      myMap.put(key, key + "_value");
+      expected.put(key, key + "_value");
+    }
+    // create some garbage
+    for (String key : new ArrayList<String>(expected.keySet()).subList(0, stringsCount / 2)) {
+      myMap.remove(key);
+      expected.remove(key);
+    }
+
+    final double garbageRatioBefore = myMap.getGarbageRatio();
+    myMap.startIncrementalCompaction();
+    assertTrue(myMap.compactIncrementally(10)); // collects keys of the first slice
+    assertTrue(myMap.compactIncrementally(10));
+
+    // modify the map while compaction is in progress
+    final List<String> keys = new ArrayList<String>(expected.keySet());
+    final String removed = keys.get(0);
+    myMap.remove(removed);
+    expected.remove(removed);
+    final String rewritten = keys.get(1);
+    myMap.put(rewritten, "rewritten");
+    expected.put(rewritten, "rewritten");
+    final String appended = keys.get(2);
+    myMap.appendData(appended, new PersistentHashMap.ValueDataAppender() {
+      @Override
+      public void append(DataOutput out) throws IOException {
+        out.write(new byte[0]);
+      }
+    });
+    final String added = createRandomString();
+    myMap.put(added, "added");
+    expected.put(added, "added");
+
+    // without incremental compaction enabled, the persisted compaction is finished on reopening
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertFalse(myMap.compactIncrementally(10));
+    assertTrue(myMap.getGarbageRatio() < garbageRatioBefore);
+    assertEquals(expected, readAll(myMap));
+
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(expected, readAll(myMap));
+  }
+
+  public void testTraversalSlicesCoverAllRecords() throws IOException {
+    for (int i = 0; i < 1000; ++i) {
+      final String key = createRandomString();
+      myMap.put(key, key + "_value");
+    }
+
+    final List<Integer> allRecords = new ArrayList<Integer>();
+    myMap.traverseAllRecords(new PersistentEnumeratorBase.RecordsProcessor() {
+      @Override
+      public boolean process(int record) throws IOException {
+        allRecords.add(record);
+        return true;
+      }
+    });
+    final List<Integer> slicedRecords = new ArrayList<Integer>();
+    for (int slice = 0; slice < PersistentEnumeratorBase.TRAVERSAL_SLICES; ++slice) {
+      myMap.traverseRecordsSlice(slice, new PersistentEnumeratorBase.RecordsProcessor() {
+        @Override
+        public boolean process(int record) throws IOException {
+          slicedRecords.add(record);
+          return true;
+        }
+      });
+    }
+
+    assertEquals(1000, allRecords.size());
+    Collections.sort(allRecords);
+    Collections.sort(slicedRecords);
+    assertEquals(allRecords, slicedRecords);
+  }
+
+  private static Map<String, String> readAll(PersistentHashMap<String, String> map) throws IOException {
+    final Map<String, String> result = new HashMap<String, String>();
+    for (String key : map.getAllKeysWithExistingMapping()) {
+      result.put(key, map.get(key));
+    }
+    return result;
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
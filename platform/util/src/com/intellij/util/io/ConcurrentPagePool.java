@@ -0,0 +1,215 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.util.containers.ConcurrentHashMap;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Page pool without a global monitor. Cached pages are looked up in a concurrent map, and a hit only sets the reference bit
+ * of the page. Misses are admitted into one of several shards, each evicting with its own CLOCK hand: a page referenced
+ * since the hand last passed gets a second chance, so pages hit once behave like the probational queue of {@link PagePool}.
+ * Dirty evicted pages wait in a sorted finalization queue which is written out by one thread at a time, in file order.
+ */
+public class ConcurrentPagePool extends PagePool {
+  private static final int SHARD_COUNT = 16;
+
+  private final ConcurrentHashMap<PoolPageKey, Entry> myPages = new ConcurrentHashMap<PoolPageKey, Entry>();
+  private final Shard[] myShards = new Shard[SHARD_COUNT];
+
+  private final ConcurrentSkipListMap<PoolPageKey, FinalizationRequest> myFinalizationQueue =
+    new ConcurrentSkipListMap<PoolPageKey, FinalizationRequest>();
+  private final AtomicInteger myFinalizationId = new AtomicInteger();
+  private final ReentrantLock myFinalizationLock = new ReentrantLock();
+
+  private final ThreadLocal<PoolPageKey> myLookupKey = new ThreadLocal<PoolPageKey>() {
+    @Override
+    protected PoolPageKey initialValue() {
+      return new PoolPageKey(null, -1);
+    }
+  };
+
+  private static class Entry {
+    private final Page page;
+    private volatile boolean referenced;
+
+    private Entry(Page page) {
+      this.page = page;
+    }
+  }
+
+  private static class Shard {
+    private final Entry[] ring;
+    private int hand;
+
+    private Shard(int capacity) {
+      ring = new Entry[capacity];
+    }
+
+    // must be called under the shard lock
+    private int findVictimSlot() {
+      while (true) {
+        final int slot = hand;
+        hand = (hand + 1) % ring.length;
+
+        final Entry entry = ring[slot];
+        if (entry == null || !entry.referenced) return slot;
+        entry.referenced = false;
+      }
+    }
+  }
+
+  public ConcurrentPagePool(final int pagesLimit) {
+    final int shardCapacity = Math.max(1, pagesLimit / SHARD_COUNT);
+    for (int i = 0; i < SHARD_COUNT; i++) {
+      myShards[i] = new Shard(shardCapacity);
+    }
+  }
+
+  @NotNull
+  @Override
+  public Page alloc(RandomAccessDataFile owner, long offset) {
+    offset -= offset % Page.PAGE_SIZE;
+    IOStatistics.pageRequests.incrementAndGet();
+
+    final PoolPageKey key = myLookupKey.get();
+    key.setup(owner, offset);
+
+    final Entry entry = myPages.get(key);
+    if (entry != null) {
+      entry.referenced = true;
+      IOStatistics.pageCacheHits.incrementAndGet();
+      return entry.page;
+    }
+
+    final Page page = admit(owner, offset, key);
+    flushFinalizationQueue(Integer.MAX_VALUE, false);
+    return page;
+  }
+
+  private Page admit(RandomAccessDataFile owner, long offset, PoolPageKey key) {
+    // pages of one key always land in the same shard, so holding its lock makes lookup, eviction and
+    // scheduling of the evicted page's finalization atomic for every thread interested in that key
+    final Shard shard = myShards[shardIndex(key)];
+    synchronized (shard) {
+      final Entry existing = myPages.get(key);
+      if (existing != null) {
+        existing.referenced = true;
+        IOStatistics.pageCacheHits.incrementAndGet();
+        return existing.page;
+      }
+
+      final Page page;
+      final FinalizationRequest request = myFinalizationQueue.remove(key);
+      if (request != null) {
+        IOStatistics.finalizationQueueHits.incrementAndGet();
+        page = request.page;
+      }
+      else {
+        IOStatistics.pageCacheMisses.incrementAndGet();
+        page = new Page(owner, offset);
+      }
+
+      final int slot = shard.findVictimSlot();
+      final Entry victim = shard.ring[slot];
+      if (victim != null) {
+        IOStatistics.pageEvictions.incrementAndGet();
+        myPages.remove(victim.page.getKey());
+        scheduleFinalization(victim.page);
+      }
+
+      final Entry entry = new Entry(page);
+      shard.ring[slot] = entry;
+      myPages.put(page.getKey(), entry);
+      return page;
+    }
+  }
+
+  private static int shardIndex(PoolPageKey key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % SHARD_COUNT;
+  }
+
+  private void scheduleFinalization(Page page) {
+    final FinalizationRequest request = page.prepareForFinalization(myFinalizationId.incrementAndGet());
+    if (request != null) {
+      myFinalizationQueue.put(page.getKey(), request);
+    }
+  }
+
+  @Override
+  public boolean flushPages(final RandomAccessDataFile owner, final int maxPagesToFlush) {
+    boolean hasFlushes = false;
+    for (Shard shard : myShards) {
+      synchronized (shard) {
+        final Entry[] ring = shard.ring;
+        for (int i = 0; i < ring.length; i++) {
+          final Entry entry = ring[i];
+          if (entry != null && entry.page.getOwner() == owner) {
+            ring[i] = null;
+            myPages.remove(entry.page.getKey());
+            scheduleFinalization(entry.page);
+            hasFlushes = true;
+          }
+        }
+      }
+    }
+
+    return !hasFlushes || flushFinalizationQueue(maxPagesToFlush, true);
+  }
+
+  private boolean flushFinalizationQueue(final int maxPagesToFlush, boolean waitForOtherFlush) {
+    if (waitForOtherFlush) {
+      myFinalizationLock.lock();
+    }
+    else if (!myFinalizationLock.tryLock()) {
+      return false; // somebody is already writing out the queue
+    }
+
+    try {
+      int count = 0;
+      while (count < maxPagesToFlush) {
+        // the request stays in the queue while its page is being written, so that the page can still be found
+        final Map.Entry<PoolPageKey, FinalizationRequest> first = myFinalizationQueue.firstEntry();
+        if (first == null) {
+          return true;
+        }
+
+        processFinalizationRequest(first.getKey(), first.getValue());
+        count++;
+      }
+      return false;
+    }
+    finally {
+      myFinalizationLock.unlock();
+    }
+  }
+
+  private void processFinalizationRequest(PoolPageKey key, FinalizationRequest request) {
+    final Page page = request.page;
+    try {
+      page.flushIfFinalizationIdIsEqualTo(request.finalizationId);
+    }
+    finally {
+      myFinalizationQueue.remove(key, request);
+      page.recycleIfFinalizationIdIsEqualTo(request.finalizationId);
+    }
+  }
+}
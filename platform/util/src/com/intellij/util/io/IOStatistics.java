@@ -2,13 +2,37 @@ package com.intellij.util.io;
 
 import com.intellij.openapi.diagnostic.Logger;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 class IOStatistics {
   static final boolean DEBUG = System.getProperty("io.access.debug") != null;
   static final int MIN_IO_TIME_TO_REPORT = 100;
   static final Logger LOG = Logger.getInstance("#com.intellij.io.IOStatistics");
   static final int KEYS_FACTOR_MASK = 0xFFFF;
 
+  // page cache counters, updated by all PagePool implementations
+  static final AtomicLong pageRequests = new AtomicLong();
+  static final AtomicLong samePageHits = new AtomicLong();
+  static final AtomicLong pageCacheHits = new AtomicLong();
+  static final AtomicLong finalizationQueueHits = new AtomicLong();
+  static final AtomicLong pageCacheMisses = new AtomicLong();
+  static final AtomicLong pageEvictions = new AtomicLong();
+
   static void dump(String msg) {
     LOG.info(msg);
   }
+
+  static String pageCacheStatistics() {
+    final long requests = pageRequests.get();
+    return "Total requests: " + requests +
+           "\nSame page hits: " + samePageHits.get() + " (" + percent(samePageHits.get(), requests) + "%)" +
+           "\nCache hits: " + pageCacheHits.get() + " (" + percent(pageCacheHits.get(), requests) + "%)" +
+           "\nFinalization queue hits: " + finalizationQueueHits.get() + " (" + percent(finalizationQueueHits.get(), requests) + "%)" +
+           "\nCache misses: " + pageCacheMisses.get() + " (" + percent(pageCacheMisses.get(), requests) + "%)" +
+           "\nEvictions: " + pageEvictions.get();
+  }
+
+  private static double percent(long part, long whole) {
+    return whole == 0 ? 0 : ((double)part * 1000 / whole) / 10;
+  }
 }
@@ -490,7 +490,7 @@ class IntToIntBtree {
       return childrenCount == getMaxChildrenCount();
     }
 
-    boolean processMappings(KeyValueProcessor processor) throws IOException {
+    boolean processMappings(int fromKey, int toKey, KeyValueProcessor processor) throws IOException {
       assert isIndexLeaf();
 
       if (isHashedLeaf()) {
@@ -498,7 +498,7 @@ class IntToIntBtree {
 
         for(int i = 0; i < btree.hashPageCapacity; ++i) {
           int key = myBuffer.getInt(offset + KEY_OFFSET);
-          if (key != HASH_FREE) {
+          if (key != HASH_FREE && key >= fromKey && key <= toKey) {
             if(!processor.process(key,  myBuffer.getInt(offset))) return false;
           }
           offset += INTERIOR_SIZE;
@@ -506,7 +506,9 @@ class IntToIntBtree {
       } else {
         final int childrenCount = getChildrenCount();
         for(int i = 0; i < childrenCount; ++i) {
-          if (!processor.process(keyAt(i), addressAt(i))) return false;
+          final int key = keyAt(i);
+          if (key > toKey) break;
+          if (key >= fromKey && !processor.process(key, addressAt(i))) return false;
         }
       }
       return true;
@@ -1093,34 +1095,47 @@ class IntToIntBtree {
   }
 
   public boolean processMappings(@NotNull KeyValueProcessor processor) throws IOException {
+    return processMappings(Integer.MIN_VALUE, Integer.MAX_VALUE, processor);
+  }
+
+  /**
+   * Processes mappings with keys from {@code fromKey} to {@code toKey} inclusive, pages which can't contain such keys are skipped
+   */
+  public boolean processMappings(int fromKey, int toKey, @NotNull KeyValueProcessor processor) throws IOException {
     doFlush();
     root.syncWithStore();
 
-    if (hasZeroKey) {
+    if (hasZeroKey && fromKey <= 0 && toKey >= 0) {
       if(!processor.process(0, zeroKeyValue)) return false;
     }
-    return processLeafPages(root, processor);
+    return fromKey > toKey || processLeafPages(root, fromKey, toKey, processor);
   }
 
-  private boolean processLeafPages(@NotNull BtreeIndexNodeView node, @NotNull KeyValueProcessor processor) throws IOException {
+  private boolean processLeafPages(@NotNull BtreeIndexNodeView node, int fromKey, int toKey, @NotNull KeyValueProcessor processor)
+    throws IOException {
     if (node.isIndexLeaf()) {
-      return node.processMappings(processor);
+      return node.processMappings(fromKey, toKey, processor);
     }
 
+    // child i holds keys from keyAt(i - 1) inclusive up to keyAt(i) exclusive
+    final int keysCount = node.getChildrenCount();
+    int firstChild = 0;
+    while (firstChild < keysCount && node.keyAt(firstChild) <= fromKey) ++firstChild;
+    int lastChild = firstChild;
+    while (lastChild < keysCount && node.keyAt(lastChild) <= toKey) ++lastChild;
+
     // Copy children addresses first to avoid node's ByteBuffer invalidation
-    final int[] childrenAddresses = new int[node.getChildrenCount() + 1];
+    final int[] childrenAddresses = new int[lastChild - firstChild + 1];
 
     for(int i = 0; i < childrenAddresses.length; ++i) {
-      childrenAddresses[i] = -node.addressAt(i);
+      childrenAddresses[i] = -node.addressAt(firstChild + i);
     }
 
-    if (childrenAddresses.length > 0) {
-      BtreeIndexNodeView child = new BtreeIndexNodeView(this);
+    BtreeIndexNodeView child = new BtreeIndexNodeView(this);
 
-      for(int i = 0; i < childrenAddresses.length; ++i) {
-        child.setAddress(childrenAddresses[i]);
-        if (!processLeafPages(child, processor))  return false;
-      }
+    for(int i = 0; i < childrenAddresses.length; ++i) {
+      child.setAddress(childrenAddresses[i]);
+      if (!processLeafPages(child, fromKey, toKey, processor))  return false;
     }
     return true;
   }
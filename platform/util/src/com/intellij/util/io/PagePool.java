@@ -19,6 +19,7 @@
  */
 package com.intellij.util.io;
 
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.hash.LinkedHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -44,11 +45,20 @@ public class PagePool {
 
   private PoolPageKey lastFinalizedKey = null;
 
+  /**
+   * For implementations which keep pages in their own structures and override {@link #alloc} and {@link #flushPages}
+   */
+  protected PagePool() {
+    myProtectedQueue = null;
+    myProbationalQueue = null;
+  }
+
   public PagePool(final int protectedPagesLimit, final int probationalPagesLimit) {
     myProbationalQueue = new LinkedHashMap<PoolPageKey,Page>(probationalPagesLimit * 2, 0.6f) {
       @Override
       protected boolean removeEldestEntry(final Map.Entry<PoolPageKey, Page> eldest) {
         if (size() > probationalPagesLimit) {
+          IOStatistics.pageEvictions.incrementAndGet();
           scheduleFinalization(eldest.getValue());
           return true;
         }
@@ -68,14 +78,7 @@ public class PagePool {
     };
   }
 
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int cache_misses = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int same_page_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int protected_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int probational_queue_hits = 0;
-  @SuppressWarnings({"FieldAccessedSynchronizedAndUnsynchronized"}) private static int finalization_queue_hits = 0;
-
-  public final static PagePool SHARED = new PagePool(500, 500);
+  public final static PagePool SHARED = SystemProperties.getBooleanProperty("idea.io.concurrent.page.pool", false) ? new ConcurrentPagePool(1000) : new PagePool(500, 500);
 
   private RandomAccessDataFile lastOwner = null;
   private long lastOffset = 0;
@@ -86,10 +89,10 @@ public class PagePool {
   public Page alloc(RandomAccessDataFile owner, long offset) {
     synchronized (lock) {
       offset -= offset % Page.PAGE_SIZE;
-      hits++;
+      IOStatistics.pageRequests.incrementAndGet();
 
       if (owner == lastOwner && offset == lastOffset) {
-        same_page_hits++;
+        IOStatistics.samePageHits.incrementAndGet();
         return lastHit;
       }
 
@@ -108,13 +111,13 @@ public class PagePool {
 
     Page page = myProtectedQueue.get(key);
     if (page != null) {
-      protected_queue_hits++;
+      IOStatistics.pageCacheHits.incrementAndGet();
       return page;
     }
 
     page = myProbationalQueue.remove(key);
     if (page != null) {
-      probational_queue_hits++;
+      IOStatistics.pageCacheHits.incrementAndGet();
       toProtectedQueue(page);
       return page;
     }
@@ -122,12 +125,12 @@ public class PagePool {
     final FinalizationRequest request = myFinalizationQueue.remove(key);
     if (request != null) {
       page = request.page;
-      finalization_queue_hits++;
+      IOStatistics.finalizationQueueHits.incrementAndGet();
       toProtectedQueue(page);
       return page;
     }
 
-    cache_misses++;
+    IOStatistics.pageCacheMisses.incrementAndGet();
     page = new Page(owner, offset);
 
     myProbationalQueue.put(keyForPage(page), page);
@@ -136,19 +139,10 @@ public class PagePool {
   }
 
   //private long lastFlushTime = 0;
-  
-  private static double percent(int part, int whole) {
-    return ((double)part * 1000 / whole) / 10;
-  }
 
   @SuppressWarnings({"ALL"})
   public static void printStatistics() {
-    System.out.println("Total requests: " + hits);
-    System.out.println("Same page hits: " + same_page_hits + " (" + percent(same_page_hits, hits) + "%)");
-    System.out.println("Protected queue hits: " + protected_queue_hits + " (" + percent(protected_queue_hits, hits) + "%)");
-    System.out.println("Probatinonal queue hits: " + probational_queue_hits + " (" + percent(probational_queue_hits, hits) + "%)");
-    System.out.println("Finalization queue hits: " + finalization_queue_hits + " (" + percent(finalization_queue_hits, hits) + "%)");
-    System.out.println("Cache misses: " + cache_misses + " (" + percent(cache_misses, hits) + "%)");
+    System.out.println(IOStatistics.pageCacheStatistics());
 
     System.out.println("Total reads: " + RandomAccessDataFile.totalReads + ". Bytes read: " + RandomAccessDataFile.totalReadBytes);
     System.out.println("Total writes: " + RandomAccessDataFile.totalWrites + ". Bytes written: " + RandomAccessDataFile.totalWriteBytes);
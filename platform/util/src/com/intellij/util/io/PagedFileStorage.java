@@ -155,11 +155,15 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
-  int getOffsetInPage(int addr) {
+  public int getOffsetInPage(int addr) {
     return addr % myPageSize;
   }
 
-  ByteBuffer getByteBuffer(int address, boolean modify) {
+  /**
+   * Must be called under the storage lock. The buffer may then be accessed at {@link #getOffsetInPage(int)} after the lock is
+   * released, so that several threads can access values of the same page at once as long as they order accesses to every value.
+   */
+  public ByteBuffer getByteBuffer(int address, boolean modify) {
     return getBuffer(address / myPageSize, modify);
   }
 
@@ -196,9 +196,21 @@ public class PersistentBTreeEnumerator<Data> extends PersistentEnumeratorBase<Da
 
   @Override
   public boolean traverseAllRecords(@NotNull final RecordsProcessor p) throws IOException {
+    return traverseRecords(Integer.MIN_VALUE, Integer.MAX_VALUE, p);
+  }
+
+  @Override
+  public boolean traverseRecordsSlice(int slice, @NotNull RecordsProcessor p) throws IOException {
+    // slices are consecutive ranges of key hash codes
+    final int sliceBits = Integer.numberOfTrailingZeros(TRAVERSAL_SLICES);
+    final int fromKey = slice << (32 - sliceBits);
+    return traverseRecords(fromKey, fromKey + ((1 << (32 - sliceBits)) - 1), p);
+  }
+
+  private boolean traverseRecords(int fromKey, int toKey, @NotNull final RecordsProcessor p) throws IOException {
     try {
       lockStorage();
-      return btree.processMappings(new IntToIntBtree.KeyValueProcessor() {
+      return btree.processMappings(fromKey, toKey, new IntToIntBtree.KeyValueProcessor() {
         public boolean process(int key, int value) throws IOException {
           p.setCurrentKey(key);
 
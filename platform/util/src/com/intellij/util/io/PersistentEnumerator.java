@@ -66,13 +66,19 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
   }
 
   public synchronized boolean traverseAllRecords(@NotNull RecordsProcessor p) throws IOException {
-    return traverseRecords(FIRST_VECTOR_OFFSET, SLOTS_PER_FIRST_VECTOR, p);
+    return traverseRecords(FIRST_VECTOR_OFFSET, 0, SLOTS_PER_FIRST_VECTOR, p);
   }
 
-  private boolean traverseRecords(int vectorStart, int slotsCount, @NotNull RecordsProcessor p) throws IOException {
+  @Override
+  public synchronized boolean traverseRecordsSlice(int slice, @NotNull RecordsProcessor p) throws IOException {
+    final int slotsPerSlice = SLOTS_PER_FIRST_VECTOR / TRAVERSAL_SLICES;
+    return traverseRecords(FIRST_VECTOR_OFFSET, slice * slotsPerSlice, (slice + 1) * slotsPerSlice, p);
+  }
+
+  private boolean traverseRecords(int vectorStart, int fromSlot, int toSlot, @NotNull RecordsProcessor p) throws IOException {
     lockStorage();
     try {
-      for (int slotIdx = 0; slotIdx < slotsCount; slotIdx++) {
+      for (int slotIdx = fromSlot; slotIdx < toSlot; slotIdx++) {
         final int vector = myStorage.getInt(vectorStart + slotIdx * 4);
         if (vector < 0) {
           for (int record = -vector; record != 0; record = nextCanditate(record)) {
@@ -80,7 +86,7 @@ public class PersistentEnumerator<Data> extends PersistentEnumeratorBase<Data> {
           }
         }
         else if (vector > 0) {
-          if (!traverseRecords(vector, SLOTS_PER_VECTOR, p)) return false;
+          if (!traverseRecords(vector, 0, SLOTS_PER_VECTOR, p)) return false;
         }
       }
       return true;
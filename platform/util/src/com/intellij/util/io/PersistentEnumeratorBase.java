@@ -366,6 +366,19 @@ abstract class PersistentEnumeratorBase<Data> implements Forceable, Closeable {
 
   public abstract boolean traverseAllRecords(RecordsProcessor p) throws IOException;
 
+  /**
+   * Number of parts {@link #traverseRecordsSlice(int, RecordsProcessor)} splits the records into
+   */
+  public static final int TRAVERSAL_SLICES = 256;
+
+  /**
+   * Traverses one of {@link #TRAVERSAL_SLICES} parts of the records, so that a long traversal can be done in several steps.
+   * A record always falls into the same slice, no matter how the enumerator changes between the steps.
+   */
+  public boolean traverseRecordsSlice(int slice, RecordsProcessor p) throws IOException {
+    return slice != 0 || traverseAllRecords(p);
+  }
+
   protected abstract int enumerateImpl(final Data value, final boolean onlyCheckForExisting, boolean saveNewValue) throws IOException;
 
   protected boolean isKeyAtIndex(final Data value, final int idx) throws IOException {
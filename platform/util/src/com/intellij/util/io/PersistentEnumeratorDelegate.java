@@ -83,6 +83,10 @@ public class PersistentEnumeratorDelegate<Data> implements Closeable, Forceable
     return myEnumerator.traverseAllRecords(recordsProcessor);
   }
 
+  public boolean traverseRecordsSlice(int slice, PersistentEnumeratorBase.RecordsProcessor recordsProcessor) throws IOException {
+    return myEnumerator.traverseRecordsSlice(slice, recordsProcessor);
+  }
+
   public Collection<Data> getAllDataObjects(@Nullable final PersistentEnumeratorBase.DataFilter filter) throws IOException {
     return myEnumerator.getAllDataObjects(filter);
   }
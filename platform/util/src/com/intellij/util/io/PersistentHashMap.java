@@ -20,10 +20,12 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.containers.hash.EqualityPolicy;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,8 +33,11 @@ import org.jetbrains.annotations.TestOnly;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eugene Zhuravlev
@@ -66,6 +71,30 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = true;
 
+  private static final boolean ourIncrementalCompaction = System.getProperty("idea.persistent.hash.map.incremental.compact") != null;
+  private static final int COMPACTION_PROGRESS_VERSION = 1;
+  private static final int COMPACTION_BATCH_VALUES = 1000;
+  private static final int COMPACTION_BATCH_BYTES = 4 * 1024 * 1024;
+  private static final int COMPACTION_STEP_DELAY_MS = 100;
+  private static final int COMPACTION_PROGRESS_SAVE_INTERVAL_MS = 30 * 1000;
+
+  // while incremental compaction runs, all new values go to the target storage; bits of keys whose values are there are set
+  private PersistentHashMapValueStorage myCompactionTarget;
+  private BitSet myMovedKeys;
+  private TIntArrayList myKeysToMove; // pairs of key id and processing key, collected from one enumerator slice at a time
+  private int myKeysToMoveCursor;
+  private int myNextSliceToCollect;
+  private long myLastCompactionProgressSave;
+  private int myDeadKeysBeforeCompaction;
+  private int myReadCompactionGarbageBeforeCompaction;
+  // compaction prepared by the constructor is scheduled on the first access, so the executor never sees a map under construction
+  private boolean myCompactionStepPending;
+
+  private static class CompactionExecutorHolder {
+    private static final ScheduledExecutorService ourExecutor =
+      ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap compaction", Thread.MIN_PRIORITY);
+  }
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(null);
@@ -141,6 +170,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         public void flush() throws IOException {
           myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
           myEnumerator.putMetaData2(myLargeIndexWatermarkId | ((long)myReadCompactionGarbageSize << 32));
+          if (myCompactionTarget != null) {
+            // the map is consistent on disk now, so is the compaction state being saved
+            myCompactionTarget.force();
+            saveCompactionProgress();
+          }
         }
       }
     );
@@ -154,8 +188,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myReadCompactionGarbageSize = (int)(data2 >>> 32);
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
-      if (makesSenseToCompact()) {
-        compact();
+      if (!resumeIncrementalCompaction() && makesSenseToCompact()) {
+        if (ourIncrementalCompaction) {
+          prepareIncrementalCompaction();
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -202,10 +241,18 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       protected void onDropFromCache(final Key key, @NotNull final BufferExposingByteArrayOutputStream bytes) {
         myEnumerator.lockStorage();
         try {
-          final int id = enumerate(key);
+          int id = enumerate(key);
+          PersistentHashMapValueStorage storage = myValueStorage;
+          if (myCompactionTarget != null) {
+            // appended chunks must stay in the storage of the chunks they refer to
+            if (!myMovedKeys.get(id)) {
+              id = moveToCompactionTarget(id, key, 0);
+            }
+            storage = myCompactionTarget;
+          }
           long oldHeaderRecord = readValueId(id);
 
-          long headerRecord = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), oldHeaderRecord);
+          long headerRecord = storage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), oldHeaderRecord);
 
           updateValueId(id, headerRecord, oldHeaderRecord, key, 0);
           if (oldHeaderRecord == NULL_ADDR) {
@@ -249,6 +296,21 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return approximate share of the values file occupied by unreachable values, from 0 to 1
+   */
+  public double getGarbageRatio() {
+    synchronized (myEnumerator) {
+      final int liveKeys = (int)(myLiveAndGarbageKeysCounter / LIVE_KEY_MASK);
+      final int deadKeys = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+      final long fileSize = getDataFile(myEnumerator.myFile).length();
+
+      final double deadKeysRatio = liveKeys + deadKeys > 0 ? (double)deadKeys / (liveKeys + deadKeys) : 0;
+      final double readCompactionRatio = fileSize > 0 ? (double)myReadCompactionGarbageSize / fileSize : 0;
+      return Math.min(1, Math.max(deadKeysRatio, readCompactionRatio));
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -295,6 +357,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final void put(Key key, Value value) throws IOException {
     synchronized (myEnumerator) {
+      schedulePendingCompactionStep();
       doPut(key, value);
     }
   }
@@ -321,7 +384,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
       }
 
-      long header = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), 0);
+      final PersistentHashMapValueStorage storage = myCompactionTarget != null ? myCompactionTarget : myValueStorage;
+      long header = storage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), 0);
 
       updateValueId(id, header, oldheader, key, 0);
     }
@@ -333,7 +397,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final int enumerate(Key name) throws IOException {
     synchronized (myEnumerator) {
-      myIntAddressForNewRecord = canUseIntAddressForNewRecord(myValueStorage.getSize());
+      long size = myValueStorage.getSize();
+      if (myCompactionTarget != null) size = Math.max(size, myCompactionTarget.getSize());
+      myIntAddressForNewRecord = canUseIntAddressForNewRecord(size);
       return super.enumerate(name);
     }
   }
@@ -344,6 +410,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   
   public final void appendData(Key key, @NotNull ValueDataAppender appender) throws IOException {
     synchronized (myEnumerator) {
+      schedulePendingCompactionStep();
       doAppendData(key, appender);
     }
   }
@@ -395,6 +462,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final Value get(Key key) throws IOException {
     synchronized (myEnumerator) {
+      schedulePendingCompactionStep();
       return doGet(key);
     }
   }
@@ -413,7 +481,10 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         return null;
       }
 
-      PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(oldHeader);
+      final PersistentHashMapValueStorage storage = getValueStorage(id);
+      // relocating a value within the storage being compacted away would only produce more garbage
+      final boolean allowRelocation = myCompactionTarget == null || storage == myCompactionTarget;
+      PersistentHashMapValueStorage.ReadResult readResult = storage.readBytes(oldHeader, allowRelocation);
       if (readResult.offset != oldHeader) {
         myEnumerator.markDirty(true);
 
@@ -437,6 +508,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   public final boolean containsMapping(Key key) throws IOException {
     synchronized (myEnumerator) {
+      schedulePendingCompactionStep();
       return doContainsMapping(key);
     }
   }
@@ -458,6 +530,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
 
   public final void remove(Key key) throws IOException {
     synchronized (myEnumerator) {
+      schedulePendingCompactionStep();
       doRemove(key);
     }
   }
@@ -495,6 +568,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final void force() {
     synchronized (myEnumerator) {
+      schedulePendingCompactionStep();
       doForce();
     }
   }
@@ -517,6 +591,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private void clearAppenderCaches() {
     myAppendCache.clear();
     myValueStorage.force();
+    if (myCompactionTarget != null) {
+      myCompactionTarget.force();
+    }
   }
 
   @Override
@@ -536,6 +613,17 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         if (valueStorage != null) {
           valueStorage.dispose();
         }
+        final PersistentHashMapValueStorage compactionTarget = myCompactionTarget;
+        if (compactionTarget != null) {
+          myCompactionTarget = null;
+          try {
+            compactionTarget.force();
+            saveCompactionProgress();
+          }
+          finally {
+            compactionTarget.dispose();
+          }
+        }
       }
       finally {
         super.close();
@@ -563,6 +651,11 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      if (myCompactionTarget != null) {
+        //noinspection StatementWithEmptyBody
+        while (compactIncrementally(Integer.MAX_VALUE));
+        return;
+      }
       LOG.info("Compacting "+myEnumerator.myFile.getPath());
       LOG.info("Live keys:" + ((int)(myLiveAndGarbageKeysCounter  / LIVE_KEY_MASK)) +
                ", dead keys:" + ((int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK)) +
@@ -656,6 +749,259 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     LOG.info("Updated mappings:" + (System.currentTimeMillis() - started) + " ms");
   }
 
+  @NotNull
+  private PersistentHashMapValueStorage getValueStorage(int keyId) {
+    return myCompactionTarget != null && myMovedKeys.get(keyId) ? myCompactionTarget : myValueStorage;
+  }
+
+  @NotNull
+  private File getCompactionTargetFile() {
+    return new File(getDataFile(myEnumerator.myFile).getPath() + ".compacting");
+  }
+
+  @NotNull
+  private File getCompactionProgressFile() {
+    return new File(getDataFile(myEnumerator.myFile).getPath() + ".compacting.progress");
+  }
+
+  /**
+   * Starts moving live values into a new values file in the background, see {@link #compactIncrementally(int)}
+   */
+  // made public for tests
+  public void startIncrementalCompaction() throws IOException {
+    synchronized (myEnumerator) {
+      prepareIncrementalCompaction();
+      schedulePendingCompactionStep();
+    }
+  }
+
+  private void prepareIncrementalCompaction() throws IOException {
+    synchronized (myEnumerator) {
+      if (myCompactionTarget != null) return;
+      LOG.info("Starting incremental compaction of " + myEnumerator.myFile.getPath() + ", garbage ratio:" + getGarbageRatio());
+      final File targetFile = getCompactionTargetFile();
+      FileUtil.delete(targetFile);
+      FileUtil.delete(getCompactionProgressFile());
+
+      myDeadKeysBeforeCompaction = (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK);
+      myReadCompactionGarbageBeforeCompaction = myReadCompactionGarbageSize;
+      myMovedKeys = new BitSet();
+      myCompactionTarget = PersistentHashMapValueStorage.create(targetFile.getPath());
+      myAppendCache.clear(); // pending appends refer to values in the old storage
+      resetKeysToMove();
+      myCompactionStepPending = true;
+    }
+  }
+
+  private boolean resumeIncrementalCompaction() throws IOException {
+    final File progressFile = getCompactionProgressFile();
+    final File targetFile = getCompactionTargetFile();
+    if (!progressFile.exists() || !targetFile.exists()) {
+      FileUtil.delete(progressFile);
+      FileUtil.delete(targetFile);
+      return false;
+    }
+
+    final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(progressFile)));
+    try {
+      if (DataInputOutputUtil.readINT(input) == COMPACTION_PROGRESS_VERSION) {
+        myDeadKeysBeforeCompaction = DataInputOutputUtil.readINT(input);
+        myReadCompactionGarbageBeforeCompaction = DataInputOutputUtil.readINT(input);
+        final BitSet movedKeys = new BitSet();
+        int keyId = 0;
+        for (int count = DataInputOutputUtil.readINT(input); count > 0; count--) {
+          keyId += DataInputOutputUtil.readINT(input);
+          movedKeys.set(keyId);
+        }
+        myMovedKeys = movedKeys;
+      }
+    }
+    finally {
+      input.close();
+    }
+
+    if (myMovedKeys == null) {
+      FileUtil.delete(progressFile);
+      FileUtil.delete(targetFile);
+      return false;
+    }
+    // the progress file goes stale as soon as anything moves, so an abnormal exit from now on must leave the map dirty
+    myEnumerator.markDirty(true);
+    FileUtil.delete(progressFile);
+    myCompactionTarget = PersistentHashMapValueStorage.create(targetFile.getPath());
+    resetKeysToMove();
+    LOG.info("Resuming incremental compaction of " + myEnumerator.myFile.getPath() + ", moved keys:" + myMovedKeys.cardinality());
+    if (ourIncrementalCompaction) {
+      myCompactionStepPending = true;
+    }
+    else {
+      // values moved so far are only in the compaction target, so the compaction is finished right away
+      while (doCompactIncrementally(Integer.MAX_VALUE, false));
+    }
+    return true;
+  }
+
+  private void resetKeysToMove() {
+    myKeysToMove = new TIntArrayList();
+    myKeysToMoveCursor = 0;
+    myNextSliceToCollect = 0;
+    myLastCompactionProgressSave = System.currentTimeMillis();
+  }
+
+  private void saveCompactionProgress() throws IOException {
+    final DataOutputStream output =
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getCompactionProgressFile())));
+    try {
+      DataInputOutputUtil.writeINT(output, COMPACTION_PROGRESS_VERSION);
+      DataInputOutputUtil.writeINT(output, myDeadKeysBeforeCompaction);
+      DataInputOutputUtil.writeINT(output, myReadCompactionGarbageBeforeCompaction);
+      DataInputOutputUtil.writeINT(output, myMovedKeys.cardinality());
+      int previous = 0;
+      for (int keyId = myMovedKeys.nextSetBit(0); keyId >= 0; keyId = myMovedKeys.nextSetBit(keyId + 1)) {
+        DataInputOutputUtil.writeINT(output, keyId - previous);
+        previous = keyId;
+      }
+    }
+    finally {
+      output.close();
+    }
+  }
+
+  private void schedulePendingCompactionStep() {
+    if (myCompactionStepPending) {
+      myCompactionStepPending = false;
+      scheduleCompactionStep();
+    }
+  }
+
+  private void scheduleCompactionStep() {
+    CompactionExecutorHolder.ourExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          if (compactIncrementally(COMPACTION_BATCH_VALUES)) {
+            scheduleCompactionStep();
+          }
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+      }
+    }, COMPACTION_STEP_DELAY_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Performs one step of incremental compaction: collects keys of one enumerator slice, moves a limited number of live values
+   * from the values file being compacted into the compaction target, or replaces the values file with the target when everything is moved.
+   * Map operations wait only for the current step. The map is forced from time to time, which saves the compaction progress.
+   *
+   * @return whether incremental compaction is still in progress
+   */
+  @TestOnly // public for tests
+  public boolean compactIncrementally(int maxValues) throws IOException {
+    return doCompactIncrementally(maxValues, true);
+  }
+
+  // the progress is not saved while the map is being constructed, forcing it would call methods of subclasses
+  private boolean doCompactIncrementally(int maxValues, boolean saveProgress) throws IOException {
+    synchronized (myEnumerator) {
+      if (myCompactionTarget == null || isClosed()) {
+        return false;
+      }
+
+      if (myKeysToMoveCursor == myKeysToMove.size()) {
+        if (myNextSliceToCollect == PersistentEnumeratorBase.TRAVERSAL_SLICES) {
+          finishIncrementalCompaction();
+          return false;
+        }
+        collectKeysToMove(myNextSliceToCollect++);
+        return true;
+      }
+
+      myEnumerator.lockStorage();
+      try {
+        final long targetSizeBefore = myCompactionTarget.getSize();
+        int moved = 0;
+        while (myKeysToMoveCursor < myKeysToMove.size() &&
+               moved < maxValues &&
+               myCompactionTarget.getSize() - targetSizeBefore < COMPACTION_BATCH_BYTES) {
+          final int keyId = myKeysToMove.get(myKeysToMoveCursor++);
+          final int processingKey = myKeysToMove.get(myKeysToMoveCursor++);
+          if (myMovedKeys.get(keyId)) continue; // rewritten or removed since the keys were collected
+
+          moveToCompactionTarget(keyId, null, processingKey);
+          moved++;
+        }
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+
+      if (saveProgress && System.currentTimeMillis() - myLastCompactionProgressSave > COMPACTION_PROGRESS_SAVE_INTERVAL_MS) {
+        myLastCompactionProgressSave = System.currentTimeMillis();
+        doForce();
+      }
+      return true;
+    }
+  }
+
+  private void collectKeysToMove(int slice) throws IOException {
+    final TIntArrayList keysToMove = new TIntArrayList();
+    traverseRecordsSlice(slice, new PersistentEnumerator.RecordsProcessor() {
+      @Override
+      public boolean process(final int keyId) throws IOException {
+        if (!myMovedKeys.get(keyId) && readValueId(keyId) != NULL_ADDR) {
+          keysToMove.add(keyId);
+          keysToMove.add(getCurrentKey());
+        }
+        return true;
+      }
+    });
+    myKeysToMove = keysToMove;
+    myKeysToMoveCursor = 0;
+  }
+
+  private int moveToCompactionTarget(int keyId, @Nullable Key key, int processingKey) throws IOException {
+    final long record = readValueId(keyId);
+    if (record == NULL_ADDR) {
+      myMovedKeys.set(keyId);
+      return keyId;
+    }
+    myEnumerator.markDirty(true);
+    final byte[] bytes = myValueStorage.readBytes(record, false).buffer;
+    final long newRecord = myCompactionTarget.appendBytes(bytes, 0, bytes.length, 0);
+    return updateValueId(keyId, newRecord, record, key, processingKey);
+  }
+
+  private void finishIncrementalCompaction() throws IOException {
+    myEnumerator.lockStorage();
+    try {
+      myAppendCache.clear();
+      final long sizeBefore = myValueStorage.getSize();
+      final long newSize = myCompactionTarget.getSize();
+      myValueStorage.dispose();
+      myCompactionTarget.dispose();
+      myCompactionTarget = null;
+      myMovedKeys = null;
+      myKeysToMove = null;
+
+      final File dataFile = getDataFile(myEnumerator.myFile);
+      FileUtil.rename(getCompactionTargetFile(), dataFile);
+      myValueStorage = PersistentHashMapValueStorage.create(dataFile.getPath());
+
+      // garbage accumulated before compaction started is gone, the rest went to the compacted file
+      myLiveAndGarbageKeysCounter -= Math.min(myDeadKeysBeforeCompaction, (int)(myLiveAndGarbageKeysCounter & DEAD_KEY_NUMBER_MASK));
+      myReadCompactionGarbageSize = Math.max(0, myReadCompactionGarbageSize - myReadCompactionGarbageBeforeCompaction);
+      myEnumerator.markDirty(true);
+
+      LOG.info("Incrementally compacted " + myEnumerator.myFile.getPath() + ":" + sizeBefore + " bytes into " + newSize +
+               " bytes, garbage ratio:" + getGarbageRatio());
+    }
+    finally {
+      myEnumerator.unlockStorage();
+    }
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -678,6 +1024,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private int requests;
 
   private int updateValueId(int keyId, long value, long oldValue, @Nullable Key key, int processingKey) throws IOException {
+    final int originalKeyId = keyId;
     final boolean newKey = oldValue == NULL_ADDR;
     if (newKey) ++requests;
     boolean defaultSizeInfo = true;
@@ -715,6 +1062,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         assert false:value;
       }
     }
+    if (myMovedKeys != null) {
+      // while incremental compaction runs values are only written to the compaction target
+      myMovedKeys.set(keyId);
+      if (keyId != originalKeyId) {
+        myMovedKeys.set(originalKeyId); // stale record after reenumeration, nothing to move there
+      }
+    }
     return keyId;
   }
 }
@@ -275,6 +275,13 @@ public class PersistentHashMapValueStorage {
    * Reads bytes pointed by tailChunkAddress into result passed, returns new address if linked list compactification have been performed
    */
   public ReadResult readBytes(long tailChunkAddress) throws IOException {
+    return readBytes(tailChunkAddress, true);
+  }
+
+  /**
+   * @param allowRelocation whether a value split into several chunks may be rewritten as a single chunk at the end of the file
+   */
+  public ReadResult readBytes(long tailChunkAddress, boolean allowRelocation) throws IOException {
     force();
 
     long chunk = tailChunkAddress;
@@ -339,7 +346,7 @@ public class PersistentHashMapValueStorage {
       }
     }
 
-    if (chunkCount > 1 && !myCompactionMode) {
+    if (chunkCount > 1 && !myCompactionMode && allowRelocation) {
       long l = appendBytes(new ByteSequence(result), 0);
       return new ReadResult(l, result);
     }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.FileUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentPagePoolTest extends TestCase {
+  private static final int PAGES = 256;
+
+  private final ConcurrentPagePool myPool = new ConcurrentPagePool(32); // much smaller than the file to force evictions
+  private final List<RandomAccessDataFile> myFiles = new ArrayList<RandomAccessDataFile>();
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (RandomAccessDataFile file : myFiles) {
+      file.dispose();
+      FileUtil.delete(file.getFile());
+    }
+    super.tearDown();
+  }
+
+  private RandomAccessDataFile createFile() throws Exception {
+    RandomAccessDataFile file = new RandomAccessDataFile(FileUtil.createTempFile("pagePool", ".dat"), myPool);
+    myFiles.add(file);
+    return file;
+  }
+
+  public void testEvictedDirtyPagesAreWritten() throws Exception {
+    RandomAccessDataFile file = createFile();
+    for (int i = 0; i < PAGES; i++) {
+      file.putInt((long)i * Page.PAGE_SIZE + 8, i);
+    }
+    for (int i = 0; i < PAGES; i++) {
+      assertEquals(i, file.getInt((long)i * Page.PAGE_SIZE + 8));
+    }
+
+    file.force();
+    assertFalse(file.isDirty());
+    for (int i = PAGES - 1; i >= 0; i--) {
+      assertEquals(i, file.getInt((long)i * Page.PAGE_SIZE + 8));
+    }
+  }
+
+  public void testConcurrentReaders() throws Exception {
+    final int threadCount = 4;
+    final List<RandomAccessDataFile> files = new ArrayList<RandomAccessDataFile>();
+    for (int t = 0; t < threadCount; t++) {
+      RandomAccessDataFile file = createFile();
+      for (int i = 0; i < PAGES; i++) {
+        file.putInt((long)i * Page.PAGE_SIZE, t * PAGES + i);
+      }
+      file.force();
+      files.add(file);
+    }
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < threadCount; t++) {
+      final int fileIndex = t;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            byte[] buffer = new byte[4];
+            for (int round = 0; round < 20; round++) {
+              for (int i = 0; i < PAGES; i++) {
+                // each thread reads every file but owns its buffer, RandomAccessDataFile.getInt() is not thread-safe
+                RandomAccessDataFile file = files.get((fileIndex + i) % files.size());
+                file.get((long)i * Page.PAGE_SIZE, buffer, 0, 4);
+                assertEquals(files.indexOf(file) * PAGES + i, Bits.getInt(buffer, 0));
+              }
+            }
+          }
+          catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    Throwable e = failure.get();
+    if (e != null) throw new RuntimeException(e);
+    assertTrue(IOStatistics.pageCacheMisses.get() > 0);
+  }
+}
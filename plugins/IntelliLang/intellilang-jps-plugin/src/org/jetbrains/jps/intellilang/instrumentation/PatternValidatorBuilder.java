@@ -19,6 +19,7 @@ import com.intellij.compiler.instrumentation.InstrumentationClassFinder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.asm4.ClassReader;
+import org.jetbrains.asm4.ClassVisitor;
 import org.jetbrains.asm4.ClassWriter;
 import org.jetbrains.jps.ModuleChunk;
 import org.jetbrains.jps.incremental.BinaryContent;
@@ -75,6 +76,30 @@ public class PatternValidatorBuilder extends BaseInstrumentingBuilder{
     return null;
   }
 
+  @Nullable
+  @Override
+  protected InstrumentationStep createInstrumentationStep(CompileContext context,
+                                                          CompiledClass compiled,
+                                                          ClassVisitor next,
+                                                          InstrumentationClassFinder finder) {
+    final JpsIntelliLangConfiguration config =
+      JpsIntelliLangExtensionService.getInstance().getConfiguration(context.getProjectDescriptor().getModel().getGlobal());
+    final PatternInstrumenter instrumenter =
+      new PatternInstrumenter(config.getPatternAnnotationClass(), next, config.getInstrumentationType(), finder);
+    return new InstrumentationStep() {
+      @NotNull
+      @Override
+      public ClassVisitor getVisitor() {
+        return instrumenter;
+      }
+
+      @Override
+      public boolean isModified() {
+        return instrumenter.instrumented();
+      }
+    };
+  }
+
   @Override
   protected String getProgressMessage() {
     return "Adding pattern assertions...";
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2013 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jetbrains.jps.intellilang.instrumentation;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.PathUtil;
+import org.jetbrains.jps.api.GlobalOptions;
+import org.jetbrains.jps.builders.JpsBuildTestCase;
+import org.jetbrains.jps.model.java.JpsJavaExtensionService;
+import org.jetbrains.jps.model.module.JpsModule;
+import org.jetbrains.jps.util.JpsPathUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Checks that instrumenting a class by the NotNull and pattern validator builders in one pass gives the same bytecode
+ * as running the builders one after another
+ */
+public class SharedInstrumentationPassTest extends JpsBuildTestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    System.clearProperty(GlobalOptions.SHARED_INSTRUMENTATION_PASS_OPTION);
+    super.tearDown();
+  }
+
+  public void testSharedPassGivesSameBytecodeAsSeparatePasses() throws IOException {
+    createFile("src/org/jetbrains/annotations/NotNull.java",
+               "package org.jetbrains.annotations;\n" +
+               "public @interface NotNull {}");
+    createFile("src/org/intellij/lang/annotations/Pattern.java",
+               "package org.intellij.lang.annotations;\n" +
+               "public @interface Pattern { String value(); }");
+    String a = createFile("src/A.java",
+                          "import org.jetbrains.annotations.NotNull;\n" +
+                          "import org.intellij.lang.annotations.Pattern;\n" +
+                          "class A {\n" +
+                          "  @Pattern(\"\\\\d+\") String number(@NotNull String s) { return s; }\n" +
+                          "  @NotNull String id(@Pattern(\"[a-z]+\") String s, @NotNull Object o) { return s + o; }\n" +
+                          "}");
+    JpsModule m = addModule("m", PathUtil.getParentPath(a));
+    JpsJavaExtensionService.getInstance().getOrCreateCompilerConfiguration(myProject).setAddNotNullAssertions(true);
+    File classFile = new File(JpsPathUtil.urlToPath(JpsJavaExtensionService.getInstance().getOutputUrl(m, false)), "A.class");
+
+    System.setProperty(GlobalOptions.SHARED_INSTRUMENTATION_PASS_OPTION, "false");
+    rebuildAll();
+    byte[] separate = FileUtil.loadFileBytes(classFile);
+
+    System.setProperty(GlobalOptions.SHARED_INSTRUMENTATION_PASS_OPTION, "true");
+    rebuildAll();
+    byte[] shared = FileUtil.loadFileBytes(classFile);
+
+    String text = new String(shared, "ISO-8859-1");
+    assertTrue(text.contains("must not be null"));
+    assertTrue(text.contains(PatternInstrumenter.PATTERN_CACHE_NAME));
+    assertTrue(Arrays.equals(separate, shared));
+  }
+}